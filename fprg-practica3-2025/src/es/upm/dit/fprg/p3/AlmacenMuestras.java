@@ -0,0 +1,351 @@
+package es.upm.dit.fprg.p3;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+
+/**
+ * Almacén en disco de los píxeles de las muestras, direccionado por
+ * contenido.
+ * <p>
+ * Cada muestra se guarda una sola vez en un fichero cuyo nombre es su
+ * <strong>huella</strong>: el resumen SHA-256 (en hexadecimal) de sus
+ * dimensiones y sus píxeles empaquetados. El identificador no interviene, de
+ * modo que las muestras con el mismo contenido, aunque pertenezcan a estudios
+ * distintos, comparten fichero y solo se escriben la primera vez.
+ * </p>
+ * <p>
+ * Los ficheros se reparten en subdirectorios según los cuatro primeros
+ * caracteres de la huella ({@code ab/cd/abcd...}) para que ningún directorio
+ * crezca demasiado. Cada fichero contiene una cabecera (número mágico,
+ * versión, alto y ancho) seguida de los píxeles, dos por byte, comprimidos
+ * con Deflate. Se escribe en un fichero temporal del mismo directorio que se
+ * renombra de forma atómica al terminar, por lo que un lector nunca ve un
+ * fichero a medio escribir y varios hilos o procesos pueden guardar a la vez
+ * la misma muestra. Al leer un fichero se comprueba que su contenido
+ * corresponde a su huella.
+ * </p>
+ * <p>
+ * {@link EstudioDiagnostico#guardar(java.io.OutputStream, AlmacenMuestras)}
+ * guarda aquí las muestras de un estudio y solo escribe sus huellas, y
+ * {@link EstudioDiagnostico#cargar(java.io.InputStream, AlmacenMuestras)}
+ * devuelve muestras que leen sus píxeles del almacén la primera vez que se
+ * necesitan (véase {@link MuestraAlmacenada}). Todos sus métodos pueden
+ * usarse desde varios hilos a la vez.
+ * </p>
+ */
+public final class AlmacenMuestras {
+
+    /** Marca que identifica los ficheros de muestras ("FPRM"). */
+    private static final int MAGICO = 0x4650524D;
+
+    /** Versión del formato de los ficheros. */
+    private static final int VERSION = 1;
+
+    /** Tamaño de la cabecera: número mágico, versión, alto y ancho. */
+    private static final int TAM_CABECERA = 4 + 1 + 4 + 4;
+
+    private final Path raiz;
+    private final LongAdder escritas;
+    private final LongAdder deduplicadas;
+    private final LongAdder leidas;
+
+    /**
+     * Crea un almacén en el directorio indicado, creándolo si no existe.
+     *
+     * @param raiz directorio raíz del almacén
+     * @throws Exception si la ruta es nula o el directorio no puede crearse
+     */
+    public AlmacenMuestras(Path raiz) throws Exception {
+        if (raiz == null) {
+            throw new Exception("El directorio del almacén no puede ser nulo.");
+        }
+        this.raiz = Files.createDirectories(raiz);
+        this.escritas = new LongAdder();
+        this.deduplicadas = new LongAdder();
+        this.leidas = new LongAdder();
+    }
+
+    /**
+     * Devuelve el directorio raíz del almacén.
+     *
+     * @return directorio raíz
+     */
+    public Path getRaiz() {
+        return raiz;
+    }
+
+    /**
+     * Guarda los píxeles de una muestra si el almacén aún no los contiene.
+     * Si la muestra ya procede de este almacén, no se vuelve a calcular su
+     * huella.
+     *
+     * @param muestra muestra a guardar
+     * @return huella de la muestra
+     * @throws Exception si la muestra es nula o no tiene píxeles, o se produce
+     *                   un error de escritura
+     */
+    public String guardar(Muestra muestra) throws Exception {
+        if (muestra == null) {
+            throw new Exception("La muestra no puede ser nula.");
+        }
+        if (muestra instanceof MuestraAlmacenada && ((MuestraAlmacenada) muestra).getAlmacen() == this) {
+            return ((MuestraAlmacenada) muestra).getHash();
+        }
+        int[][] pixeles = muestra.getPixeles();
+        if (pixeles == null) {
+            throw new Exception("La muestra " + muestra.getId() + " no tiene píxeles.");
+        }
+        byte[] empaquetados = empaquetar(pixeles);
+        String hash = huella(pixeles.length, pixeles[0].length, empaquetados);
+        Path destino = ruta(hash);
+        if (Files.exists(destino)) {
+            deduplicadas.increment();
+            return hash;
+        }
+        escribir(destino, pixeles.length, pixeles[0].length, empaquetados);
+        escritas.increment();
+        return hash;
+    }
+
+    /**
+     * Indica si el almacén contiene la muestra con la huella indicada.
+     *
+     * @param hash huella de la muestra
+     * @return {@code true} si el almacén contiene la muestra
+     * @throws Exception si la huella no es válida
+     */
+    public boolean contiene(String hash) throws Exception {
+        return Files.exists(ruta(hash));
+    }
+
+    /**
+     * Devuelve una muestra con el identificador y la huella indicados cuyos
+     * píxeles se leerán de este almacén la primera vez que se necesiten.
+     *
+     * @param id identificador de la muestra
+     * @param hash huella de la muestra
+     * @return muestra asociada al almacén
+     * @throws Exception si la huella no es válida
+     */
+    public MuestraAlmacenada referencia(String id, String hash) throws Exception {
+        ruta(hash);
+        MuestraAlmacenada muestra = new MuestraAlmacenada();
+        muestra.setId(id);
+        muestra.setHash(hash);
+        muestra.setAlmacen(this);
+        return muestra;
+    }
+
+    /**
+     * Lee los píxeles de la muestra con la huella indicada.
+     *
+     * @param hash huella de la muestra
+     * @return matriz de píxeles en el rango 0-15
+     * @throws Exception si la huella no es válida, el almacén no contiene la
+     *                   muestra o su fichero está dañado
+     */
+    public int[][] leerPixeles(String hash) throws Exception {
+        Path origen = ruta(hash);
+        if (!Files.exists(origen)) {
+            throw new Exception("El almacén no contiene la muestra " + hash + ".");
+        }
+        ByteBuffer fichero = ByteBuffer.wrap(Files.readAllBytes(origen));
+        if (fichero.remaining() < TAM_CABECERA || fichero.getInt() != MAGICO) {
+            throw new Exception("El fichero de la muestra " + hash + " está dañado.");
+        }
+        int version = fichero.get();
+        if (version > VERSION) {
+            throw new Exception("Versión del fichero de la muestra " + hash + " no soportada: " + version);
+        }
+        int alto = fichero.getInt();
+        int ancho = fichero.getInt();
+        if (alto <= 0 || ancho <= 0 || (long) alto * ancho > Integer.MAX_VALUE) {
+            throw new Exception("El fichero de la muestra " + hash + " está dañado.");
+        }
+
+        byte[] empaquetados = new byte[(int) (((long) alto * ancho + 1) / 2)];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(fichero.array(), fichero.position(), fichero.remaining());
+            int leidos = 0;
+            while (leidos < empaquetados.length && !inflater.finished()) {
+                int n = inflater.inflate(empaquetados, leidos, empaquetados.length - leidos);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                leidos += n;
+            }
+            if (leidos != empaquetados.length) {
+                throw new Exception("El fichero de la muestra " + hash + " está truncado.");
+            }
+        } catch (DataFormatException e) {
+            throw new Exception("El fichero de la muestra " + hash + " está dañado.", e);
+        } finally {
+            inflater.end();
+        }
+        if (!hash.equals(huella(alto, ancho, empaquetados))) {
+            throw new Exception("El contenido de la muestra " + hash + " no corresponde a su huella.");
+        }
+        leidas.increment();
+        return desempaquetar(empaquetados, alto, ancho);
+    }
+
+    /**
+     * Devuelve el número de muestras escritas en el almacén por este objeto.
+     *
+     * @return muestras escritas
+     */
+    public long getMuestrasEscritas() {
+        return escritas.sum();
+    }
+
+    /**
+     * Devuelve el número de muestras que no se han escrito porque el almacén
+     * ya las contenía.
+     *
+     * @return muestras deduplicadas
+     */
+    public long getMuestrasDeduplicadas() {
+        return deduplicadas.sum();
+    }
+
+    /**
+     * Devuelve el número de muestras leídas del almacén.
+     *
+     * @return muestras leídas
+     */
+    public long getMuestrasLeidas() {
+        return leidas.sum();
+    }
+
+    /**
+     * Devuelve la ruta del fichero de una huella, comprobando que la huella
+     * es válida para que no pueda designar ficheros fuera del almacén.
+     */
+    private Path ruta(String hash) throws Exception {
+        if (hash == null || hash.length() != 64) {
+            throw new Exception("Huella de muestra no válida: " + hash);
+        }
+        for (int i = 0; i < hash.length(); i++) {
+            char c = hash.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+                throw new Exception("Huella de muestra no válida: " + hash);
+            }
+        }
+        return raiz.resolve(hash.substring(0, 2)).resolve(hash.substring(2, 4)).resolve(hash);
+    }
+
+    /**
+     * Escribe el fichero de una muestra en un temporal que después se renombra
+     * de forma atómica.
+     */
+    private static void escribir(Path destino, int alto, int ancho, byte[] empaquetados) throws Exception {
+        Path directorio = Files.createDirectories(destino.getParent());
+        Path temporal = Files.createTempFile(directorio, destino.getFileName().toString(), ".tmp");
+        try {
+            FileOutputStream fichero = new FileOutputStream(temporal.toFile());
+            Deflater deflater = new Deflater();
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fichero))) {
+                out.writeInt(MAGICO);
+                out.writeByte(VERSION);
+                out.writeInt(alto);
+                out.writeInt(ancho);
+                DeflaterOutputStream comprimido = new DeflaterOutputStream(out, deflater);
+                comprimido.write(empaquetados);
+                comprimido.finish();
+                out.flush();
+                // El contenido debe llegar al disco antes que el renombrado
+                fichero.getFD().sync();
+            } finally {
+                deflater.end();
+            }
+            try {
+                Files.move(temporal, destino, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temporal, destino, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temporal);
+        }
+    }
+
+    /**
+     * Empaqueta los píxeles, dos por byte (el primero en los 4 bits altos),
+     * recorriendo la matriz por filas.
+     */
+    private static byte[] empaquetar(int[][] pixeles) {
+        int ancho = pixeles[0].length;
+        byte[] empaquetados = new byte[(int) (((long) pixeles.length * ancho + 1) / 2)];
+        int posicion = 0;
+        for (int[] fila : pixeles) {
+            for (int col = 0; col < ancho; col++) {
+                if ((posicion & 1) == 0) {
+                    empaquetados[posicion >>> 1] = (byte) (fila[col] << 4);
+                } else {
+                    empaquetados[posicion >>> 1] |= (byte) fila[col];
+                }
+                posicion++;
+            }
+        }
+        return empaquetados;
+    }
+
+    private static int[][] desempaquetar(byte[] empaquetados, int alto, int ancho) {
+        int[][] pixeles = new int[alto][ancho];
+        int posicion = 0;
+        for (int[] fila : pixeles) {
+            for (int col = 0; col < ancho; col++) {
+                int b = empaquetados[posicion >>> 1];
+                fila[col] = (posicion & 1) == 0 ? (b >>> 4) & 0xF : b & 0xF;
+                posicion++;
+            }
+        }
+        return pixeles;
+    }
+
+    /**
+     * Calcula la huella con la que se guardarían unos píxeles en el almacén,
+     * sin guardarlos.
+     *
+     * @param pixeles matriz de píxeles en el rango 0-15
+     * @return huella SHA-256 en hexadecimal
+     */
+    static String huella(int[][] pixeles) {
+        return huella(pixeles.length, pixeles[0].length, empaquetar(pixeles));
+    }
+
+    /**
+     * Calcula la huella de una muestra: SHA-256 de su alto, su ancho y sus
+     * píxeles empaquetados.
+     */
+    private static String huella(int alto, int ancho, byte[] empaquetados) {
+        MessageDigest resumen;
+        try {
+            resumen = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Todas las plataformas Java deben ofrecer SHA-256
+            throw new IllegalStateException(e);
+        }
+        resumen.update(ByteBuffer.allocate(8).putInt(alto).putInt(ancho).array());
+        resumen.update(empaquetados);
+        StringBuilder sb = new StringBuilder(64);
+        for (byte b : resumen.digest()) {
+            sb.append(Character.forDigit((b >>> 4) & 0xF, 16));
+            sb.append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,176 @@
+package es.upm.dit.fprg.p3;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Análisis de un estudio que se está ejecutando en segundo plano, iniciado
+ * con {@link AnalizadorDiagnostico#analizarAsincrono(EstudioDiagnostico)}.
+ * <p>
+ * Es un {@link CompletableFuture} que se completa con los recuentos de todos
+ * los elementos, igual que el resultado de
+ * {@link AnalizadorDiagnostico#analizar(EstudioDiagnostico)}. Además ofrece un
+ * futuro por elemento, mediante {@link #getResultado(String)}, que se
+ * completa en cuanto se han procesado todas las muestras de ese elemento:
+ * quien lo espera puede empezar a trabajar con un elemento sin esperar a los
+ * más costosos.
+ * </p>
+ * <p>
+ * Si algún reconocedor falla, el análisis y los futuros de los elementos aún
+ * pendientes se completan con esa excepción. Cancelar el análisis con
+ * {@link #cancel(boolean)} cancela también los futuros pendientes y detiene
+ * las detecciones en curso como si su plazo se hubiera agotado.
+ * </p>
+ */
+public class AnalisisEnCurso extends CompletableFuture<Map<String, Integer>> {
+
+    /** Estado de los pares (muestra, reconocedor) de un elemento. */
+    private static final class Elemento {
+        private final CompletableFuture<Integer> futuro = new CompletableFuture<>();
+        private final LongAdder positivos = new LongAdder();
+        private final AtomicInteger pendientes;
+
+        Elemento(int pares) {
+            this.pendientes = new AtomicInteger(pares);
+        }
+    }
+
+    private final Map<String, Elemento> elementos;
+    private final AtomicInteger elementosPendientes;
+    private final Plazo plazo;
+    private final ResultadosParciales parciales;
+
+    /**
+     * Crea el análisis con el número de pares (muestra, reconocedor) que
+     * aporta cada elemento. Los elementos sin pares se completan con 0.
+     *
+     * @param paresPorElemento número de pares de cada elemento
+     * @param plazo plazo que se cancela al cancelar el análisis, o
+     *              {@code null} si el análisis no tiene plazo
+     * @param parciales recuentos por muestra del estudio analizado
+     */
+    AnalisisEnCurso(Map<String, Integer> paresPorElemento, Plazo plazo, ResultadosParciales parciales) {
+        this.elementos = new HashMap<>();
+        this.plazo = plazo;
+        this.parciales = parciales;
+        int pendientes = 0;
+        for (Map.Entry<String, Integer> entrada : paresPorElemento.entrySet()) {
+            elementos.put(entrada.getKey(), new Elemento(entrada.getValue()));
+            if (entrada.getValue() > 0) {
+                pendientes++;
+            }
+        }
+        this.elementosPendientes = new AtomicInteger(pendientes);
+        for (Elemento elemento : elementos.values()) {
+            if (elemento.pendientes.get() == 0) {
+                elemento.futuro.complete(0);
+            }
+        }
+        if (pendientes == 0) {
+            complete(new HashMap<>());
+        }
+    }
+
+    /**
+     * Devuelve los nombres de los elementos que se están analizando.
+     *
+     * @return conjunto no modificable de nombres de elementos
+     */
+    public Set<String> getElementos() {
+        return Collections.unmodifiableSet(elementos.keySet());
+    }
+
+    /**
+     * Devuelve el futuro que se completa con el número de píxeles positivos
+     * de un elemento en cuanto se han procesado todas las muestras del
+     * estudio para ese elemento.
+     *
+     * @param nombre nombre del elemento microscópico
+     * @return futuro con el recuento del elemento
+     * @throws Exception si el elemento no se está analizando
+     */
+    public CompletableFuture<Integer> getResultado(String nombre) throws Exception {
+        Elemento elemento = elementos.get(nombre);
+        if (elemento == null) {
+            throw new Exception("El elemento " + nombre + " no forma parte del análisis");
+        }
+        return elemento.futuro;
+    }
+
+    /**
+     * Cancela el análisis y los futuros de los elementos pendientes. Las
+     * detecciones en curso se detienen en su siguiente comprobación del plazo.
+     *
+     * @param interrumpir se ignora: las detecciones se detienen mediante el
+     *                    plazo, no interrumpiendo los hilos
+     * @return {@code true} si el análisis quedó cancelado por esta llamada
+     */
+    @Override
+    public boolean cancel(boolean interrumpir) {
+        if (plazo != null) {
+            plazo.cancelar();
+        }
+        boolean cancelado = super.cancel(interrumpir);
+        for (Elemento elemento : elementos.values()) {
+            elemento.futuro.cancel(interrumpir);
+        }
+        return cancelado;
+    }
+
+    /**
+     * Suma el recuento de un par (muestra, reconocedor) terminado. Si era el
+     * último par del elemento, completa su futuro y, si era el último
+     * elemento, completa el análisis. Los recuentos parciales del estudio se
+     * actualizan antes, de modo que están completos al completarse el
+     * análisis. Los pares interrumpidos por el plazo no se registran en
+     * ellos, así que su muestra no llega a fusionarse.
+     *
+     * @param muestra índice de la muestra del par
+     * @param reconocedor índice del reconocedor del par
+     * @param nombre nombre del elemento del par
+     * @param positivos píxeles positivos del par
+     * @param completo si el par se ha analizado entero
+     */
+    void registrar(int muestra, int reconocedor, String nombre, int positivos, boolean completo) {
+        if (completo) {
+            parciales.registrar(muestra, reconocedor, positivos);
+        }
+        Elemento elemento = elementos.get(nombre);
+        elemento.positivos.add(positivos);
+        if (elemento.pendientes.decrementAndGet() == 0) {
+            elemento.futuro.complete(elemento.positivos.intValue());
+            if (elementosPendientes.decrementAndGet() == 0) {
+                complete(recuentos());
+            }
+        }
+    }
+
+    /**
+     * Completa con una excepción el análisis y los futuros de los elementos
+     * pendientes.
+     *
+     * @param error causa del fallo
+     */
+    void fallar(Throwable error) {
+        for (Elemento elemento : elementos.values()) {
+            elemento.futuro.completeExceptionally(error);
+        }
+        completeExceptionally(error);
+    }
+
+    /**
+     * Construye el mapa de recuentos una vez terminados todos los elementos.
+     */
+    private Map<String, Integer> recuentos() {
+        Map<String, Integer> resultados = new HashMap<>();
+        for (Map.Entry<String, Elemento> entrada : elementos.entrySet()) {
+            resultados.put(entrada.getKey(), entrada.getValue().positivos.intValue());
+        }
+        return resultados;
+    }
+}
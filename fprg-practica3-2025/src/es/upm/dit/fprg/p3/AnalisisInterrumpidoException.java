@@ -0,0 +1,37 @@
+package es.upm.dit.fprg.p3;
+
+/**
+ * Indica que un reconocedor ha dejado de analizar una muestra porque su
+ * {@link Plazo} se ha agotado.
+ * <p>
+ * Contiene el número de píxeles positivos encontrados antes de la
+ * interrupción. Es una cota inferior del recuento completo: las zonas no
+ * exploradas de la muestra no aportan detecciones.
+ * </p>
+ */
+public class AnalisisInterrumpidoException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int positivosParciales;
+
+    /**
+     * Crea la excepción con el recuento obtenido hasta la interrupción.
+     *
+     * @param positivosParciales píxeles positivos encontrados antes de detenerse
+     */
+    public AnalisisInterrumpidoException(int positivosParciales) {
+        super("Análisis interrumpido: plazo agotado");
+        this.positivosParciales = positivosParciales;
+    }
+
+    /**
+     * Devuelve el número de píxeles positivos encontrados antes de la
+     * interrupción.
+     *
+     * @return recuento parcial
+     */
+    public int getPositivosParciales() {
+        return positivosParciales;
+    }
+}
@@ -1,10 +1,24 @@
 package es.upm.dit.fprg.p3;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashSet;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Orquestador que coordina múltiples reconocedores de imagen para generar
@@ -20,20 +34,96 @@ import java.util.Set;
  * para cada elemento microscópico, permitiendo una evaluación objetiva de la
  * presencia de diferentes patógenos o estructuras en el estudio completo.
  * </p>
+ * <p>
+ * Como solo se necesita el número de píxeles positivos, los conteos se piden a
+ * cada reconocedor mediante {@link ReconocedorImagen#contarDetecciones(Muestra)},
+ * que evita construir una máscara {@code boolean[][]} por cada par
+ * (muestra, reconocedor).
+ * </p>
+ * <p>
+ * Opcionalmente puede asociarse una {@link CacheResultados} mediante
+ * {@link #setCache(CacheResultados)}: los recuentos de pares (muestra,
+ * reconocedor) ya calculados se reutilizan cuando se vuelve a analizar una
+ * muestra con el mismo contenido.
+ * </p>
+ * <p>
+ * Con {@link #analizar(EstudioDiagnostico, Plazo)} el análisis se limita a un
+ * tiempo máximo o puede cancelarse desde otro hilo; si se interrumpe, se
+ * devuelven los recuentos parciales indicando qué elementos están incompletos.
+ * </p>
+ * <p>
+ * Con un {@link ModeloCoste} ({@link #setModeloCoste(ModeloCoste)}) se elige
+ * para cada par (muestra, reconocedor) el motor de detección más rápido y, en
+ * modo paralelo, los pares se reparten empezando por los más costosos.
+ * </p>
+ * <p>
+ * Los {@link ObservadorDeteccion observadores} registrados con
+ * {@link #addObservador(ObservadorDeteccion)} reciben las medidas de cada
+ * detección; si no hay ninguno, no se mide nada.
+ * </p>
+ * <p>
+ * {@link #analizarAsincrono(EstudioDiagnostico)} inicia el análisis en segundo
+ * plano y devuelve un {@link AnalisisEnCurso}: un
+ * {@link java.util.concurrent.CompletableFuture} con el mapa de resultados y un
+ * futuro por elemento que se completa en cuanto ese elemento termina. Los
+ * métodos síncronos se limitan a esperar el resultado del mismo mecanismo.
+ * </p>
+ * <p>
+ * Para estudios que no caben en memoria, {@link #analizar(Iterator, int)}
+ * recibe las muestras como {@link FuenteMuestra fuentes perezosas} y las
+ * decodifica y analiza con un número acotado de muestras en memoria.
+ * </p>
+ * <p>
+ * <strong>Modo paralelo:</strong> si se configura un {@link Executor} mediante
+ * {@link #setEjecutor(Executor)}, los pares (muestra, reconocedor) se reparten
+ * en tareas de {@link #setParesPorTarea(int) tamaño configurable} que se
+ * ejecutan con, como mucho, {@link #setParalelismoMaximo(int) un número máximo}
+ * de tareas simultáneas. Puede utilizarse cualquier ejecutor: un
+ * {@link java.util.concurrent.ForkJoinPool}, un pool de tamaño fijo o, en
+ * versiones de Java que lo permitan, un ejecutor de hilos virtuales. El
+ * resultado es el mismo que en modo secuencial.
+ * </p>
  */
 public class AnalizadorDiagnostico {
 
+    /** Número de pares (muestra, reconocedor) por tarea si no se indica otro. */
+    public static final int PARES_POR_TAREA_POR_DEFECTO = 1;
+
     /**
      * Conjunto de reconocedores registrados que se aplicarán sobre las muestras.
      * Se utiliza un Set para evitar duplicados.
      */
     private Set<ReconocedorImagen> reconocedores;
 
+    /** Ejecutor del modo paralelo, o {@code null} para analizar secuencialmente. */
+    private Executor ejecutor;
+
+    /** Número máximo de tareas de análisis ejecutándose a la vez. */
+    private int paralelismoMaximo;
+
+    /** Número de pares (muestra, reconocedor) que procesa cada tarea. */
+    private int paresPorTarea;
+
+    /** Caché de recuentos, o {@code null} si no se utiliza. */
+    private CacheResultados cache;
+
+    /** Modelo de costes para elegir motores y ordenar pares, o {@code null}. */
+    private ModeloCoste modeloCoste;
+
+    /** Observadores que reciben las medidas de cada detección. */
+    private final List<ObservadorDeteccion> observadores;
+
     /**
      * Constructor que inicializa el analizador sin reconocedores.
      */
     public AnalizadorDiagnostico() {
         this.reconocedores = new HashSet<>();
+        this.ejecutor = null;
+        this.paralelismoMaximo = Runtime.getRuntime().availableProcessors();
+        this.paresPorTarea = PARES_POR_TAREA_POR_DEFECTO;
+        this.cache = null;
+        this.modeloCoste = null;
+        this.observadores = new CopyOnWriteArrayList<>();
     }
 
 
@@ -52,27 +142,626 @@ public class AnalizadorDiagnostico {
     	if(reconocedor == null) throw new Exception("Reconocedor nulo");
         reconocedores.add(reconocedor);
     }
-    
+
+    /**
+     * Establece el ejecutor con el que se realizan los análisis en paralelo.
+     *
+     * @param ejecutor ejecutor de las tareas de análisis, o {@code null} para
+     *                 volver al modo secuencial
+     */
+    public void setEjecutor(Executor ejecutor) {
+        this.ejecutor = ejecutor;
+    }
+
+    /**
+     * Establece el número máximo de tareas de análisis que pueden ejecutarse
+     * simultáneamente en el modo paralelo.
+     *
+     * @param paralelismoMaximo número máximo de tareas simultáneas
+     * @throws Exception si el valor no es positivo
+     */
+    public void setParalelismoMaximo(int paralelismoMaximo) throws Exception {
+        if (paralelismoMaximo < 1) {
+            throw new Exception("El paralelismo máximo debe ser >= 1");
+        }
+        this.paralelismoMaximo = paralelismoMaximo;
+    }
+
+    /**
+     * Establece cuántos pares (muestra, reconocedor) procesa cada tarea en el
+     * modo paralelo. Valores mayores reducen el coste de coordinación; valores
+     * menores reparten mejor la carga cuando los reconocedores tienen costes
+     * muy distintos.
+     *
+     * @param paresPorTarea número de pares por tarea
+     * @throws Exception si el valor no es positivo
+     */
+    public void setParesPorTarea(int paresPorTarea) throws Exception {
+        if (paresPorTarea < 1) {
+            throw new Exception("El número de pares por tarea debe ser >= 1");
+        }
+        this.paresPorTarea = paresPorTarea;
+    }
+
+    /**
+     * Establece la caché de resultados que se consulta antes de aplicar cada
+     * reconocedor sobre una muestra.
+     *
+     * @param cache caché de resultados, o {@code null} para no utilizarla
+     */
+    public void setCache(CacheResultados cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Devuelve la caché de resultados asociada al analizador.
+     *
+     * @return caché de resultados, o {@code null} si no se utiliza
+     */
+    public CacheResultados getCache() {
+        return cache;
+    }
+
+    /**
+     * Establece el modelo de costes con el que se elige el motor de cada par
+     * (muestra, reconocedor) y, en modo paralelo, el orden en que se reparten
+     * los pares: primero los de mayor coste estimado, para que los más largos
+     * no queden para el final mientras otros trabajadores están ociosos.
+     *
+     * @param modeloCoste modelo calibrado, o {@code null} para ejecutar siempre
+     *                    los reconocedores registrados en el orden del conjunto
+     */
+    public void setModeloCoste(ModeloCoste modeloCoste) {
+        this.modeloCoste = modeloCoste;
+    }
+
+    /**
+     * Devuelve el modelo de costes asociado al analizador.
+     *
+     * @return modelo de costes, o {@code null} si no se utiliza
+     */
+    public ModeloCoste getModeloCoste() {
+        return modeloCoste;
+    }
+
+    /**
+     * Registra un observador que recibirá las medidas (tiempo, trabajo
+     * realizado y bytes reservados) de cada detección que realice el
+     * analizador. Las detecciones resueltas por la caché no se notifican.
+     *
+     * @param observador observador a registrar
+     * @throws Exception si el observador es nulo
+     */
+    public void addObservador(ObservadorDeteccion observador) throws Exception {
+        if (observador == null) {
+            throw new Exception("Observador nulo");
+        }
+        observadores.add(observador);
+    }
+
+    /**
+     * Elimina un observador registrado.
+     *
+     * @param observador observador a eliminar
+     */
+    public void removeObservador(ObservadorDeteccion observador) {
+        observadores.remove(observador);
+    }
+
+    /**
+     * Aplica todos los reconocedores registrados sobre todas las muestras del
+     * estudio y acumula el número de píxeles positivos por elemento microscópico.
+     * <p>
+     * Equivale a esperar el resultado de un análisis asíncrono: en modo
+     * secuencial los pares (muestra, reconocedor) se procesan en el hilo
+     * llamante y en modo paralelo en el ejecutor configurado.
+     * </p>
+     *
+     * @param estudio estudio cuyas muestras se analizan
+     * @return mapa que asocia el nombre de cada elemento con el total de
+     *         píxeles positivos detectados
+     * @throws Exception si el estudio es nulo o algún reconocedor falla
+     */
+    public Map<String, Integer> analizar(EstudioDiagnostico estudio) throws Exception {
+        if (estudio == null) {
+            throw new Exception("Estudio nulo");
+        }
+        EventoAnalisis evento = new EventoAnalisis();
+        evento.begin();
+        Map<String, Integer> resultados = esperar(iniciarSincrono(estudio, null, null));
+        registrar(evento, estudio, modo(), true);
+        return resultados;
+    }
+
     /**
-     * Cuenta el número total de píxeles marcados como positivos en una máscara
-     * de detección.
+     * Analiza el estudio como {@link #analizar(EstudioDiagnostico)}, pero
+     * deteniéndose cuando se agota el plazo.
      * <p>
-     * Este método auxiliar recorre toda la matriz booleana y cuenta cuántos
-     * elementos tienen el valor {@code true}.
+     * Los reconocedores comprueban el plazo por filas o bandas de filas, por
+     * lo que incluso una muestra enorme deja de analizarse poco después del
+     * vencimiento o de una llamada a {@link Plazo#cancelar()}. Los pares
+     * (muestra, reconocedor) interrumpidos aportan su recuento parcial y los
+     * que no llegaron a empezar no aportan nada; en ambos casos el elemento
+     * correspondiente se marca como incompleto en el resultado.
      * </p>
      *
-     * @param mascara matriz booleana de detecciones
-     * @return número total de elementos {@code true} en la matriz
-     */
-    private int contarPositivos(boolean[][] mascara) {
-        int contador = 0;
-        for (boolean[] fila : mascara) {
-            for (boolean valor : fila) {
-                if (valor) {
-                    contador++;
+     * @param estudio estudio cuyas muestras se analizan
+     * @param plazo límite de tiempo y señal de cancelación del análisis
+     * @return recuentos por elemento y marca de completitud de cada uno
+     * @throws Exception si el estudio o el plazo son nulos, o algún
+     *                   reconocedor falla
+     */
+    public ResultadoAnalisis analizar(EstudioDiagnostico estudio, Plazo plazo) throws Exception {
+        if (estudio == null) {
+            throw new Exception("Estudio nulo");
+        }
+        if (plazo == null) {
+            throw new Exception("Plazo nulo");
+        }
+        EventoAnalisis evento = new EventoAnalisis();
+        evento.begin();
+        Set<String> incompletos = ConcurrentHashMap.newKeySet();
+        Map<String, Integer> resultados = esperar(iniciarSincrono(estudio, plazo, incompletos));
+        registrar(evento, estudio, modo(), incompletos.isEmpty());
+        return new ResultadoAnalisis(resultados, incompletos);
+    }
+
+    /**
+     * Inicia el análisis del estudio en segundo plano y devuelve
+     * inmediatamente.
+     * <p>
+     * Los pares (muestra, reconocedor) se reparten entre, como mucho,
+     * {@link #setParalelismoMaximo(int) el paralelismo máximo} de tareas del
+     * ejecutor configurado con {@link #setEjecutor(Executor)} o, si no hay
+     * ninguno, del {@link ForkJoinPool#commonPool() pool común}. Se procesan
+     * elemento a elemento (con modelo de costes, empezando por los elementos
+     * más baratos), de modo que el futuro de cada elemento
+     * ({@link AnalisisEnCurso#getResultado(String)}) se completa lo antes
+     * posible.
+     * </p>
+     *
+     * @param estudio estudio cuyas muestras se analizan
+     * @return análisis en curso, que se completa con el mismo mapa que
+     *         devolvería {@link #analizar(EstudioDiagnostico)}
+     * @throws Exception si el estudio es nulo
+     */
+    public AnalisisEnCurso analizarAsincrono(EstudioDiagnostico estudio) throws Exception {
+        return analizarAsincrono(estudio, ejecutor == null ? ForkJoinPool.commonPool() : ejecutor);
+    }
+
+    /**
+     * Inicia el análisis del estudio en segundo plano sobre el ejecutor
+     * indicado, como {@link #analizarAsincrono(EstudioDiagnostico)}.
+     *
+     * @param estudio estudio cuyas muestras se analizan
+     * @param ejecutorAnalisis ejecutor en el que se procesan los pares
+     * @return análisis en curso
+     * @throws Exception si el estudio o el ejecutor son nulos
+     */
+    public AnalisisEnCurso analizarAsincrono(EstudioDiagnostico estudio, Executor ejecutorAnalisis)
+            throws Exception {
+        if (estudio == null) {
+            throw new Exception("Estudio nulo");
+        }
+        if (ejecutorAnalisis == null) {
+            throw new Exception("Ejecutor nulo");
+        }
+        EventoAnalisis evento = new EventoAnalisis();
+        evento.begin();
+        AnalisisEnCurso analisis = iniciar(estudio, Plazo.sinLimite(),
+                ConcurrentHashMap.newKeySet(), ejecutorAnalisis, paralelismoMaximo, true);
+        analisis.whenComplete((resultados, error) -> registrar(evento, estudio, "asincrono", error == null));
+        return analisis;
+    }
+
+    /**
+     * Inicia el análisis de los métodos síncronos: en el hilo llamante si no
+     * hay ejecutor, con lo que el análisis ya ha terminado al volver, o en el
+     * ejecutor configurado repartiendo los pares de mayor a menor coste.
+     */
+    private AnalisisEnCurso iniciarSincrono(EstudioDiagnostico estudio, Plazo plazo, Set<String> incompletos) {
+        if (ejecutor == null) {
+            return iniciar(estudio, plazo, incompletos, Runnable::run, 1, false);
+        }
+        return iniciar(estudio, plazo, incompletos, ejecutor, paralelismoMaximo, false);
+    }
+
+    /**
+     * Reparte los pares (muestra, reconocedor) en bloques de
+     * {@code paresPorTarea}. Se lanzan como mucho {@code maxTrabajadores}
+     * trabajadores en el ejecutor; cada uno toma bloques pendientes hasta que
+     * no quedan o el análisis termina (por fallo o cancelación), y anota cada
+     * par en el {@link AnalisisEnCurso}, que suma los recuentos y completa los
+     * futuros.
+     * <p>
+     * Si {@code porElementos} es cierto, los pares se procesan elemento a
+     * elemento para completar cuanto antes los futuros de cada uno; si no y
+     * hay modelo de costes, de mayor a menor coste estimado.
+     * </p>
+     * <p>
+     * Antes de lanzar ningún par asocia al estudio unos
+     * {@link ResultadosParciales} nuevos, que se actualizan a medida que se
+     * completan las muestras.
+     * </p>
+     */
+    private AnalisisEnCurso iniciar(EstudioDiagnostico estudio, Plazo plazo, Set<String> incompletos,
+            Executor destino, int maxTrabajadores, boolean porElementos) {
+        List<Muestra> listaMuestras = new ArrayList<>(estudio.getInstantaneaMuestras());
+        List<ReconocedorImagen> listaReconocedores = new ArrayList<>(reconocedores);
+        Map<String, Integer> paresPorElemento = new HashMap<>();
+        List<String> elementosReconocedores = new ArrayList<>(listaReconocedores.size());
+        for (ReconocedorImagen reconocedor : listaReconocedores) {
+            paresPorElemento.merge(reconocedor.getElemento().getNombre(), listaMuestras.size(), Integer::sum);
+            elementosReconocedores.add(reconocedor.getElemento().getNombre());
+        }
+        ResultadosParciales parciales = new ResultadosParciales(elementosReconocedores, listaMuestras.size());
+        estudio.setResultadosParciales(parciales);
+        AnalisisEnCurso analisis = new AnalisisEnCurso(paresPorElemento, plazo, parciales);
+
+        int numPares = listaMuestras.size() * listaReconocedores.size();
+        if (numPares == 0) {
+            return analisis;
+        }
+        int numBloques = (numPares + paresPorTarea - 1) / paresPorTarea;
+        int numTrabajadores = Math.min(maxTrabajadores, numBloques);
+        int[] orden;
+        if (porElementos) {
+            orden = ordenarPorElementos(listaMuestras, listaReconocedores);
+        } else {
+            orden = numTrabajadores > 1 ? ordenarPorCoste(listaMuestras, listaReconocedores) : null;
+        }
+        int hilosPorPar = modeloCoste == null ? 1 : Math.max(1, modeloCoste.getParalelismo() / numTrabajadores);
+        AtomicInteger siguienteBloque = new AtomicInteger();
+
+        Runnable trabajador = () -> {
+            try {
+                int bloque;
+                while (!analisis.isDone() && (bloque = siguienteBloque.getAndIncrement()) < numBloques) {
+                    int fin = Math.min(numPares, (bloque + 1) * paresPorTarea);
+                    for (int posicion = bloque * paresPorTarea; posicion < fin; posicion++) {
+                        int par = orden == null ? posicion : orden[posicion];
+                        int m = par / listaReconocedores.size();
+                        int r = par % listaReconocedores.size();
+                        ReconocedorImagen reconocedor = listaReconocedores.get(r);
+                        String nombre = reconocedor.getElemento().getNombre();
+                        int positivos;
+                        boolean completo;
+                        try {
+                            positivos = contarDetecciones(reconocedor, listaMuestras.get(m), plazo, hilosPorPar);
+                            completo = true;
+                        } catch (AnalisisInterrumpidoException e) {
+                            incompletos.add(nombre);
+                            positivos = e.getPositivosParciales();
+                            completo = false;
+                        }
+                        analisis.registrar(m, r, nombre, positivos, completo);
+                    }
                 }
+            } catch (Exception | Error e) {
+                analisis.fallar(e);
+            }
+        };
+
+        for (int i = 0; i < numTrabajadores; i++) {
+            try {
+                destino.execute(trabajador);
+            } catch (RuntimeException e) {
+                analisis.fallar(e);
+                break;
+            }
+        }
+        return analisis;
+    }
+
+    /**
+     * Espera a que termine un análisis y devuelve sus recuentos, relanzando
+     * la excepción del reconocedor que haya fallado.
+     */
+    private static Map<String, Integer> esperar(AnalisisEnCurso analisis) throws Exception {
+        try {
+            return analisis.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Devuelve el modo de los análisis síncronos, para los eventos de JFR.
+     */
+    private String modo() {
+        return ejecutor == null ? "secuencial" : "paralelo";
+    }
+
+    /**
+     * Cierra y emite el evento de JFR del análisis de un estudio si hay una
+     * grabación que lo registre.
+     */
+    private void registrar(EventoAnalisis evento, EstudioDiagnostico estudio, String modo, boolean completo) {
+        evento.end();
+        if (evento.shouldCommit()) {
+            evento.describir(estudio);
+            evento.reconocedores = reconocedores.size();
+            evento.modo = modo;
+            evento.completo = completo;
+            evento.commit();
+        }
+    }
+
+    /**
+     * Analiza un estudio cuyas muestras se obtienen bajo demanda de una
+     * secuencia de fuentes perezosas.
+     * <p>
+     * Cada muestra se carga, se analiza con todos los reconocedores y se
+     * descarta en cuanto sus recuentos se han sumado al resultado. Como mucho
+     * {@code maxEnVuelo} muestras están cargadas a la vez: cuando se alcanza el
+     * límite, no se pide la siguiente fuente hasta que termine alguna de las
+     * muestras en curso. Así la memoria necesaria no depende del número de
+     * muestras del estudio.
+     * </p>
+     * <p>
+     * Si hay un ejecutor configurado, cada muestra se carga y analiza en una
+     * tarea del ejecutor; si no, todo se realiza en el hilo llamante, una
+     * muestra tras otra. El iterador solo se recorre desde el hilo llamante.
+     * </p>
+     *
+     * @param fuentes secuencia de fuentes de las muestras del estudio
+     * @param maxEnVuelo número máximo de muestras cargadas simultáneamente
+     * @return mapa que asocia el nombre de cada elemento con el total de
+     *         píxeles positivos detectados
+     * @throws Exception si la secuencia es nula, {@code maxEnVuelo} no es
+     *                   positivo, o falla la carga o el análisis de alguna
+     *                   muestra; un {@link Error} de una tarea del ejecutor se
+     *                   devuelve como causa de la excepción
+     */
+    public Map<String, Integer> analizar(Iterator<? extends FuenteMuestra> fuentes, int maxEnVuelo)
+            throws Exception {
+        if (fuentes == null) {
+            throw new Exception("Secuencia de fuentes nula");
+        }
+        if (maxEnVuelo < 1) {
+            throw new Exception("El número máximo de muestras en vuelo debe ser >= 1");
+        }
+        List<ReconocedorImagen> listaReconocedores = new ArrayList<>(reconocedores);
+        ConcurrentHashMap<String, LongAdder> acumulador = new ConcurrentHashMap<>();
+        EventoAnalisis evento = new EventoAnalisis();
+        evento.begin();
+        int numMuestras = 0;
+
+        if (ejecutor == null) {
+            int hilosPorPar = modeloCoste == null ? 1 : modeloCoste.getParalelismo();
+            while (fuentes.hasNext()) {
+                analizarMuestra(fuentes.next().cargar(), listaReconocedores, acumulador, hilosPorPar);
+                numMuestras++;
+            }
+            registrarStreaming(evento, numMuestras, listaReconocedores.size());
+            return aMapa(acumulador);
+        }
+
+        int hilosPorPar = modeloCoste == null ? 1 : Math.max(1, modeloCoste.getParalelismo() / maxEnVuelo);
+        Semaphore enVuelo = new Semaphore(maxEnVuelo);
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        while (error.get() == null && fuentes.hasNext()) {
+            FuenteMuestra fuente = fuentes.next();
+            numMuestras++;
+            enVuelo.acquire();
+            try {
+                ejecutor.execute(() -> {
+                    try {
+                        if (error.get() == null) {
+                            analizarMuestra(fuente.cargar(), listaReconocedores, acumulador, hilosPorPar);
+                        }
+                    } catch (Throwable e) {
+                        error.compareAndSet(null, e);
+                    } finally {
+                        enVuelo.release();
+                    }
+                });
+            } catch (RuntimeException e) {
+                enVuelo.release();
+                error.compareAndSet(null, e);
             }
         }
-        return contador;
+        enVuelo.acquire(maxEnVuelo);
+
+        Throwable fallo = error.get();
+        if (fallo instanceof Exception) {
+            throw (Exception) fallo;
+        }
+        if (fallo != null) {
+            throw new Exception("Falló el análisis de una muestra: " + fallo, fallo);
+        }
+        registrarStreaming(evento, numMuestras, listaReconocedores.size());
+        return aMapa(acumulador);
+    }
+
+    /**
+     * Cierra y emite el evento de JFR de un análisis en streaming, que no
+     * tiene estudio asociado.
+     */
+    private static void registrarStreaming(EventoAnalisis evento, int numMuestras, int numReconocedores) {
+        evento.end();
+        if (evento.shouldCommit()) {
+            evento.muestras = numMuestras;
+            evento.reconocedores = numReconocedores;
+            evento.modo = "streaming";
+            evento.completo = true;
+            evento.commit();
+        }
+    }
+
+    /**
+     * Aplica todos los reconocedores a una muestra y suma sus recuentos.
+     */
+    private void analizarMuestra(Muestra muestra, List<ReconocedorImagen> listaReconocedores,
+            ConcurrentHashMap<String, LongAdder> acumulador, int hilosPorPar) throws Exception {
+        for (ReconocedorImagen reconocedor : listaReconocedores) {
+            int positivos = contarDetecciones(reconocedor, muestra, null, hilosPorPar);
+            acumulador.computeIfAbsent(reconocedor.getElemento().getNombre(),
+                    k -> new LongAdder()).add(positivos);
+        }
+    }
+
+    /**
+     * Devuelve los índices de los pares (muestra, reconocedor) ordenados de
+     * mayor a menor coste estimado, o {@code null} si no hay modelo de costes.
+     * El par {@code i} corresponde a la muestra {@code i / numReconocedores} y
+     * al reconocedor {@code i % numReconocedores}.
+     */
+    private int[] ordenarPorCoste(List<Muestra> listaMuestras, List<ReconocedorImagen> listaReconocedores) {
+        if (modeloCoste == null) {
+            return null;
+        }
+        int numReconocedores = listaReconocedores.size();
+        double[] costes = new double[listaMuestras.size() * numReconocedores];
+        Integer[] pares = new Integer[costes.length];
+        for (int par = 0; par < costes.length; par++) {
+            costes[par] = modeloCoste.estimarCoste(listaReconocedores.get(par % numReconocedores),
+                    listaMuestras.get(par / numReconocedores));
+            pares[par] = par;
+        }
+        Arrays.sort(pares, Comparator.comparingDouble((Integer par) -> costes[par]).reversed());
+        int[] orden = new int[pares.length];
+        for (int i = 0; i < orden.length; i++) {
+            orden[i] = pares[i];
+        }
+        return orden;
+    }
+
+    /**
+     * Devuelve los índices de los pares (muestra, reconocedor) agrupados por
+     * elemento: primero todas las muestras del primer elemento, después las
+     * del segundo, etc. Con modelo de costes, los elementos se ordenan de
+     * menor a mayor coste estimado total, para que los futuros de los más
+     * baratos se completen sin esperar a los más costosos.
+     */
+    private int[] ordenarPorElementos(List<Muestra> listaMuestras, List<ReconocedorImagen> listaReconocedores) {
+        int numReconocedores = listaReconocedores.size();
+        Map<String, Double> costePorElemento = new HashMap<>();
+        for (ReconocedorImagen reconocedor : listaReconocedores) {
+            double coste = 0;
+            if (modeloCoste != null) {
+                for (Muestra muestra : listaMuestras) {
+                    coste += modeloCoste.estimarCoste(reconocedor, muestra);
+                }
+            }
+            costePorElemento.merge(reconocedor.getElemento().getNombre(), coste, Double::sum);
+        }
+        List<String> elementos = new ArrayList<>(costePorElemento.keySet());
+        elementos.sort(Comparator.comparingDouble(costePorElemento::get));
+
+        int[] orden = new int[listaMuestras.size() * numReconocedores];
+        int posicion = 0;
+        for (String elemento : elementos) {
+            for (int r = 0; r < numReconocedores; r++) {
+                if (listaReconocedores.get(r).getElemento().getNombre().equals(elemento)) {
+                    for (int m = 0; m < listaMuestras.size(); m++) {
+                        orden[posicion++] = m * numReconocedores + r;
+                    }
+                }
+            }
+        }
+        return orden;
+    }
+
+    /**
+     * Convierte los contadores acumulados en el mapa de resultados.
+     */
+    private static Map<String, Integer> aMapa(Map<String, LongAdder> acumulador) {
+        Map<String, Integer> resultados = new HashMap<>();
+        for (Map.Entry<String, LongAdder> entrada : acumulador.entrySet()) {
+            resultados.put(entrada.getKey(), entrada.getValue().intValue());
+        }
+        return resultados;
+    }
+
+    /**
+     * Obtiene el número de píxeles positivos de un reconocedor sobre una
+     * muestra, consultando primero la caché si hay una configurada.
+     * <p>
+     * Si hay plazo y se agota, lanza {@link AnalisisInterrumpidoException}
+     * con el recuento parcial (0 si el par no llegó a empezar). Los recuentos
+     * parciales no se guardan en la caché.
+     * </p>
+     * <p>
+     * Si hay modelo de costes, el recuento lo realiza el motor que el modelo
+     * estima más rápido para el par, contando con {@code hilosPorPar} hilos.
+     * </p>
+     */
+    private int contarDetecciones(ReconocedorImagen reconocedor, Muestra muestra, Plazo plazo, int hilosPorPar)
+            throws Exception {
+        if (cache != null) {
+            Integer almacenado = cache.obtener(reconocedor, muestra);
+            if (almacenado != null) {
+                return almacenado;
+            }
+        }
+        ReconocedorImagen motor = modeloCoste == null ? reconocedor
+                : modeloCoste.elegirMotor(reconocedor, muestra, hilosPorPar);
+        int positivos;
+        if (plazo == null && observadores.isEmpty() && !EventoDeteccion.estaActivo()) {
+            positivos = motor.contarDetecciones(muestra);
+        } else if (plazo != null && plazo.estaAgotado()) {
+            throw new AnalisisInterrumpidoException(0);
+        } else {
+            positivos = contarObservando(motor, muestra, plazo);
+        }
+        if (cache != null) {
+            cache.guardar(reconocedor, muestra, positivos);
+        }
+        return positivos;
+    }
+
+    /**
+     * Realiza una detección con plazo opcional y, si hay observadores o una
+     * grabación de JFR con {@link EventoDeteccion} activado, la mide, notifica
+     * el resultado a los observadores y emite el evento, también cuando se
+     * interrumpe.
+     */
+    private int contarObservando(ReconocedorImagen motor, Muestra muestra, Plazo plazo) throws Exception {
+        EventoDeteccion evento = new EventoDeteccion();
+        if (observadores.isEmpty() && !evento.isEnabled()) {
+            // El último observador o la grabación pueden haberse retirado
+            // después de elegir este camino, también sin plazo
+            return plazo == null ? motor.contarDetecciones(muestra) : motor.contarDetecciones(muestra, plazo);
+        }
+        MedidaDeteccion medida = new MedidaDeteccion(motor.getElemento().getNombre(), muestra.getId());
+        long bytesInicio = MedidaDeteccion.bytesReservadosHilo();
+        evento.begin();
+        long inicio = System.nanoTime();
+        int positivos;
+        boolean completa;
+        try {
+            positivos = motor.contarDetecciones(muestra, plazo, medida);
+            completa = true;
+        } catch (AnalisisInterrumpidoException e) {
+            positivos = e.getPositivosParciales();
+            completa = false;
+        }
+        medida.finalizar(System.nanoTime() - inicio, MedidaDeteccion.bytesReservadosHilo() - bytesInicio,
+                positivos, completa);
+        evento.end();
+        if (evento.shouldCommit()) {
+            evento.operacion = "contarDetecciones";
+            evento.elemento = medida.getElemento();
+            evento.motor = EventoDeteccion.motor(motor);
+            evento.muestra = muestra.getId();
+            evento.ventanas = medida.getVentanasProbadas();
+            evento.positivos = positivos;
+            evento.completa = completa;
+            evento.commit();
+        }
+        for (ObservadorDeteccion observador : observadores) {
+            observador.deteccionRealizada(medida);
+        }
+        if (!completa) {
+            throw new AnalisisInterrumpidoException(positivos);
+        }
+        return positivos;
     }
 }
@@ -0,0 +1,328 @@
+package es.upm.dit.fprg.p3;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Caché de resultados de detección direccionada por contenido, utilizada por
+ * {@link AnalizadorDiagnostico} para no repetir el análisis de muestras ya
+ * procesadas.
+ * <p>
+ * Cada entrada asocia el número de píxeles positivos a una clave formada por:
+ * </p>
+ * <ul>
+ *   <li>La <strong>huella de la muestra</strong>: resumen SHA-256 de sus
+ *       dimensiones y píxeles (el identificador no interviene, de modo que dos
+ *       muestras con el mismo contenido comparten resultados). Es la misma
+ *       huella que usa {@link AlmacenMuestras}, por lo que consultar la caché
+ *       con una {@link MuestraAlmacenada} no lee sus píxeles del almacén</li>
+ *   <li>La <strong>huella del elemento</strong>: resumen SHA-256 de la
+ *       definición canónica del {@link ElementoMicroscopico} (tipo, nombre y
+ *       parámetros o patrón) y del tipo de reconocedor</li>
+ * </ul>
+ * <p>
+ * La caché tiene una capacidad máxima de entradas y descarta la usada hace más
+ * tiempo (LRU). Puede guardarse y cargarse mediante flujos para conservarla
+ * entre ejecuciones, y lleva la cuenta de aciertos y fallos. Todos sus métodos
+ * pueden usarse desde varios hilos a la vez.
+ * </p>
+ * <p>
+ * Las huellas de las muestras y de los patógenos (ambos inmutables) se
+ * calculan una sola vez por objeto y se recuerdan mediante referencias
+ * débiles, por lo que repetir el análisis de las mismas muestras solo cuesta
+ * las consultas a la caché. La huella de una {@link Fibrilla} se recalcula en
+ * cada consulta porque sus propiedades pueden modificarse.
+ * </p>
+ */
+public class CacheResultados {
+
+    /** Marca que identifica los ficheros de caché. */
+    private static final int MAGICO = 0x43414348;
+
+    /** Versión del formato de persistencia. */
+    private static final int VERSION = 2;
+
+    private final int capacidadMaxima;
+    private final LinkedHashMap<String, Integer> entradas;
+    private final Map<Muestra, String> huellasMuestras;
+    private final Map<ReconocedorImagen, String> huellasPatrones;
+    private final LongAdder aciertos;
+    private final LongAdder fallos;
+
+    /**
+     * Crea una caché vacía con la capacidad indicada.
+     *
+     * @param capacidadMaxima número máximo de entradas que se conservan
+     * @throws Exception si la capacidad no es positiva
+     */
+    public CacheResultados(int capacidadMaxima) throws Exception {
+        if (capacidadMaxima < 1) {
+            throw new Exception("La capacidad de la caché debe ser >= 1");
+        }
+        this.capacidadMaxima = capacidadMaxima;
+        this.entradas = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+                return size() > CacheResultados.this.capacidadMaxima;
+            }
+        };
+        this.huellasMuestras = Collections.synchronizedMap(new WeakHashMap<>());
+        this.huellasPatrones = Collections.synchronizedMap(new WeakHashMap<>());
+        this.aciertos = new LongAdder();
+        this.fallos = new LongAdder();
+    }
+
+    /**
+     * Devuelve el recuento almacenado para un reconocedor y una muestra, o
+     * {@code null} si no está en la caché (o el elemento del reconocedor no
+     * tiene una definición canónica conocida).
+     *
+     * @param reconocedor reconocedor aplicado
+     * @param muestra muestra analizada
+     * @return número de píxeles positivos almacenado, o {@code null}
+     */
+    Integer obtener(ReconocedorImagen reconocedor, Muestra muestra) {
+        String clave = clave(reconocedor, muestra);
+        Integer valor = null;
+        if (clave != null) {
+            synchronized (entradas) {
+                valor = entradas.get(clave);
+            }
+        }
+        if (valor == null) {
+            fallos.increment();
+        } else {
+            aciertos.increment();
+        }
+        return valor;
+    }
+
+    /**
+     * Almacena el recuento obtenido por un reconocedor sobre una muestra.
+     *
+     * @param reconocedor reconocedor aplicado
+     * @param muestra muestra analizada
+     * @param positivos número de píxeles positivos
+     */
+    void guardar(ReconocedorImagen reconocedor, Muestra muestra, int positivos) {
+        String clave = clave(reconocedor, muestra);
+        if (clave != null) {
+            synchronized (entradas) {
+                entradas.put(clave, positivos);
+            }
+        }
+    }
+
+    /**
+     * Devuelve el número de consultas que encontraron el resultado en la caché.
+     *
+     * @return número de aciertos
+     */
+    public long getAciertos() {
+        return aciertos.sum();
+    }
+
+    /**
+     * Devuelve el número de consultas que no encontraron el resultado.
+     *
+     * @return número de fallos
+     */
+    public long getFallos() {
+        return fallos.sum();
+    }
+
+    /**
+     * Devuelve el número de entradas almacenadas.
+     *
+     * @return número de entradas
+     */
+    public int getTamano() {
+        synchronized (entradas) {
+            return entradas.size();
+        }
+    }
+
+    /**
+     * Devuelve la capacidad máxima de la caché.
+     *
+     * @return número máximo de entradas
+     */
+    public int getCapacidadMaxima() {
+        return capacidadMaxima;
+    }
+
+    /**
+     * Elimina todas las entradas y reinicia las estadísticas.
+     */
+    public void vaciar() {
+        synchronized (entradas) {
+            entradas.clear();
+        }
+        aciertos.reset();
+        fallos.reset();
+    }
+
+    /**
+     * Escribe todas las entradas de la caché en un flujo, de la menos a la más
+     * recientemente usada.
+     *
+     * @param out flujo de salida (no se cierra)
+     * @throws IOException si se produce un error de escritura
+     */
+    public void guardar(OutputStream out) throws IOException {
+        List<Map.Entry<String, Integer>> copia;
+        synchronized (entradas) {
+            copia = new ArrayList<>(entradas.entrySet());
+        }
+        DataOutputStream datos = new DataOutputStream(out);
+        datos.writeInt(MAGICO);
+        datos.writeInt(VERSION);
+        datos.writeInt(copia.size());
+        for (Map.Entry<String, Integer> entrada : copia) {
+            datos.writeUTF(entrada.getKey());
+            datos.writeInt(entrada.getValue());
+        }
+        datos.flush();
+    }
+
+    /**
+     * Añade a la caché las entradas leídas de un flujo escrito con
+     * {@link #guardar(OutputStream)}. Si no caben todas, se conservan las más
+     * recientes.
+     *
+     * @param in flujo de entrada (no se cierra)
+     * @throws IOException si el flujo no tiene el formato esperado o no puede leerse
+     */
+    public void cargar(InputStream in) throws IOException {
+        DataInputStream datos = new DataInputStream(in);
+        if (datos.readInt() != MAGICO) {
+            throw new IOException("El flujo no contiene una caché de resultados.");
+        }
+        int version = datos.readInt();
+        if (version != VERSION) {
+            throw new IOException("Versión de caché no soportada: " + version);
+        }
+        int numEntradas = datos.readInt();
+        for (int i = 0; i < numEntradas; i++) {
+            String clave = datos.readUTF();
+            int valor = datos.readInt();
+            synchronized (entradas) {
+                entradas.put(clave, valor);
+            }
+        }
+    }
+
+    private String clave(ReconocedorImagen reconocedor, Muestra muestra) {
+        String huellaElemento = huella(reconocedor);
+        if (huellaElemento == null) {
+            return null;
+        }
+        return huella(muestra) + ":" + huellaElemento;
+    }
+
+    /**
+     * Calcula (o recupera) la huella del contenido de una muestra. Es la misma
+     * que le da {@link AlmacenMuestras}, así que la de una
+     * {@link MuestraAlmacenada} se toma de ella sin leer sus píxeles.
+     */
+    private String huella(Muestra muestra) {
+        if (muestra instanceof MuestraAlmacenada && ((MuestraAlmacenada) muestra).getHash() != null) {
+            return ((MuestraAlmacenada) muestra).getHash();
+        }
+        String huella = huellasMuestras.get(muestra);
+        if (huella == null) {
+            huella = AlmacenMuestras.huella(muestra.getPixeles());
+            huellasMuestras.put(muestra, huella);
+        }
+        return huella;
+    }
+
+    /**
+     * Devuelve la huella del elemento de un reconocedor, recordándola si el
+     * elemento es un {@link Patogeno}.
+     */
+    private String huella(ReconocedorImagen reconocedor) {
+        if (!(reconocedor.getElemento() instanceof Patogeno)) {
+            return calcularHuella(reconocedor);
+        }
+        String huella = huellasPatrones.get(reconocedor);
+        if (huella == null) {
+            huella = calcularHuella(reconocedor);
+            huellasPatrones.put(reconocedor, huella);
+        }
+        return huella;
+    }
+
+    /**
+     * Calcula la huella de la definición canónica del elemento de un
+     * reconocedor, o {@code null} si el tipo de elemento no es conocido.
+     */
+    private static String calcularHuella(ReconocedorImagen reconocedor) {
+        ElementoMicroscopico elemento = reconocedor.getElemento();
+        MessageDigest resumen = nuevoResumen();
+        resumen.update(reconocedor.getClass().getName().getBytes(StandardCharsets.UTF_8));
+        resumen.update((byte) 0);
+        resumen.update(elemento.getClass().getName().getBytes(StandardCharsets.UTF_8));
+        resumen.update((byte) 0);
+        resumen.update(elemento.getNombre().getBytes(StandardCharsets.UTF_8));
+        resumen.update((byte) 0);
+        if (elemento instanceof Patogeno) {
+            Patogeno patogeno = (Patogeno) elemento;
+            actualizar(resumen, patogeno.getAlto());
+            actualizar(resumen, patogeno.getAncho());
+            byte[] fila = new byte[patogeno.getAncho()];
+            for (int f = 0; f < patogeno.getAlto(); f++) {
+                for (int col = 0; col < fila.length; col++) {
+                    fila[col] = (byte) patogeno.getPixel(f, col);
+                }
+                resumen.update(fila);
+            }
+        } else if (elemento instanceof Fibrilla) {
+            Fibrilla fibrilla = (Fibrilla) elemento;
+            actualizar(resumen, fibrilla.getLongitudMin());
+            actualizar(resumen, fibrilla.getColorMin());
+            actualizar(resumen, fibrilla.getColorMax());
+        } else {
+            return null;
+        }
+        return hexadecimal(resumen.digest());
+    }
+
+    private static MessageDigest nuevoResumen() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Todas las plataformas Java deben ofrecer SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void actualizar(MessageDigest resumen, int valor) {
+        resumen.update((byte) (valor >>> 24));
+        resumen.update((byte) (valor >>> 16));
+        resumen.update((byte) (valor >>> 8));
+        resumen.update((byte) valor);
+    }
+
+    private static String hexadecimal(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >>> 4) & 0xF, 16));
+            sb.append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,166 @@
+package es.upm.dit.fprg.p3;
+
+import java.util.AbstractList;
+import java.util.AbstractMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.Set;
+
+/**
+ * Listas y mapas que no construyen su contenido hasta el primer acceso.
+ * <p>
+ * Los usan los lectores del formato binario de estudios
+ * ({@link LectorEstudiosBinario#leerCabecera()} y
+ * {@link DiarioEstudios#leerCabecera(String)}) para las muestras y los
+ * resultados de los estudios cargados parcialmente: mientras solo se
+ * consultan los datos de cabecera, estas colecciones no decodifican nada.
+ * Cualquier operación, incluida {@code size()}, carga el contenido, que a
+ * partir de entonces se comporta como un {@link java.util.ArrayList} o un
+ * {@link java.util.HashMap} modificable.
+ * </p>
+ */
+final class ColeccionesDiferidas {
+
+    private ColeccionesDiferidas() {
+    }
+
+    /**
+     * Construye el contenido de una colección diferida.
+     *
+     * @param <T> tipo de la colección
+     */
+    interface Carga<T> {
+        T cargar() throws Exception;
+    }
+
+    /**
+     * Lista que se carga en el primer acceso.
+     *
+     * @param <E> tipo de los elementos
+     */
+    static final class Lista<E> extends AbstractList<E> implements RandomAccess {
+        private Carga<List<E>> carga;
+        private volatile List<E> contenido;
+
+        Lista(Carga<List<E>> carga) {
+            this.carga = carga;
+        }
+
+        private List<E> contenido() {
+            List<E> cargado = contenido;
+            if (cargado == null) {
+                synchronized (this) {
+                    cargado = contenido;
+                    if (cargado == null) {
+                        cargado = ColeccionesDiferidas.cargar(carga);
+                        contenido = cargado;
+                        carga = null;
+                    }
+                }
+            }
+            return cargado;
+        }
+
+        @Override
+        public E get(int indice) {
+            return contenido().get(indice);
+        }
+
+        @Override
+        public int size() {
+            return contenido().size();
+        }
+
+        @Override
+        public E set(int indice, E elemento) {
+            return contenido().set(indice, elemento);
+        }
+
+        @Override
+        public void add(int indice, E elemento) {
+            contenido().add(indice, elemento);
+            modCount++;
+        }
+
+        @Override
+        public E remove(int indice) {
+            E eliminado = contenido().remove(indice);
+            modCount++;
+            return eliminado;
+        }
+    }
+
+    /**
+     * Mapa que se carga en el primer acceso.
+     *
+     * @param <K> tipo de las claves
+     * @param <V> tipo de los valores
+     */
+    static final class Mapa<K, V> extends AbstractMap<K, V> {
+        private Carga<Map<K, V>> carga;
+        private volatile Map<K, V> contenido;
+
+        Mapa(Carga<Map<K, V>> carga) {
+            this.carga = carga;
+        }
+
+        private Map<K, V> contenido() {
+            Map<K, V> cargado = contenido;
+            if (cargado == null) {
+                synchronized (this) {
+                    cargado = contenido;
+                    if (cargado == null) {
+                        cargado = ColeccionesDiferidas.cargar(carga);
+                        contenido = cargado;
+                        carga = null;
+                    }
+                }
+            }
+            return cargado;
+        }
+
+        @Override
+        public Set<Map.Entry<K, V>> entrySet() {
+            return contenido().entrySet();
+        }
+
+        @Override
+        public int size() {
+            return contenido().size();
+        }
+
+        @Override
+        public boolean containsKey(Object clave) {
+            return contenido().containsKey(clave);
+        }
+
+        @Override
+        public V get(Object clave) {
+            return contenido().get(clave);
+        }
+
+        @Override
+        public V put(K clave, V valor) {
+            return contenido().put(clave, valor);
+        }
+
+        @Override
+        public V remove(Object clave) {
+            return contenido().remove(clave);
+        }
+
+        @Override
+        public void clear() {
+            contenido().clear();
+        }
+    }
+
+    private static <T> T cargar(Carga<T> carga) {
+        try {
+            return carga.cargar();
+        } catch (Exception e) {
+            throw new IllegalStateException("No se ha podido cargar el contenido diferido: " + e.getMessage(), e);
+        }
+    }
+}
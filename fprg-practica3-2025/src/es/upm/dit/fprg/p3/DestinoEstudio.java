@@ -0,0 +1,35 @@
+package es.upm.dit.fprg.p3;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+
+/**
+ * Destino en el que se guarda un {@link EstudioDiagnostico}: el flujo de
+ * salida no se abre hasta que el estudio está listo para guardarse.
+ * <p>
+ * Lo utiliza {@link TuberiaEstudios} en su etapa de guardado.
+ * </p>
+ */
+public interface DestinoEstudio {
+
+    /**
+     * Abre el flujo en el que se escribirá el estudio. Quien llama a este
+     * método se encarga de cerrarlo.
+     *
+     * @param estudio estudio que se va a guardar
+     * @return flujo de salida
+     * @throws Exception si el flujo no puede abrirse
+     */
+    OutputStream abrir(EstudioDiagnostico estudio) throws Exception;
+
+    /**
+     * Crea un destino que escribe el estudio en un fichero local.
+     *
+     * @param ruta ruta del fichero XML
+     * @return destino del estudio
+     */
+    static DestinoEstudio enArchivo(String ruta) {
+        return estudio -> new BufferedOutputStream(new FileOutputStream(ruta));
+    }
+}
@@ -0,0 +1,317 @@
+package es.upm.dit.fprg.p3;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.IntConsumer;
+
+/**
+ * Motor paralelo de detección de segmentos lineales utilizado por
+ * {@link ReconocedorLineal}.
+ * <p>
+ * Produce exactamente la misma máscara que el algoritmo secuencial de
+ * {@link ReconocedorLineal}: un píxel se marca si pertenece a un segmento
+ * maximal (horizontal, vertical o diagonal ↘) de píxeles en rango cuya
+ * longitud alcanza {@code longitudMin}.
+ * </p>
+ * <p>
+ * <strong>Organización del trabajo:</strong>
+ * </p>
+ * <ol>
+ *   <li>Se precalcula, por bandas de filas, un mapa de bits empaquetado en
+ *       palabras {@code long} que indica qué píxeles están en el rango de color</li>
+ *   <li>Las tres direcciones se ejecutan simultáneamente en el
+ *       {@link ForkJoinPool}; cada una divide la imagen en bandas de filas y
+ *       escribe en su propia máscara empaquetada</li>
+ *   <li>Los segmentos verticales y diagonales pueden atravesar el borde entre
+ *       bandas. Para unirlos, cada banda calcula primero la longitud del tramo
+ *       en rango que toca su fila superior (cabeza) y su fila inferior (cola);
+ *       un barrido secuencial muy barato sobre las bandas obtiene, para cada
+ *       línea, cuánto se prolonga el segmento por arriba y por abajo de cada
+ *       banda, y con esa información cada banda marca sus píxeles de forma
+ *       independiente</li>
+ *   <li>Las máscaras de las tres direcciones se combinan mediante OR palabra a
+ *       palabra. El resultado se devuelve como {@link Mascara} o, si solo se
+ *       necesita el número de píxeles, se cuenta directamente con
+ *       {@link Long#bitCount(long)}</li>
+ * </ol>
+ */
+final class DeteccionLinealParalela {
+
+    /** Número de bandas que se intenta generar por cada hilo del pool. */
+    private static final int BANDAS_POR_HILO = 4;
+
+    private final Fibrilla fibrilla;
+    private final ForkJoinPool pool;
+    private final int filasPorBanda;
+
+    /**
+     * Construye el motor paralelo para una fibrilla concreta.
+     *
+     * @param fibrilla especificación de la fibrilla a detectar
+     * @param pool pool en el que se ejecutan las tareas
+     * @param filasPorBanda número de filas de cada banda, o un valor no positivo
+     *                      para calcularlo según el paralelismo del pool
+     */
+    DeteccionLinealParalela(Fibrilla fibrilla, ForkJoinPool pool, int filasPorBanda) {
+        this.fibrilla = fibrilla;
+        this.pool = pool;
+        this.filasPorBanda = filasPorBanda;
+    }
+
+    /**
+     * Calcula la máscara de segmentos detectados en la muestra.
+     *
+     * @param m muestra a analizar
+     * @return máscara idéntica a la que produce el algoritmo secuencial
+     */
+    Mascara detectar(Muestra m) {
+        return pool.invoke(ForkJoinTask.adapt(new Ejecucion(m, null)::ejecutar));
+    }
+
+    /**
+     * Cuenta los píxeles que pertenecen a algún segmento detectado, sin
+     * construir la máscara booleana.
+     * <p>
+     * Si se indica un plazo, cada banda lo comprueba antes de empezar; en
+     * cuanto se agota, las bandas pendientes de todas las fases se omiten.
+     * </p>
+     *
+     * @param m muestra a analizar
+     * @param plazo plazo del análisis, o {@code null} si no hay
+     * @return número de píxeles positivos
+     * @throws AnalisisInterrumpidoException si el plazo se agota, con los
+     *                                       píxeles marcados en las bandas
+     *                                       completadas
+     */
+    int contar(Muestra m, Plazo plazo) throws AnalisisInterrumpidoException {
+        Ejecucion ejecucion = new Ejecucion(m, plazo);
+        int positivos = pool.invoke(ForkJoinTask.adapt(ejecucion::ejecutar)).contar();
+        if (ejecucion.interrumpida) {
+            throw new AnalisisInterrumpidoException(positivos);
+        }
+        return positivos;
+    }
+
+    /**
+     * Estado de una detección concreta sobre una muestra. Los parámetros de la
+     * fibrilla se leen al empezar, como en el algoritmo secuencial, porque la
+     * fibrilla puede modificarse entre detecciones.
+     */
+    private final class Ejecucion {
+        private final Muestra muestra;
+        private final int longitudMin;
+        private final int colorMin;
+        private final int colorMax;
+        private final int alto;
+        private final int ancho;
+        private final int filasBanda;
+        private final int numBandas;
+        private final Mascara enRango;
+        private final Plazo plazo;
+
+        /** Indica si alguna banda se ha omitido por agotarse el plazo. */
+        private volatile boolean interrumpida;
+
+        Ejecucion(Muestra muestra, Plazo plazo) {
+            this.muestra = muestra;
+            this.plazo = plazo;
+            this.longitudMin = fibrilla.getLongitudMin();
+            this.colorMin = fibrilla.getColorMin();
+            this.colorMax = fibrilla.getColorMax();
+            this.alto = muestra.getAlto();
+            this.ancho = muestra.getAncho();
+            this.filasBanda = filasPorBanda > 0 ? filasPorBanda
+                    : Math.max(1, (alto + BANDAS_POR_HILO * pool.getParallelism() - 1)
+                            / (BANDAS_POR_HILO * pool.getParallelism()));
+            this.numBandas = (alto + filasBanda - 1) / filasBanda;
+            this.enRango = new Mascara(alto, ancho);
+        }
+
+        Mascara ejecutar() {
+            enBandas(this::calcularEnRango);
+
+            Mascara horizontal = new Mascara(alto, ancho);
+            Mascara vertical = new Mascara(alto, ancho);
+            Mascara diagonal = new Mascara(alto, ancho);
+            ForkJoinTask.invokeAll(
+                    ForkJoinTask.adapt(() -> enBandas(b -> buscarHorizontal(b, horizontal))),
+                    ForkJoinTask.adapt(() -> buscarEnLineas(0, vertical)),
+                    ForkJoinTask.adapt(() -> buscarEnLineas(1, diagonal)));
+
+            enBandas(b -> {
+                horizontal.unir(vertical, filaInicio(b), filaFin(b));
+                horizontal.unir(diagonal, filaInicio(b), filaFin(b));
+            });
+            return horizontal;
+        }
+
+        /**
+         * Ejecuta el trabajo indicado para cada banda y espera a que terminen
+         * todas. Las bandas que empiezan con el plazo agotado no se procesan.
+         */
+        private void enBandas(IntConsumer trabajo) {
+            List<ForkJoinTask<?>> tareas = new ArrayList<>(numBandas);
+            for (int b = 0; b < numBandas; b++) {
+                int banda = b;
+                tareas.add(ForkJoinTask.adapt(() -> {
+                    if (interrumpida || (plazo != null && plazo.estaAgotado())) {
+                        interrumpida = true;
+                    } else {
+                        trabajo.accept(banda);
+                    }
+                }));
+            }
+            ForkJoinTask.invokeAll(tareas);
+        }
+
+        private int filaInicio(int banda) {
+            return banda * filasBanda;
+        }
+
+        private int filaFin(int banda) {
+            return Math.min(alto, (banda + 1) * filasBanda);
+        }
+
+        private void calcularEnRango(int banda) {
+            for (int fila = filaInicio(banda); fila < filaFin(banda); fila++) {
+                for (int col = 0; col < ancho; col++) {
+                    int valor;
+                    try {
+                        valor = muestra.getPixel(fila, col);
+                    } catch (Exception e) {
+                        continue;
+                    }
+                    if (valor >= colorMin && valor <= colorMax) {
+                        enRango.marcar(fila, col);
+                    }
+                }
+            }
+        }
+
+        private void buscarHorizontal(int banda, Mascara destino) {
+            for (int fila = filaInicio(banda); fila < filaFin(banda); fila++) {
+                int longitud = 0;
+                for (int col = 0; col <= ancho; col++) {
+                    if (col < ancho && estaEnRango(fila, col)) {
+                        longitud++;
+                    } else {
+                        if (longitud >= longitudMin) {
+                            for (int c = col - longitud; c < col; c++) {
+                                destino.marcar(fila, c);
+                            }
+                        }
+                        longitud = 0;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Busca segmentos a lo largo de líneas que avanzan una fila por paso y
+         * {@code dx} columnas por paso (0 para vertical, 1 para diagonal ↘).
+         * <p>
+         * Las líneas se indexan de forma que la línea {@code i} pasa por la
+         * columna {@code i - dx * (alto - 1) + dx * fila} en cada fila.
+         * </p>
+         */
+        private void buscarEnLineas(int dx, Mascara destino) {
+            int numLineas = ancho + dx * (alto - 1);
+            int[][] cabeza = new int[numBandas][numLineas];
+            int[][] cola = new int[numBandas][numLineas];
+            enBandas(b -> medirExtremos(b, dx, cabeza[b], cola[b]));
+
+            // Longitud del tramo en rango que llega a cada banda desde arriba
+            // y del que continúa por debajo de ella
+            int[][] previo = new int[numBandas][numLineas];
+            int[][] siguiente = new int[numBandas][numLineas];
+            for (int b = 1; b < numBandas; b++) {
+                int h = filaFin(b - 1) - filaInicio(b - 1);
+                for (int i = 0; i < numLineas; i++) {
+                    previo[b][i] = cabeza[b - 1][i] == h ? previo[b - 1][i] + h : cola[b - 1][i];
+                }
+            }
+            for (int b = numBandas - 2; b >= 0; b--) {
+                int h = filaFin(b + 1) - filaInicio(b + 1);
+                for (int i = 0; i < numLineas; i++) {
+                    siguiente[b][i] = cabeza[b + 1][i] == h
+                            ? siguiente[b + 1][i] + h : cabeza[b + 1][i];
+                }
+            }
+
+            enBandas(b -> marcarLineas(b, dx, previo[b], siguiente[b], destino));
+        }
+
+        private void medirExtremos(int banda, int dx, int[] cabeza, int[] cola) {
+            int inicio = filaInicio(banda);
+            int fin = filaFin(banda);
+            for (int i = 0; i < cabeza.length; i++) {
+                int desde = Math.max(inicio, primeraFila(i, dx));
+                int hasta = Math.min(fin, ultimaFila(i, dx));
+                if (desde == inicio) {
+                    int n = 0;
+                    while (inicio + n < hasta && estaEnRango(inicio + n, columna(i, dx, inicio + n))) {
+                        n++;
+                    }
+                    cabeza[i] = n;
+                }
+                if (hasta == fin) {
+                    int n = 0;
+                    while (fin - 1 - n >= desde && estaEnRango(fin - 1 - n, columna(i, dx, fin - 1 - n))) {
+                        n++;
+                    }
+                    cola[i] = n;
+                }
+            }
+        }
+
+        private void marcarLineas(int banda, int dx, int[] previo, int[] siguiente, Mascara destino) {
+            int inicio = filaInicio(banda);
+            int fin = filaFin(banda);
+            for (int i = 0; i < previo.length; i++) {
+                int desde = Math.max(inicio, primeraFila(i, dx));
+                int hasta = Math.min(fin, ultimaFila(i, dx));
+                int longitud = 0;
+                int arrastre = 0;
+                for (int fila = desde; fila <= hasta; fila++) {
+                    if (fila < hasta && estaEnRango(fila, columna(i, dx, fila))) {
+                        if (longitud == 0) {
+                            arrastre = fila == inicio ? previo[i] : 0;
+                        }
+                        longitud++;
+                    } else if (longitud > 0) {
+                        int total = arrastre + longitud;
+                        if (fila == fin) {
+                            total += siguiente[i];
+                        }
+                        if (total >= longitudMin) {
+                            for (int f = fila - longitud; f < fila; f++) {
+                                destino.marcar(f, columna(i, dx, f));
+                            }
+                        }
+                        longitud = 0;
+                    }
+                }
+            }
+        }
+
+        /** Primera fila en la que la línea {@code i} cae dentro de la imagen. */
+        private int primeraFila(int i, int dx) {
+            return dx == 0 ? 0 : Math.max(0, alto - 1 - i);
+        }
+
+        /** Fila siguiente a la última en la que la línea {@code i} cae dentro de la imagen. */
+        private int ultimaFila(int i, int dx) {
+            return dx == 0 ? alto : Math.min(alto, ancho + alto - 1 - i);
+        }
+
+        private int columna(int i, int dx, int fila) {
+            return i - dx * (alto - 1) + dx * fila;
+        }
+
+        private boolean estaEnRango(int fila, int col) {
+            return enRango.estaMarcado(fila, col);
+        }
+    }
+}
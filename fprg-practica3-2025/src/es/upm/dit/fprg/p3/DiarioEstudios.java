@@ -0,0 +1,927 @@
+package es.upm.dit.fprg.p3;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32C;
+
+/**
+ * Diario de estudios diagnósticos: almacén de solo adición en el que cada
+ * estudio se guarda como un registro asociado a una clave, pensado para
+ * ritmos de ingesta en los que escribir un fichero XML por estudio con
+ * {@link EstudioDiagnostico#guardar(java.io.OutputStream)} resulta demasiado
+ * costoso.
+ * <p>
+ * <strong>Registros.</strong> Cada registro lleva su longitud y su suma de
+ * comprobación CRC-32C, seguidas de la clave y del estudio codificado con el
+ * formato de {@link FormatoBinarioEstudios} (con su propia tabla de cadenas,
+ * de modo que cada registro se puede leer por separado). Los registros se
+ * añaden al final del segmento activo, un fichero {@code NNNNNNNN.diario}
+ * del directorio del diario; cuando supera el tamaño máximo se sella y se
+ * abre el siguiente.
+ * </p>
+ * <p>
+ * <strong>Confirmación en grupo.</strong> {@link #escribir(String, EstudioDiagnostico)}
+ * codifica el estudio en el hilo que llama y lo deja pendiente; un hilo
+ * escritor toma todos los registros pendientes, los escribe con una sola
+ * operación, fuerza su llegada al disco y completa sus futuros. Mientras el
+ * disco confirma un lote se acumula el siguiente, de modo que el número de
+ * sincronizaciones no crece con el número de estudios.
+ * </p>
+ * <p>
+ * <strong>Lecturas.</strong> Un índice en memoria asocia cada clave a la
+ * posición de su último registro confirmado; {@link #leer(String)} lee y
+ * decodifica solo ese registro.
+ * </p>
+ * <p>
+ * <strong>Compactación.</strong> Al volver a escribir una clave (por ejemplo,
+ * tras {@link EstudioDiagnostico#informar(Medico, Map)}), su registro
+ * anterior queda obsoleto. Un hilo compactador reescribe los segmentos
+ * sellados cuya fracción de bytes obsoletos supera el umbral, copiando solo
+ * sus registros vigentes a un fichero temporal que sustituye al segmento
+ * mediante un renombrado atómico; los segmentos sin registros vigentes se
+ * borran.
+ * </p>
+ * <p>
+ * <strong>Recuperación.</strong> Al abrir el diario se reconstruye el índice
+ * recorriendo los segmentos en orden. Un registro incompleto o con la suma
+ * de comprobación incorrecta al final del segmento activo (una escritura
+ * interrumpida por una caída) se descarta truncando el segmento; en un
+ * segmento sellado indica un fichero dañado y es un error. Los temporales de
+ * una compactación interrumpida se borran.
+ * </p>
+ * <p>
+ * Todos sus métodos pueden usarse desde varios hilos a la vez.
+ * </p>
+ */
+// close() espera a los hilos del diario y puede ser interrumpido a propósito
+@SuppressWarnings("try")
+public final class DiarioEstudios implements AutoCloseable {
+
+    /** Tamaño máximo por defecto de un segmento. */
+    public static final long TAM_SEGMENTO = 64L << 20;
+
+    /** Fracción de bytes obsoletos por defecto a partir de la cual se compacta un segmento. */
+    public static final double FRACCION_OBSOLETA = 0.5;
+
+    /** Marca que identifica los segmentos del diario ("FPRD"). */
+    private static final int MAGICO = 0x46505244;
+
+    /** Versión del formato de los segmentos. */
+    private static final int VERSION = 1;
+
+    private static final int TAM_CABECERA_SEGMENTO = 5;
+    private static final int TAM_CABECERA_REGISTRO = 8;
+
+    /** Bytes pendientes de escribir a partir de los cuales se espera al escritor. */
+    private static final long MAX_BYTES_PENDIENTES = 16L << 20;
+
+    private static final String EXTENSION = ".diario";
+    private static final String EXTENSION_TEMPORAL = ".tmp";
+
+    // Campos del contenido de un registro
+    private static final int CAMPO_CLAVE = 1;
+    private static final int CAMPO_CADENA = 2;
+    private static final int CAMPO_ESTUDIO = 3;
+
+    private final Path directorio;
+    private final long tamSegmento;
+    private final double fraccionObsoleta;
+
+    private final Map<String, Posicion> indice;
+    private final ConcurrentSkipListMap<Integer, Segmento> segmentos;
+    /** Excluye a lectores y escritor mientras la compactación sustituye un segmento. */
+    private final ReentrantReadWriteLock sustitucion;
+    /** Serializa las compactaciones manuales y las del hilo compactador. */
+    private final ReentrantLock compactacion;
+
+    private final ReentrantLock cerrojo;
+    private final Condition hayPendientes;
+    private final Condition hayHueco;
+    private final Condition revisarSegmentos;
+    private List<Pendiente> pendientes;
+    private long bytesPendientes;
+    private boolean cerrado;
+
+    /** Segmento en el que se añaden los registros; solo lo cambia el escritor. */
+    private Segmento activo;
+    private final Thread escritor;
+    private final Thread compactador;
+    private volatile Exception errorCompactacion;
+
+    private final AtomicLong registrosEscritos;
+    private final AtomicLong confirmaciones;
+    private final AtomicLong segmentosCompactados;
+    private final long bytesDescartados;
+
+    /**
+     * Abre (o crea) un diario con el tamaño de segmento y el umbral de
+     * compactación por defecto.
+     *
+     * @param directorio directorio del diario
+     * @throws Exception si el directorio no puede crearse o algún segmento
+     *                   sellado está dañado
+     */
+    public DiarioEstudios(Path directorio) throws Exception {
+        this(directorio, TAM_SEGMENTO, FRACCION_OBSOLETA);
+    }
+
+    /**
+     * Abre (o crea) un diario, reconstruyendo su índice a partir de los
+     * segmentos existentes, y arranca sus hilos escritor y compactador.
+     *
+     * @param directorio directorio del diario
+     * @param tamSegmento tamaño en bytes a partir del cual se sella el
+     *                    segmento activo
+     * @param fraccionObsoleta fracción de bytes obsoletos, en (0, 1], a partir
+     *                         de la cual se compacta un segmento sellado
+     * @throws Exception si el directorio es nulo o no puede crearse, los
+     *                   parámetros no son válidos o algún segmento sellado
+     *                   está dañado
+     */
+    public DiarioEstudios(Path directorio, long tamSegmento, double fraccionObsoleta) throws Exception {
+        if (directorio == null) {
+            throw new Exception("El directorio del diario no puede ser nulo.");
+        }
+        if (tamSegmento <= TAM_CABECERA_SEGMENTO) {
+            throw new Exception("El tamaño de segmento debe ser mayor que " + TAM_CABECERA_SEGMENTO);
+        }
+        if (!(fraccionObsoleta > 0 && fraccionObsoleta <= 1)) {
+            throw new Exception("La fracción obsoleta debe estar en (0, 1]");
+        }
+        this.directorio = Files.createDirectories(directorio);
+        this.tamSegmento = tamSegmento;
+        this.fraccionObsoleta = fraccionObsoleta;
+        this.indice = new ConcurrentHashMap<>();
+        this.segmentos = new ConcurrentSkipListMap<>();
+        this.sustitucion = new ReentrantReadWriteLock();
+        this.compactacion = new ReentrantLock();
+        this.cerrojo = new ReentrantLock();
+        this.hayPendientes = cerrojo.newCondition();
+        this.hayHueco = cerrojo.newCondition();
+        this.revisarSegmentos = cerrojo.newCondition();
+        this.pendientes = new ArrayList<>();
+        this.registrosEscritos = new AtomicLong();
+        this.confirmaciones = new AtomicLong();
+        this.segmentosCompactados = new AtomicLong();
+
+        this.bytesDescartados = recuperar();
+        this.activo = segmentos.isEmpty() ? crearSegmento(1) : segmentos.lastEntry().getValue();
+        if (activo.tam >= tamSegmento) {
+            rotar();
+        }
+
+        this.escritor = new Thread(this::escribirLotes, "diario-escritor");
+        this.compactador = new Thread(this::compactarEnSegundoPlano, "diario-compactador");
+        escritor.start();
+        compactador.start();
+    }
+
+    /**
+     * Añade un estudio al diario con la clave indicada, sustituyendo al que
+     * tuviera antes esa clave. El estudio se codifica antes de volver, por lo
+     * que puede modificarse en cuanto el método termina; si hay demasiados
+     * bytes pendientes, espera a que el escritor los confirme.
+     *
+     * @param clave clave del estudio
+     * @param estudio estudio a guardar
+     * @return futuro que se completa cuando el registro está en el disco y es
+     *         visible para {@link #leer(String)}, o excepcionalmente si no se
+     *         ha podido escribir
+     * @throws Exception si la clave o el estudio son nulos, el estudio
+     *                   contiene una muestra nula, el diario está cerrado o el
+     *                   hilo es interrumpido mientras espera
+     */
+    public CompletableFuture<Void> escribir(String clave, EstudioDiagnostico estudio) throws Exception {
+        if (clave == null) {
+            throw new Exception("La clave no puede ser nula.");
+        }
+        if (estudio == null) {
+            throw new Exception("El estudio no puede ser nulo.");
+        }
+        Pendiente pendiente = new Pendiente(clave, codificar(clave, estudio));
+        cerrojo.lockInterruptibly();
+        try {
+            while (!cerrado && bytesPendientes >= MAX_BYTES_PENDIENTES) {
+                hayHueco.await();
+            }
+            if (cerrado) {
+                throw new Exception("El diario está cerrado.");
+            }
+            pendientes.add(pendiente);
+            bytesPendientes += pendiente.registro.length;
+            hayPendientes.signal();
+        } finally {
+            cerrojo.unlock();
+        }
+        return pendiente.futuro;
+    }
+
+    /**
+     * Lee el último estudio confirmado con la clave indicada.
+     *
+     * @param clave clave del estudio
+     * @return estudio leído, o {@code null} si el diario no contiene la clave;
+     *         sus muestras solo conservan el identificador (y la huella si
+     *         son {@link MuestraAlmacenada})
+     * @throws Exception si el diario está cerrado o el registro no puede
+     *                   leerse
+     */
+    public EstudioDiagnostico leer(String clave) throws Exception {
+        return leer(clave, false);
+    }
+
+    /**
+     * Lee la cabecera del último estudio confirmado con la clave indicada,
+     * como {@link LectorEstudiosBinario#leerCabecera()}: sus muestras y
+     * resultados se decodifican la primera vez que se accede a ellos.
+     *
+     * @param clave clave del estudio
+     * @return estudio leído, o {@code null} si el diario no contiene la clave
+     * @throws Exception si el diario está cerrado o el registro no puede
+     *                   leerse
+     */
+    public EstudioDiagnostico leerCabecera(String clave) throws Exception {
+        return leer(clave, true);
+    }
+
+    private EstudioDiagnostico leer(String clave, boolean parcial) throws Exception {
+        ByteBuffer registro;
+        sustitucion.readLock().lock();
+        try {
+            Posicion posicion = indice.get(clave);
+            if (posicion == null) {
+                return null;
+            }
+            registro = ByteBuffer.allocate(posicion.longitud);
+            leerCompleto(segmentos.get(posicion.segmento).canal, registro, posicion.desplazamiento);
+        } finally {
+            sustitucion.readLock().unlock();
+        }
+        int longitud = registro.getInt(0);
+        int suma = registro.getInt(4);
+        if (longitud != registro.capacity() - TAM_CABECERA_REGISTRO
+                || suma != crc(registro.array(), TAM_CABECERA_REGISTRO, longitud)) {
+            throw new Exception("El registro de " + clave + " está dañado.");
+        }
+        return decodificar(registro.array(), TAM_CABECERA_REGISTRO, registro.capacity(), parcial);
+    }
+
+    /**
+     * Indica si el diario contiene un estudio confirmado con la clave indicada.
+     *
+     * @param clave clave del estudio
+     * @return {@code true} si el diario contiene la clave
+     */
+    public boolean contiene(String clave) {
+        return clave != null && indice.containsKey(clave);
+    }
+
+    /**
+     * Devuelve las claves de los estudios confirmados. La vista refleja las
+     * escrituras posteriores y no puede modificarse.
+     *
+     * @return claves del diario
+     */
+    public Set<String> getClaves() {
+        return Collections.unmodifiableSet(indice.keySet());
+    }
+
+    /**
+     * Devuelve el número de estudios distintos del diario.
+     *
+     * @return número de claves
+     */
+    public int getNumEstudios() {
+        return indice.size();
+    }
+
+    /**
+     * Compacta ahora los segmentos sellados cuya fracción de bytes obsoletos
+     * supera el umbral, sin esperar al hilo compactador.
+     *
+     * @return número de segmentos compactados o borrados
+     * @throws Exception si se produce un error de lectura o escritura
+     */
+    public int compactar() throws Exception {
+        compactacion.lock();
+        try {
+            int compactados = 0;
+            for (Segmento segmento : new ArrayList<>(segmentos.values())) {
+                long datos = segmento.tam - TAM_CABECERA_SEGMENTO;
+                if (segmento.sellado && datos > 0
+                        && datos - segmento.vivos.get() >= fraccionObsoleta * datos) {
+                    compactar(segmento);
+                    compactados++;
+                }
+            }
+            segmentosCompactados.addAndGet(compactados);
+            return compactados;
+        } finally {
+            compactacion.unlock();
+        }
+    }
+
+    /**
+     * Devuelve el número de registros escritos desde que se abrió el diario.
+     *
+     * @return registros escritos
+     */
+    public long getRegistrosEscritos() {
+        return registrosEscritos.get();
+    }
+
+    /**
+     * Devuelve el número de lotes confirmados (sincronizaciones con el disco)
+     * desde que se abrió el diario.
+     *
+     * @return lotes confirmados
+     */
+    public long getConfirmaciones() {
+        return confirmaciones.get();
+    }
+
+    /**
+     * Devuelve el número de segmentos compactados o borrados desde que se
+     * abrió el diario.
+     *
+     * @return segmentos compactados
+     */
+    public long getSegmentosCompactados() {
+        return segmentosCompactados.get();
+    }
+
+    /**
+     * Devuelve el número de segmentos del diario.
+     *
+     * @return número de segmentos
+     */
+    public int getNumSegmentos() {
+        return segmentos.size();
+    }
+
+    /**
+     * Devuelve el tamaño total de los segmentos.
+     *
+     * @return bytes en disco
+     */
+    public long getBytesEnDisco() {
+        long total = 0;
+        for (Segmento segmento : segmentos.values()) {
+            total += segmento.tam;
+        }
+        return total;
+    }
+
+    /**
+     * Devuelve el tamaño total de los registros vigentes.
+     *
+     * @return bytes vigentes
+     */
+    public long getBytesVigentes() {
+        long total = 0;
+        for (Segmento segmento : segmentos.values()) {
+            total += segmento.vivos.get();
+        }
+        return total;
+    }
+
+    /**
+     * Devuelve el número de bytes descartados al abrir el diario por estar al
+     * final del segmento activo un registro incompleto o dañado.
+     *
+     * @return bytes descartados en la recuperación
+     */
+    public long getBytesDescartados() {
+        return bytesDescartados;
+    }
+
+    /**
+     * Deja de aceptar escrituras, espera a que se confirmen las pendientes y
+     * a que termine la compactación en curso, y cierra los segmentos.
+     *
+     * @throws IOException si no se puede cerrar un segmento o si la
+     *                     compactación en segundo plano falló
+     * @throws InterruptedException si el hilo es interrumpido mientras espera
+     */
+    @Override
+    public void close() throws IOException, InterruptedException {
+        cerrojo.lock();
+        try {
+            if (cerrado) {
+                return;
+            }
+            cerrado = true;
+            hayPendientes.signalAll();
+            hayHueco.signalAll();
+            revisarSegmentos.signalAll();
+        } finally {
+            cerrojo.unlock();
+        }
+        escritor.join();
+        compactador.join();
+        for (Segmento segmento : segmentos.values()) {
+            segmento.canal.close();
+        }
+        if (errorCompactacion != null) {
+            throw new IOException("La compactación del diario falló: " + errorCompactacion.getMessage(),
+                    errorCompactacion);
+        }
+    }
+
+    /**
+     * Bucle del hilo escritor: confirma lotes hasta que el diario se cierra y
+     * no quedan registros pendientes.
+     */
+    private void escribirLotes() {
+        while (true) {
+            List<Pendiente> lote;
+            cerrojo.lock();
+            try {
+                while (pendientes.isEmpty() && !cerrado) {
+                    hayPendientes.awaitUninterruptibly();
+                }
+                if (pendientes.isEmpty()) {
+                    return;
+                }
+                lote = pendientes;
+                pendientes = new ArrayList<>();
+                bytesPendientes = 0;
+                hayHueco.signalAll();
+            } finally {
+                cerrojo.unlock();
+            }
+            try {
+                confirmar(lote);
+            } catch (Exception e) {
+                for (Pendiente pendiente : lote) {
+                    pendiente.futuro.completeExceptionally(e);
+                }
+                continue;
+            }
+            for (Pendiente pendiente : lote) {
+                pendiente.futuro.complete(null);
+            }
+        }
+    }
+
+    /**
+     * Escribe un lote al final del segmento activo, lo sincroniza con el disco
+     * y actualiza el índice.
+     */
+    private void confirmar(List<Pendiente> lote) throws Exception {
+        if (activo.tam >= tamSegmento) {
+            rotar();
+        }
+        int total = 0;
+        for (Pendiente pendiente : lote) {
+            total += pendiente.registro.length;
+        }
+        ByteBuffer datos = ByteBuffer.allocate(total);
+        for (Pendiente pendiente : lote) {
+            datos.put(pendiente.registro);
+        }
+        datos.flip();
+        long inicio = activo.tam;
+        while (datos.hasRemaining()) {
+            activo.canal.write(datos, inicio + datos.position());
+        }
+        activo.canal.force(false);
+        // Si la escritura falla, el tamaño no cambia y el siguiente lote
+        // sobrescribe los bytes que hubieran llegado al fichero
+        activo.tam = inicio + total;
+
+        boolean obsoletos = false;
+        sustitucion.readLock().lock();
+        try {
+            long desplazamiento = inicio;
+            for (Pendiente pendiente : lote) {
+                int longitud = pendiente.registro.length;
+                Posicion anterior = indice.put(pendiente.clave,
+                        new Posicion(activo.numero, desplazamiento, longitud));
+                activo.vivos.addAndGet(longitud);
+                if (anterior != null) {
+                    Segmento segmento = segmentos.get(anterior.segmento);
+                    segmento.vivos.addAndGet(-anterior.longitud);
+                    obsoletos |= segmento.sellado;
+                }
+                desplazamiento += longitud;
+            }
+        } finally {
+            sustitucion.readLock().unlock();
+        }
+        registrosEscritos.addAndGet(lote.size());
+        confirmaciones.incrementAndGet();
+        if (obsoletos) {
+            avisarCompactador();
+        }
+    }
+
+    /**
+     * Sella el segmento activo y abre el siguiente.
+     */
+    private void rotar() throws Exception {
+        Segmento nuevo = crearSegmento(activo.numero + 1);
+        activo.sellado = true;
+        activo = nuevo;
+        avisarCompactador();
+    }
+
+    private void avisarCompactador() {
+        cerrojo.lock();
+        try {
+            revisarSegmentos.signal();
+        } finally {
+            cerrojo.unlock();
+        }
+    }
+
+    /**
+     * Bucle del hilo compactador: revisa los segmentos cuando se le avisa, y
+     * en todo caso cada segundo, hasta que el diario se cierra.
+     */
+    private void compactarEnSegundoPlano() {
+        while (true) {
+            cerrojo.lock();
+            try {
+                if (cerrado) {
+                    return;
+                }
+                revisarSegmentos.await(1, TimeUnit.SECONDS);
+                if (cerrado) {
+                    return;
+                }
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                cerrojo.unlock();
+            }
+            try {
+                compactar();
+            } catch (Exception e) {
+                errorCompactacion = e;
+            }
+        }
+    }
+
+    /**
+     * Copia los registros vigentes de un segmento sellado a un temporal que lo
+     * sustituye, o lo borra si no tiene ninguno.
+     */
+    private void compactar(Segmento segmento) throws Exception {
+        TreeMap<Long, Map.Entry<String, Posicion>> vigentes = new TreeMap<>();
+        for (Map.Entry<String, Posicion> entrada : indice.entrySet()) {
+            if (entrada.getValue().segmento == segmento.numero) {
+                vigentes.put(entrada.getValue().desplazamiento, Map.entry(entrada.getKey(), entrada.getValue()));
+            }
+        }
+
+        if (vigentes.isEmpty()) {
+            // Solo el escritor añade posiciones, y siempre en el segmento activo
+            sustitucion.writeLock().lock();
+            try {
+                segmentos.remove(segmento.numero);
+                segmento.canal.close();
+            } finally {
+                sustitucion.writeLock().unlock();
+            }
+            Files.delete(segmento.ruta);
+            return;
+        }
+
+        Path temporal = segmento.ruta.resolveSibling(segmento.ruta.getFileName() + EXTENSION_TEMPORAL);
+        FileChannel canal = FileChannel.open(temporal, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        Map<String, Posicion[]> sustituciones = new HashMap<>();
+        long tam;
+        try {
+            ByteBuffer cabecera = ByteBuffer.allocate(TAM_CABECERA_SEGMENTO).putInt(MAGICO).put((byte) VERSION);
+            cabecera.flip();
+            escribirCompleto(canal, cabecera, 0);
+            tam = TAM_CABECERA_SEGMENTO;
+            for (Map.Entry<String, Posicion> entrada : vigentes.values()) {
+                Posicion anterior = entrada.getValue();
+                ByteBuffer registro = ByteBuffer.allocate(anterior.longitud);
+                leerCompleto(segmento.canal, registro, anterior.desplazamiento);
+                registro.flip();
+                escribirCompleto(canal, registro, tam);
+                sustituciones.put(entrada.getKey(),
+                        new Posicion[] { anterior, new Posicion(segmento.numero, tam, anterior.longitud) });
+                tam += anterior.longitud;
+            }
+            canal.force(true);
+            try {
+                Files.move(temporal, segmento.ruta, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temporal, segmento.ruta, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (Exception e) {
+            canal.close();
+            Files.deleteIfExists(temporal);
+            throw e;
+        }
+
+        // Los lectores que tengan abierto el segmento antiguo siguen viendo su
+        // contenido hasta que se sustituye aquí
+        Segmento compactado = new Segmento(segmento.numero, segmento.ruta, canal, tam);
+        compactado.sellado = true;
+        sustitucion.writeLock().lock();
+        try {
+            for (Map.Entry<String, Posicion[]> entrada : sustituciones.entrySet()) {
+                Posicion[] posiciones = entrada.getValue();
+                // Si la clave se ha vuelto a escribir mientras tanto, su
+                // copia compactada queda obsoleta
+                if (indice.replace(entrada.getKey(), posiciones[0], posiciones[1])) {
+                    compactado.vivos.addAndGet(posiciones[1].longitud);
+                }
+            }
+            segmentos.put(segmento.numero, compactado);
+            segmento.canal.close();
+        } finally {
+            sustitucion.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Borra los temporales y recorre los segmentos existentes, reconstruyendo
+     * el índice y truncando el último segmento tras su último registro válido.
+     *
+     * @return bytes descartados al truncar
+     */
+    private long recuperar() throws Exception {
+        List<Path> rutas = new ArrayList<>();
+        try (DirectoryStream<Path> ficheros = Files.newDirectoryStream(directorio)) {
+            for (Path fichero : ficheros) {
+                String nombre = fichero.getFileName().toString();
+                if (nombre.endsWith(EXTENSION_TEMPORAL)) {
+                    Files.delete(fichero);
+                } else if (nombre.endsWith(EXTENSION)) {
+                    rutas.add(fichero);
+                }
+            }
+        }
+        Collections.sort(rutas);
+
+        long descartados = 0;
+        for (int i = 0; i < rutas.size(); i++) {
+            Path ruta = rutas.get(i);
+            boolean ultimo = i == rutas.size() - 1;
+            String nombre = ruta.getFileName().toString();
+            int numero;
+            try {
+                numero = Integer.parseInt(nombre.substring(0, nombre.length() - EXTENSION.length()));
+            } catch (NumberFormatException e) {
+                throw new Exception("Nombre de segmento no válido: " + ruta);
+            }
+            FileChannel canal = FileChannel.open(ruta, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            long tamFichero = canal.size();
+            long valido = recorrer(numero, canal, tamFichero);
+            if (valido < tamFichero) {
+                if (!ultimo) {
+                    canal.close();
+                    throw new Exception("El segmento " + ruta + " está dañado en la posición " + valido + ".");
+                }
+                descartados = tamFichero - valido;
+                if (valido < TAM_CABECERA_SEGMENTO) {
+                    // La caída se produjo al crear el segmento
+                    canal.truncate(0);
+                    ByteBuffer cabecera = ByteBuffer.allocate(TAM_CABECERA_SEGMENTO).putInt(MAGICO)
+                            .put((byte) VERSION);
+                    cabecera.flip();
+                    escribirCompleto(canal, cabecera, 0);
+                    valido = TAM_CABECERA_SEGMENTO;
+                } else {
+                    canal.truncate(valido);
+                }
+                canal.force(true);
+            }
+            Segmento segmento = new Segmento(numero, ruta, canal, valido);
+            segmento.sellado = !ultimo;
+            segmentos.put(numero, segmento);
+        }
+        // Las cuentas de bytes vigentes se calculan al final, con el índice ya
+        // reconstruido
+        for (Posicion posicion : indice.values()) {
+            segmentos.get(posicion.segmento).vivos.addAndGet(posicion.longitud);
+        }
+        return descartados;
+    }
+
+    /**
+     * Recorre los registros de un segmento, añadiéndolos al índice.
+     *
+     * @return posición siguiente al último registro válido, o 0 si la
+     *         cabecera del segmento no es válida
+     */
+    private long recorrer(int numero, FileChannel canal, long tamFichero) throws Exception {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                Channels.newInputStream(canal.position(0)), 1 << 16));
+        if (tamFichero < TAM_CABECERA_SEGMENTO || in.readInt() != MAGICO) {
+            return 0;
+        }
+        int version = in.readByte();
+        if (version > VERSION) {
+            throw new Exception("Versión de segmento no soportada: " + version);
+        }
+        long posicion = TAM_CABECERA_SEGMENTO;
+        byte[] contenido = new byte[256];
+        while (posicion + TAM_CABECERA_REGISTRO <= tamFichero) {
+            int longitud = in.readInt();
+            int suma = in.readInt();
+            if (longitud <= 0 || longitud > tamFichero - posicion - TAM_CABECERA_REGISTRO) {
+                break;
+            }
+            if (longitud > contenido.length) {
+                contenido = new byte[Math.max(longitud, contenido.length * 2)];
+            }
+            try {
+                in.readFully(contenido, 0, longitud);
+            } catch (EOFException e) {
+                break;
+            }
+            if (suma != crc(contenido, 0, longitud)) {
+                break;
+            }
+            String clave = leerClave(contenido, longitud);
+            if (clave == null) {
+                break;
+            }
+            indice.put(clave, new Posicion(numero, posicion, TAM_CABECERA_REGISTRO + longitud));
+            posicion += TAM_CABECERA_REGISTRO + longitud;
+        }
+        return posicion;
+    }
+
+    private Segmento crearSegmento(int numero) throws Exception {
+        Path ruta = directorio.resolve(String.format("%08d%s", numero, EXTENSION));
+        FileChannel canal = FileChannel.open(ruta, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        ByteBuffer cabecera = ByteBuffer.allocate(TAM_CABECERA_SEGMENTO).putInt(MAGICO).put((byte) VERSION);
+        cabecera.flip();
+        escribirCompleto(canal, cabecera, 0);
+        canal.force(true);
+        Segmento segmento = new Segmento(numero, ruta, canal, TAM_CABECERA_SEGMENTO);
+        segmentos.put(numero, segmento);
+        return segmento;
+    }
+
+    /**
+     * Codifica un registro completo: cabecera con la longitud y la suma de
+     * comprobación, y contenido con la clave, la tabla de cadenas y el estudio.
+     */
+    private static byte[] codificar(String clave, EstudioDiagnostico estudio) throws Exception {
+        FormatoBinarioEstudios.Bufer campos = new FormatoBinarioEstudios.Bufer();
+        List<String> cadenas = new ArrayList<>();
+        FormatoBinarioEstudios.codificar(estudio, campos, new FormatoBinarioEstudios.Bufer(), new HashMap<>(),
+                cadenas);
+
+        FormatoBinarioEstudios.Bufer contenido = new FormatoBinarioEstudios.Bufer();
+        contenido.campoCadena(CAMPO_CLAVE, clave);
+        for (String cadena : cadenas) {
+            contenido.campoCadena(CAMPO_CADENA, cadena);
+        }
+        contenido.campoAnidado(CAMPO_ESTUDIO, campos);
+
+        int longitud = contenido.getTam();
+        ByteBuffer registro = ByteBuffer.allocate(TAM_CABECERA_REGISTRO + longitud);
+        registro.putInt(longitud);
+        registro.putInt(crc(contenido.getDatos(), 0, longitud));
+        registro.put(contenido.getDatos(), 0, longitud);
+        return registro.array();
+    }
+
+    private static EstudioDiagnostico decodificar(byte[] datos, int desde, int fin, boolean parcial)
+            throws Exception {
+        FormatoBinarioEstudios.Cursor cursor = new FormatoBinarioEstudios.Cursor(datos, desde, fin);
+        List<String> tabla = new ArrayList<>();
+        EstudioDiagnostico estudio = null;
+        while (cursor.quedan()) {
+            int etiqueta = cursor.entero();
+            if (etiqueta == FormatoBinarioEstudios.etiqueta(CAMPO_CADENA, FormatoBinarioEstudios.CABLE_LONGITUD)) {
+                tabla.add(cursor.cadena());
+            } else if (etiqueta == FormatoBinarioEstudios.etiqueta(CAMPO_ESTUDIO,
+                    FormatoBinarioEstudios.CABLE_LONGITUD)) {
+                estudio = FormatoBinarioEstudios.decodificar(cursor.anidado(), tabla, parcial);
+            } else {
+                cursor.saltar(etiqueta & 7);
+            }
+        }
+        if (estudio == null) {
+            throw new Exception("El registro no contiene ningún estudio.");
+        }
+        return estudio;
+    }
+
+    /**
+     * Devuelve la clave del contenido de un registro, o {@code null} si el
+     * contenido no es válido.
+     */
+    private static String leerClave(byte[] contenido, int longitud) {
+        try {
+            FormatoBinarioEstudios.Cursor cursor = new FormatoBinarioEstudios.Cursor(contenido, 0, longitud);
+            while (cursor.quedan()) {
+                int etiqueta = cursor.entero();
+                if (etiqueta == FormatoBinarioEstudios.etiqueta(CAMPO_CLAVE, FormatoBinarioEstudios.CABLE_LONGITUD)) {
+                    return cursor.cadena();
+                }
+                cursor.saltar(etiqueta & 7);
+            }
+        } catch (Exception e) {
+            // Contenido mal formado: se trata como un registro dañado
+        }
+        return null;
+    }
+
+    private static int crc(byte[] datos, int desde, int longitud) {
+        CRC32C crc = new CRC32C();
+        crc.update(datos, desde, longitud);
+        return (int) crc.getValue();
+    }
+
+    private static void leerCompleto(FileChannel canal, ByteBuffer destino, long posicion) throws Exception {
+        while (destino.hasRemaining()) {
+            if (canal.read(destino, posicion + destino.position()) < 0) {
+                throw new EOFException("Registro truncado en la posición " + posicion + ".");
+            }
+        }
+    }
+
+    private static void escribirCompleto(FileChannel canal, ByteBuffer origen, long posicion) throws Exception {
+        long inicio = posicion - origen.position();
+        while (origen.hasRemaining()) {
+            canal.write(origen, inicio + origen.position());
+        }
+    }
+
+    /**
+     * Posición del último registro de una clave. Las posiciones se comparan
+     * por identidad para sustituirlas en el índice solo si no han cambiado.
+     */
+    private static final class Posicion {
+        private final int segmento;
+        private final long desplazamiento;
+        private final int longitud;
+
+        private Posicion(int segmento, long desplazamiento, int longitud) {
+            this.segmento = segmento;
+            this.desplazamiento = desplazamiento;
+            this.longitud = longitud;
+        }
+    }
+
+    private static final class Segmento {
+        private final int numero;
+        private final Path ruta;
+        private final FileChannel canal;
+        /** Tamaño del fichero; solo lo modifica el escritor, en el segmento activo. */
+        private volatile long tam;
+        /** Bytes de los registros vigentes. */
+        private final AtomicLong vivos;
+        private volatile boolean sellado;
+
+        private Segmento(int numero, Path ruta, FileChannel canal, long tam) {
+            this.numero = numero;
+            this.ruta = ruta;
+            this.canal = canal;
+            this.tam = tam;
+            this.vivos = new AtomicLong();
+        }
+    }
+
+    private static final class Pendiente {
+        private final String clave;
+        private final byte[] registro;
+        private final CompletableFuture<Void> futuro;
+
+        private Pendiente(String clave, byte[] registro) {
+            this.clave = clave;
+            this.registro = registro;
+            this.futuro = new CompletableFuture<>();
+        }
+    }
+}
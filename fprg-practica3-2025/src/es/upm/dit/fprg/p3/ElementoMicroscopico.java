@@ -0,0 +1,19 @@
+package es.upm.dit.fprg.p3;
+
+/**
+ * Abstracción de cualquier elemento que puede identificarse en una muestra
+ * microscópica (patógenos, fibrillas, etc.).
+ * <p>
+ * Permite que el {@link AnalizadorDiagnostico} agrupe los resultados de
+ * reconocedores de distinta naturaleza bajo un nombre común.
+ * </p>
+ */
+public interface ElementoMicroscopico {
+
+    /**
+     * Devuelve el nombre descriptivo del elemento microscópico.
+     *
+     * @return nombre del elemento (cadena no nula ni vacía)
+     */
+    String getNombre();
+}
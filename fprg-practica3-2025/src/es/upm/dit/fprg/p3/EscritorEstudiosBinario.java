@@ -0,0 +1,147 @@
+package es.upm.dit.fprg.p3;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Escritor de archivos binarios de estudios diagnósticos, pensado para
+ * archivar grandes volúmenes de estudios de forma compacta.
+ * <p>
+ * Guarda los mismos datos que el XML de
+ * {@link EstudioDiagnostico#guardar(OutputStream)}: datos clínicos, médicos,
+ * paciente, fecha del informe, identificadores de las muestras (y su huella
+ * si son {@link MuestraAlmacenada}) y resultados. Los enteros se codifican como varints, los enumerados por su
+ * ordinal y los nombres que se repiten entre estudios (médicos, centros,
+ * apellidos, elementos) se escriben una sola vez en una tabla de cadenas. El
+ * formato y sus reglas de compatibilidad se describen en
+ * {@link FormatoBinarioEstudios}.
+ * </p>
+ * <p>
+ * Los estudios se escriben uno a uno, sin retenerlos; la memoria del escritor
+ * está acotada por el tamaño máximo de la tabla de cadenas. Los archivos se
+ * leen con {@link LectorEstudiosBinario}.
+ * </p>
+ */
+public final class EscritorEstudiosBinario implements AutoCloseable {
+
+    /** Cadenas nuevas que puede necesitar un estudio, además de sus resultados. */
+    private static final int CADENAS_POR_ESTUDIO = 9;
+
+    private final OutputStream out;
+    private final Map<String, Integer> tabla;
+    private final List<String> nuevas;
+    private final FormatoBinarioEstudios.Bufer registro;
+    private final FormatoBinarioEstudios.Bufer estudio;
+    private final FormatoBinarioEstudios.Bufer anidado;
+    private final FormatoBinarioEstudios.Bufer cabecera;
+    private boolean cerrado;
+
+    /**
+     * Crea el escritor y escribe la cabecera del archivo.
+     *
+     * @param out flujo de salida; se cierra al cerrar el escritor
+     * @throws Exception si el flujo es nulo o no puede escribirse
+     */
+    public EscritorEstudiosBinario(OutputStream out) throws Exception {
+        if (out == null) {
+            throw new Exception("El flujo de salida no puede ser nulo.");
+        }
+        this.out = new BufferedOutputStream(out, 1 << 16);
+        this.tabla = new HashMap<>();
+        this.nuevas = new ArrayList<>();
+        this.registro = new FormatoBinarioEstudios.Bufer();
+        this.estudio = new FormatoBinarioEstudios.Bufer();
+        this.anidado = new FormatoBinarioEstudios.Bufer();
+        this.cabecera = new FormatoBinarioEstudios.Bufer();
+        this.out.write(FormatoBinarioEstudios.MAGICO >>> 24);
+        this.out.write(FormatoBinarioEstudios.MAGICO >>> 16);
+        this.out.write(FormatoBinarioEstudios.MAGICO >>> 8);
+        this.out.write(FormatoBinarioEstudios.MAGICO);
+        registro.varint(FormatoBinarioEstudios.VERSION);
+        volcar();
+    }
+
+    /**
+     * Escribe un estudio en el archivo.
+     *
+     * @param e estudio a escribir
+     * @throws Exception si el estudio es nulo o contiene una muestra nula, el
+     *                   escritor está cerrado o se produce un error de
+     *                   escritura
+     */
+    public void escribir(EstudioDiagnostico e) throws Exception {
+        if (e == null) {
+            throw new Exception("El estudio no puede ser nulo.");
+        }
+        if (cerrado) {
+            throw new Exception("El escritor está cerrado.");
+        }
+        // Las cadenas de un estudio deben estar en la tabla vigente: si no
+        // caben todas, se reinicia antes de empezar a codificarlo
+        int resultados = e.getResultados() == null ? 0 : e.getResultados().size();
+        if (tabla.size() + CADENAS_POR_ESTUDIO + resultados > FormatoBinarioEstudios.CAPACIDAD_TABLA) {
+            tabla.clear();
+            registro.vaciar();
+            volcarRegistro(FormatoBinarioEstudios.REGISTRO_REINICIO_TABLA);
+        }
+
+        estudio.vaciar();
+        nuevas.clear();
+        try {
+            FormatoBinarioEstudios.codificar(e, estudio, anidado, tabla, nuevas);
+        } catch (Exception ex) {
+            // No se ha escrito nada del estudio: se retiran de la tabla sus
+            // cadenas para que no queden referencias a cadenas no escritas
+            for (String cadena : nuevas) {
+                tabla.remove(cadena);
+            }
+            throw ex;
+        }
+        for (String cadena : nuevas) {
+            byte[] utf8 = cadena.getBytes(StandardCharsets.UTF_8);
+            registro.bytes(utf8, 0, utf8.length);
+            volcarRegistro(FormatoBinarioEstudios.REGISTRO_CADENA);
+        }
+
+        registro.vaciar();
+        registro.bytes(estudio.getDatos(), 0, estudio.getTam());
+        volcarRegistro(FormatoBinarioEstudios.REGISTRO_ESTUDIO);
+    }
+
+    /**
+     * Vacía el búfer y cierra el flujo de salida.
+     *
+     * @throws IOException si se produce un error de escritura
+     */
+    @Override
+    public void close() throws IOException {
+        if (!cerrado) {
+            cerrado = true;
+            out.close();
+        }
+    }
+
+    /**
+     * Escribe el contenido del búfer de registro precedido de su tipo y su
+     * longitud.
+     */
+    private void volcarRegistro(int tipo) throws Exception {
+        int longitud = registro.getTam();
+        cabecera.vaciar();
+        cabecera.varint(tipo);
+        cabecera.varint(longitud);
+        out.write(cabecera.getDatos(), 0, cabecera.getTam());
+        volcar();
+    }
+
+    private void volcar() throws Exception {
+        out.write(registro.getDatos(), 0, registro.getTam());
+        registro.vaciar();
+    }
+}
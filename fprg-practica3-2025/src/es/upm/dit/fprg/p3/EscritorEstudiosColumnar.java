@@ -0,0 +1,306 @@
+package es.upm.dit.fprg.p3;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Escritor de exportaciones columnares de estudios, pensadas para recorrer
+ * los resultados de millones de estudios en análisis masivos.
+ * <p>
+ * Exporta los datos de cabecera de cada estudio (técnica, paciente, médicos,
+ * centros y fechas), su número de muestras y los píxeles positivos de cada
+ * elemento, agrupados por columnas en bloques de
+ * {@link FormatoColumnarEstudios#FILAS_POR_BLOQUE} estudios: los textos como
+ * códigos de un diccionario por bloque, los recuentos como enteros de 4 bytes
+ * y las fechas como diferencias en rachas. No exporta los identificadores de
+ * las muestras; para archivar estudios completos está
+ * {@link EscritorEstudiosBinario}. El formato se describe en
+ * {@link FormatoColumnarEstudios}.
+ * </p>
+ * <p>
+ * La memoria del escritor está acotada por un bloque. Los archivos se leen
+ * con {@link LectorEstudiosColumnar}.
+ * </p>
+ */
+public final class EscritorEstudiosColumnar implements AutoCloseable {
+
+    private final DataOutputStream out;
+    private final int filasPorBloque;
+    private int filas;
+    private final int[] tecnicas;
+    private final int[] anios;
+    private final int[] muestras;
+    private final long[] prescripciones;
+    private final long[] informes;
+    private final Diccionario dnis;
+    private final Diccionario prescriptores;
+    private final Diccionario centrosPrescriptores;
+    private final Diccionario informadores;
+    private final Diccionario centrosInformadores;
+    private final Map<String, int[]> resultados;
+    private final FormatoBinarioEstudios.Bufer deltas;
+    private boolean cerrado;
+
+    /**
+     * Crea el escritor y escribe la cabecera del archivo.
+     *
+     * @param out flujo de salida; se cierra al cerrar el escritor
+     * @throws Exception si el flujo es nulo o no puede escribirse
+     */
+    public EscritorEstudiosColumnar(OutputStream out) throws Exception {
+        this(out, FormatoColumnarEstudios.FILAS_POR_BLOQUE);
+    }
+
+    /**
+     * Crea el escritor con otro número de estudios por bloque.
+     */
+    EscritorEstudiosColumnar(OutputStream out, int filasPorBloque) throws Exception {
+        if (out == null) {
+            throw new Exception("El flujo de salida no puede ser nulo.");
+        }
+        this.out = new DataOutputStream(new BufferedOutputStream(out, 1 << 16));
+        this.filasPorBloque = filasPorBloque;
+        this.tecnicas = new int[filasPorBloque];
+        this.anios = new int[filasPorBloque];
+        this.muestras = new int[filasPorBloque];
+        this.prescripciones = new long[filasPorBloque];
+        this.informes = new long[filasPorBloque];
+        this.dnis = new Diccionario(filasPorBloque);
+        this.prescriptores = new Diccionario(filasPorBloque);
+        this.centrosPrescriptores = new Diccionario(filasPorBloque);
+        this.informadores = new Diccionario(filasPorBloque);
+        this.centrosInformadores = new Diccionario(filasPorBloque);
+        this.resultados = new TreeMap<>();
+        this.deltas = new FormatoBinarioEstudios.Bufer();
+        this.out.writeInt(FormatoColumnarEstudios.MAGICO);
+        this.out.writeByte(FormatoColumnarEstudios.VERSION);
+    }
+
+    /**
+     * Añade un estudio a la exportación. Sus datos se copian al bloque en
+     * curso, que se escribe al llenarse.
+     *
+     * @param e estudio a exportar
+     * @throws Exception si el estudio es nulo, el escritor está cerrado o se
+     *                   produce un error de escritura
+     */
+    public void escribir(EstudioDiagnostico e) throws Exception {
+        if (e == null) {
+            throw new Exception("El estudio no puede ser nulo.");
+        }
+        if (cerrado) {
+            throw new Exception("El escritor está cerrado.");
+        }
+        int fila = filas;
+        tecnicas[fila] = e.getTecnica() == null ? -1 : e.getTecnica().ordinal();
+        Paciente paciente = e.getPaciente();
+        dnis.agregar(fila, paciente == null ? null : paciente.getDni());
+        anios[fila] = paciente == null ? 0 : paciente.getAnioNacimiento();
+        Medico prescriptor = e.getPrescriptor();
+        prescriptores.agregar(fila, prescriptor == null ? null : prescriptor.getColegiado());
+        centrosPrescriptores.agregar(fila, prescriptor == null ? null : prescriptor.getCentroSanitario());
+        Medico informador = e.getInformador();
+        informadores.agregar(fila, informador == null ? null : informador.getColegiado());
+        centrosInformadores.agregar(fila, informador == null ? null : informador.getCentroSanitario());
+        prescripciones[fila] = e.getTimestampPrescripcion();
+        informes[fila] = e.getFechaInforme() == null ? Long.MIN_VALUE : IndiceOrdenado.instante(e.getFechaInforme());
+        muestras[fila] = e.getMuestras() == null ? 0 : e.getMuestras().size();
+        if (e.getResultados() != null) {
+            for (Map.Entry<String, Integer> resultado : e.getResultados().entrySet()) {
+                if (resultado.getKey() == null || resultado.getValue() == null) {
+                    continue;
+                }
+                int[] columna = resultados.get(resultado.getKey());
+                if (columna == null) {
+                    // Elemento nuevo en el bloque: las filas anteriores no lo tienen
+                    columna = new int[filasPorBloque];
+                    Arrays.fill(columna, -1);
+                    resultados.put(resultado.getKey(), columna);
+                }
+                columna[fila] = resultado.getValue();
+            }
+        }
+        filas++;
+        if (filas == filasPorBloque) {
+            volcarBloque();
+        }
+    }
+
+    /**
+     * Escribe el bloque en curso y la marca de final, y cierra el flujo de
+     * salida.
+     *
+     * @throws IOException si se produce un error de escritura
+     */
+    @Override
+    public void close() throws IOException {
+        if (!cerrado) {
+            cerrado = true;
+            try {
+                if (filas > 0) {
+                    volcarBloque();
+                }
+                out.writeInt(0);
+                out.writeInt(0);
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    private void volcarBloque() throws IOException {
+        List<String> nombres = new ArrayList<>();
+        List<Integer> tipos = new ArrayList<>();
+        List<byte[]> columnas = new ArrayList<>();
+        agregarColumna(nombres, tipos, columnas, FormatoColumnarEstudios.COLUMNA_TECNICA,
+                FormatoColumnarEstudios.TIPO_ENTEROS, enteros(tecnicas));
+        agregarColumna(nombres, tipos, columnas, FormatoColumnarEstudios.COLUMNA_DNI,
+                FormatoColumnarEstudios.TIPO_DICCIONARIO, dnis.codificar(filas));
+        agregarColumna(nombres, tipos, columnas, FormatoColumnarEstudios.COLUMNA_ANIO_NACIMIENTO,
+                FormatoColumnarEstudios.TIPO_ENTEROS, enteros(anios));
+        agregarColumna(nombres, tipos, columnas, FormatoColumnarEstudios.COLUMNA_PRESCRIPTOR,
+                FormatoColumnarEstudios.TIPO_DICCIONARIO, prescriptores.codificar(filas));
+        agregarColumna(nombres, tipos, columnas, FormatoColumnarEstudios.COLUMNA_CENTRO_PRESCRIPTOR,
+                FormatoColumnarEstudios.TIPO_DICCIONARIO, centrosPrescriptores.codificar(filas));
+        agregarColumna(nombres, tipos, columnas, FormatoColumnarEstudios.COLUMNA_INFORMADOR,
+                FormatoColumnarEstudios.TIPO_DICCIONARIO, informadores.codificar(filas));
+        agregarColumna(nombres, tipos, columnas, FormatoColumnarEstudios.COLUMNA_CENTRO_INFORMADOR,
+                FormatoColumnarEstudios.TIPO_DICCIONARIO, centrosInformadores.codificar(filas));
+        agregarColumna(nombres, tipos, columnas, FormatoColumnarEstudios.COLUMNA_PRESCRIPCION,
+                FormatoColumnarEstudios.TIPO_DELTAS, deltas(prescripciones));
+        agregarColumna(nombres, tipos, columnas, FormatoColumnarEstudios.COLUMNA_INFORME,
+                FormatoColumnarEstudios.TIPO_DELTAS, deltas(informes));
+        agregarColumna(nombres, tipos, columnas, FormatoColumnarEstudios.COLUMNA_MUESTRAS,
+                FormatoColumnarEstudios.TIPO_ENTEROS, enteros(muestras));
+        for (Map.Entry<String, int[]> resultado : resultados.entrySet()) {
+            agregarColumna(nombres, tipos, columnas, FormatoColumnarEstudios.PREFIJO_RESULTADO + resultado.getKey(),
+                    FormatoColumnarEstudios.TIPO_ENTEROS, enteros(resultado.getValue()));
+        }
+
+        ByteArrayOutputStream directorio = new ByteArrayOutputStream();
+        DataOutputStream datosDirectorio = new DataOutputStream(directorio);
+        datosDirectorio.writeInt(columnas.size());
+        for (int i = 0; i < columnas.size(); i++) {
+            datosDirectorio.writeUTF(nombres.get(i));
+            datosDirectorio.writeByte(tipos.get(i));
+            datosDirectorio.writeInt(columnas.get(i).length);
+        }
+        out.writeInt(filas);
+        out.writeInt(directorio.size());
+        directorio.writeTo(out);
+        for (byte[] columna : columnas) {
+            out.write(columna);
+        }
+
+        filas = 0;
+        dnis.vaciar();
+        prescriptores.vaciar();
+        centrosPrescriptores.vaciar();
+        informadores.vaciar();
+        centrosInformadores.vaciar();
+        resultados.clear();
+    }
+
+    private static void agregarColumna(List<String> nombres, List<Integer> tipos, List<byte[]> columnas,
+            String nombre, int tipo, byte[] datos) {
+        nombres.add(nombre);
+        tipos.add(tipo);
+        columnas.add(datos);
+    }
+
+    private byte[] enteros(int[] valores) {
+        return enteros(valores, filas);
+    }
+
+    private static byte[] enteros(int[] valores, int n) {
+        ByteBuffer datos = ByteBuffer.allocate(n * 4);
+        datos.asIntBuffer().put(valores, 0, n);
+        return datos.array();
+    }
+
+    /**
+     * Codifica una columna de 64 bits como rachas de diferencias iguales.
+     */
+    private byte[] deltas(long[] valores) {
+        deltas.vaciar();
+        long anterior = 0;
+        long racha = 0;
+        int repeticiones = 0;
+        for (int i = 0; i < filas; i++) {
+            long diferencia = valores[i] - anterior;
+            anterior = valores[i];
+            if (repeticiones > 0 && diferencia == racha) {
+                repeticiones++;
+                continue;
+            }
+            if (repeticiones > 0) {
+                deltas.varint(FormatoBinarioEstudios.zigzag(racha));
+                deltas.varint(repeticiones);
+            }
+            racha = diferencia;
+            repeticiones = 1;
+        }
+        if (repeticiones > 0) {
+            deltas.varint(FormatoBinarioEstudios.zigzag(racha));
+            deltas.varint(repeticiones);
+        }
+        return Arrays.copyOf(deltas.getDatos(), deltas.getTam());
+    }
+
+    /**
+     * Columna de cadenas de un bloque: las cadenas distintas y el código de
+     * cada fila.
+     */
+    private static final class Diccionario {
+        private final Map<String, Integer> codigos = new HashMap<>();
+        private final List<String> entradas = new ArrayList<>();
+        private final int[] filas;
+
+        Diccionario(int filasPorBloque) {
+            this.filas = new int[filasPorBloque];
+        }
+
+        void agregar(int fila, String valor) {
+            if (valor == null) {
+                filas[fila] = -1;
+                return;
+            }
+            Integer codigo = codigos.get(valor);
+            if (codigo == null) {
+                codigo = entradas.size();
+                codigos.put(valor, codigo);
+                entradas.add(valor);
+            }
+            filas[fila] = codigo;
+        }
+
+        byte[] codificar(int n) throws IOException {
+            ByteArrayOutputStream diccionario = new ByteArrayOutputStream();
+            DataOutputStream datos = new DataOutputStream(diccionario);
+            datos.writeInt(entradas.size());
+            for (String entrada : entradas) {
+                datos.writeUTF(entrada);
+            }
+            ByteBuffer columna = ByteBuffer.allocate(4 + diccionario.size() + n * 4);
+            columna.putInt(diccionario.size());
+            columna.put(diccionario.toByteArray());
+            columna.asIntBuffer().put(filas, 0, n);
+            return columna.array();
+        }
+
+        void vaciar() {
+            codigos.clear();
+            entradas.clear();
+        }
+    }
+}
@@ -0,0 +1,495 @@
+package es.upm.dit.fprg.p3;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+/**
+ * Escritor en streaming de estudios diagnósticos en el formato XML de
+ * {@link java.beans.XMLEncoder}.
+ * <p>
+ * Produce la misma estructura de documento que {@code XMLEncoder}: las mismas
+ * sentencias {@code <void property>} en orden alfabético, las propiedades con
+ * su valor por defecto omitidas, las muestras y los resultados añadidos con
+ * {@code add} y {@code put}, los enumerados con {@code Enum.valueOf} y los
+ * objetos compartidos dentro de un estudio (por ejemplo, un mismo médico como
+ * prescriptor e informador) escritos una vez y referenciados con
+ * {@code idref}. Por eso los documentos pueden leerse tanto con
+ * {@link java.beans.XMLDecoder} como con {@link LectorEstudiosXml}.
+ * </p>
+ * <p>
+ * A diferencia de {@code XMLEncoder}, no utiliza reflexión ni retiene los
+ * estudios hasta cerrar el documento: cada estudio se escribe en cuanto se
+ * pasa a {@link #escribir(EstudioDiagnostico)}, de modo que la memoria
+ * necesaria no depende del número de estudios del documento. La única
+ * diferencia observable es que un objeto compartido entre estudios distintos
+ * se escribe completo en cada uno en lugar de referenciarse.
+ * </p>
+ */
+public final class EscritorEstudiosXml implements AutoCloseable {
+
+    private static final XMLOutputFactory FABRICA = XMLOutputFactory.newFactory();
+
+    private static final String CLASE_ENUM = "java.lang.Enum";
+
+    /** Saltos de línea con la sangría de cada nivel, como los escribe XMLEncoder. */
+    private static final String[] SANGRIAS = new String[12];
+
+    static {
+        StringBuilder sangria = new StringBuilder("\n");
+        for (int i = 0; i < SANGRIAS.length; i++) {
+            SANGRIAS[i] = sangria.toString();
+            sangria.append(' ');
+        }
+    }
+
+    private final OutputStream out;
+    private final XMLStreamWriter xml;
+    private final Map<String, Integer> contadoresId;
+    private final boolean[] conHijos;
+    private int nivel;
+    private boolean cerrado;
+
+    /**
+     * Crea el escritor y escribe la cabecera del documento.
+     *
+     * @param out flujo de salida; se cierra al cerrar el escritor
+     * @throws Exception si el flujo es nulo o no puede escribirse
+     */
+    public EscritorEstudiosXml(OutputStream out) throws Exception {
+        if (out == null) {
+            throw new Exception("El flujo de salida no puede ser nulo.");
+        }
+        this.out = out;
+        this.xml = FABRICA.createXMLStreamWriter(out, "UTF-8");
+        this.contadoresId = new HashMap<>();
+        this.conHijos = new boolean[SANGRIAS.length];
+        xml.writeStartDocument("UTF-8", "1.0");
+        sangrar();
+        xml.writeStartElement("java");
+        xml.writeAttribute("version", System.getProperty("java.version"));
+        xml.writeAttribute("class", "java.beans.XMLDecoder");
+        nivel = 1;
+    }
+
+    /**
+     * Escribe un estudio completo en el documento.
+     *
+     * @param estudio estudio a escribir
+     * @throws Exception si el estudio es nulo, el escritor está cerrado o se
+     *                   produce un error de escritura
+     */
+    public void escribir(EstudioDiagnostico estudio) throws Exception {
+        if (estudio == null) {
+            throw new Exception("El estudio no puede ser nulo.");
+        }
+        if (cerrado) {
+            throw new Exception("El escritor está cerrado.");
+        }
+        Map<Object, String> nombres = new IdentityHashMap<>();
+        for (Object compartido : compartidos(estudio)) {
+            nombres.put(compartido, null);
+        }
+        escribirEstudio(estudio, nombres);
+    }
+
+    /**
+     * Termina el documento y cierra el flujo de salida.
+     *
+     * @throws IOException si se produce un error de escritura
+     */
+    @Override
+    public void close() throws IOException {
+        if (cerrado) {
+            return;
+        }
+        cerrado = true;
+        try {
+            nivel = 0;
+            sangrar();
+            xml.writeEndElement();
+            xml.writeCharacters("\n");
+            xml.writeEndDocument();
+            xml.close();
+        } catch (XMLStreamException e) {
+            throw new IOException("No se pudo terminar el documento: " + e.getMessage(), e);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Devuelve los objetos que aparecen más de una vez en el estudio y que,
+     * como hace {@code XMLEncoder}, se escriben con identificador la primera
+     * vez y por referencia las siguientes.
+     */
+    private static List<Object> compartidos(EstudioDiagnostico estudio) {
+        Map<Object, Integer> apariciones = new IdentityHashMap<>();
+        List<Object> objetos = new ArrayList<>();
+        objetos.add(estudio.getInformador());
+        if (estudio.getMuestras() != null) {
+            objetos.addAll(estudio.getMuestras());
+        }
+        objetos.add(estudio.getPaciente());
+        objetos.add(estudio.getPrescriptor());
+        List<Object> compartidos = new ArrayList<>();
+        for (Object objeto : objetos) {
+            if (objeto != null && apariciones.merge(objeto, 1, Integer::sum) == 2) {
+                compartidos.add(objeto);
+            }
+        }
+        return compartidos;
+    }
+
+    private void escribirEstudio(EstudioDiagnostico estudio, Map<Object, String> nombres)
+            throws XMLStreamException {
+        List<Muestra> muestras = estudio.getMuestras();
+        Map<String, Integer> resultados = estudio.getResultados();
+        boolean muestrasPorAdd = muestras != null && !muestras.isEmpty();
+        boolean resultadosPorPut = resultados != null && !esMapaConClase(resultados) && !resultados.isEmpty();
+
+        boolean vacio = estudio.getFechaInformeIso() == null && estudio.getInformador() == null
+                && muestras != null && !muestrasPorAdd && estudio.getPaciente() == null
+                && estudio.getPrescriptor() == null && resultados != null && !esMapaConClase(resultados)
+                && !resultadosPorPut && estudio.getTecnica() == null && estudio.getTimestampPrescripcion() == 0;
+        // XMLEncoder identifica al estudio cuando modifica las colecciones
+        // que devuelven sus métodos get
+        String id = muestrasPorAdd || resultadosPorPut ? nuevoId("EstudioDiagnostico") : null;
+        if (!abrirObjeto(EstudioDiagnostico.class, id, vacio)) {
+            return;
+        }
+
+        if (estudio.getFechaInformeIso() != null) {
+            abrirPropiedad("fechaInformeIso");
+            escribirCadena(estudio.getFechaInformeIso());
+            cerrar();
+        }
+        if (estudio.getInformador() != null) {
+            abrirPropiedad("informador");
+            escribirMedico(estudio.getInformador(), nombres);
+            cerrar();
+        }
+        if (muestras == null) {
+            abrirPropiedad("muestras");
+            escribirNulo();
+            cerrar();
+        } else if (muestrasPorAdd) {
+            abrirPropiedad("muestras");
+            escribirAdds(muestras, nombres);
+            cerrar();
+        }
+        if (estudio.getPaciente() != null) {
+            abrirPropiedad("paciente");
+            escribirPaciente(estudio.getPaciente(), nombres);
+            cerrar();
+        }
+        if (estudio.getPrescriptor() != null) {
+            abrirPropiedad("prescriptor");
+            escribirMedico(estudio.getPrescriptor(), nombres);
+            cerrar();
+        }
+        if (resultados == null) {
+            abrirPropiedad("resultados");
+            escribirNulo();
+            cerrar();
+        } else if (esMapaConClase(resultados)) {
+            abrirPropiedad("resultados");
+            if (abrirObjeto(resultados.getClass(), null, resultados.isEmpty())) {
+                escribirPuts(resultados);
+                cerrar();
+            }
+            cerrar();
+        } else if (resultadosPorPut) {
+            abrirPropiedad("resultados");
+            escribirPuts(resultados);
+            cerrar();
+        }
+        if (estudio.getTecnica() != null) {
+            abrirPropiedad("tecnica");
+            escribirEnum(estudio.getTecnica());
+            cerrar();
+        }
+        if (estudio.getTimestampPrescripcion() != 0) {
+            abrirPropiedad("timestampPrescripcion");
+            escribirEntero(estudio.getTimestampPrescripcion());
+            cerrar();
+        }
+        cerrar();
+    }
+
+    /**
+     * Indica si {@code XMLEncoder} escribiría el mapa creando un objeto de su
+     * clase en lugar de modificar el {@link HashMap} por defecto del estudio.
+     */
+    private static boolean esMapaConClase(Map<String, Integer> mapa) {
+        return mapa instanceof LinkedHashMap || mapa instanceof TreeMap;
+    }
+
+    private void escribirAdds(List<Muestra> muestras, Map<Object, String> nombres) throws XMLStreamException {
+        for (Muestra muestra : muestras) {
+            abrir("void");
+            xml.writeAttribute("method", "add");
+            escribirMuestra(muestra, nombres);
+            cerrar();
+        }
+    }
+
+    private void escribirPuts(Map<String, Integer> resultados) throws XMLStreamException {
+        for (Map.Entry<String, Integer> entrada : resultados.entrySet()) {
+            abrir("void");
+            xml.writeAttribute("method", "put");
+            if (entrada.getKey() == null) {
+                escribirNulo();
+            } else {
+                escribirCadena(entrada.getKey());
+            }
+            if (entrada.getValue() == null) {
+                escribirNulo();
+            } else {
+                escribirEntero(entrada.getValue());
+            }
+            cerrar();
+        }
+    }
+
+    private void escribirMedico(Medico medico, Map<Object, String> nombres) throws XMLStreamException {
+        if (escribirReferencia(medico, nombres)) {
+            return;
+        }
+        boolean vacio = medico.getCentroSanitario() == null && medico.getColegiado() == null
+                && medico.getEspecialidad() == null && medico.getNombreCompleto() == null;
+        if (!abrirObjeto(Medico.class, nombrar(medico, nombres), vacio)) {
+            return;
+        }
+        escribirPropiedad("centroSanitario", medico.getCentroSanitario());
+        escribirPropiedad("colegiado", medico.getColegiado());
+        if (medico.getEspecialidad() != null) {
+            abrirPropiedad("especialidad");
+            escribirEnum(medico.getEspecialidad());
+            cerrar();
+        }
+        escribirPropiedad("nombreCompleto", medico.getNombreCompleto());
+        cerrar();
+    }
+
+    private void escribirPaciente(Paciente paciente, Map<Object, String> nombres) throws XMLStreamException {
+        if (escribirReferencia(paciente, nombres)) {
+            return;
+        }
+        boolean vacio = paciente.getAnioNacimiento() == 0 && paciente.getDni() == null
+                && paciente.getNombre() == null && paciente.getPrimerApellido() == null
+                && paciente.getSegundoApellido() == null;
+        if (!abrirObjeto(Paciente.class, nombrar(paciente, nombres), vacio)) {
+            return;
+        }
+        if (paciente.getAnioNacimiento() != 0) {
+            abrirPropiedad("anioNacimiento");
+            escribirEntero(paciente.getAnioNacimiento());
+            cerrar();
+        }
+        escribirPropiedad("dni", paciente.getDni());
+        escribirPropiedad("nombre", paciente.getNombre());
+        escribirPropiedad("primerApellido", paciente.getPrimerApellido());
+        escribirPropiedad("segundoApellido", paciente.getSegundoApellido());
+        cerrar();
+    }
+
+    private void escribirMuestra(Muestra muestra, Map<Object, String> nombres) throws XMLStreamException {
+        if (muestra == null) {
+            escribirNulo();
+            return;
+        }
+        if (escribirReferencia(muestra, nombres)) {
+            return;
+        }
+        if (muestra instanceof MuestraAlmacenada) {
+            String hash = ((MuestraAlmacenada) muestra).getHash();
+            if (abrirObjeto(MuestraAlmacenada.class, nombrar(muestra, nombres),
+                    hash == null && muestra.getId() == null)) {
+                escribirPropiedad("hash", hash);
+                escribirPropiedad("id", muestra.getId());
+                cerrar();
+            }
+        } else if (abrirObjeto(Muestra.class, nombrar(muestra, nombres), muestra.getId() == null)) {
+            escribirPropiedad("id", muestra.getId());
+            cerrar();
+        }
+    }
+
+    /**
+     * Si el objeto es compartido y ya se ha escrito, escribe su referencia.
+     *
+     * @return {@code true} si se ha escrito la referencia
+     */
+    private boolean escribirReferencia(Object objeto, Map<Object, String> nombres) throws XMLStreamException {
+        String nombre = nombres.get(objeto);
+        if (nombre == null) {
+            return false;
+        }
+        vacio("object");
+        xml.writeAttribute("idref", nombre);
+        return true;
+    }
+
+    /**
+     * Abre el elemento de un objeto. Si el objeto no tiene propiedades que
+     * escribir, el elemento se escribe vacío, como hace {@code XMLEncoder}.
+     *
+     * @param clase clase del objeto
+     * @param id identificador del objeto, o {@code null} si no es compartido
+     * @param vacio si el objeto no tiene propiedades que escribir
+     * @return {@code true} si el elemento queda abierto y hay que cerrarlo
+     */
+    private boolean abrirObjeto(Class<?> clase, String id, boolean vacio) throws XMLStreamException {
+        if (vacio) {
+            vacio("object");
+        } else {
+            abrir("object");
+        }
+        xml.writeAttribute("class", clase.getName());
+        if (id != null) {
+            xml.writeAttribute("id", id);
+        }
+        return !vacio;
+    }
+
+    /**
+     * Asigna un identificador al objeto si es compartido dentro del estudio.
+     *
+     * @return identificador asignado, o {@code null} si no es compartido
+     */
+    private String nombrar(Object objeto, Map<Object, String> nombres) {
+        if (!nombres.containsKey(objeto)) {
+            return null;
+        }
+        String nombre = nuevoId(objeto.getClass().getSimpleName());
+        nombres.put(objeto, nombre);
+        return nombre;
+    }
+
+    private String nuevoId(String clase) {
+        int n = contadoresId.merge(clase, 1, Integer::sum) - 1;
+        return clase + n;
+    }
+
+    private void escribirPropiedad(String propiedad, String valor) throws XMLStreamException {
+        if (valor != null) {
+            abrirPropiedad(propiedad);
+            escribirCadena(valor);
+            cerrar();
+        }
+    }
+
+    private void escribirEnum(Enum<?> valor) throws XMLStreamException {
+        abrir("object");
+        xml.writeAttribute("class", CLASE_ENUM);
+        xml.writeAttribute("method", "valueOf");
+        sangrar();
+        xml.writeStartElement("class");
+        xml.writeCharacters(valor.getDeclaringClass().getName());
+        xml.writeEndElement();
+        escribirCadena(valor.name());
+        cerrar();
+    }
+
+    /**
+     * Escribe una cadena como {@code XMLEncoder}: los caracteres que no
+     * admite XML se escriben como elementos {@code <char code="#hex"/>} y el
+     * retorno de carro, que el analizador normalizaría, como referencia
+     * {@code &#13;}.
+     */
+    private void escribirCadena(String valor) throws XMLStreamException {
+        sangrar();
+        xml.writeStartElement("string");
+        int inicio = 0;
+        int i = 0;
+        while (i < valor.length()) {
+            int punto = valor.codePointAt(i);
+            int n = Character.charCount(punto);
+            if (punto != '\r' && esCaracterXml(punto)) {
+                i += n;
+                continue;
+            }
+            if (i > inicio) {
+                xml.writeCharacters(valor.substring(inicio, i));
+            }
+            if (punto == '\r') {
+                xml.writeEntityRef("#13");
+            } else {
+                xml.writeEmptyElement("char");
+                xml.writeAttribute("code", "#" + Integer.toHexString(valor.charAt(i)));
+            }
+            i++;
+            inicio = i;
+        }
+        if (i > inicio) {
+            xml.writeCharacters(valor.substring(inicio, i));
+        }
+        xml.writeEndElement();
+    }
+
+    private static boolean esCaracterXml(int punto) {
+        return (0x20 <= punto && punto <= 0xD7FF) || punto == 0x0A || punto == 0x09 || punto == 0x0D
+                || (0xE000 <= punto && punto <= 0xFFFD) || (0x10000 <= punto && punto <= 0x10FFFF);
+    }
+
+    private void escribirEntero(int valor) throws XMLStreamException {
+        sangrar();
+        xml.writeStartElement("int");
+        xml.writeCharacters(Integer.toString(valor));
+        xml.writeEndElement();
+    }
+
+    private void escribirNulo() throws XMLStreamException {
+        vacio("null");
+    }
+
+    private void abrirPropiedad(String propiedad) throws XMLStreamException {
+        abrir("void");
+        xml.writeAttribute("property", propiedad);
+    }
+
+    private void abrir(String etiqueta) throws XMLStreamException {
+        sangrar();
+        xml.writeStartElement(etiqueta);
+        nivel++;
+        conHijos[nivel] = false;
+    }
+
+    private void vacio(String etiqueta) throws XMLStreamException {
+        sangrar();
+        xml.writeEmptyElement(etiqueta);
+    }
+
+    /**
+     * Cierra el último elemento abierto. Si no tiene elementos hijos, la
+     * etiqueta de cierre sigue a la de apertura sin salto de línea.
+     */
+    private void cerrar() throws XMLStreamException {
+        boolean hijos = conHijos[nivel];
+        nivel--;
+        if (hijos) {
+            sangrar();
+        }
+        xml.writeEndElement();
+    }
+
+    /**
+     * Escribe el salto de línea y la sangría del siguiente elemento, que pasa
+     * a ser hijo del elemento abierto en el nivel actual.
+     */
+    private void sangrar() throws XMLStreamException {
+        conHijos[nivel] = true;
+        xml.writeCharacters(SANGRIAS[nivel]);
+    }
+}
@@ -1,19 +1,40 @@
 package es.upm.dit.fprg.p3;
 
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
 public class EstudioDiagnostico {
     private TecnicaAdquisicion tecnica;
     private Medico prescriptor;
-    private Medico informador; 
+    private Medico informador;
     private Paciente paciente;
-    private int timestampPrescripcion; 
+    private int timestampPrescripcion;
+    private LocalDateTime fechaInforme;
+    private List<Muestra> muestras;
+    private Map<String, Integer> resultados;
+    private volatile ResultadosParciales resultadosParciales;
+
+    public EstudioDiagnostico() {
+        // Constructor sin argumentos para JavaBeans
+        this.muestras = new ListaConcurrente<>();
+        this.resultados = new HashMap<>();
+    }
 
     public EstudioDiagnostico(TecnicaAdquisicion tecnica, Medico prescriptor, Paciente paciente) {
         this.tecnica = tecnica;
         this.prescriptor = prescriptor;
         this.paciente = paciente;
         long epochSeconds = System.currentTimeMillis() / 1000;
-        this.timestampPrescripcion = (int) epochSeconds; 
+        this.timestampPrescripcion = (int) epochSeconds;
         this.informador = null;
+        this.muestras = new ListaConcurrente<>();
+        this.resultados = new HashMap<>();
     }
 
     public TecnicaAdquisicion getTecnica() {
@@ -56,10 +77,251 @@ public class EstudioDiagnostico {
         this.timestampPrescripcion = ts;
     }
 
+    public String getFechaInformeIso() {
+        if (fechaInforme == null) {
+            return null;
+        }
+        return fechaInforme.toString();
+    }
+
+    public void setFechaInformeIso(String fecha) {
+        if (fecha == null) {
+            this.fechaInforme = null;
+        } else {
+            this.fechaInforme = LocalDateTime.parse(fecha);
+        }
+    }
+
+    /**
+     * Devuelve la fecha del informe sin pasar por su representación ISO.
+     *
+     * @return fecha del informe, o {@code null} si no está informado
+     */
+    LocalDateTime getFechaInforme() {
+        return fechaInforme;
+    }
+
+    /**
+     * Establece la fecha del informe sin pasar por su representación ISO.
+     *
+     * @param fecha fecha del informe, o {@code null}
+     */
+    void setFechaInforme(LocalDateTime fecha) {
+        this.fechaInforme = fecha;
+    }
+
+    public List<Muestra> getMuestras() {
+        return muestras;
+    }
+
+    public void setMuestras(List<Muestra> muestras) {
+        this.muestras = muestras;
+    }
+
+    /**
+     * Añade una muestra al estudio.
+     * <p>
+     * Varios hilos pueden añadir muestras al mismo estudio a la vez, sin
+     * cerrojos, mientras la lista de muestras sea la que crean los
+     * constructores (no una establecida con {@link #setMuestras(List)}); su
+     * orden es el de llegada. Esa lista admite además el resto de
+     * modificaciones de {@link List}, pero estas no deben hacerse mientras
+     * otros hilos añaden muestras.
+     * </p>
+     *
+     * @param m muestra que añadir
+     * @throws Exception si la muestra es nula
+     */
+    public void addMuestra(Muestra m) throws Exception {
+        if (m == null) {
+            throw new Exception("La muestra no puede ser nula.");
+        }
+        muestras.add(m);
+    }
+
+    /**
+     * Devuelve las muestras añadidas hasta ahora en una lista que no cambia
+     * aunque se sigan añadiendo, sin copiarlas si el estudio usa su propia
+     * lista de muestras.
+     *
+     * @return muestras del estudio en este momento
+     */
+    List<Muestra> getInstantaneaMuestras() {
+        if (muestras instanceof ListaConcurrente) {
+            return ((ListaConcurrente<Muestra>) muestras).instantanea();
+        }
+        return muestras;
+    }
+
+    public Map<String, Integer> getResultados() {
+        return resultados;
+    }
+
+    public void setResultados(Map<String, Integer> resultados) {
+        this.resultados = resultados;
+    }
+
+    /**
+     * Devuelve los recuentos del último análisis del estudio, que se
+     * actualizan muestra a muestra mientras el análisis está en curso.
+     *
+     * @return recuentos parciales, o {@code null} si el estudio no se ha
+     *         analizado en esta ejecución
+     */
+    public ResultadosParciales getResultadosParciales() {
+        return resultadosParciales;
+    }
+
+    /**
+     * Asocia al estudio los recuentos del análisis que empieza.
+     *
+     * @param parciales recuentos parciales del análisis
+     */
+    void setResultadosParciales(ResultadosParciales parciales) {
+        this.resultadosParciales = parciales;
+    }
+
+    /**
+     * Registra el informe del estudio: el médico que informa, la fecha actual y
+     * una copia de los resultados del análisis.
+     *
+     * @param informador médico que firma el informe
+     * @param resultados píxeles positivos detectados por elemento microscópico
+     */
+    public void informar(Medico informador, Map<String, Integer> resultados) {
+        this.informador = informador;
+        this.fechaInforme = LocalDateTime.now();
+        this.resultados = new HashMap<>(resultados);
+    }
+
+    /**
+     * Guarda el estudio en XML con el formato de {@link java.beans.XMLEncoder},
+     * escrito en streaming por {@link EscritorEstudiosXml}. El flujo se cierra
+     * al terminar.
+     *
+     * @param out flujo de salida en el que escribir el XML
+     * @throws Exception si se produce un error de escritura
+     */
+    public void guardar(OutputStream out) throws Exception {
+        EventoGuardado evento = new EventoGuardado();
+        EventoGuardado.SalidaContada contada = null;
+        if (evento.isEnabled()) {
+            contada = new EventoGuardado.SalidaContada(out);
+            out = contada;
+        }
+        evento.begin();
+        try (EscritorEstudiosXml escritor = new EscritorEstudiosXml(out)) {
+            escritor.escribir(this);
+        }
+        evento.end();
+        if (contada != null && evento.shouldCommit()) {
+            evento.paciente = paciente == null ? null : paciente.getDni();
+            evento.muestras = muestras.size();
+            evento.bytesEscritos = contada.getBytes();
+            evento.commit();
+        }
+    }
+
+    /**
+     * Guarda el estudio como {@link #guardar(OutputStream)}, pero guardando
+     * antes los píxeles de sus muestras en un {@link AlmacenMuestras}. El XML
+     * solo contiene el identificador y la huella de cada muestra; las muestras
+     * con el mismo contenido que otras ya guardadas no se vuelven a escribir.
+     * Las muestras sin píxeles (solo con identificador) se guardan como hasta
+     * ahora. El estudio no se modifica.
+     *
+     * @param out flujo de salida en el que escribir el XML
+     * @param almacen almacén en el que guardar los píxeles de las muestras
+     * @throws Exception si el almacén es nulo o se produce un error de
+     *                   escritura
+     */
+    public void guardar(OutputStream out, AlmacenMuestras almacen) throws Exception {
+        if (almacen == null) {
+            throw new Exception("El almacén de muestras no puede ser nulo.");
+        }
+        EstudioDiagnostico referencias = new EstudioDiagnostico();
+        referencias.tecnica = tecnica;
+        referencias.prescriptor = prescriptor;
+        referencias.informador = informador;
+        referencias.paciente = paciente;
+        referencias.timestampPrescripcion = timestampPrescripcion;
+        referencias.fechaInforme = fechaInforme;
+        referencias.resultados = resultados;
+        if (muestras == null) {
+            referencias.muestras = null;
+        } else {
+            // Se conserva la identidad de las muestras repetidas en el estudio
+            Map<Muestra, Muestra> almacenadas = new IdentityHashMap<>();
+            for (Muestra muestra : muestras) {
+                Muestra referencia = muestra;
+                if (muestra instanceof MuestraAlmacenada
+                        ? ((MuestraAlmacenada) muestra).getAlmacen() != null
+                        : muestra != null && muestra.getPixeles() != null) {
+                    referencia = almacenadas.get(muestra);
+                    if (referencia == null) {
+                        referencia = almacen.referencia(muestra.getId(), almacen.guardar(muestra));
+                        almacenadas.put(muestra, referencia);
+                    }
+                }
+                referencias.muestras.add(referencia);
+            }
+        }
+        referencias.guardar(out);
+    }
+
+    /**
+     * Carga un estudio guardado con {@link #guardar(OutputStream)} o con
+     * {@link java.beans.XMLEncoder}. Si el documento contiene varios estudios,
+     * devuelve el primero. El flujo se cierra al terminar.
+     *
+     * @param in flujo de entrada con el XML del estudio
+     * @return estudio leído; sus muestras solo conservan el identificador
+     * @throws Exception si el documento no contiene ningún estudio o no tiene
+     *                   el formato esperado
+     */
+    public static EstudioDiagnostico cargar(InputStream in) throws Exception {
+        try (LectorEstudiosXml lector = new LectorEstudiosXml(in)) {
+            EstudioDiagnostico estudio = lector.leer();
+            if (estudio == null) {
+                throw new Exception("El documento no contiene ningún estudio.");
+            }
+            return estudio;
+        }
+    }
+
+    /**
+     * Carga un estudio guardado con
+     * {@link #guardar(OutputStream, AlmacenMuestras)}. Sus muestras quedan
+     * asociadas al almacén y leen de él sus píxeles la primera vez que se
+     * necesitan.
+     *
+     * @param in flujo de entrada con el XML del estudio
+     * @param almacen almacén que contiene los píxeles de las muestras
+     * @return estudio leído
+     * @throws Exception si el almacén es nulo, el documento no contiene
+     *                   ningún estudio o no tiene el formato esperado
+     */
+    public static EstudioDiagnostico cargar(InputStream in, AlmacenMuestras almacen) throws Exception {
+        if (almacen == null) {
+            throw new Exception("El almacén de muestras no puede ser nulo.");
+        }
+        EstudioDiagnostico estudio = cargar(in);
+        if (estudio.muestras != null) {
+            for (Muestra muestra : estudio.muestras) {
+                if (muestra instanceof MuestraAlmacenada) {
+                    ((MuestraAlmacenada) muestra).setAlmacen(almacen);
+                }
+            }
+        }
+        return estudio;
+    }
+
 	@Override
 	public String toString() {
 		return "EstudioDiagnostico [tecnica=" + tecnica + ", prescriptor=" + prescriptor + ", informador=" + String.valueOf(informador)
-				+ ", paciente=" + paciente + ", timestampPrescripcion=" + timestampPrescripcion + "]";
+				+ ", paciente=" + paciente + ", timestampPrescripcion=" + timestampPrescripcion
+				+ ", fechaInforme=" + fechaInforme + ", muestras=" + muestras.size()
+				+ ", resultados=" + resultados + "]";
 	}
 
-}
\ No newline at end of file
+}
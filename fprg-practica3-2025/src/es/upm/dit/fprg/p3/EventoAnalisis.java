@@ -0,0 +1,59 @@
+package es.upm.dit.fprg.p3;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Evento de Java Flight Recorder emitido por cada estudio que analiza
+ * {@link AnalizadorDiagnostico}.
+ * <p>
+ * Permite relacionar las pausas del recolector de basura y los métodos más
+ * costosos con el estudio que se estaba analizando. Se activa con el perfil
+ * {@code fprg-p3.jfc} que acompaña al proyecto.
+ * </p>
+ */
+@Name("es.upm.dit.fprg.p3.Analisis")
+@Label("Análisis de estudio")
+@Description("Aplicación de todos los reconocedores a las muestras de un estudio")
+@Category({ "FPRG", "Práctica 3" })
+final class EventoAnalisis extends jdk.jfr.Event {
+
+    @Label("Paciente")
+    @Description("DNI del paciente del estudio (vacío en el análisis en streaming)")
+    String paciente;
+
+    @Label("Técnica")
+    String tecnica;
+
+    @Label("Prescripción")
+    @Description("Marca de tiempo de la prescripción del estudio")
+    int timestampPrescripcion;
+
+    @Label("Muestras")
+    int muestras;
+
+    @Label("Reconocedores")
+    int reconocedores;
+
+    @Label("Modo")
+    @Description("secuencial, paralelo o streaming")
+    String modo;
+
+    @Label("Completo")
+    @Description("Falso si algún elemento quedó incompleto por agotarse el plazo")
+    boolean completo;
+
+    /**
+     * Rellena los datos que identifican el estudio.
+     *
+     * @param estudio estudio analizado
+     */
+    void describir(EstudioDiagnostico estudio) {
+        paciente = estudio.getPaciente() == null ? null : estudio.getPaciente().getDni();
+        tecnica = estudio.getTecnica() == null ? null : estudio.getTecnica().name();
+        timestampPrescripcion = estudio.getTimestampPrescripcion();
+        muestras = estudio.getMuestras().size();
+    }
+}
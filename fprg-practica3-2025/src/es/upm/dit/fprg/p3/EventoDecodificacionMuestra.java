@@ -0,0 +1,81 @@
+package es.upm.dit.fprg.p3;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Evento de Java Flight Recorder emitido al decodificar la imagen de una
+ * {@link Muestra} en {@link Muestra#Muestra(InputStream, String)}.
+ * <p>
+ * Se activa con el perfil {@code fprg-p3.jfc} que acompaña al proyecto.
+ * </p>
+ */
+@Name("es.upm.dit.fprg.p3.DecodificacionMuestra")
+@Label("Decodificación de muestra")
+@Description("Lectura y conversión a niveles 0-15 de la imagen de una muestra")
+@Category({ "FPRG", "Práctica 3" })
+@StackTrace(false)
+final class EventoDecodificacionMuestra extends jdk.jfr.Event {
+
+    @Label("Muestra")
+    String muestra;
+
+    @Label("Bytes leídos")
+    @DataAmount
+    long bytesLeidos;
+
+    @Label("Alto")
+    int alto;
+
+    @Label("Ancho")
+    int ancho;
+
+    /**
+     * Flujo que cuenta los bytes leídos del flujo original. Solo se utiliza
+     * si el evento está activado.
+     */
+    static final class EntradaContada extends FilterInputStream {
+        private long bytes;
+
+        EntradaContada(InputStream in) {
+            super(in);
+        }
+
+        long getBytes() {
+            return bytes;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                bytes++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                bytes += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long saltados = super.skip(n);
+            bytes += saltados;
+            return saltados;
+        }
+    }
+}
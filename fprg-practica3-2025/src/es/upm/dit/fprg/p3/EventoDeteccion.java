@@ -0,0 +1,74 @@
+package es.upm.dit.fprg.p3;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Evento de Java Flight Recorder emitido por cada detección: cada llamada a
+ * {@link ReconocedorImagen#detectarMascara(Muestra)} de los reconocedores del
+ * proyecto y cada par (muestra, reconocedor) que cuenta el
+ * {@link AnalizadorDiagnostico}.
+ * <p>
+ * Se activa con el perfil {@code fprg-p3.jfc} que acompaña al proyecto.
+ * </p>
+ */
+@Name("es.upm.dit.fprg.p3.Deteccion")
+@Label("Detección")
+@Description("Aplicación de un reconocedor sobre una muestra")
+@Category({ "FPRG", "Práctica 3" })
+@StackTrace(false)
+final class EventoDeteccion extends jdk.jfr.Event {
+
+    @Label("Operación")
+    @Description("detectar si se construyó la máscara, contarDetecciones si se contó desde el analizador")
+    String operacion;
+
+    @Label("Elemento")
+    String elemento;
+
+    @Label("Motor")
+    @Description("Clase del reconocedor que realizó la detección y modo de ejecución")
+    String motor;
+
+    @Label("Muestra")
+    String muestra;
+
+    @Label("Ventanas probadas")
+    @Description("Posiciones de la ventana deslizante evaluadas (0 si el reconocedor no usa ventanas)")
+    long ventanas;
+
+    @Label("Píxeles positivos")
+    int positivos;
+
+    @Label("Completa")
+    @Description("Falso si la detección se interrumpió al agotarse su plazo")
+    boolean completa;
+
+    /**
+     * Indica si el evento se está registrando, para tomar medidas
+     * adicionales solo en ese caso.
+     *
+     * @return {@code true} si hay una grabación con el evento activado
+     */
+    static boolean estaActivo() {
+        return new EventoDeteccion().isEnabled();
+    }
+
+    /**
+     * Describe el motor de un reconocedor: su clase y, para
+     * {@link ReconocedorLineal}, si detecta en paralelo.
+     *
+     * @param reconocedor reconocedor que realiza la detección
+     * @return descripción del motor
+     */
+    static String motor(ReconocedorImagen reconocedor) {
+        String nombre = reconocedor.getClass().getSimpleName();
+        if (reconocedor instanceof ReconocedorLineal) {
+            return nombre + (((ReconocedorLineal) reconocedor).esParalelo() ? " (paralelo)" : " (secuencial)");
+        }
+        return nombre;
+    }
+}
@@ -0,0 +1,63 @@
+package es.upm.dit.fprg.p3;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Evento de Java Flight Recorder emitido al guardar un
+ * {@link EstudioDiagnostico} con {@link EstudioDiagnostico#guardar(OutputStream)}.
+ * <p>
+ * Se activa con el perfil {@code fprg-p3.jfc} que acompaña al proyecto.
+ * </p>
+ */
+@Name("es.upm.dit.fprg.p3.Guardado")
+@Label("Guardado de estudio")
+@Description("Serialización de un estudio diagnóstico")
+@Category({ "FPRG", "Práctica 3" })
+final class EventoGuardado extends jdk.jfr.Event {
+
+    @Label("Paciente")
+    String paciente;
+
+    @Label("Muestras")
+    int muestras;
+
+    @Label("Bytes escritos")
+    @DataAmount
+    long bytesEscritos;
+
+    /**
+     * Flujo que cuenta los bytes escritos en el flujo original. Solo se
+     * utiliza si el evento está activado.
+     */
+    static final class SalidaContada extends FilterOutputStream {
+        private long bytes;
+
+        SalidaContada(OutputStream out) {
+            super(out);
+        }
+
+        long getBytes() {
+            return bytes;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            bytes++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            bytes += len;
+        }
+    }
+}
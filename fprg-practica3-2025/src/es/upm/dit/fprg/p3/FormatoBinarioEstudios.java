@@ -0,0 +1,673 @@
+package es.upm.dit.fprg.p3;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Constantes y utilidades del formato binario de archivo de estudios que
+ * escribe {@link EscritorEstudiosBinario} y lee {@link LectorEstudiosBinario}.
+ * <p>
+ * <strong>Estructura.</strong> El archivo empieza por el número mágico
+ * {@link #MAGICO} (4 bytes) y la versión del formato (varint). Le sigue una
+ * secuencia de registros, cada uno con su tipo y su longitud en bytes
+ * (varints) y su contenido:
+ * </p>
+ * <ul>
+ *   <li>{@link #REGISTRO_CADENA}: añade una cadena UTF-8 a la tabla de
+ *       cadenas. Los campos que se repiten mucho (nombres y centros de los
+ *       médicos, nombres y apellidos de los pacientes, nombres de los
+ *       elementos) guardan el índice de la cadena en la tabla en lugar de la
+ *       cadena</li>
+ *   <li>{@link #REGISTRO_REINICIO_TABLA}: vacía la tabla, de modo que la
+ *       memoria de escritores y lectores está acotada por
+ *       {@link #CAPACIDAD_TABLA}</li>
+ *   <li>{@link #REGISTRO_ESTUDIO}: un estudio, codificado como una secuencia
+ *       de campos</li>
+ * </ul>
+ * <p>
+ * Cada campo empieza por una etiqueta varint {@code (número << 3) | tipo},
+ * donde el tipo es {@link #CABLE_VARINT} (enteros, ordinales de enumerados e
+ * índices de la tabla; los enteros con signo en zigzag) o
+ * {@link #CABLE_LONGITUD} (cadenas no repetidas y objetos anidados,
+ * precedidos de su longitud). Los campos nulos se omiten.
+ * </p>
+ * <p>
+ * <strong>Compatibilidad.</strong> Las reglas para evolucionar el formato son:
+ * </p>
+ * <ol>
+ *   <li>Los lectores ignoran los campos y los tipos de registro que no
+ *       conocen, saltándolos por su tipo de cable o su longitud. Por eso se
+ *       pueden añadir campos y registros nuevos sin cambiar la versión, y los
+ *       lectores antiguos siguen leyendo los archivos nuevos</li>
+ *   <li>Un número de campo no se reutiliza nunca ni cambia de tipo de cable;
+ *       los campos retirados quedan reservados</li>
+ *   <li>Los campos que faltan toman su valor por defecto, de modo que los
+ *       lectores nuevos leen los archivos antiguos</li>
+ *   <li>Los enumerados solo crecen añadiendo constantes al final. Un ordinal
+ *       desconocido (escrito por una versión posterior) es un error de
+ *       lectura</li>
+ *   <li>Un cambio incompatible incrementa {@link #VERSION}. Los lectores
+ *       leen todas las versiones anteriores y rechazan las posteriores</li>
+ * </ol>
+ * <p>
+ * <strong>Decodificación parcial.</strong> Al leer solo la cabecera de un
+ * estudio, las muestras y los resultados se saltan sin decodificarlos, pero
+ * sus bytes se copian: los lectores reutilizan el contenido del registro
+ * para el siguiente, y las colecciones diferidas los necesitan después. La
+ * copia abarca desde el primer campo de muestra o resultado hasta el final
+ * del último (el escritor los pone al final del estudio), así que su coste
+ * por estudio es proporcional al tamaño de esos campos y no al del registro.
+ * </p>
+ */
+final class FormatoBinarioEstudios {
+
+    /** Número mágico del archivo ("FPRB"). */
+    static final int MAGICO = 0x46505242;
+
+    /** Versión actual del formato. */
+    static final int VERSION = 1;
+
+    /** Número máximo de cadenas en la tabla antes de reiniciarla. */
+    static final int CAPACIDAD_TABLA = 1 << 16;
+
+    static final int REGISTRO_CADENA = 1;
+    static final int REGISTRO_ESTUDIO = 2;
+    static final int REGISTRO_REINICIO_TABLA = 3;
+
+    static final int CABLE_VARINT = 0;
+    static final int CABLE_LONGITUD = 2;
+
+    // Campos del estudio
+    static final int ESTUDIO_TECNICA = 1;
+    static final int ESTUDIO_PRESCRIPTOR = 2;
+    static final int ESTUDIO_INFORMADOR = 3;
+    static final int ESTUDIO_PACIENTE = 4;
+    static final int ESTUDIO_TIMESTAMP = 5;
+    static final int ESTUDIO_FECHA_SEGUNDOS = 6;
+    static final int ESTUDIO_FECHA_NANOS = 7;
+    static final int ESTUDIO_MUESTRA = 8;
+    static final int ESTUDIO_RESULTADO = 9;
+
+    // Campos del médico
+    static final int MEDICO_COLEGIADO = 1;
+    static final int MEDICO_NOMBRE = 2;
+    static final int MEDICO_CENTRO = 3;
+    static final int MEDICO_ESPECIALIDAD = 4;
+
+    // Campos del paciente
+    static final int PACIENTE_DNI = 1;
+    static final int PACIENTE_NOMBRE = 2;
+    static final int PACIENTE_PRIMER_APELLIDO = 3;
+    static final int PACIENTE_SEGUNDO_APELLIDO = 4;
+    static final int PACIENTE_ANIO = 5;
+
+    // Campos de la referencia a una muestra
+    static final int MUESTRA_ID = 1;
+    static final int MUESTRA_HASH = 2;
+
+    // Campos de un resultado
+    static final int RESULTADO_ELEMENTO = 1;
+    static final int RESULTADO_POSITIVOS = 2;
+
+    // values() crea un array nuevo en cada llamada
+    private static final TecnicaAdquisicion[] TECNICAS = TecnicaAdquisicion.values();
+    private static final EspecialidadMedica[] ESPECIALIDADES = EspecialidadMedica.values();
+
+    private FormatoBinarioEstudios() {
+    }
+
+    /**
+     * Codifica los campos de un estudio. Las cadenas de la tabla que aún no
+     * están en ella se añaden a {@code tabla} y a {@code nuevas}, en orden, y
+     * el escritor debe escribirlas antes que el estudio.
+     *
+     * @param e estudio a codificar
+     * @param destino búfer en el que se escriben los campos del estudio
+     * @param auxiliar búfer para los objetos anidados
+     * @param tabla índices de las cadenas de la tabla vigente
+     * @param nuevas lista en la que se añaden las cadenas nuevas
+     * @throws Exception si el estudio contiene una muestra nula
+     */
+    static void codificar(EstudioDiagnostico e, Bufer destino, Bufer auxiliar, Map<String, Integer> tabla,
+            List<String> nuevas) throws Exception {
+        if (e.getTecnica() != null) {
+            destino.campoVarint(ESTUDIO_TECNICA, e.getTecnica().ordinal());
+        }
+        codificarMedico(e.getPrescriptor(), ESTUDIO_PRESCRIPTOR, destino, auxiliar, tabla, nuevas);
+        codificarMedico(e.getInformador(), ESTUDIO_INFORMADOR, destino, auxiliar, tabla, nuevas);
+        Paciente paciente = e.getPaciente();
+        if (paciente != null) {
+            auxiliar.vaciar();
+            auxiliar.campoCadena(PACIENTE_DNI, paciente.getDni());
+            auxiliar.campoTabla(PACIENTE_NOMBRE, paciente.getNombre(), tabla, nuevas);
+            auxiliar.campoTabla(PACIENTE_PRIMER_APELLIDO, paciente.getPrimerApellido(), tabla, nuevas);
+            auxiliar.campoTabla(PACIENTE_SEGUNDO_APELLIDO, paciente.getSegundoApellido(), tabla, nuevas);
+            if (paciente.getAnioNacimiento() != 0) {
+                auxiliar.campoVarint(PACIENTE_ANIO, zigzag(paciente.getAnioNacimiento()));
+            }
+            destino.campoAnidado(ESTUDIO_PACIENTE, auxiliar);
+        }
+        if (e.getTimestampPrescripcion() != 0) {
+            destino.campoVarint(ESTUDIO_TIMESTAMP, zigzag(e.getTimestampPrescripcion()));
+        }
+        if (e.getFechaInformeIso() != null) {
+            LocalDateTime fecha = LocalDateTime.parse(e.getFechaInformeIso());
+            destino.campoVarint(ESTUDIO_FECHA_SEGUNDOS, zigzag(fecha.toEpochSecond(ZoneOffset.UTC)));
+            if (fecha.getNano() != 0) {
+                destino.campoVarint(ESTUDIO_FECHA_NANOS, fecha.getNano());
+            }
+        }
+        if (e.getMuestras() != null) {
+            for (Muestra muestra : e.getMuestras()) {
+                if (muestra == null) {
+                    throw new Exception("El estudio contiene una muestra nula.");
+                }
+                auxiliar.vaciar();
+                auxiliar.campoCadena(MUESTRA_ID, muestra.getId());
+                if (muestra instanceof MuestraAlmacenada) {
+                    auxiliar.campoCadena(MUESTRA_HASH, ((MuestraAlmacenada) muestra).getHash());
+                }
+                destino.campoAnidado(ESTUDIO_MUESTRA, auxiliar);
+            }
+        }
+        if (e.getResultados() != null) {
+            for (Map.Entry<String, Integer> entrada : e.getResultados().entrySet()) {
+                auxiliar.vaciar();
+                auxiliar.campoTabla(RESULTADO_ELEMENTO, entrada.getKey(), tabla, nuevas);
+                if (entrada.getValue() != null) {
+                    auxiliar.campoVarint(RESULTADO_POSITIVOS, zigzag(entrada.getValue()));
+                }
+                destino.campoAnidado(ESTUDIO_RESULTADO, auxiliar);
+            }
+        }
+    }
+
+    private static void codificarMedico(Medico medico, int campo, Bufer destino, Bufer auxiliar,
+            Map<String, Integer> tabla, List<String> nuevas) {
+        if (medico == null) {
+            return;
+        }
+        auxiliar.vaciar();
+        auxiliar.campoTabla(MEDICO_COLEGIADO, medico.getColegiado(), tabla, nuevas);
+        auxiliar.campoTabla(MEDICO_NOMBRE, medico.getNombreCompleto(), tabla, nuevas);
+        auxiliar.campoTabla(MEDICO_CENTRO, medico.getCentroSanitario(), tabla, nuevas);
+        if (medico.getEspecialidad() != null) {
+            auxiliar.campoVarint(MEDICO_ESPECIALIDAD, medico.getEspecialidad().ordinal());
+        }
+        destino.campoAnidado(campo, auxiliar);
+    }
+
+    /**
+     * Decodifica los campos de un estudio, ignorando los desconocidos.
+     *
+     * @param cursor contenido del registro del estudio
+     * @param tabla cadenas de la tabla vigente
+     * @return estudio decodificado
+     * @throws Exception si el registro está truncado, referencia una cadena
+     *                   que no está en la tabla o contiene un ordinal
+     *                   desconocido
+     */
+    static EstudioDiagnostico decodificar(Cursor cursor, List<String> tabla) throws Exception {
+        return decodificar(cursor, tabla, false);
+    }
+
+    /**
+     * Decodifica los campos de un estudio. Si {@code parcial}, solo decodifica
+     * la cabecera (técnica, médicos, paciente y fechas): las muestras y los
+     * resultados se decodifican la primera vez que se accede a ellos, a partir
+     * de una copia del tramo del registro que ocupan. En ese caso, las cadenas
+     * de {@code tabla} que ya contiene no deben cambiar.
+     *
+     * @param cursor contenido del registro del estudio
+     * @param tabla cadenas de la tabla vigente
+     * @param parcial si se difiere la decodificación de muestras y resultados
+     * @return estudio decodificado
+     * @throws Exception si el registro está truncado, referencia una cadena
+     *                   que no está en la tabla o contiene un ordinal
+     *                   desconocido
+     */
+    static EstudioDiagnostico decodificar(Cursor cursor, List<String> tabla, boolean parcial) throws Exception {
+        return decodificar(cursor, tabla, parcial, null);
+    }
+
+    /**
+     * Decodifica los campos de un estudio como
+     * {@link #decodificar(Cursor, List, boolean)}, sustituyendo sus médicos y
+     * su paciente por los de {@code registro} si no es nulo.
+     *
+     * @param cursor contenido del registro del estudio
+     * @param tabla cadenas de la tabla vigente
+     * @param parcial si se difiere la decodificación de muestras y resultados
+     * @param registro registro de médicos y pacientes compartidos, o
+     *                 {@code null}
+     * @return estudio decodificado
+     * @throws Exception si el registro está truncado, referencia una cadena
+     *                   que no está en la tabla o contiene un ordinal
+     *                   desconocido
+     */
+    static EstudioDiagnostico decodificar(Cursor cursor, List<String> tabla, boolean parcial,
+            RegistroPersonas registro) throws Exception {
+        EstudioDiagnostico e = new EstudioDiagnostico();
+        // Tramo del registro que ocupan los campos diferidos
+        int desdeDiferidos = -1;
+        int hastaDiferidos = -1;
+        boolean muestras = false;
+        boolean resultados = false;
+        long fechaSegundos = 0;
+        int fechaNanos = 0;
+        boolean conFecha = false;
+        while (cursor.quedan()) {
+            int campo = cursor.getPosicion();
+            int etiqueta = cursor.entero();
+            switch (etiqueta) {
+            case (ESTUDIO_TECNICA << 3) | CABLE_VARINT:
+                e.setTecnica(ordinal(TECNICAS, cursor.entero(), "técnica"));
+                break;
+            case (ESTUDIO_PRESCRIPTOR << 3) | CABLE_LONGITUD:
+                e.setPrescriptor(decodificarMedico(cursor.anidado(), tabla, registro));
+                break;
+            case (ESTUDIO_INFORMADOR << 3) | CABLE_LONGITUD:
+                e.setInformador(decodificarMedico(cursor.anidado(), tabla, registro));
+                break;
+            case (ESTUDIO_PACIENTE << 3) | CABLE_LONGITUD:
+                e.setPaciente(decodificarPaciente(cursor.anidado(), tabla, registro));
+                break;
+            case (ESTUDIO_TIMESTAMP << 3) | CABLE_VARINT:
+                e.setTimestampPrescripcion((int) deszigzag(cursor.varint()));
+                break;
+            case (ESTUDIO_FECHA_SEGUNDOS << 3) | CABLE_VARINT:
+                fechaSegundos = deszigzag(cursor.varint());
+                conFecha = true;
+                break;
+            case (ESTUDIO_FECHA_NANOS << 3) | CABLE_VARINT:
+                fechaNanos = cursor.entero();
+                break;
+            case (ESTUDIO_MUESTRA << 3) | CABLE_LONGITUD:
+                if (parcial) {
+                    desdeDiferidos = desdeDiferidos < 0 ? campo : desdeDiferidos;
+                    cursor.saltar(CABLE_LONGITUD);
+                    hastaDiferidos = cursor.getPosicion();
+                    muestras = true;
+                } else {
+                    e.getMuestras().add(decodificarMuestra(cursor.anidado()));
+                }
+                break;
+            case (ESTUDIO_RESULTADO << 3) | CABLE_LONGITUD:
+                if (parcial) {
+                    desdeDiferidos = desdeDiferidos < 0 ? campo : desdeDiferidos;
+                    cursor.saltar(CABLE_LONGITUD);
+                    hastaDiferidos = cursor.getPosicion();
+                    resultados = true;
+                } else {
+                    decodificarResultado(cursor.anidado(), tabla, e.getResultados());
+                }
+                break;
+            default:
+                cursor.saltar(etiqueta & 7);
+                break;
+            }
+        }
+        if (conFecha) {
+            e.setFechaInforme(LocalDateTime.ofEpochSecond(fechaSegundos, fechaNanos, ZoneOffset.UTC));
+        }
+        if (muestras || resultados) {
+            // El contenido del registro puede reutilizarse para el siguiente:
+            // se copia solo el tramo de las muestras y los resultados
+            byte[] copia = cursor.copiar(desdeDiferidos, hastaDiferidos);
+            if (muestras) {
+                e.setMuestras(new ColeccionesDiferidas.Lista<>(() -> decodificarMuestras(copia)));
+            }
+            if (resultados) {
+                e.setResultados(new ColeccionesDiferidas.Mapa<>(() -> decodificarResultados(copia, tabla)));
+            }
+        }
+        return e;
+    }
+
+    /**
+     * Decodifica solo las muestras del contenido de un registro de estudio.
+     */
+    private static List<Muestra> decodificarMuestras(byte[] estudio) throws Exception {
+        Cursor cursor = new Cursor(estudio, 0, estudio.length);
+        List<Muestra> muestras = new ArrayList<>();
+        while (cursor.quedan()) {
+            int etiqueta = cursor.entero();
+            if (etiqueta == ((ESTUDIO_MUESTRA << 3) | CABLE_LONGITUD)) {
+                muestras.add(decodificarMuestra(cursor.anidado()));
+            } else {
+                cursor.saltar(etiqueta & 7);
+            }
+        }
+        return muestras;
+    }
+
+    /**
+     * Decodifica solo los resultados del contenido de un registro de estudio.
+     */
+    private static Map<String, Integer> decodificarResultados(byte[] estudio, List<String> tabla)
+            throws Exception {
+        Cursor cursor = new Cursor(estudio, 0, estudio.length);
+        Map<String, Integer> resultados = new HashMap<>();
+        while (cursor.quedan()) {
+            int etiqueta = cursor.entero();
+            if (etiqueta == ((ESTUDIO_RESULTADO << 3) | CABLE_LONGITUD)) {
+                decodificarResultado(cursor.anidado(), tabla, resultados);
+            } else {
+                cursor.saltar(etiqueta & 7);
+            }
+        }
+        return resultados;
+    }
+
+    private static Medico decodificarMedico(Cursor cursor, List<String> tabla, RegistroPersonas registro)
+            throws Exception {
+        Medico medico = new Medico();
+        while (cursor.quedan()) {
+            int etiqueta = cursor.entero();
+            switch (etiqueta) {
+            case (MEDICO_COLEGIADO << 3) | CABLE_VARINT:
+                medico.setColegiado(cadenaTabla(cursor, tabla));
+                break;
+            case (MEDICO_NOMBRE << 3) | CABLE_VARINT:
+                medico.setNombreCompleto(cadenaTabla(cursor, tabla));
+                break;
+            case (MEDICO_CENTRO << 3) | CABLE_VARINT:
+                medico.setCentroSanitario(cadenaTabla(cursor, tabla));
+                break;
+            case (MEDICO_ESPECIALIDAD << 3) | CABLE_VARINT:
+                medico.setEspecialidad(ordinal(ESPECIALIDADES, cursor.entero(), "especialidad"));
+                break;
+            default:
+                cursor.saltar(etiqueta & 7);
+                break;
+            }
+        }
+        return registro == null ? medico : registro.medico(medico);
+    }
+
+    private static Paciente decodificarPaciente(Cursor cursor, List<String> tabla, RegistroPersonas registro)
+            throws Exception {
+        Paciente paciente = new Paciente();
+        while (cursor.quedan()) {
+            int etiqueta = cursor.entero();
+            switch (etiqueta) {
+            case (PACIENTE_DNI << 3) | CABLE_LONGITUD:
+                paciente.setDni(cursor.cadena());
+                break;
+            case (PACIENTE_NOMBRE << 3) | CABLE_VARINT:
+                paciente.setNombre(cadenaTabla(cursor, tabla));
+                break;
+            case (PACIENTE_PRIMER_APELLIDO << 3) | CABLE_VARINT:
+                paciente.setPrimerApellido(cadenaTabla(cursor, tabla));
+                break;
+            case (PACIENTE_SEGUNDO_APELLIDO << 3) | CABLE_VARINT:
+                paciente.setSegundoApellido(cadenaTabla(cursor, tabla));
+                break;
+            case (PACIENTE_ANIO << 3) | CABLE_VARINT:
+                paciente.setAnioNacimiento((int) deszigzag(cursor.varint()));
+                break;
+            default:
+                cursor.saltar(etiqueta & 7);
+                break;
+            }
+        }
+        return registro == null ? paciente : registro.paciente(paciente);
+    }
+
+    private static Muestra decodificarMuestra(Cursor cursor) throws Exception {
+        String id = null;
+        String hash = null;
+        while (cursor.quedan()) {
+            int etiqueta = cursor.entero();
+            switch (etiqueta) {
+            case (MUESTRA_ID << 3) | CABLE_LONGITUD:
+                id = cursor.cadena();
+                break;
+            case (MUESTRA_HASH << 3) | CABLE_LONGITUD:
+                hash = cursor.cadena();
+                break;
+            default:
+                cursor.saltar(etiqueta & 7);
+                break;
+            }
+        }
+        Muestra muestra;
+        if (hash == null) {
+            muestra = new Muestra();
+        } else {
+            muestra = new MuestraAlmacenada();
+            ((MuestraAlmacenada) muestra).setHash(hash);
+        }
+        muestra.setId(id);
+        return muestra;
+    }
+
+    private static void decodificarResultado(Cursor cursor, List<String> tabla, Map<String, Integer> resultados)
+            throws Exception {
+        String elemento = null;
+        Integer positivos = null;
+        while (cursor.quedan()) {
+            int etiqueta = cursor.entero();
+            switch (etiqueta) {
+            case (RESULTADO_ELEMENTO << 3) | CABLE_VARINT:
+                elemento = cadenaTabla(cursor, tabla);
+                break;
+            case (RESULTADO_POSITIVOS << 3) | CABLE_VARINT:
+                positivos = (int) deszigzag(cursor.varint());
+                break;
+            default:
+                cursor.saltar(etiqueta & 7);
+                break;
+            }
+        }
+        resultados.put(elemento, positivos);
+    }
+
+    private static String cadenaTabla(Cursor cursor, List<String> tabla) throws Exception {
+        int indice = cursor.entero();
+        if (indice >= tabla.size()) {
+            throw new Exception("Referencia a una cadena inexistente: " + indice);
+        }
+        return tabla.get(indice);
+    }
+
+    private static <E extends Enum<E>> E ordinal(E[] valores, int ordinal, String tipo) throws Exception {
+        if (ordinal >= valores.length) {
+            throw new Exception("Valor de " + tipo + " desconocido (" + ordinal
+                    + "): el archivo procede de una versión posterior.");
+        }
+        return valores[ordinal];
+    }
+
+    static int etiqueta(int campo, int cable) {
+        return (campo << 3) | cable;
+    }
+
+    static long zigzag(long valor) {
+        return (valor << 1) ^ (valor >> 63);
+    }
+
+    static long deszigzag(long valor) {
+        return (valor >>> 1) ^ -(valor & 1);
+    }
+
+    /**
+     * Búfer de bytes ampliable en el que se codifica un registro o un objeto
+     * anidado antes de escribirlo, para conocer su longitud.
+     */
+    static final class Bufer {
+        private byte[] datos = new byte[256];
+        private int tam;
+
+        void vaciar() {
+            tam = 0;
+        }
+
+        int getTam() {
+            return tam;
+        }
+
+        byte[] getDatos() {
+            return datos;
+        }
+
+        void varint(long valor) {
+            asegurar(10);
+            while ((valor & ~0x7FL) != 0) {
+                datos[tam++] = (byte) ((valor & 0x7F) | 0x80);
+                valor >>>= 7;
+            }
+            datos[tam++] = (byte) valor;
+        }
+
+        void campoVarint(int campo, long valor) {
+            varint(etiqueta(campo, CABLE_VARINT));
+            varint(valor);
+        }
+
+        void campoCadena(int campo, String valor) {
+            if (valor != null) {
+                byte[] utf8 = valor.getBytes(StandardCharsets.UTF_8);
+                varint(etiqueta(campo, CABLE_LONGITUD));
+                varint(utf8.length);
+                bytes(utf8, 0, utf8.length);
+            }
+        }
+
+        /**
+         * Codifica una cadena por su índice en la tabla, añadiéndola a la
+         * tabla y a {@code nuevas} si aún no estaba.
+         */
+        void campoTabla(int campo, String valor, Map<String, Integer> tabla, List<String> nuevas) {
+            if (valor == null) {
+                return;
+            }
+            Integer indice = tabla.get(valor);
+            if (indice == null) {
+                indice = tabla.size();
+                tabla.put(valor, indice);
+                nuevas.add(valor);
+            }
+            campoVarint(campo, indice);
+        }
+
+        void campoAnidado(int campo, Bufer anidado) {
+            varint(etiqueta(campo, CABLE_LONGITUD));
+            varint(anidado.tam);
+            bytes(anidado.datos, 0, anidado.tam);
+        }
+
+        void bytes(byte[] origen, int desde, int longitud) {
+            asegurar(longitud);
+            System.arraycopy(origen, desde, datos, tam, longitud);
+            tam += longitud;
+        }
+
+        private void asegurar(int adicionales) {
+            if (tam + adicionales > datos.length) {
+                datos = Arrays.copyOf(datos, Math.max(datos.length * 2, tam + adicionales));
+            }
+        }
+    }
+
+    /**
+     * Posición de lectura sobre un tramo de un array de bytes: el contenido de
+     * un registro o de un objeto anidado.
+     */
+    static final class Cursor {
+        private final byte[] datos;
+        private int pos;
+        private final int fin;
+
+        Cursor(byte[] datos, int desde, int fin) {
+            this.datos = datos;
+            this.pos = desde;
+            this.fin = fin;
+        }
+
+        boolean quedan() {
+            return pos < fin;
+        }
+
+        int getPosicion() {
+            return pos;
+        }
+
+        /**
+         * Devuelve una copia de los bytes entre las posiciones indicadas.
+         */
+        byte[] copiar(int desde, int hasta) {
+            return Arrays.copyOfRange(datos, desde, hasta);
+        }
+
+        long varint() throws Exception {
+            long valor = 0;
+            for (int desplazamiento = 0; desplazamiento < 64; desplazamiento += 7) {
+                if (pos >= fin) {
+                    throw new Exception("Registro truncado.");
+                }
+                byte b = datos[pos++];
+                valor |= (long) (b & 0x7F) << desplazamiento;
+                if (b >= 0) {
+                    return valor;
+                }
+            }
+            throw new Exception("Varint demasiado largo.");
+        }
+
+        int entero() throws Exception {
+            long valor = varint();
+            if (valor < 0 || valor > Integer.MAX_VALUE) {
+                throw new Exception("Valor fuera de rango: " + valor);
+            }
+            return (int) valor;
+        }
+
+        /**
+         * Lee la longitud de un campo {@link #CABLE_LONGITUD} y devuelve un
+         * cursor sobre su contenido, dejando este cursor tras él.
+         */
+        Cursor anidado() throws Exception {
+            int longitud = entero();
+            if (longitud > fin - pos) {
+                throw new Exception("Registro truncado.");
+            }
+            Cursor anidado = new Cursor(datos, pos, pos + longitud);
+            pos += longitud;
+            return anidado;
+        }
+
+        String cadena() throws Exception {
+            int longitud = entero();
+            if (longitud > fin - pos) {
+                throw new Exception("Registro truncado.");
+            }
+            String valor = new String(datos, pos, longitud, StandardCharsets.UTF_8);
+            pos += longitud;
+            return valor;
+        }
+
+        /**
+         * Salta el valor de un campo desconocido según su tipo de cable.
+         */
+        void saltar(int cable) throws Exception {
+            if (cable == CABLE_VARINT) {
+                varint();
+            } else if (cable == CABLE_LONGITUD) {
+                int longitud = entero();
+                if (longitud > fin - pos) {
+                    throw new Exception("Registro truncado.");
+                }
+                pos += longitud;
+            } else {
+                throw new Exception("Tipo de cable desconocido: " + cable);
+            }
+        }
+    }
+}
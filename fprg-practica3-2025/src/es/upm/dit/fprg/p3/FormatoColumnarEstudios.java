@@ -0,0 +1,68 @@
+package es.upm.dit.fprg.p3;
+
+/**
+ * Constantes del formato columnar de exportación de estudios que escribe
+ * {@link EscritorEstudiosColumnar} y lee {@link LectorEstudiosColumnar}.
+ * <p>
+ * <strong>Estructura.</strong> El archivo empieza por el número mágico
+ * {@link #MAGICO} (4 bytes) y la versión del formato (1 byte). Le siguen
+ * bloques de hasta {@link #FILAS_POR_BLOQUE} estudios y un bloque sin filas
+ * que marca el final. Cada bloque empieza por el número de filas y la
+ * longitud de su directorio (enteros de 4 bytes); el directorio contiene el
+ * número de columnas y, para cada una, su nombre (UTF modificado, como
+ * {@link java.io.DataOutputStream#writeUTF(String)}), su tipo (1 byte) y su
+ * longitud en bytes. Tras el directorio van las columnas, en el mismo orden,
+ * de modo que un lector puede situarse en cualquiera sin leer las demás.
+ * </p>
+ * <p>
+ * <strong>Tipos de columna.</strong> Todos los enteros de tamaño fijo son
+ * big-endian.
+ * </p>
+ * <ul>
+ *   <li>{@link #TIPO_ENTEROS}: un entero de 4 bytes por fila</li>
+ *   <li>{@link #TIPO_DICCIONARIO}: la longitud en bytes del diccionario
+ *       (4 bytes), el número de entradas (4 bytes) y las cadenas distintas
+ *       del bloque (UTF modificado), seguidos de un código de 4 bytes por
+ *       fila: la posición de su cadena en el diccionario, o -1 si es nula</li>
+ *   <li>{@link #TIPO_DELTAS}: valores de 64 bits codificados como diferencias
+ *       con el anterior (el primero, con 0) en rachas: cada racha es la
+ *       diferencia en zigzag y el número de filas que la repiten (varints)</li>
+ * </ul>
+ * <p>
+ * Las columnas de resultados se llaman {@link #PREFIJO_RESULTADO} seguido
+ * del nombre del elemento; solo aparecen en los bloques con algún estudio
+ * que tenga ese resultado, y valen -1 en los que no lo tienen.
+ * </p>
+ */
+final class FormatoColumnarEstudios {
+
+    /** Número mágico: "FPRC" en ASCII. */
+    static final int MAGICO = 0x46505243;
+
+    /** Versión actual del formato. */
+    static final int VERSION = 1;
+
+    /** Número máximo de estudios por bloque. */
+    static final int FILAS_POR_BLOQUE = 1 << 16;
+
+    // Tipos de columna
+    static final int TIPO_ENTEROS = 1;
+    static final int TIPO_DICCIONARIO = 2;
+    static final int TIPO_DELTAS = 3;
+
+    // Columnas de cada bloque
+    static final String COLUMNA_TECNICA = "tecnica";
+    static final String COLUMNA_DNI = "paciente.dni";
+    static final String COLUMNA_ANIO_NACIMIENTO = "paciente.anioNacimiento";
+    static final String COLUMNA_PRESCRIPTOR = "prescriptor.colegiado";
+    static final String COLUMNA_CENTRO_PRESCRIPTOR = "prescriptor.centroSanitario";
+    static final String COLUMNA_INFORMADOR = "informador.colegiado";
+    static final String COLUMNA_CENTRO_INFORMADOR = "informador.centroSanitario";
+    static final String COLUMNA_PRESCRIPCION = "timestampPrescripcion";
+    static final String COLUMNA_INFORME = "fechaInforme";
+    static final String COLUMNA_MUESTRAS = "muestras";
+    static final String PREFIJO_RESULTADO = "resultado:";
+
+    private FormatoColumnarEstudios() {
+    }
+}
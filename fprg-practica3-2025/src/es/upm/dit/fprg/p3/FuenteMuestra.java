@@ -0,0 +1,61 @@
+package es.upm.dit.fprg.p3;
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.net.URL;
+
+/**
+ * Origen perezoso de una {@link Muestra}: la imagen no se lee ni se decodifica
+ * hasta que se llama a {@link #cargar()}.
+ * <p>
+ * Permite a {@link AnalizadorDiagnostico#analizar(java.util.Iterator, int)}
+ * procesar estudios muy grandes sin mantener todas las muestras en memoria.
+ * </p>
+ */
+public interface FuenteMuestra {
+
+    /**
+     * Lee y decodifica la muestra.
+     *
+     * @return muestra cargada
+     * @throws Exception si la muestra no puede leerse
+     */
+    Muestra cargar() throws Exception;
+
+    /**
+     * Crea una fuente que lee la muestra de un fichero local.
+     *
+     * @param ruta ruta del fichero de imagen
+     * @param id identificador de la muestra
+     * @return fuente de la muestra
+     */
+    static FuenteMuestra desdeArchivo(String ruta, String id) {
+        return () -> {
+            InputStream in = new BufferedInputStream(new FileInputStream(ruta));
+            try {
+                return new Muestra(in, id);
+            } finally {
+                in.close();
+            }
+        };
+    }
+
+    /**
+     * Crea una fuente que descarga la muestra de una URL.
+     *
+     * @param url dirección de la imagen
+     * @param id identificador de la muestra
+     * @return fuente de la muestra
+     */
+    static FuenteMuestra desdeURL(String url, String id) {
+        return () -> {
+            InputStream in = new BufferedInputStream(new URL(url).openStream());
+            try {
+                return new Muestra(in, id);
+            } finally {
+                in.close();
+            }
+        };
+    }
+}
@@ -0,0 +1,184 @@
+package es.upm.dit.fprg.p3;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histograma de latencias sin bloqueos, con cubetas de precisión relativa
+ * constante (al estilo de HdrHistogram).
+ * <p>
+ * Los valores menores que {@value #CUBETAS_EXACTAS} se guardan de forma
+ * exacta. Los mayores se agrupan en {@value #SUBCUBETAS} cubetas por cada
+ * potencia de dos, por lo que el error relativo de cualquier percentil no
+ * supera 1/32 (un 3&nbsp;%), en todo el rango de valores {@code long}. Cada
+ * registro es un incremento atómico de un contador, sin bloqueos ni
+ * reservas de memoria, y puede hacerse desde cualquier número de hilos.
+ * </p>
+ * <p>
+ * Los percentiles se consultan sobre una {@link Instantanea} inmutable
+ * obtenida con {@link #instantanea()}.
+ * </p>
+ */
+public class HistogramaLatencias {
+
+    /** Número de valores pequeños que se registran de forma exacta. */
+    private static final int CUBETAS_EXACTAS = 64;
+
+    /** Bits significativos que distinguen las cubetas de cada potencia de dos. */
+    private static final int BITS_SUBCUBETA = 5;
+
+    /** Número de cubetas por cada potencia de dos a partir de {@link #CUBETAS_EXACTAS}. */
+    private static final int SUBCUBETAS = 1 << BITS_SUBCUBETA;
+
+    /** Exponente de la primera potencia de dos que no se registra de forma exacta. */
+    private static final int PRIMER_EXPONENTE = 6;
+
+    private static final int NUM_CUBETAS = CUBETAS_EXACTAS + (63 - PRIMER_EXPONENTE) * SUBCUBETAS;
+
+    private final AtomicLongArray cubetas;
+    private final LongAdder suma;
+    private final LongAccumulator maximo;
+
+    /**
+     * Crea un histograma vacío.
+     */
+    public HistogramaLatencias() {
+        this.cubetas = new AtomicLongArray(NUM_CUBETAS);
+        this.suma = new LongAdder();
+        this.maximo = new LongAccumulator(Math::max, 0);
+    }
+
+    /**
+     * Registra un valor. Los valores negativos se registran como 0.
+     *
+     * @param valor valor a registrar (por ejemplo, nanosegundos)
+     */
+    public void registrar(long valor) {
+        long v = Math.max(0, valor);
+        cubetas.incrementAndGet(cubeta(v));
+        suma.add(v);
+        maximo.accumulate(v);
+    }
+
+    /**
+     * Devuelve una copia inmutable del estado actual del histograma.
+     * <p>
+     * La copia se toma sin detener los registros concurrentes, por lo que
+     * puede incluir parcialmente los que se estén haciendo en ese momento.
+     * </p>
+     *
+     * @return instantánea del histograma
+     */
+    public Instantanea instantanea() {
+        long[] copia = new long[NUM_CUBETAS];
+        long cuenta = 0;
+        for (int i = 0; i < NUM_CUBETAS; i++) {
+            copia[i] = cubetas.get(i);
+            cuenta += copia[i];
+        }
+        return new Instantanea(copia, cuenta, suma.sum(), maximo.get());
+    }
+
+    /**
+     * Pone el histograma a cero.
+     */
+    public void reiniciar() {
+        for (int i = 0; i < NUM_CUBETAS; i++) {
+            cubetas.set(i, 0);
+        }
+        suma.reset();
+        maximo.reset();
+    }
+
+    private static int cubeta(long v) {
+        if (v < CUBETAS_EXACTAS) {
+            return (int) v;
+        }
+        int exponente = 63 - Long.numberOfLeadingZeros(v);
+        int desplazamiento = exponente - BITS_SUBCUBETA;
+        int subcubeta = (int) (v >>> desplazamiento) - SUBCUBETAS;
+        return CUBETAS_EXACTAS + (exponente - PRIMER_EXPONENTE) * SUBCUBETAS + subcubeta;
+    }
+
+    /** Mayor valor que se registra en la cubeta indicada. */
+    private static long limiteSuperior(int cubeta) {
+        if (cubeta < CUBETAS_EXACTAS) {
+            return cubeta;
+        }
+        int exponente = PRIMER_EXPONENTE + (cubeta - CUBETAS_EXACTAS) / SUBCUBETAS;
+        long subcubeta = SUBCUBETAS + (cubeta - CUBETAS_EXACTAS) % SUBCUBETAS;
+        int desplazamiento = exponente - BITS_SUBCUBETA;
+        return ((subcubeta + 1) << desplazamiento) - 1;
+    }
+
+    /**
+     * Estado de un {@link HistogramaLatencias} en un momento dado.
+     */
+    public static final class Instantanea {
+        private final long[] cubetas;
+        private final long numValores;
+        private final long suma;
+        private final long maximo;
+
+        private Instantanea(long[] cubetas, long numValores, long suma, long maximo) {
+            this.cubetas = cubetas;
+            this.numValores = numValores;
+            this.suma = suma;
+            this.maximo = maximo;
+        }
+
+        /**
+         * Devuelve el número de valores registrados.
+         *
+         * @return número de valores
+         */
+        public long getNumValores() {
+            return numValores;
+        }
+
+        /**
+         * Devuelve la media de los valores registrados.
+         *
+         * @return media, o 0 si no hay valores
+         */
+        public double getMedia() {
+            return numValores == 0 ? 0 : (double) suma / numValores;
+        }
+
+        /**
+         * Devuelve el mayor valor registrado.
+         *
+         * @return valor máximo, o 0 si no hay valores
+         */
+        public long getMaximo() {
+            return maximo;
+        }
+
+        /**
+         * Devuelve el percentil indicado, con un error relativo por exceso de
+         * como mucho 1/32.
+         *
+         * @param percentil percentil entre 0 y 100
+         * @return valor del percentil, o 0 si no hay valores
+         * @throws Exception si el percentil está fuera del rango [0, 100]
+         */
+        public long getPercentil(double percentil) throws Exception {
+            if (percentil < 0 || percentil > 100) {
+                throw new Exception("El percentil debe estar entre 0 y 100");
+            }
+            if (numValores == 0) {
+                return 0;
+            }
+            long posicion = Math.max(1, (long) Math.ceil(percentil / 100 * numValores));
+            long acumulado = 0;
+            for (int i = 0; i < cubetas.length; i++) {
+                acumulado += cubetas[i];
+                if (acumulado >= posicion) {
+                    return Math.min(limiteSuperior(i), maximo);
+                }
+            }
+            return maximo;
+        }
+    }
+}
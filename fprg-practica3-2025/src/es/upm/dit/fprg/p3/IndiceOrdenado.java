@@ -0,0 +1,419 @@
+package es.upm.dit.fprg.p3;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Índice de ordinales de estudios por una clave numérica, usado por
+ * {@link RepositorioEstudios} para las consultas por intervalo de fechas y
+ * por número de píxeles positivos de un elemento.
+ * <p>
+ * Guarda los pares (clave, ordinal) ordenados por clave en cubetas de hasta
+ * {@link #TAM_CUBETA} pares, cada una con un array de {@code long} y otro de
+ * {@code int}. Una consulta busca por bisección la primera cubeta y la
+ * primera posición del intervalo y recorre los pares desde ahí, en orden
+ * ascendente o descendente, sin construir listas intermedias.
+ * </p>
+ * <p>
+ * Los instantes suelen llegar casi en orden, así que el caso habitual es
+ * añadir al final de la última cubeta. Una clave anterior a la última de su
+ * cubeta se inserta en su lugar desplazando las siguientes, o la cubeta se
+ * divide en dos si está llena; con claves en cualquier orden, como los
+ * recuentos de píxeles, ninguna alta copia más que una cubeta.
+ * </p>
+ * <p>
+ * Como en {@link RepositorioEstudios}, admite un único escritor y lectores
+ * concurrentes. Añadir al final solo publica el tamaño de la cubeta después
+ * de escribir el par. Los desplazamientos se hacen con el cerrojo de
+ * escritura de la cubeta, y los lectores copian cada cubeta con una lectura
+ * optimista de su {@link StampedLock}, que repiten con el cerrojo de lectura
+ * solo si ha coincidido con un desplazamiento. Las divisiones publican un
+ * array de cubetas nuevo y dejan intacta la cubeta dividida.
+ * </p>
+ */
+final class IndiceOrdenado {
+
+    /** Número máximo de pares por cubeta. */
+    static final int TAM_CUBETA = 256;
+
+    private volatile Cubeta[] cubetas = new Cubeta[0];
+    private volatile int tam;
+
+    /**
+     * Añade un par al índice. Solo puede llamarlo un escritor a la vez.
+     *
+     * @param clave clave del estudio
+     * @param ordinal ordinal del estudio
+     */
+    void agregar(long clave, int ordinal) {
+        Cubeta[] actuales = cubetas;
+        if (actuales.length == 0) {
+            Cubeta primera = new Cubeta();
+            primera.agregar(clave, ordinal);
+            cubetas = new Cubeta[] { primera };
+            tam = 1;
+            return;
+        }
+        // Última cubeta cuya primera clave no es posterior: las siguientes
+        // empiezan después, así que el orden global se conserva
+        int c = Math.max(ultimaConInicio(actuales, clave, true), 0);
+        Cubeta cubeta = actuales[c];
+        int n = cubeta.tam;
+        if (n < TAM_CUBETA && clave >= cubeta.claves[n - 1]) {
+            cubeta.agregar(clave, ordinal);
+        } else if (n < TAM_CUBETA) {
+            cubeta.insertar(clave, ordinal);
+        } else if (c == actuales.length - 1 && clave >= cubeta.claves[n - 1]) {
+            // Llegada en orden con la última cubeta llena: se empieza otra
+            Cubeta siguiente = new Cubeta();
+            siguiente.agregar(clave, ordinal);
+            cubetas = sustituir(actuales, c, cubeta, siguiente);
+        } else {
+            // Cubeta llena: se divide en dos mitades nuevas y el par va a la
+            // que le toca; los lectores que ya tengan la original la siguen
+            // viendo entera
+            int mitad = n / 2;
+            Cubeta izquierda = new Cubeta();
+            Cubeta derecha = new Cubeta();
+            izquierda.copiar(cubeta, 0, mitad);
+            derecha.copiar(cubeta, mitad, n - mitad);
+            if (clave < derecha.claves[0]) {
+                izquierda.insertar(clave, ordinal);
+            } else {
+                derecha.insertar(clave, ordinal);
+            }
+            cubetas = sustituir(actuales, c, izquierda, derecha);
+        }
+        tam++;
+    }
+
+    /**
+     * Devuelve el número de pares del índice.
+     *
+     * @return número de pares
+     */
+    int getTam() {
+        return tam;
+    }
+
+    /**
+     * Cuenta los pares con clave en [desde, hasta).
+     *
+     * @param desde clave inicial, incluida
+     * @param hasta clave final, excluida
+     * @return número de pares del intervalo
+     */
+    int contar(long desde, long hasta) {
+        if (desde >= hasta) {
+            return 0;
+        }
+        Cubeta[] actuales = cubetas;
+        int primera = Math.max(ultimaConInicio(actuales, desde, false), 0);
+        int ultima = ultimaConInicio(actuales, hasta, false);
+        if (ultima < primera) {
+            return 0;
+        }
+        // Las cubetas intermedias están enteras en el intervalo: basta su
+        // tamaño. Solo se buscan posiciones en la primera y la última
+        int total = -actuales[primera].contarAnteriores(desde);
+        for (int c = primera; c < ultima; c++) {
+            total += actuales[c].tam;
+        }
+        return total + actuales[ultima].contarAnteriores(hasta);
+    }
+
+    /**
+     * Recorre en orden ascendente de clave los ordinales con clave en
+     * [desde, hasta). El recorrido usa las cubetas publicadas al llamar al
+     * método y copia cada una al llegar a ella; los pares añadidos después
+     * pueden aparecer o no.
+     *
+     * @param desde clave inicial, incluida
+     * @param hasta clave final, excluida
+     * @return iterador de ordinales
+     */
+    PrimitiveIterator.OfInt recorrer(long desde, long hasta) {
+        Cubeta[] actuales = cubetas;
+        int primera = Math.max(ultimaConInicio(actuales, desde, false), 0);
+        return new PrimitiveIterator.OfInt() {
+            private final long[] claves = new long[TAM_CUBETA];
+            private final int[] ordinales = new int[TAM_CUBETA];
+            private int siguiente = primera;
+            private int tamCubeta;
+            private int posicion;
+            private boolean quedan;
+
+            {
+                if (avanzar()) {
+                    posicion = primeraPosicion(claves, tamCubeta, desde);
+                }
+            }
+
+            private boolean avanzar() {
+                if (siguiente >= actuales.length) {
+                    quedan = false;
+                    return false;
+                }
+                tamCubeta = actuales[siguiente++].leer(claves, ordinales);
+                posicion = 0;
+                quedan = true;
+                return true;
+            }
+
+            @Override
+            public boolean hasNext() {
+                while (quedan && posicion == tamCubeta) {
+                    avanzar();
+                }
+                return quedan && desde < hasta && claves[posicion] < hasta;
+            }
+
+            @Override
+            public int nextInt() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return ordinales[posicion++];
+            }
+        };
+    }
+
+    /**
+     * Recorre en orden descendente de clave los ordinales con clave en
+     * [desde, hasta); los de claves iguales salen en orden inverso al de
+     * {@link #recorrer(long, long)}. Como en este, el recorrido usa las
+     * cubetas publicadas al llamar al método.
+     *
+     * @param desde clave inicial, incluida
+     * @param hasta clave final, excluida
+     * @return iterador de ordinales
+     */
+    PrimitiveIterator.OfInt recorrerDescendente(long desde, long hasta) {
+        Cubeta[] actuales = cubetas;
+        // Las cubetas siguientes solo tienen claves no anteriores a hasta
+        int ultima = ultimaConInicio(actuales, hasta, false);
+        return new PrimitiveIterator.OfInt() {
+            private final long[] claves = new long[TAM_CUBETA];
+            private final int[] ordinales = new int[TAM_CUBETA];
+            private int siguiente = ultima;
+            // Número de pares de la cubeta que quedan por recorrer
+            private int posicion;
+            private boolean quedan;
+
+            {
+                if (retroceder()) {
+                    posicion = primeraPosicion(claves, posicion, hasta);
+                }
+            }
+
+            private boolean retroceder() {
+                if (siguiente < 0) {
+                    quedan = false;
+                    return false;
+                }
+                posicion = actuales[siguiente--].leer(claves, ordinales);
+                quedan = true;
+                return true;
+            }
+
+            @Override
+            public boolean hasNext() {
+                while (quedan && posicion == 0) {
+                    retroceder();
+                }
+                return quedan && desde < hasta && claves[posicion - 1] >= desde;
+            }
+
+            @Override
+            public int nextInt() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return ordinales[--posicion];
+            }
+        };
+    }
+
+    /**
+     * Convierte una fecha en nanosegundos desde la época en UTC, saturando
+     * fuera del rango de {@code long} (años 1677 a 2262).
+     */
+    static long instante(LocalDateTime fecha) {
+        long segundos = fecha.toEpochSecond(ZoneOffset.UTC);
+        if (segundos >= Long.MAX_VALUE / 1_000_000_000L) {
+            return Long.MAX_VALUE;
+        }
+        if (segundos <= Long.MIN_VALUE / 1_000_000_000L) {
+            return Long.MIN_VALUE;
+        }
+        return segundos * 1_000_000_000L + fecha.getNano();
+    }
+
+    /**
+     * Devuelve un array de cubetas nuevo en el que la cubeta {@code c} se
+     * sustituye por las dos indicadas.
+     */
+    private static Cubeta[] sustituir(Cubeta[] actuales, int c, Cubeta primera, Cubeta segunda) {
+        Cubeta[] nuevas = new Cubeta[actuales.length + 1];
+        System.arraycopy(actuales, 0, nuevas, 0, c);
+        nuevas[c] = primera;
+        nuevas[c + 1] = segunda;
+        System.arraycopy(actuales, c + 1, nuevas, c + 2, actuales.length - c - 1);
+        return nuevas;
+    }
+
+    /**
+     * Devuelve la última cubeta cuya primera clave es anterior a
+     * {@code clave} (o igual, si {@code incluido}), o -1 si no hay
+     * ninguna. La primera clave de una cubeta solo cambia al insertar antes
+     * de ella en la primera cubeta, que la búsqueda trata igual que si no
+     * hubiera ninguna.
+     */
+    private static int ultimaConInicio(Cubeta[] cubetas, long clave, boolean incluido) {
+        int bajo = 0;
+        int alto = cubetas.length - 1;
+        int encontrada = -1;
+        while (bajo <= alto) {
+            int medio = (bajo + alto) >>> 1;
+            long inicio = cubetas[medio].claves[0];
+            if (inicio < clave || (incluido && inicio == clave)) {
+                encontrada = medio;
+                bajo = medio + 1;
+            } else {
+                alto = medio - 1;
+            }
+        }
+        return encontrada;
+    }
+
+    /**
+     * Devuelve la primera posición de {@code claves[0..n)} con una clave
+     * no anterior a {@code clave}, o {@code n} si no hay ninguna.
+     */
+    private static int primeraPosicion(long[] claves, int n, long clave) {
+        int bajo = 0;
+        int alto = n;
+        while (bajo < alto) {
+            int medio = (bajo + alto) >>> 1;
+            if (claves[medio] < clave) {
+                bajo = medio + 1;
+            } else {
+                alto = medio;
+            }
+        }
+        return bajo;
+    }
+
+    /**
+     * Devuelve la primera posición de {@code claves[0..n)} con una clave
+     * posterior a {@code clave}, o {@code n} si no hay ninguna.
+     */
+    private static int primeraPosterior(long[] claves, int n, long clave) {
+        int bajo = 0;
+        int alto = n;
+        while (bajo < alto) {
+            int medio = (bajo + alto) >>> 1;
+            if (claves[medio] <= clave) {
+                bajo = medio + 1;
+            } else {
+                alto = medio;
+            }
+        }
+        return bajo;
+    }
+
+    /**
+     * Pares ordenados de una cubeta. Los arrays no se sustituyen: el escritor
+     * añade pares al final publicando el tamaño después, o desplaza pares
+     * con el cerrojo de escritura.
+     */
+    private static final class Cubeta {
+        final long[] claves = new long[TAM_CUBETA];
+        final int[] ordinales = new int[TAM_CUBETA];
+        final StampedLock cerrojo = new StampedLock();
+        volatile int tam;
+
+        /**
+         * Copia pares de otra cubeta; solo se usa antes de publicar esta.
+         */
+        void copiar(Cubeta origen, int desde, int cuantos) {
+            System.arraycopy(origen.claves, desde, claves, 0, cuantos);
+            System.arraycopy(origen.ordinales, desde, ordinales, 0, cuantos);
+            tam = cuantos;
+        }
+
+        /**
+         * Inserta el par en su lugar; la cubeta no debe estar llena.
+         */
+        void insertar(long clave, int ordinal) {
+            long sello = cerrojo.writeLock();
+            try {
+                int n = tam;
+                // Detrás de las claves iguales, para que conserven el orden de llegada
+                int posicion = primeraPosterior(claves, n, clave);
+                System.arraycopy(claves, posicion, claves, posicion + 1, n - posicion);
+                System.arraycopy(ordinales, posicion, ordinales, posicion + 1, n - posicion);
+                claves[posicion] = clave;
+                ordinales[posicion] = ordinal;
+                tam = n + 1;
+            } finally {
+                cerrojo.unlockWrite(sello);
+            }
+        }
+
+        void agregar(long clave, int ordinal) {
+            int n = tam;
+            claves[n] = clave;
+            ordinales[n] = ordinal;
+            tam = n + 1;
+        }
+
+        /**
+         * Copia los pares de la cubeta en los arrays indicados y devuelve
+         * cuántos son.
+         */
+        int leer(long[] destinoClaves, int[] destinoOrdinales) {
+            long sello = cerrojo.tryOptimisticRead();
+            if (sello != 0) {
+                int n = tam;
+                System.arraycopy(claves, 0, destinoClaves, 0, n);
+                System.arraycopy(ordinales, 0, destinoOrdinales, 0, n);
+                if (cerrojo.validate(sello)) {
+                    return n;
+                }
+            }
+            sello = cerrojo.readLock();
+            try {
+                int n = tam;
+                System.arraycopy(claves, 0, destinoClaves, 0, n);
+                System.arraycopy(ordinales, 0, destinoOrdinales, 0, n);
+                return n;
+            } finally {
+                cerrojo.unlockRead(sello);
+            }
+        }
+
+        /**
+         * Devuelve cuántos pares de la cubeta tienen una clave anterior a
+         * {@code clave}.
+         */
+        int contarAnteriores(long clave) {
+            long sello = cerrojo.tryOptimisticRead();
+            if (sello != 0) {
+                int posicion = primeraPosicion(claves, tam, clave);
+                if (cerrojo.validate(sello)) {
+                    return posicion;
+                }
+            }
+            sello = cerrojo.readLock();
+            try {
+                return primeraPosicion(claves, tam, clave);
+            } finally {
+                cerrojo.unlockRead(sello);
+            }
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package es.upm.dit.fprg.p3;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Lector de archivos binarios de estudios escritos por
+ * {@link EscritorEstudiosBinario}.
+ * <p>
+ * Cada llamada a {@link #leer()} decodifica solo el siguiente estudio del
+ * archivo; {@link #leerCabecera()} decodifica además solo su cabecera y
+ * difiere la de sus muestras y resultados hasta que se accede a ellos. Lee todas las versiones del formato hasta
+ * {@link FormatoBinarioEstudios#VERSION} e ignora los campos y registros que
+ * no conoce, según las reglas de compatibilidad de
+ * {@link FormatoBinarioEstudios}. Las muestras de los estudios leídos solo
+ * conservan su identificador y, si la tienen, su huella, como
+ * {@link MuestraAlmacenada} sin almacén asociado. Con un
+ * {@link RegistroPersonas}, los estudios leídos comparten sus médicos y
+ * pacientes.
+ * </p>
+ */
+public final class LectorEstudiosBinario implements AutoCloseable {
+
+    private final InputStream in;
+    /**
+     * Tabla de cadenas. Solo se añaden cadenas al final o se sustituye el
+     * array completo, de modo que los estudios cargados parcialmente pueden
+     * conservar una vista de las cadenas que había al leerlos.
+     */
+    private String[] cadenas;
+    private int numCadenas;
+    private final int version;
+    private final RegistroPersonas personas;
+    private byte[] registro;
+
+    /**
+     * Crea el lector y comprueba la cabecera del archivo.
+     *
+     * @param in flujo de entrada; se cierra al cerrar el lector
+     * @throws Exception si el flujo es nulo, no contiene un archivo de
+     *                   estudios o su versión es posterior a la soportada
+     */
+    public LectorEstudiosBinario(InputStream in) throws Exception {
+        this(in, null);
+    }
+
+    /**
+     * Crea el lector y comprueba la cabecera del archivo. Los médicos y
+     * pacientes de los estudios leídos se comparten a través del registro
+     * indicado, que puede usarse también en otros lectores.
+     *
+     * @param in flujo de entrada; se cierra al cerrar el lector
+     * @param personas registro de médicos y pacientes compartidos, o
+     *                 {@code null} para que cada estudio tenga los suyos
+     * @throws Exception si el flujo es nulo, no contiene un archivo de
+     *                   estudios o su versión es posterior a la soportada
+     */
+    public LectorEstudiosBinario(InputStream in, RegistroPersonas personas) throws Exception {
+        if (in == null) {
+            throw new Exception("El flujo de entrada no puede ser nulo.");
+        }
+        this.in = new BufferedInputStream(in, 1 << 16);
+        this.personas = personas;
+        this.cadenas = new String[64];
+        this.registro = new byte[256];
+        int magico = 0;
+        for (int i = 0; i < 4; i++) {
+            int b = this.in.read();
+            if (b < 0) {
+                throw new Exception("El flujo no contiene un archivo de estudios.");
+            }
+            magico = (magico << 8) | b;
+        }
+        if (magico != FormatoBinarioEstudios.MAGICO) {
+            throw new Exception("El flujo no contiene un archivo de estudios.");
+        }
+        this.version = (int) leerVarint(false);
+        if (version > FormatoBinarioEstudios.VERSION) {
+            throw new Exception("Versión del formato no soportada: " + version);
+        }
+    }
+
+    /**
+     * Devuelve la versión del formato con la que se escribió el archivo.
+     *
+     * @return versión del formato
+     */
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * Lee el siguiente estudio del archivo.
+     *
+     * @return estudio leído, o {@code null} si no quedan más
+     * @throws Exception si el archivo está truncado o corrupto
+     */
+    public EstudioDiagnostico leer() throws Exception {
+        return leer(false);
+    }
+
+    /**
+     * Lee la cabecera del siguiente estudio del archivo: técnica, médicos,
+     * paciente y fechas. Sus muestras y resultados se decodifican la primera
+     * vez que se accede a ellos, de modo que recorrer un archivo consultando
+     * solo los datos de cabecera evita la mayor parte del trabajo de
+     * {@link #leer()}.
+     *
+     * @return estudio leído, o {@code null} si no quedan más
+     * @throws Exception si el archivo está truncado o corrupto; los errores
+     *                   en las muestras o resultados se producen al acceder a
+     *                   ellos, como {@link IllegalStateException}
+     */
+    public EstudioDiagnostico leerCabecera() throws Exception {
+        return leer(true);
+    }
+
+    private EstudioDiagnostico leer(boolean parcial) throws Exception {
+        while (true) {
+            long tipo = leerVarint(true);
+            if (tipo < 0) {
+                return null;
+            }
+            long longitud = leerVarint(false);
+            if (longitud > Integer.MAX_VALUE - 8) {
+                throw new Exception("Registro demasiado largo: " + longitud);
+            }
+            int tam = (int) longitud;
+            if (tam > registro.length) {
+                registro = new byte[Math.max(tam, registro.length * 2)];
+            }
+            leerCompleto(registro, tam);
+            if (tipo == FormatoBinarioEstudios.REGISTRO_CADENA) {
+                if (numCadenas == cadenas.length) {
+                    cadenas = Arrays.copyOf(cadenas, numCadenas * 2);
+                }
+                cadenas[numCadenas++] = new String(registro, 0, tam, StandardCharsets.UTF_8);
+            } else if (tipo == FormatoBinarioEstudios.REGISTRO_REINICIO_TABLA) {
+                cadenas = new String[64];
+                numCadenas = 0;
+            } else if (tipo == FormatoBinarioEstudios.REGISTRO_ESTUDIO) {
+                return FormatoBinarioEstudios.decodificar(new FormatoBinarioEstudios.Cursor(registro, 0, tam),
+                        Arrays.asList(cadenas).subList(0, numCadenas), parcial, personas);
+            }
+            // Los tipos de registro desconocidos se ignoran
+        }
+    }
+
+    /**
+     * Cierra el flujo de entrada.
+     *
+     * @throws IOException si se produce un error al cerrarlo
+     */
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    /**
+     * Lee un varint del flujo. Si {@code finPermitido}, el fin del flujo antes
+     * del primer byte devuelve -1 en lugar de ser un error.
+     */
+    private long leerVarint(boolean finPermitido) throws Exception {
+        long valor = 0;
+        for (int desplazamiento = 0; desplazamiento < 64; desplazamiento += 7) {
+            int b = in.read();
+            if (b < 0) {
+                if (finPermitido && desplazamiento == 0) {
+                    return -1;
+                }
+                throw new EOFException("Archivo de estudios truncado.");
+            }
+            valor |= (long) (b & 0x7F) << desplazamiento;
+            if ((b & 0x80) == 0) {
+                return valor;
+            }
+        }
+        throw new Exception("Varint demasiado largo.");
+    }
+
+    private void leerCompleto(byte[] destino, int tam) throws Exception {
+        int leidos = 0;
+        while (leidos < tam) {
+            int n = in.read(destino, leidos, tam - leidos);
+            if (n < 0) {
+                throw new EOFException("Archivo de estudios truncado.");
+            }
+            leidos += n;
+        }
+    }
+}
@@ -0,0 +1,311 @@
+package es.upm.dit.fprg.p3;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Lector de exportaciones columnares escritas por
+ * {@link EscritorEstudiosColumnar}.
+ * <p>
+ * Recorre el archivo bloque a bloque con {@link #siguienteBloque()}. De cada
+ * bloque solo lee del disco las columnas que se piden, con lecturas
+ * posicionales, así que una agregación sobre dos columnas no lee ni
+ * decodifica las demás. Las columnas son:
+ * </p>
+ * <ul>
+ *   <li>{@code tecnica} (ordinal de {@link TecnicaAdquisicion}, -1 si es
+ *       nula), {@code paciente.anioNacimiento} y {@code muestras} (número de
+ *       muestras): {@link #leerEnteros(String)}</li>
+ *   <li>{@code paciente.dni}, {@code prescriptor.colegiado},
+ *       {@code prescriptor.centroSanitario}, {@code informador.colegiado} e
+ *       {@code informador.centroSanitario}: {@link #leerCodigos(String)} y
+ *       {@link #leerDiccionario(String)}</li>
+ *   <li>{@code timestampPrescripcion} (segundos desde la época) y
+ *       {@code fechaInforme} (nanosegundos desde la época en UTC, o
+ *       {@link Long#MIN_VALUE} si no está informado):
+ *       {@link #leerEnterosLargos(String)}</li>
+ *   <li>{@code resultado:} seguido del nombre de cada elemento (píxeles
+ *       positivos, -1 si el estudio no tiene ese resultado):
+ *       {@link #leerEnteros(String)}. Solo existen en los bloques en los que
+ *       algún estudio tiene el resultado; {@link #contiene(String)} lo
+ *       indica</li>
+ * </ul>
+ * <p>
+ * Los arrays devueltos son nuevos y tienen una posición por estudio del
+ * bloque.
+ * </p>
+ */
+public final class LectorEstudiosColumnar implements AutoCloseable {
+
+    private final FileChannel canal;
+    private final int version;
+    private long posicion;
+    private int numFilas;
+    private final Map<String, Columna> columnas;
+    private boolean terminado;
+
+    /**
+     * Abre el archivo y comprueba su cabecera.
+     *
+     * @param archivo ruta del archivo
+     * @throws Exception si el archivo no existe, no es una exportación
+     *                   columnar de estudios o su versión es posterior a la
+     *                   soportada
+     */
+    public LectorEstudiosColumnar(Path archivo) throws Exception {
+        if (archivo == null) {
+            throw new Exception("La ruta del archivo no puede ser nula.");
+        }
+        this.canal = FileChannel.open(archivo, StandardOpenOption.READ);
+        this.columnas = new LinkedHashMap<>();
+        try {
+            ByteBuffer cabecera = leer(0, 5);
+            if (cabecera.getInt() != FormatoColumnarEstudios.MAGICO) {
+                throw new Exception("El archivo no contiene una exportación columnar de estudios.");
+            }
+            this.version = cabecera.get() & 0xFF;
+            if (version > FormatoColumnarEstudios.VERSION) {
+                throw new Exception("Versión del formato no soportada: " + version);
+            }
+        } catch (Exception e) {
+            canal.close();
+            throw e;
+        }
+        this.posicion = 5;
+    }
+
+    /**
+     * Devuelve la versión del formato con la que se escribió el archivo.
+     *
+     * @return versión del formato
+     */
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * Pasa al siguiente bloque, leyendo solo su directorio.
+     *
+     * @return {@code true} si hay un bloque, {@code false} si el archivo ha
+     *         terminado
+     * @throws Exception si el archivo está truncado o corrupto
+     */
+    public boolean siguienteBloque() throws Exception {
+        if (terminado) {
+            return false;
+        }
+        ByteBuffer cabecera = leer(posicion, 8);
+        int filas = cabecera.getInt();
+        int longitudDirectorio = cabecera.getInt();
+        columnas.clear();
+        if (filas == 0) {
+            terminado = true;
+            numFilas = 0;
+            return false;
+        }
+        if (filas < 0 || longitudDirectorio < 4) {
+            throw new Exception("Bloque dañado en la posición " + posicion + ".");
+        }
+        DataInputStream directorio = new DataInputStream(
+                new ByteArrayInputStream(leer(posicion + 8, longitudDirectorio).array()));
+        long inicio = posicion + 8 + longitudDirectorio;
+        int numColumnas = directorio.readInt();
+        for (int i = 0; i < numColumnas; i++) {
+            String nombre = directorio.readUTF();
+            int tipo = directorio.readUnsignedByte();
+            int longitud = directorio.readInt();
+            if (longitud < 0) {
+                throw new Exception("Bloque dañado en la posición " + posicion + ".");
+            }
+            columnas.put(nombre, new Columna(tipo, inicio, longitud));
+            inicio += longitud;
+        }
+        numFilas = filas;
+        posicion = inicio;
+        return true;
+    }
+
+    /**
+     * Devuelve el número de estudios del bloque actual.
+     *
+     * @return número de estudios
+     */
+    public int getNumFilas() {
+        return numFilas;
+    }
+
+    /**
+     * Devuelve los nombres de las columnas del bloque actual.
+     *
+     * @return nombres de las columnas, en el orden del archivo
+     */
+    public List<String> getColumnas() {
+        return Collections.unmodifiableList(new ArrayList<>(columnas.keySet()));
+    }
+
+    /**
+     * Indica si el bloque actual tiene la columna indicada.
+     *
+     * @param columna nombre de la columna
+     * @return {@code true} si la tiene
+     */
+    public boolean contiene(String columna) {
+        return columnas.containsKey(columna);
+    }
+
+    /**
+     * Lee una columna de enteros del bloque actual.
+     *
+     * @param columna nombre de la columna
+     * @return un valor por estudio
+     * @throws Exception si el bloque no tiene la columna, no es de enteros o
+     *                   no puede leerse
+     */
+    public int[] leerEnteros(String columna) throws Exception {
+        Columna c = columna(columna, FormatoColumnarEstudios.TIPO_ENTEROS);
+        if (c.longitud != numFilas * 4) {
+            throw new Exception("La columna " + columna + " está dañada.");
+        }
+        int[] valores = new int[numFilas];
+        leer(c.inicio, c.longitud).asIntBuffer().get(valores);
+        return valores;
+    }
+
+    /**
+     * Lee los códigos de una columna de cadenas del bloque actual, sin leer
+     * su diccionario.
+     *
+     * @param columna nombre de la columna
+     * @return posición en el diccionario de la cadena de cada estudio, o -1
+     *         si es nula
+     * @throws Exception si el bloque no tiene la columna, no es de cadenas o
+     *                   no puede leerse
+     */
+    public int[] leerCodigos(String columna) throws Exception {
+        Columna c = columna(columna, FormatoColumnarEstudios.TIPO_DICCIONARIO);
+        int longitudDiccionario = leer(c.inicio, 4).getInt();
+        if (longitudDiccionario < 0 || 4 + longitudDiccionario + numFilas * 4L != c.longitud) {
+            throw new Exception("La columna " + columna + " está dañada.");
+        }
+        int[] codigos = new int[numFilas];
+        leer(c.inicio + 4 + longitudDiccionario, numFilas * 4).asIntBuffer().get(codigos);
+        return codigos;
+    }
+
+    /**
+     * Lee el diccionario de una columna de cadenas del bloque actual.
+     *
+     * @param columna nombre de la columna
+     * @return cadenas distintas del bloque, en el orden de sus códigos
+     * @throws Exception si el bloque no tiene la columna, no es de cadenas o
+     *                   no puede leerse
+     */
+    public List<String> leerDiccionario(String columna) throws Exception {
+        Columna c = columna(columna, FormatoColumnarEstudios.TIPO_DICCIONARIO);
+        int longitudDiccionario = leer(c.inicio, 4).getInt();
+        if (longitudDiccionario < 4 || 4L + longitudDiccionario > c.longitud) {
+            throw new Exception("La columna " + columna + " está dañada.");
+        }
+        DataInputStream datos = new DataInputStream(
+                new ByteArrayInputStream(leer(c.inicio + 4, longitudDiccionario).array()));
+        int numEntradas = datos.readInt();
+        List<String> entradas = new ArrayList<>(numEntradas);
+        for (int i = 0; i < numEntradas; i++) {
+            entradas.add(datos.readUTF());
+        }
+        return entradas;
+    }
+
+    /**
+     * Lee una columna de fechas del bloque actual.
+     *
+     * @param columna nombre de la columna
+     * @return un valor por estudio
+     * @throws Exception si el bloque no tiene la columna, no es de fechas o
+     *                   no puede leerse
+     */
+    public long[] leerEnterosLargos(String columna) throws Exception {
+        Columna c = columna(columna, FormatoColumnarEstudios.TIPO_DELTAS);
+        ByteBuffer datos = leer(c.inicio, c.longitud);
+        FormatoBinarioEstudios.Cursor cursor = new FormatoBinarioEstudios.Cursor(datos.array(), 0, c.longitud);
+        long[] valores = new long[numFilas];
+        long valor = 0;
+        int fila = 0;
+        while (cursor.quedan()) {
+            long diferencia = FormatoBinarioEstudios.deszigzag(cursor.varint());
+            long repeticiones = cursor.varint();
+            if (repeticiones > numFilas - fila) {
+                throw new Exception("La columna " + columna + " está dañada.");
+            }
+            for (int i = 0; i < repeticiones; i++) {
+                valor += diferencia;
+                valores[fila++] = valor;
+            }
+        }
+        if (fila != numFilas) {
+            throw new Exception("La columna " + columna + " está dañada.");
+        }
+        return valores;
+    }
+
+    /**
+     * Cierra el archivo.
+     *
+     * @throws IOException si se produce un error al cerrarlo
+     */
+    @Override
+    public void close() throws IOException {
+        canal.close();
+    }
+
+    private Columna columna(String nombre, int tipo) throws Exception {
+        if (numFilas == 0) {
+            throw new Exception("No hay ningún bloque actual.");
+        }
+        Columna c = columnas.get(nombre);
+        if (c == null) {
+            throw new Exception("El bloque no contiene la columna " + nombre + ".");
+        }
+        if (c.tipo != tipo) {
+            throw new Exception("La columna " + nombre + " no es del tipo pedido.");
+        }
+        return c;
+    }
+
+    /**
+     * Lee {@code longitud} bytes desde la posición indicada.
+     */
+    private ByteBuffer leer(long desde, int longitud) throws Exception {
+        ByteBuffer datos = ByteBuffer.allocate(longitud);
+        while (datos.hasRemaining()) {
+            if (canal.read(datos, desde + datos.position()) < 0) {
+                throw new EOFException("Exportación columnar truncada.");
+            }
+        }
+        datos.flip();
+        return datos;
+    }
+
+    private static final class Columna {
+        final int tipo;
+        final long inicio;
+        final int longitud;
+
+        Columna(int tipo, long inicio, int longitud) {
+            this.tipo = tipo;
+            this.inicio = inicio;
+            this.longitud = longitud;
+        }
+    }
+}
@@ -0,0 +1,477 @@
+package es.upm.dit.fprg.p3;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Lector en streaming de estudios diagnósticos guardados en el formato XML de
+ * {@link java.beans.XMLEncoder}, tanto por {@link EscritorEstudiosXml} como
+ * por versiones anteriores de {@link EstudioDiagnostico#guardar(java.io.OutputStream)}
+ * que usaban directamente {@code XMLEncoder}.
+ * <p>
+ * Cada llamada a {@link #leer()} construye solo el siguiente estudio del
+ * documento, sin reflexión y sin cargar el resto. Se interpreta el
+ * subconjunto del formato que generan los estudios: objetos de las clases
+ * del modelo, cadenas (con caracteres {@code <char code>}), enteros,
+ * enumerados mediante {@code Enum.valueOf}, colecciones de
+ * {@code java.util}, sentencias {@code add} y {@code put} y referencias
+ * {@code idref}. Las propiedades que el modelo ya no tiene (por ejemplo,
+ * {@code fechaPrescripcionIso} en los archivos antiguos) se ignoran.
+ * </p>
+ * <p>
+ * Como en {@link java.beans.XMLDecoder}, los identificadores de los médicos,
+ * pacientes, muestras y enumerados se conservan hasta el final del documento,
+ * ya que {@code XMLEncoder} puede referenciar desde un estudio objetos
+ * escritos en otro anterior. Los de los estudios no se conservan. Con un
+ * {@link RegistroPersonas}, además, los médicos y pacientes iguales de
+ * distintos estudios se comparten aunque el documento no los referencie.
+ * </p>
+ */
+public final class LectorEstudiosXml implements AutoCloseable {
+
+    private static final XMLInputFactory FABRICA = XMLInputFactory.newFactory();
+
+    static {
+        FABRICA.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        FABRICA.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    }
+
+    private final InputStream in;
+    private final XMLStreamReader xml;
+    private final Map<String, Object> porId;
+    private final RegistroPersonas personas;
+    private boolean terminado;
+
+    /**
+     * Crea el lector y comprueba la cabecera del documento.
+     *
+     * @param in flujo de entrada; se cierra al cerrar el lector
+     * @throws Exception si el flujo es nulo o no contiene un documento de
+     *                   {@code XMLEncoder}
+     */
+    public LectorEstudiosXml(InputStream in) throws Exception {
+        this(in, null);
+    }
+
+    /**
+     * Crea el lector y comprueba la cabecera del documento. Los médicos y
+     * pacientes de los estudios leídos se comparten a través del registro
+     * indicado, que puede usarse también en otros lectores.
+     *
+     * @param in flujo de entrada; se cierra al cerrar el lector
+     * @param personas registro de médicos y pacientes compartidos, o
+     *                 {@code null} para que cada estudio tenga los suyos
+     * @throws Exception si el flujo es nulo o no contiene un documento de
+     *                   {@code XMLEncoder}
+     */
+    public LectorEstudiosXml(InputStream in, RegistroPersonas personas) throws Exception {
+        if (in == null) {
+            throw new Exception("El flujo de entrada no puede ser nulo.");
+        }
+        this.in = in;
+        this.xml = FABRICA.createXMLStreamReader(in);
+        this.porId = new HashMap<>();
+        this.personas = personas;
+        if (xml.nextTag() != XMLStreamConstants.START_ELEMENT || !"java".equals(xml.getLocalName())) {
+            throw new Exception("El documento no tiene el formato de XMLEncoder.");
+        }
+    }
+
+    /**
+     * Lee el siguiente estudio del documento.
+     *
+     * @return estudio leído, o {@code null} si no quedan más
+     * @throws Exception si el documento está mal formado o contiene un objeto
+     *                   que no es un estudio
+     */
+    public EstudioDiagnostico leer() throws Exception {
+        if (terminado) {
+            return null;
+        }
+        if (xml.nextTag() == XMLStreamConstants.END_ELEMENT) {
+            terminado = true;
+            return null;
+        }
+        Object valor = leerValor();
+        if (!(valor instanceof EstudioDiagnostico)) {
+            throw new Exception("Se esperaba un EstudioDiagnostico en la línea "
+                    + xml.getLocation().getLineNumber() + ".");
+        }
+        return (EstudioDiagnostico) valor;
+    }
+
+    /**
+     * Cierra el lector y el flujo de entrada.
+     *
+     * @throws IOException si se produce un error al cerrar
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            xml.close();
+        } catch (XMLStreamException e) {
+            throw new IOException("No se pudo cerrar el lector: " + e.getMessage(), e);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Lee el valor cuyo elemento de inicio es el evento actual y deja el
+     * lector en su elemento de cierre.
+     */
+    private Object leerValor() throws Exception {
+        String etiqueta = xml.getLocalName();
+        switch (etiqueta) {
+        case "null":
+            xml.nextTag();
+            return null;
+        case "string":
+            return leerCadena();
+        case "int":
+            return Integer.valueOf(xml.getElementText().trim());
+        case "class":
+            return xml.getElementText().trim();
+        case "object":
+            return leerObjeto();
+        default:
+            throw error("Elemento no admitido: <" + etiqueta + ">");
+        }
+    }
+
+    private String leerCadena() throws Exception {
+        StringBuilder cadena = new StringBuilder();
+        while (true) {
+            int evento = xml.next();
+            if (evento == XMLStreamConstants.CHARACTERS || evento == XMLStreamConstants.CDATA
+                    || evento == XMLStreamConstants.SPACE) {
+                cadena.append(xml.getTextCharacters(), xml.getTextStart(), xml.getTextLength());
+            } else if (evento == XMLStreamConstants.START_ELEMENT && "char".equals(xml.getLocalName())) {
+                String codigo = xml.getAttributeValue(null, "code");
+                if (codigo != null) {
+                    cadena.append((char) Integer.decode(codigo).intValue());
+                    xml.nextTag();
+                } else {
+                    cadena.append(xml.getElementText());
+                }
+            } else if (evento == XMLStreamConstants.END_ELEMENT) {
+                return cadena.toString();
+            } else if (evento != XMLStreamConstants.COMMENT) {
+                throw error("Contenido no admitido en <string>");
+            }
+        }
+    }
+
+    private Object leerObjeto() throws Exception {
+        String idref = xml.getAttributeValue(null, "idref");
+        if (idref != null) {
+            if (!porId.containsKey(idref)) {
+                throw error("Referencia a un objeto no definido: " + idref);
+            }
+            xml.nextTag();
+            return porId.get(idref);
+        }
+        String clase = xml.getAttributeValue(null, "class");
+        String metodo = xml.getAttributeValue(null, "method");
+        String id = xml.getAttributeValue(null, "id");
+        if (clase == null) {
+            throw error("Objeto sin clase");
+        }
+        if (metodo != null) {
+            Object valor = leerEnum(clase, metodo);
+            if (id != null) {
+                porId.put(id, valor);
+            }
+            return valor;
+        }
+
+        Object objeto = crear(clase);
+        if (id != null && !(objeto instanceof EstudioDiagnostico)) {
+            porId.put(id, objeto);
+        }
+        while (xml.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            leerSentencia(objeto);
+        }
+        if (personas != null && (objeto instanceof Medico || objeto instanceof Paciente)) {
+            objeto = objeto instanceof Medico ? personas.medico((Medico) objeto)
+                    : personas.paciente((Paciente) objeto);
+            if (id != null) {
+                porId.put(id, objeto);
+            }
+        }
+        return objeto;
+    }
+
+    private Object leerEnum(String clase, String metodo) throws Exception {
+        if (!"java.lang.Enum".equals(clase) || !"valueOf".equals(metodo)) {
+            throw error("Constructor no admitido: " + clase + "." + metodo);
+        }
+        List<Object> argumentos = leerArgumentos();
+        if (argumentos.size() != 2 || !(argumentos.get(1) instanceof String)) {
+            throw error("Enum.valueOf necesita una clase y un nombre");
+        }
+        String nombre = (String) argumentos.get(1);
+        Object tipo = argumentos.get(0);
+        if (EspecialidadMedica.class.getName().equals(tipo)) {
+            return EspecialidadMedica.valueOf(nombre);
+        }
+        if (TecnicaAdquisicion.class.getName().equals(tipo)) {
+            return TecnicaAdquisicion.valueOf(nombre);
+        }
+        throw error("Enumerado no admitido: " + tipo);
+    }
+
+    private Object crear(String clase) throws Exception {
+        switch (clase) {
+        case "es.upm.dit.fprg.p3.EstudioDiagnostico":
+            return new EstudioDiagnostico();
+        case "es.upm.dit.fprg.p3.Medico":
+            return new Medico();
+        case "es.upm.dit.fprg.p3.Paciente":
+            return new Paciente();
+        case "es.upm.dit.fprg.p3.Muestra":
+            return new Muestra();
+        case "es.upm.dit.fprg.p3.MuestraAlmacenada":
+            return new MuestraAlmacenada();
+        case "java.util.ArrayList":
+            return new ArrayList<Muestra>();
+        case "java.util.LinkedList":
+            return new LinkedList<Muestra>();
+        case "java.util.HashMap":
+            return new HashMap<String, Integer>();
+        case "java.util.LinkedHashMap":
+            return new LinkedHashMap<String, Integer>();
+        case "java.util.TreeMap":
+            return new TreeMap<String, Integer>();
+        default:
+            throw error("Clase no admitida: " + clase);
+        }
+    }
+
+    /**
+     * Aplica al objeto la sentencia {@code <void>} que empieza en el evento
+     * actual: la asignación de una propiedad, la modificación del valor de
+     * una propiedad o una llamada a {@code add} o {@code put}.
+     */
+    private void leerSentencia(Object objeto) throws Exception {
+        if (!"void".equals(xml.getLocalName())) {
+            throw error("Se esperaba <void> y se encontró <" + xml.getLocalName() + ">");
+        }
+        String propiedad = xml.getAttributeValue(null, "property");
+        String metodo = xml.getAttributeValue(null, "method");
+        if (propiedad != null) {
+            if (!esPropiedad(objeto, propiedad)) {
+                saltar();
+                return;
+            }
+            if (xml.nextTag() == XMLStreamConstants.END_ELEMENT) {
+                return;
+            }
+            if ("void".equals(xml.getLocalName())) {
+                Object valorActual = obtener(objeto, propiedad);
+                do {
+                    leerSentencia(valorActual);
+                } while (xml.nextTag() == XMLStreamConstants.START_ELEMENT);
+                return;
+            }
+            asignar(objeto, propiedad, leerValor());
+            if (xml.nextTag() != XMLStreamConstants.END_ELEMENT) {
+                throw error("La propiedad " + propiedad + " tiene más de un valor");
+            }
+        } else if (metodo != null) {
+            invocar(objeto, metodo, leerArgumentos());
+        } else {
+            throw error("Sentencia <void> sin propiedad ni método");
+        }
+    }
+
+    /**
+     * Lee los valores hijos del elemento actual hasta su cierre.
+     */
+    private List<Object> leerArgumentos() throws Exception {
+        List<Object> argumentos = new ArrayList<>(2);
+        while (xml.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            argumentos.add(leerValor());
+        }
+        return argumentos;
+    }
+
+    /**
+     * Avanza hasta el cierre del elemento actual, ignorando su contenido.
+     */
+    private void saltar() throws Exception {
+        int profundidad = 1;
+        while (profundidad > 0) {
+            int evento = xml.next();
+            if (evento == XMLStreamConstants.START_ELEMENT) {
+                profundidad++;
+            } else if (evento == XMLStreamConstants.END_ELEMENT) {
+                profundidad--;
+            }
+        }
+    }
+
+    private static boolean esPropiedad(Object objeto, String propiedad) {
+        if (objeto instanceof EstudioDiagnostico) {
+            switch (propiedad) {
+            case "fechaInformeIso":
+            case "informador":
+            case "muestras":
+            case "paciente":
+            case "prescriptor":
+            case "resultados":
+            case "tecnica":
+            case "timestampPrescripcion":
+                return true;
+            default:
+                return false;
+            }
+        }
+        if (objeto instanceof Medico) {
+            switch (propiedad) {
+            case "centroSanitario":
+            case "colegiado":
+            case "especialidad":
+            case "nombreCompleto":
+                return true;
+            default:
+                return false;
+            }
+        }
+        if (objeto instanceof Paciente) {
+            switch (propiedad) {
+            case "anioNacimiento":
+            case "dni":
+            case "nombre":
+            case "primerApellido":
+            case "segundoApellido":
+                return true;
+            default:
+                return false;
+            }
+        }
+        if (objeto instanceof MuestraAlmacenada && "hash".equals(propiedad)) {
+            return true;
+        }
+        return objeto instanceof Muestra && "id".equals(propiedad);
+    }
+
+    private Object obtener(Object objeto, String propiedad) throws Exception {
+        if (objeto instanceof EstudioDiagnostico) {
+            EstudioDiagnostico estudio = (EstudioDiagnostico) objeto;
+            if ("muestras".equals(propiedad)) {
+                return estudio.getMuestras();
+            }
+            if ("resultados".equals(propiedad)) {
+                return estudio.getResultados();
+            }
+        }
+        throw error("La propiedad " + propiedad + " no admite sentencias");
+    }
+
+    @SuppressWarnings("unchecked")
+    private void asignar(Object objeto, String propiedad, Object valor) throws Exception {
+        try {
+            if (objeto instanceof EstudioDiagnostico) {
+                EstudioDiagnostico estudio = (EstudioDiagnostico) objeto;
+                switch (propiedad) {
+                case "fechaInformeIso":
+                    estudio.setFechaInformeIso((String) valor);
+                    break;
+                case "informador":
+                    estudio.setInformador((Medico) valor);
+                    break;
+                case "muestras":
+                    estudio.setMuestras((List<Muestra>) valor);
+                    break;
+                case "paciente":
+                    estudio.setPaciente((Paciente) valor);
+                    break;
+                case "prescriptor":
+                    estudio.setPrescriptor((Medico) valor);
+                    break;
+                case "resultados":
+                    estudio.setResultados((Map<String, Integer>) valor);
+                    break;
+                case "tecnica":
+                    estudio.setTecnica((TecnicaAdquisicion) valor);
+                    break;
+                default:
+                    estudio.setTimestampPrescripcion((Integer) valor);
+                    break;
+                }
+            } else if (objeto instanceof Medico) {
+                Medico medico = (Medico) objeto;
+                switch (propiedad) {
+                case "centroSanitario":
+                    medico.setCentroSanitario((String) valor);
+                    break;
+                case "colegiado":
+                    medico.setColegiado((String) valor);
+                    break;
+                case "especialidad":
+                    medico.setEspecialidad((EspecialidadMedica) valor);
+                    break;
+                default:
+                    medico.setNombreCompleto((String) valor);
+                    break;
+                }
+            } else if (objeto instanceof Paciente) {
+                Paciente paciente = (Paciente) objeto;
+                switch (propiedad) {
+                case "anioNacimiento":
+                    paciente.setAnioNacimiento((Integer) valor);
+                    break;
+                case "dni":
+                    paciente.setDni((String) valor);
+                    break;
+                case "nombre":
+                    paciente.setNombre((String) valor);
+                    break;
+                case "primerApellido":
+                    paciente.setPrimerApellido((String) valor);
+                    break;
+                default:
+                    paciente.setSegundoApellido((String) valor);
+                    break;
+                }
+            } else if ("hash".equals(propiedad)) {
+                ((MuestraAlmacenada) objeto).setHash((String) valor);
+            } else {
+                ((Muestra) objeto).setId((String) valor);
+            }
+        } catch (ClassCastException | NullPointerException e) {
+            throw error("Valor no válido para la propiedad " + propiedad);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void invocar(Object objeto, String metodo, List<Object> argumentos) throws Exception {
+        if ("add".equals(metodo) && objeto instanceof List && argumentos.size() == 1
+                && (argumentos.get(0) == null || argumentos.get(0) instanceof Muestra)) {
+            ((List<Muestra>) objeto).add((Muestra) argumentos.get(0));
+        } else if ("put".equals(metodo) && objeto instanceof Map && argumentos.size() == 2
+                && (argumentos.get(0) == null || argumentos.get(0) instanceof String)
+                && (argumentos.get(1) == null || argumentos.get(1) instanceof Integer)) {
+            ((Map<String, Integer>) objeto).put((String) argumentos.get(0), (Integer) argumentos.get(1));
+        } else {
+            throw error("Llamada no admitida: " + metodo + " con " + argumentos.size() + " argumentos");
+        }
+    }
+
+    private Exception error(String mensaje) {
+        return new Exception(mensaje + " (línea " + xml.getLocation().getLineNumber() + ").");
+    }
+}
@@ -0,0 +1,245 @@
+package es.upm.dit.fprg.p3;
+
+import java.util.AbstractList;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Lista a la que varios hilos pueden añadir elementos a la vez sin cerrojos,
+ * usada por {@link EstudioDiagnostico} para sus muestras.
+ * <p>
+ * Los elementos se guardan en segmentos de tamaño creciente (el primero de
+ * {@code 2^BITS_PRIMERO} posiciones y cada uno el doble que el anterior), así
+ * que crecer nunca copia los elementos ya añadidos. Cada
+ * {@link #add(Object)} reserva una posición con un incremento atómico, guarda
+ * el elemento y avanza el número de elementos publicados mientras las
+ * posiciones siguientes estén ocupadas: {@link #size()} es siempre la
+ * longitud del prefijo completo, aunque los hilos terminen en otro orden.
+ * Los lectores ven los elementos en el orden de sus posiciones, que es el de
+ * las reservas, no el de las llamadas.
+ * </p>
+ * <p>
+ * Una lista vacía solo ocupa el objeto: los contadores son campos volátiles
+ * y los segmentos se crean al añadir el primer elemento.
+ * </p>
+ * <p>
+ * Admite todas las operaciones de {@link List}, también con elementos
+ * nulos, que se guardan como un marcador para distinguirlos de las
+ * posiciones aún vacías. Solo añadir al final puede hacerse desde varios hilos a la vez; las
+ * demás modificaciones (sustituir, insertar o eliminar elementos) necesitan,
+ * como en {@link java.util.ArrayList}, que ningún otro hilo use la lista
+ * mientras se hacen. {@link #instantanea()} devuelve, sin copiar, una vista
+ * de los elementos publicados hasta ese momento que no cambia aunque se
+ * sigan añadiendo, pero sí si se modifican.
+ * </p>
+ *
+ * @param <E> tipo de los elementos
+ */
+final class ListaConcurrente<E> extends AbstractList<E> implements RandomAccess {
+
+    private static final int BITS_PRIMERO = 4;
+    private static final int NUM_SEGMENTOS = 32 - BITS_PRIMERO;
+    private static final int CAPACIDAD = Integer.MAX_VALUE - (1 << BITS_PRIMERO);
+
+    @SuppressWarnings("rawtypes")
+    private static final AtomicIntegerFieldUpdater<ListaConcurrente> RESERVADOS =
+            AtomicIntegerFieldUpdater.newUpdater(ListaConcurrente.class, "reservados");
+    @SuppressWarnings("rawtypes")
+    private static final AtomicIntegerFieldUpdater<ListaConcurrente> PUBLICADOS =
+            AtomicIntegerFieldUpdater.newUpdater(ListaConcurrente.class, "publicados");
+
+    /** Sustituye a los elementos nulos en los segmentos. */
+    private static final Object NULO = new Object();
+
+    private volatile AtomicReferenceArray<AtomicReferenceArray<Object>> segmentos;
+    private volatile int reservados;
+    private volatile int publicados;
+
+    /**
+     * Añade un elemento al final. Puede llamarse desde varios hilos a la vez.
+     *
+     * @param elemento elemento que añadir
+     * @return {@code true}
+     * @throws IllegalStateException si la lista está llena
+     */
+    @Override
+    public boolean add(E elemento) {
+        int posicion = RESERVADOS.getAndIncrement(this);
+        if (posicion < 0 || posicion >= CAPACIDAD) {
+            RESERVADOS.decrementAndGet(this);
+            throw new IllegalStateException("La lista está llena.");
+        }
+        segmento(posicion).set(desplazamiento(posicion), elemento == null ? NULO : elemento);
+        // Avanza el prefijo publicado sobre las posiciones ya ocupadas,
+        // incluidas las que otros hilos llenaron antes que esta
+        int publicado = publicados;
+        while (ocupada(publicado)) {
+            PUBLICADOS.compareAndSet(this, publicado, publicado + 1);
+            publicado = publicados;
+        }
+        return true;
+    }
+
+    @Override
+    public E get(int indice) {
+        if (indice < 0 || indice >= publicados) {
+            throw new IndexOutOfBoundsException("Índice " + indice + " fuera de la lista.");
+        }
+        return elemento(indice);
+    }
+
+    @Override
+    public int size() {
+        return publicados;
+    }
+
+    @Override
+    public E set(int indice, E elemento) {
+        E anterior = get(indice);
+        guardar(indice, elemento);
+        return anterior;
+    }
+
+    @Override
+    public void add(int indice, E elemento) {
+        int tam = publicados;
+        if (indice < 0 || indice > tam) {
+            throw new IndexOutOfBoundsException("Índice " + indice + " fuera de la lista.");
+        }
+        if (indice == tam) {
+            add(elemento);
+            return;
+        }
+        // Desplaza una posición los elementos desde el índice, empezando por
+        // duplicar el último al final
+        add(elemento(tam - 1));
+        for (int i = tam - 1; i > indice; i--) {
+            guardar(i, elemento(i - 1));
+        }
+        guardar(indice, elemento);
+        modCount++;
+    }
+
+    @Override
+    public E remove(int indice) {
+        E eliminado = get(indice);
+        removeRange(indice, indice + 1);
+        return eliminado;
+    }
+
+    @Override
+    public void clear() {
+        removeRange(0, publicados);
+    }
+
+    @Override
+    protected void removeRange(int desde, int hasta) {
+        int tam = publicados;
+        if (desde < 0 || hasta > tam || desde > hasta) {
+            throw new IndexOutOfBoundsException("Rango " + desde + "-" + hasta + " fuera de la lista.");
+        }
+        if (desde == hasta) {
+            return;
+        }
+        int nuevoTam = tam - (hasta - desde);
+        for (int i = desde; i < nuevoTam; i++) {
+            guardar(i, elemento(i + hasta - desde));
+        }
+        // Se reducen los contadores antes de vaciar las posiciones para que
+        // size() nunca incluya una posición vacía
+        PUBLICADOS.set(this, nuevoTam);
+        RESERVADOS.set(this, nuevoTam);
+        for (int i = nuevoTam; i < tam; i++) {
+            segmentos.get(numSegmento(i)).set(desplazamiento(i), null);
+        }
+        modCount++;
+    }
+
+    /**
+     * Devuelve una vista inmutable de los elementos publicados hasta ahora.
+     * Los elementos que se añadan después no aparecen en ella.
+     *
+     * @return vista de la lista con su tamaño actual
+     */
+    List<E> instantanea() {
+        return new Instantanea(publicados);
+    }
+
+    private boolean ocupada(int posicion) {
+        AtomicReferenceArray<AtomicReferenceArray<Object>> actuales = segmentos;
+        if (actuales == null || posicion >= CAPACIDAD) {
+            return false;
+        }
+        AtomicReferenceArray<Object> segmento = actuales.get(numSegmento(posicion));
+        return segmento != null && segmento.get(desplazamiento(posicion)) != null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private E elemento(int posicion) {
+        Object elemento = segmentos.get(numSegmento(posicion)).get(desplazamiento(posicion));
+        return elemento == NULO ? null : (E) elemento;
+    }
+
+    private void guardar(int posicion, E elemento) {
+        segmentos.get(numSegmento(posicion)).set(desplazamiento(posicion), elemento == null ? NULO : elemento);
+    }
+
+    /**
+     * Devuelve el segmento de la posición indicada, creándolo si no existe.
+     * Si dos hilos lo crean a la vez, ambos usan el primero que se publica.
+     */
+    private AtomicReferenceArray<Object> segmento(int posicion) {
+        AtomicReferenceArray<AtomicReferenceArray<Object>> actuales = segmentos;
+        if (actuales == null) {
+            synchronized (this) {
+                if (segmentos == null) {
+                    segmentos = new AtomicReferenceArray<>(NUM_SEGMENTOS);
+                }
+                actuales = segmentos;
+            }
+        }
+        int s = numSegmento(posicion);
+        AtomicReferenceArray<Object> segmento = actuales.get(s);
+        if (segmento == null) {
+            actuales.compareAndSet(s, null, new AtomicReferenceArray<>(1 << (s + BITS_PRIMERO)));
+            segmento = actuales.get(s);
+        }
+        return segmento;
+    }
+
+    private static int numSegmento(int posicion) {
+        return 31 - Integer.numberOfLeadingZeros(posicion + (1 << BITS_PRIMERO)) - BITS_PRIMERO;
+    }
+
+    private static int desplazamiento(int posicion) {
+        int desplazada = posicion + (1 << BITS_PRIMERO);
+        return desplazada - Integer.highestOneBit(desplazada);
+    }
+
+    /**
+     * Vista de los primeros {@code tam} elementos, que ya están publicados y
+     * no cambian.
+     */
+    private final class Instantanea extends AbstractList<E> implements RandomAccess {
+        private final int tam;
+
+        Instantanea(int tam) {
+            this.tam = tam;
+        }
+
+        @Override
+        public E get(int indice) {
+            if (indice < 0 || indice >= tam) {
+                throw new IndexOutOfBoundsException("Índice " + indice + " fuera de la lista.");
+            }
+            return elemento(indice);
+        }
+
+        @Override
+        public int size() {
+            return tam;
+        }
+    }
+}
@@ -0,0 +1,378 @@
+package es.upm.dit.fprg.p3;
+
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * Máscara de detecciones bidimensional empaquetada en palabras {@code long},
+ * con un bit por píxel y las filas alineadas a palabra.
+ * <p>
+ * Ocupa ocho veces menos memoria que una matriz {@code boolean[][]} (un byte
+ * por píxel más una cabecera por fila) y permite combinar máscaras y contar
+ * sus píxeles palabra a palabra: la unión, la intersección y la diferencia
+ * procesan 64 píxeles por operación y el recuento usa
+ * {@link Long#bitCount(long)}.
+ * </p>
+ * <p>
+ * Los reconocedores la devuelven con
+ * {@link ReconocedorImagen#detectarMascara(Muestra)}. Para el código que
+ * trabaja con {@code boolean[][]} se ofrecen los adaptadores
+ * {@link #desdeMatriz(boolean[][])} y {@link #aMatriz()}.
+ * </p>
+ * <p>
+ * Los bits de relleno de la última palabra de cada fila (columnas
+ * {@code >= ancho}) se mantienen siempre a cero, de modo que los recuentos y
+ * las comparaciones pueden hacerse sobre palabras completas.
+ * </p>
+ * <p>
+ * Esta clase no es segura para hilos: si varios hilos marcan la misma máscara,
+ * deben hacerlo sobre filas cuyas palabras no compartan.
+ * </p>
+ */
+public final class Mascara {
+
+    private final int alto;
+    private final int ancho;
+    private final int palabrasPorFila;
+    private final long[] palabras;
+
+    /**
+     * Crea una máscara vacía sin validar las dimensiones. Lo utilizan los
+     * reconocedores, que ya han validado la muestra.
+     *
+     * @param alto número de filas
+     * @param ancho número de columnas
+     */
+    Mascara(int alto, int ancho) {
+        this.alto = alto;
+        this.ancho = ancho;
+        this.palabrasPorFila = (ancho + 63) >>> 6;
+        this.palabras = new long[alto * palabrasPorFila];
+    }
+
+    /**
+     * Crea una máscara vacía con las dimensiones indicadas.
+     *
+     * @param alto número de filas
+     * @param ancho número de columnas
+     * @return máscara sin ningún píxel marcado
+     * @throws Exception si alguna dimensión no es positiva o la máscara es
+     *                   demasiado grande
+     */
+    public static Mascara vacia(int alto, int ancho) throws Exception {
+        if (alto <= 0 || ancho <= 0) {
+            throw new Exception("Las dimensiones de la máscara deben ser mayores que 0.");
+        }
+        if ((long) alto * ((ancho + 63) >>> 6) > Integer.MAX_VALUE) {
+            throw new Exception("La máscara es demasiado grande.");
+        }
+        return new Mascara(alto, ancho);
+    }
+
+    /**
+     * Crea una máscara con los píxeles marcados en una matriz booleana.
+     *
+     * @param matriz matriz rectangular, {@code true} en los píxeles marcados
+     * @return máscara equivalente
+     * @throws Exception si la matriz es nula, está vacía, tiene filas nulas o
+     *                   no es rectangular
+     */
+    public static Mascara desdeMatriz(boolean[][] matriz) throws Exception {
+        if (matriz == null || matriz.length == 0 || matriz[0] == null) {
+            throw new Exception("La matriz no puede ser nula ni estar vacía.");
+        }
+        Mascara mascara = vacia(matriz.length, matriz[0].length);
+        for (int fila = 0; fila < matriz.length; fila++) {
+            if (matriz[fila] == null || matriz[fila].length != mascara.ancho) {
+                throw new Exception("La matriz debe ser rectangular.");
+            }
+            int base = fila * mascara.palabrasPorFila;
+            for (int col = 0; col < mascara.ancho; col++) {
+                if (matriz[fila][col]) {
+                    mascara.palabras[base + (col >>> 6)] |= 1L << col;
+                }
+            }
+        }
+        return mascara;
+    }
+
+    /**
+     * Devuelve el número de filas de la máscara.
+     *
+     * @return alto en píxeles
+     */
+    public int getAlto() {
+        return alto;
+    }
+
+    /**
+     * Devuelve el número de columnas de la máscara.
+     *
+     * @return ancho en píxeles
+     */
+    public int getAncho() {
+        return ancho;
+    }
+
+    /**
+     * Devuelve la memoria ocupada por los bits de la máscara, sin contar las
+     * cabeceras de los objetos.
+     *
+     * @return bytes de las palabras que almacenan los píxeles
+     */
+    public long getBytesDatos() {
+        return (long) palabras.length * Long.BYTES;
+    }
+
+    /**
+     * Marca un píxel.
+     *
+     * @param fila fila del píxel
+     * @param col columna del píxel
+     * @throws IndexOutOfBoundsException si el píxel está fuera de la máscara
+     */
+    public void marcar(int fila, int col) {
+        Objects.checkIndex(fila, alto);
+        Objects.checkIndex(col, ancho);
+        palabras[fila * palabrasPorFila + (col >>> 6)] |= 1L << col;
+    }
+
+    /**
+     * Desmarca un píxel.
+     *
+     * @param fila fila del píxel
+     * @param col columna del píxel
+     * @throws IndexOutOfBoundsException si el píxel está fuera de la máscara
+     */
+    public void desmarcar(int fila, int col) {
+        Objects.checkIndex(fila, alto);
+        Objects.checkIndex(col, ancho);
+        palabras[fila * palabrasPorFila + (col >>> 6)] &= ~(1L << col);
+    }
+
+    /**
+     * Indica si un píxel está marcado.
+     *
+     * @param fila fila del píxel
+     * @param col columna del píxel
+     * @return {@code true} si el píxel está marcado
+     * @throws IndexOutOfBoundsException si el píxel está fuera de la máscara
+     */
+    public boolean estaMarcado(int fila, int col) {
+        Objects.checkIndex(fila, alto);
+        Objects.checkIndex(col, ancho);
+        return (palabras[fila * palabrasPorFila + (col >>> 6)] & (1L << col)) != 0;
+    }
+
+    /**
+     * Añade a esta máscara los píxeles marcados en otra (OR palabra a
+     * palabra).
+     *
+     * @param otra máscara de las mismas dimensiones
+     * @return esta máscara, modificada
+     * @throws Exception si la otra máscara es nula o de dimensiones distintas
+     */
+    public Mascara unir(Mascara otra) throws Exception {
+        comprobarDimensiones(otra);
+        unir(otra, 0, alto);
+        return this;
+    }
+
+    /**
+     * Deja marcados solo los píxeles que también lo están en otra máscara
+     * (AND palabra a palabra).
+     *
+     * @param otra máscara de las mismas dimensiones
+     * @return esta máscara, modificada
+     * @throws Exception si la otra máscara es nula o de dimensiones distintas
+     */
+    public Mascara intersecar(Mascara otra) throws Exception {
+        comprobarDimensiones(otra);
+        for (int i = 0; i < palabras.length; i++) {
+            palabras[i] &= otra.palabras[i];
+        }
+        return this;
+    }
+
+    /**
+     * Desmarca los píxeles que están marcados en otra máscara (AND NOT
+     * palabra a palabra).
+     *
+     * @param otra máscara de las mismas dimensiones
+     * @return esta máscara, modificada
+     * @throws Exception si la otra máscara es nula o de dimensiones distintas
+     */
+    public Mascara restar(Mascara otra) throws Exception {
+        comprobarDimensiones(otra);
+        for (int i = 0; i < palabras.length; i++) {
+            palabras[i] &= ~otra.palabras[i];
+        }
+        return this;
+    }
+
+    /**
+     * Añade a esta máscara los bits marcados en otra de las mismas dimensiones,
+     * limitándose al rango de filas indicado (OR palabra a palabra).
+     *
+     * @param otra máscara cuyos bits se añaden
+     * @param filaInicio primera fila a combinar
+     * @param filaFin fila siguiente a la última a combinar
+     */
+    void unir(Mascara otra, int filaInicio, int filaFin) {
+        for (int i = filaInicio * palabrasPorFila; i < filaFin * palabrasPorFila; i++) {
+            palabras[i] |= otra.palabras[i];
+        }
+    }
+
+    /**
+     * Cuenta los píxeles marcados en el rango de filas indicado.
+     *
+     * @param filaInicio primera fila a contar
+     * @param filaFin fila siguiente a la última a contar
+     * @return número de píxeles marcados
+     */
+    int contar(int filaInicio, int filaFin) {
+        int contador = 0;
+        for (int i = filaInicio * palabrasPorFila; i < filaFin * palabrasPorFila; i++) {
+            contador += Long.bitCount(palabras[i]);
+        }
+        return contador;
+    }
+
+    /**
+     * Cuenta todos los píxeles marcados.
+     *
+     * @return número de píxeles marcados
+     */
+    public int contar() {
+        return contar(0, alto);
+    }
+
+    /**
+     * Cuenta los píxeles marcados de una fila.
+     *
+     * @param fila fila a contar
+     * @return número de píxeles marcados en la fila
+     * @throws IndexOutOfBoundsException si la fila está fuera de la máscara
+     */
+    public int contarFila(int fila) {
+        Objects.checkIndex(fila, alto);
+        return contar(fila, fila + 1);
+    }
+
+    /**
+     * Indica si no hay ningún píxel marcado.
+     *
+     * @return {@code true} si la máscara está vacía
+     */
+    public boolean estaVacia() {
+        for (long palabra : palabras) {
+            if (palabra != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Busca el siguiente píxel marcado de una fila.
+     * <p>
+     * Permite recorrer los píxeles marcados de la fila saltando las palabras
+     * vacías:
+     * </p>
+     * <pre>
+     * for (int col = m.siguienteMarcado(fila, 0); col &gt;= 0; col = m.siguienteMarcado(fila, col + 1)) {
+     *     ...
+     * }
+     * </pre>
+     *
+     * @param fila fila en la que se busca
+     * @param desde primera columna a considerar
+     * @return columna del primer píxel marcado en {@code [desde, ancho)}, o
+     *         {@code -1} si no hay ninguno
+     * @throws IndexOutOfBoundsException si la fila está fuera de la máscara o
+     *                                   {@code desde} es negativo
+     */
+    public int siguienteMarcado(int fila, int desde) {
+        Objects.checkIndex(fila, alto);
+        if (desde < 0) {
+            throw new IndexOutOfBoundsException("Columna negativa: " + desde);
+        }
+        if (desde >= ancho) {
+            return -1;
+        }
+        int base = fila * palabrasPorFila;
+        int p = desde >>> 6;
+        long palabra = palabras[base + p] & (-1L << desde);
+        while (palabra == 0) {
+            if (++p == palabrasPorFila) {
+                return -1;
+            }
+            palabra = palabras[base + p];
+        }
+        return (p << 6) + Long.numberOfTrailingZeros(palabra);
+    }
+
+    /**
+     * Devuelve una copia independiente de la máscara.
+     *
+     * @return nueva máscara con los mismos píxeles marcados
+     */
+    public Mascara copia() {
+        Mascara copia = new Mascara(alto, ancho);
+        System.arraycopy(palabras, 0, copia.palabras, 0, palabras.length);
+        return copia;
+    }
+
+    /**
+     * Convierte la máscara en una matriz booleana, recorriendo solo los bits
+     * marcados de cada palabra.
+     *
+     * @return matriz {@code boolean[alto][ancho]} equivalente
+     */
+    public boolean[][] aMatriz() {
+        boolean[][] mascara = new boolean[alto][ancho];
+        for (int fila = 0; fila < alto; fila++) {
+            int base = fila * palabrasPorFila;
+            for (int p = 0; p < palabrasPorFila; p++) {
+                long palabra = palabras[base + p];
+                while (palabra != 0) {
+                    mascara[fila][(p << 6) + Long.numberOfTrailingZeros(palabra)] = true;
+                    palabra &= palabra - 1;
+                }
+            }
+        }
+        return mascara;
+    }
+
+    private void comprobarDimensiones(Mascara otra) throws Exception {
+        if (otra == null) {
+            throw new Exception("La máscara no puede ser nula.");
+        }
+        if (otra.alto != alto || otra.ancho != ancho) {
+            throw new Exception("Las máscaras deben tener las mismas dimensiones.");
+        }
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof Mascara)) {
+            return false;
+        }
+        Mascara otra = (Mascara) obj;
+        return alto == otra.alto && ancho == otra.ancho && Arrays.equals(palabras, otra.palabras);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (31 * alto + ancho) + Arrays.hashCode(palabras);
+    }
+
+    @Override
+    public String toString() {
+        return "Mascara [alto=" + alto + ", ancho=" + ancho + ", marcados=" + contar() + "]";
+    }
+}
@@ -0,0 +1,185 @@
+package es.upm.dit.fprg.p3;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Medidas de una detección: aplicación de un reconocedor sobre una muestra.
+ * <p>
+ * El {@link AnalizadorDiagnostico} rellena el elemento, la muestra, el tiempo
+ * transcurrido, los bytes reservados y el resultado. El reconocedor rellena,
+ * en {@link ReconocedorImagen#contarDetecciones(Muestra, Plazo, MedidaDeteccion)},
+ * el trabajo realizado: píxeles examinados y, en los reconocedores de
+ * ventana deslizante, ventanas probadas y celdas comparadas antes de
+ * descartar cada ventana (profundidad de salida temprana).
+ * </p>
+ */
+public final class MedidaDeteccion {
+
+    private static final ThreadMXBean HILOS = ManagementFactory.getThreadMXBean();
+
+    private final String elemento;
+    private final String muestra;
+    private long nanos;
+    private long bytesReservados;
+    private int positivos;
+    private boolean completa;
+    private long pixelesExaminados;
+    private long ventanasProbadas;
+    private long celdasComparadas;
+
+    /**
+     * Crea una medida vacía para una detección.
+     *
+     * @param elemento nombre del elemento buscado
+     * @param muestra identificador de la muestra analizada
+     */
+    MedidaDeteccion(String elemento, String muestra) {
+        this.elemento = elemento;
+        this.muestra = muestra;
+        this.completa = true;
+    }
+
+    /**
+     * Devuelve el nombre del elemento buscado.
+     *
+     * @return nombre del elemento
+     */
+    public String getElemento() {
+        return elemento;
+    }
+
+    /**
+     * Devuelve el identificador de la muestra analizada.
+     *
+     * @return identificador de la muestra
+     */
+    public String getMuestra() {
+        return muestra;
+    }
+
+    /**
+     * Devuelve el tiempo de reloj que tardó la detección.
+     *
+     * @return tiempo en nanosegundos
+     */
+    public long getNanos() {
+        return nanos;
+    }
+
+    /**
+     * Devuelve los bytes reservados en el hilo que realizó la detección. Las
+     * reservas de otros hilos (por ejemplo, las del motor lineal paralelo) no
+     * se incluyen.
+     *
+     * @return bytes reservados, o 0 si la máquina virtual no ofrece la medida
+     */
+    public long getBytesReservados() {
+        return bytesReservados;
+    }
+
+    /**
+     * Devuelve el número de píxeles positivos obtenidos.
+     *
+     * @return píxeles positivos (parcial si la detección no está completa)
+     */
+    public int getPositivos() {
+        return positivos;
+    }
+
+    /**
+     * Indica si la detección terminó o fue interrumpida por su plazo.
+     *
+     * @return {@code true} si la detección se completó
+     */
+    public boolean isCompleta() {
+        return completa;
+    }
+
+    /**
+     * Devuelve el número de píxeles de la muestra que recorrió el reconocedor.
+     *
+     * @return píxeles examinados
+     */
+    public long getPixelesExaminados() {
+        return pixelesExaminados;
+    }
+
+    /**
+     * Devuelve el número de posiciones de la ventana deslizante evaluadas.
+     *
+     * @return ventanas probadas, o 0 si el reconocedor no usa ventanas
+     */
+    public long getVentanasProbadas() {
+        return ventanasProbadas;
+    }
+
+    /**
+     * Devuelve el número total de celdas definidas del patrón comparadas con
+     * la muestra en todas las ventanas.
+     *
+     * @return celdas comparadas, o 0 si el reconocedor no usa ventanas
+     */
+    public long getCeldasComparadas() {
+        return celdasComparadas;
+    }
+
+    /**
+     * Devuelve la profundidad media de salida temprana: celdas comparadas por
+     * ventana antes de descartarla o de confirmar la coincidencia.
+     *
+     * @return celdas comparadas por ventana, o 0 si no hay ventanas
+     */
+    public double getProfundidadMedia() {
+        return ventanasProbadas == 0 ? 0 : (double) celdasComparadas / ventanasProbadas;
+    }
+
+    /**
+     * Añade trabajo realizado por el reconocedor. Lo llaman los reconocedores
+     * desde {@link ReconocedorImagen#contarDetecciones(Muestra, Plazo, MedidaDeteccion)}.
+     *
+     * @param pixeles píxeles examinados
+     * @param ventanas ventanas probadas
+     * @param celdas celdas del patrón comparadas
+     */
+    public void sumarTrabajo(long pixeles, long ventanas, long celdas) {
+        this.pixelesExaminados += pixeles;
+        this.ventanasProbadas += ventanas;
+        this.celdasComparadas += celdas;
+    }
+
+    /**
+     * Registra el resultado y los recursos consumidos por la detección.
+     *
+     * @param nanos tiempo transcurrido
+     * @param bytesReservados bytes reservados por el hilo
+     * @param positivos píxeles positivos
+     * @param completa si la detección terminó
+     */
+    void finalizar(long nanos, long bytesReservados, int positivos, boolean completa) {
+        this.nanos = nanos;
+        this.bytesReservados = bytesReservados;
+        this.positivos = positivos;
+        this.completa = completa;
+    }
+
+    /**
+     * Devuelve los bytes reservados hasta el momento por el hilo actual, o 0
+     * si la máquina virtual no ofrece esta medida.
+     */
+    static long bytesReservadosHilo() {
+        if (HILOS instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) HILOS).getThreadAllocatedBytes(
+                    Thread.currentThread().getId());
+        }
+        return 0;
+    }
+
+    @Override
+    public String toString() {
+        return "MedidaDeteccion [elemento=" + elemento + ", muestra=" + muestra + ", nanos=" + nanos
+                + ", bytes=" + bytesReservados + ", positivos=" + positivos + ", completa=" + completa
+                + ", pixeles=" + pixelesExaminados + ", ventanas=" + ventanasProbadas
+                + ", celdas=" + celdasComparadas + "]";
+    }
+}
@@ -0,0 +1,166 @@
+package es.upm.dit.fprg.p3;
+
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Implementación por defecto de {@link ObservadorDeteccion}: acumula, para
+ * cada elemento microscópico, un {@link HistogramaLatencias} con la duración
+ * de sus detecciones y el total de trabajo realizado (píxeles, ventanas,
+ * celdas comparadas y bytes reservados).
+ * <p>
+ * El registro de cada medida no usa bloqueos: contadores {@link LongAdder} y
+ * el histograma del elemento, creados la primera vez que aparece cada
+ * nombre. Los resultados se consultan en cualquier momento, incluso mientras
+ * se siguen registrando medidas.
+ * </p>
+ */
+public class MetricasDeteccion implements ObservadorDeteccion {
+
+    private final ConcurrentHashMap<String, Acumulado> porElemento;
+
+    /**
+     * Crea un registro de métricas vacío.
+     */
+    public MetricasDeteccion() {
+        this.porElemento = new ConcurrentHashMap<>();
+    }
+
+    @Override
+    public void deteccionRealizada(MedidaDeteccion medida) {
+        Acumulado acumulado = porElemento.get(medida.getElemento());
+        if (acumulado == null) {
+            acumulado = porElemento.computeIfAbsent(medida.getElemento(), k -> new Acumulado());
+        }
+        acumulado.latencias.registrar(medida.getNanos());
+        acumulado.detecciones.increment();
+        if (!medida.isCompleta()) {
+            acumulado.interrumpidas.increment();
+        }
+        acumulado.pixeles.add(medida.getPixelesExaminados());
+        acumulado.ventanas.add(medida.getVentanasProbadas());
+        acumulado.celdas.add(medida.getCeldasComparadas());
+        acumulado.bytes.add(medida.getBytesReservados());
+    }
+
+    /**
+     * Devuelve los nombres de los elementos con alguna detección registrada.
+     *
+     * @return nombres ordenados alfabéticamente
+     */
+    public Set<String> getElementos() {
+        return new TreeSet<>(porElemento.keySet());
+    }
+
+    /**
+     * Devuelve una instantánea del histograma de latencias (en nanosegundos)
+     * de un elemento.
+     *
+     * @param elemento nombre del elemento
+     * @return instantánea del histograma
+     * @throws Exception si no hay detecciones registradas para el elemento
+     */
+    public HistogramaLatencias.Instantanea getLatencias(String elemento) throws Exception {
+        return acumulado(elemento).latencias.instantanea();
+    }
+
+    /**
+     * Devuelve el número de detecciones registradas para un elemento.
+     *
+     * @param elemento nombre del elemento
+     * @return número de detecciones (incluidas las interrumpidas)
+     * @throws Exception si no hay detecciones registradas para el elemento
+     */
+    public long getDetecciones(String elemento) throws Exception {
+        return acumulado(elemento).detecciones.sum();
+    }
+
+    /**
+     * Devuelve el número de detecciones de un elemento interrumpidas por
+     * agotarse su plazo.
+     *
+     * @param elemento nombre del elemento
+     * @return número de detecciones interrumpidas
+     * @throws Exception si no hay detecciones registradas para el elemento
+     */
+    public long getInterrumpidas(String elemento) throws Exception {
+        return acumulado(elemento).interrumpidas.sum();
+    }
+
+    /**
+     * Devuelve el total de píxeles examinados al buscar un elemento.
+     *
+     * @param elemento nombre del elemento
+     * @return píxeles examinados
+     * @throws Exception si no hay detecciones registradas para el elemento
+     */
+    public long getPixelesExaminados(String elemento) throws Exception {
+        return acumulado(elemento).pixeles.sum();
+    }
+
+    /**
+     * Devuelve el total de ventanas probadas al buscar un elemento.
+     *
+     * @param elemento nombre del elemento
+     * @return ventanas probadas
+     * @throws Exception si no hay detecciones registradas para el elemento
+     */
+    public long getVentanasProbadas(String elemento) throws Exception {
+        return acumulado(elemento).ventanas.sum();
+    }
+
+    /**
+     * Devuelve la profundidad media de salida temprana de un elemento: celdas
+     * comparadas por ventana probada.
+     *
+     * @param elemento nombre del elemento
+     * @return celdas por ventana, o 0 si el reconocedor no usa ventanas
+     * @throws Exception si no hay detecciones registradas para el elemento
+     */
+    public double getProfundidadMedia(String elemento) throws Exception {
+        Acumulado acumulado = acumulado(elemento);
+        long ventanas = acumulado.ventanas.sum();
+        return ventanas == 0 ? 0 : (double) acumulado.celdas.sum() / ventanas;
+    }
+
+    /**
+     * Devuelve el total de bytes reservados al buscar un elemento.
+     *
+     * @param elemento nombre del elemento
+     * @return bytes reservados
+     * @throws Exception si no hay detecciones registradas para el elemento
+     */
+    public long getBytesReservados(String elemento) throws Exception {
+        return acumulado(elemento).bytes.sum();
+    }
+
+    /**
+     * Elimina todas las métricas registradas.
+     */
+    public void reiniciar() {
+        porElemento.clear();
+    }
+
+    private Acumulado acumulado(String elemento) throws Exception {
+        Acumulado acumulado = porElemento.get(elemento);
+        if (acumulado == null) {
+            throw new Exception("No hay detecciones registradas para " + elemento);
+        }
+        return acumulado;
+    }
+
+    /**
+     * Métricas acumuladas de un elemento.
+     */
+    private static final class Acumulado {
+        private final HistogramaLatencias latencias = new HistogramaLatencias();
+        private final LongAdder detecciones = new LongAdder();
+        private final LongAdder interrumpidas = new LongAdder();
+        private final LongAdder pixeles = new LongAdder();
+        private final LongAdder ventanas = new LongAdder();
+        private final LongAdder celdas = new LongAdder();
+        private final LongAdder bytes = new LongAdder();
+    }
+}
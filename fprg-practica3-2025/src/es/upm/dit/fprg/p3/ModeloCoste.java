@@ -0,0 +1,396 @@
+package es.upm.dit.fprg.p3;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Random;
+import java.util.WeakHashMap;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Modelo que estima el tiempo que tarda un reconocedor en analizar una
+ * muestra, utilizado por {@link AnalizadorDiagnostico} para elegir el motor
+ * de detección más rápido de cada par (muestra, reconocedor) y para lanzar
+ * primero los pares más costosos.
+ * <p>
+ * <strong>Variables del modelo:</strong>
+ * </p>
+ * <ul>
+ *   <li>{@link ReconocedorPatron}: número de ventanas
+ *       ({@code (altoMuestra - altoPatron + 1) * (anchoMuestra - anchoPatron + 1)})
+ *       por el número esperado de celdas del patrón que se examinan en cada
+ *       ventana antes del primer fallo. Este último depende del área del
+ *       patrón, de la densidad de celdas definidas y de la frecuencia en la
+ *       muestra de los colores que exige el patrón</li>
+ *   <li>{@link ReconocedorLineal}: número de píxeles y fracción {@code f} de
+ *       ellos cuyo color está en el rango de la fibrilla (selectividad). El
+ *       coste por píxel crece con {@code f * (1 - f)}: cuanto más mezclados
+ *       están los píxeles en rango y fuera de él, más saltos se predicen mal
+ *       al recorrer los tramos</li>
+ * </ul>
+ * <p>
+ * Las frecuencias de color de cada muestra se estiman con un submuestreo de
+ * como mucho {@value #PIXELES_HISTOGRAMA} píxeles y se recuerdan mediante
+ * referencias débiles.
+ * </p>
+ * <p>
+ * Los coeficientes (nanosegundos por unidad de trabajo) se obtienen con
+ * {@link #calibrar(ForkJoinPool)}, que ejecuta un breve micro-benchmark sobre
+ * muestras sintéticas en la máquina actual.
+ * </p>
+ */
+public class ModeloCoste {
+
+    /** Número máximo de píxeles examinados para estimar las frecuencias de color. */
+    private static final int PIXELES_HISTOGRAMA = 4096;
+
+    /** Número de colores distintos de una muestra. */
+    private static final int COLORES = 16;
+
+    /** Repeticiones de cada medida de calibración (se toma la mejor). */
+    private static final int REPETICIONES_CALIBRADO = 5;
+
+
+    private final ForkJoinPool pool;
+    private final double nsPorCeldaPatron;
+    private final double nsPorVentanaPatron;
+    private final double nsPorPixelLineal;
+    private final double nsPorPixelMezclaLineal;
+    private final double factorParalelo;
+    private final double nsFijosParalelo;
+
+    private final Map<Muestra, double[]> histogramas;
+    private final Map<ReconocedorImagen, ReconocedorLineal[]> motoresLineales;
+
+    /**
+     * Crea un modelo con coeficientes conocidos.
+     *
+     * @param pool pool en el que se ejecuta el motor lineal paralelo
+     * @param nsPorCeldaPatron coste de examinar una celda del patrón
+     * @param nsPorVentanaPatron coste fijo de cada posición de la ventana
+     * @param nsPorPixelLineal coste por píxel del motor lineal secuencial
+     * @param nsPorPixelMezclaLineal coste adicional por píxel del motor lineal
+     *                               secuencial, multiplicado por
+     *                               {@code f * (1 - f)}
+     * @param factorParalelo cociente entre el coste variable del motor lineal
+     *                       paralelo (con todos los hilos del pool) y el del
+     *                       secuencial
+     * @param nsFijosParalelo coste fijo de cada ejecución del motor paralelo
+     * @throws Exception si el pool es nulo o algún coeficiente es negativo
+     */
+    public ModeloCoste(ForkJoinPool pool, double nsPorCeldaPatron, double nsPorVentanaPatron,
+            double nsPorPixelLineal, double nsPorPixelMezclaLineal, double factorParalelo,
+            double nsFijosParalelo) throws Exception {
+        if (pool == null) {
+            throw new Exception("El pool de ejecución no puede ser nulo.");
+        }
+        if (nsPorCeldaPatron < 0 || nsPorVentanaPatron < 0 || nsPorPixelLineal < 0
+                || nsPorPixelMezclaLineal < 0 || factorParalelo < 0 || nsFijosParalelo < 0) {
+            throw new Exception("Los coeficientes del modelo no pueden ser negativos");
+        }
+        this.pool = pool;
+        this.nsPorCeldaPatron = nsPorCeldaPatron;
+        this.nsPorVentanaPatron = nsPorVentanaPatron;
+        this.nsPorPixelLineal = nsPorPixelLineal;
+        this.nsPorPixelMezclaLineal = nsPorPixelMezclaLineal;
+        this.factorParalelo = factorParalelo;
+        this.nsFijosParalelo = nsFijosParalelo;
+        this.histogramas = Collections.synchronizedMap(new WeakHashMap<>());
+        this.motoresLineales = Collections.synchronizedMap(new WeakHashMap<>());
+    }
+
+    /**
+     * Calibra el modelo midiendo los reconocedores sobre muestras sintéticas.
+     * <p>
+     * Se analizan muestras aleatorias de 128x128 y 384x384 píxeles con dos
+     * patrones que descartan las ventanas tras un número de celdas muy
+     * distinto y con dos fibrillas de distinta selectividad, tanto con el
+     * motor secuencial como con el paralelo. Los coeficientes se obtienen
+     * resolviendo el sistema lineal que forman las medidas.
+     * </p>
+     * <p>
+     * Las medidas se hacen dos veces y solo se usa la segunda: en la primera
+     * el código de los reconocedores aún no está compilado por el JIT y los
+     * tiempos no son representativos. Tarda del orden de un segundo.
+     * </p>
+     *
+     * @param pool pool en el que se ejecuta el motor lineal paralelo
+     * @return modelo calibrado para la máquina actual
+     * @throws Exception si falla alguna de las medidas
+     */
+    public static ModeloCoste calibrar(ForkJoinPool pool) throws Exception {
+        if (pool == null) {
+            throw new Exception("El pool de ejecución no puede ser nulo.");
+        }
+        medirCoeficientes(pool);
+        return medirCoeficientes(pool);
+    }
+
+    private static ModeloCoste medirCoeficientes(ForkJoinPool pool) throws Exception {
+        Muestra pequena = muestraAleatoria(128, 1, 0);
+        Muestra grande = muestraAleatoria(384, 2, 0);
+        Muestra oscura = muestraAleatoria(384, 3, 0.9);
+        ModeloCoste referencia = new ModeloCoste(pool, 1, 0, 1, 0, 1, 0);
+
+        // Patrones: t = celdas * nsPorCelda + ventanas * nsPorVentana
+        // sobre una muestra casi negra: el patrón corto falla en la primera
+        // celda y el negro avanza una media de unas diez celdas por ventana
+        ReconocedorPatron patronCorto = new ReconocedorPatron(patronNegro(3, 15));
+        ReconocedorPatron patronLargo = new ReconocedorPatron(patronNegro(8, 0));
+        double[] a = referencia.trabajoPatron(patronCorto, oscura);
+        double[] b = referencia.trabajoPatron(patronLargo, oscura);
+        double ta = medir(patronCorto, oscura);
+        double tb = medir(patronLargo, oscura);
+        double[] patron = resolver(a[0], a[1], ta, b[0], b[1], tb);
+
+        // Fibrillas: t = pixeles * (nsPorPixel + f * (1 - f) * nsPorPixelMezcla)
+        ReconocedorLineal selectiva = new ReconocedorLineal(new Fibrilla("Calibrado", 2, 0, 0));
+        ReconocedorLineal mitad = new ReconocedorLineal(new Fibrilla("Calibrado", 2, 0, 7));
+        double pixeles = (double) grande.getAlto() * grande.getAncho();
+        double tSelectiva = medir(selectiva, grande);
+        double tMitad = medir(mitad, grande);
+        double[] lineal = resolver(pixeles, pixeles * mezcla(referencia.fraccionEnRango(selectiva, grande)),
+                tSelectiva, pixeles, pixeles * mezcla(referencia.fraccionEnRango(mitad, grande)), tMitad);
+
+        // Motor paralelo: t = nsFijos + factor * tSecuencial
+        ReconocedorLineal paralela = new ReconocedorLineal(new Fibrilla("Calibrado", 2, 0, 0), pool);
+        double tSecPequena = medir(selectiva, pequena);
+        double tParPequena = medir(paralela, pequena);
+        double tParGrande = medir(paralela, grande);
+        double factor = Math.max(0, (tParGrande - tParPequena) / Math.max(1, tSelectiva - tSecPequena));
+        double fijos = Math.max(0, tParPequena - factor * tSecPequena);
+
+        return new ModeloCoste(pool, patron[0], patron[1], lineal[0], lineal[1], factor, fijos);
+    }
+
+    /**
+     * Estima el tiempo que tarda el motor secuencial del reconocedor en
+     * analizar la muestra.
+     *
+     * @param reconocedor reconocedor a aplicar
+     * @param muestra muestra a analizar
+     * @return tiempo estimado en nanosegundos, o 0 si el tipo de reconocedor no
+     *         es conocido
+     */
+    public double estimarCoste(ReconocedorImagen reconocedor, Muestra muestra) {
+        if (reconocedor instanceof ReconocedorPatron) {
+            double[] trabajo = trabajoPatron((ReconocedorPatron) reconocedor, muestra);
+            return trabajo[0] * nsPorCeldaPatron + trabajo[1] * nsPorVentanaPatron;
+        }
+        if (reconocedor instanceof ReconocedorLineal) {
+            return costeLinealSecuencial((ReconocedorLineal) reconocedor, muestra);
+        }
+        return 0;
+    }
+
+    /**
+     * Estima el tiempo del motor más rápido disponible para el reconocedor
+     * y la muestra.
+     *
+     * @param reconocedor reconocedor a aplicar
+     * @param muestra muestra a analizar
+     * @param hilosDisponibles hilos que puede usar el análisis de este par
+     * @return tiempo estimado en nanosegundos
+     */
+    public double estimarMejorCoste(ReconocedorImagen reconocedor, Muestra muestra, int hilosDisponibles) {
+        double secuencial = estimarCoste(reconocedor, muestra);
+        if (reconocedor instanceof ReconocedorLineal) {
+            return Math.min(secuencial, costeLinealParalelo(secuencial, hilosDisponibles));
+        }
+        return secuencial;
+    }
+
+    /**
+     * Devuelve el motor con menor coste estimado para analizar la muestra.
+     * <p>
+     * Para un {@link ReconocedorLineal} se elige entre el motor secuencial y el
+     * paralelo (sobre el pool del modelo) de la misma fibrilla. El motor
+     * paralelo compensa en muestras grandes cuando hay hilos libres; si el
+     * análisis ya reparte pares entre todos los hilos, se suele preferir el
+     * secuencial. Para el resto de reconocedores se devuelve el propio
+     * reconocedor.
+     * </p>
+     *
+     * @param reconocedor reconocedor registrado en el analizador
+     * @param muestra muestra a analizar
+     * @param hilosDisponibles hilos que puede usar el análisis de este par
+     * @return reconocedor equivalente que se debe ejecutar
+     * @throws Exception si no puede crearse el motor alternativo
+     */
+    public ReconocedorImagen elegirMotor(ReconocedorImagen reconocedor, Muestra muestra, int hilosDisponibles)
+            throws Exception {
+        if (!(reconocedor instanceof ReconocedorLineal)) {
+            return reconocedor;
+        }
+        ReconocedorLineal[] motores = motoresLineales.get(reconocedor);
+        if (motores == null) {
+            Fibrilla fibrilla = (Fibrilla) reconocedor.getElemento();
+            motores = new ReconocedorLineal[] {
+                    new ReconocedorLineal(fibrilla), new ReconocedorLineal(fibrilla, pool) };
+            motoresLineales.put(reconocedor, motores);
+        }
+        double secuencial = costeLinealSecuencial((ReconocedorLineal) reconocedor, muestra);
+        return costeLinealParalelo(secuencial, hilosDisponibles) < secuencial ? motores[1] : motores[0];
+    }
+
+    /**
+     * Devuelve el número de hilos del pool del motor paralelo.
+     *
+     * @return paralelismo del pool
+     */
+    public int getParalelismo() {
+        return pool.getParallelism();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ModeloCoste [patrón: %.3f ns/celda + %.3f ns/ventana; "
+                + "lineal: %.3f ns/píxel + %.3f ns/píxel·f(1-f); paralelo: %.3f x secuencial + %.0f ns]",
+                nsPorCeldaPatron, nsPorVentanaPatron, nsPorPixelLineal, nsPorPixelMezclaLineal,
+                factorParalelo, nsFijosParalelo);
+    }
+
+    /**
+     * Calcula las unidades de trabajo de un reconocedor de patrón: celdas
+     * examinadas esperadas y número de ventanas.
+     */
+    private double[] trabajoPatron(ReconocedorPatron reconocedor, Muestra muestra) {
+        Patogeno patogeno = (Patogeno) reconocedor.getElemento();
+        double ventanas = Math.max(0, muestra.getAlto() - patogeno.getAlto() + 1)
+                * (double) Math.max(0, muestra.getAncho() - patogeno.getAncho() + 1);
+        double[] frecuencias = histograma(muestra);
+        // La ventana se recorre por filas hasta el primer píxel definido que
+        // no coincide: la celda i se examina si coinciden todas las anteriores
+        double celdasPorVentana = 0;
+        double probabilidad = 1;
+        for (int fila = 0; fila < patogeno.getAlto() && probabilidad > 1e-9; fila++) {
+            for (int col = 0; col < patogeno.getAncho(); col++) {
+                celdasPorVentana += probabilidad;
+                if (!patogeno.esIndefinido(fila, col)) {
+                    int valor = patogeno.getPixel(fila, col);
+                    probabilidad *= valor >= 0 && valor < COLORES ? frecuencias[valor] : 0;
+                }
+            }
+        }
+        return new double[] { ventanas * celdasPorVentana, ventanas };
+    }
+
+    private double costeLinealSecuencial(ReconocedorLineal reconocedor, Muestra muestra) {
+        double pixeles = (double) muestra.getAlto() * muestra.getAncho();
+        double fraccion = fraccionEnRango(reconocedor, muestra);
+        return pixeles * (nsPorPixelLineal + mezcla(fraccion) * nsPorPixelMezclaLineal);
+    }
+
+    private static double mezcla(double fraccion) {
+        return fraccion * (1 - fraccion);
+    }
+
+    /**
+     * Estima el coste del motor paralelo a partir del secuencial. El factor
+     * se midió con todos los hilos del pool; con menos hilos disponibles, la
+     * parte variable crece en proporción.
+     */
+    private double costeLinealParalelo(double costeSecuencial, int hilosDisponibles) {
+        int hilos = Math.max(1, Math.min(hilosDisponibles, pool.getParallelism()));
+        return nsFijosParalelo + factorParalelo * costeSecuencial * pool.getParallelism() / hilos;
+    }
+
+    private double fraccionEnRango(ReconocedorLineal reconocedor, Muestra muestra) {
+        Fibrilla fibrilla = (Fibrilla) reconocedor.getElemento();
+        double[] frecuencias = histograma(muestra);
+        double fraccion = 0;
+        for (int color = Math.max(0, fibrilla.getColorMin()); color <= Math.min(COLORES - 1,
+                fibrilla.getColorMax()); color++) {
+            fraccion += frecuencias[color];
+        }
+        return fraccion;
+    }
+
+    /**
+     * Estima la frecuencia de cada color en la muestra examinando una rejilla
+     * regular de como mucho {@value #PIXELES_HISTOGRAMA} píxeles.
+     */
+    private double[] histograma(Muestra muestra) {
+        double[] frecuencias = histogramas.get(muestra);
+        if (frecuencias == null) {
+            frecuencias = new double[COLORES];
+            int[][] pixeles = muestra.getPixeles();
+            int lado = (int) Math.sqrt(PIXELES_HISTOGRAMA);
+            int pasoFilas = Math.max(1, muestra.getAlto() / lado);
+            int pasoColumnas = Math.max(1, muestra.getAncho() / lado);
+            int total = 0;
+            for (int fila = 0; fila < muestra.getAlto(); fila += pasoFilas) {
+                for (int col = 0; col < muestra.getAncho(); col += pasoColumnas) {
+                    int valor = pixeles[fila][col];
+                    if (valor >= 0 && valor < COLORES) {
+                        frecuencias[valor]++;
+                    }
+                    total++;
+                }
+            }
+            for (int color = 0; color < COLORES && total > 0; color++) {
+                frecuencias[color] /= total;
+            }
+            histogramas.put(muestra, frecuencias);
+        }
+        return frecuencias;
+    }
+
+    /**
+     * Resuelve el sistema {@code x*a1 + y*b1 = t1, x*a2 + y*b2 = t2}, con
+     * coeficientes no negativos.
+     */
+    private static double[] resolver(double a1, double b1, double t1, double a2, double b2, double t2) {
+        double determinante = a1 * b2 - a2 * b1;
+        if (Math.abs(determinante) < 1e-12) {
+            return new double[] { Math.max(0, t1 / Math.max(1, a1)), 0 };
+        }
+        double x = (t1 * b2 - t2 * b1) / determinante;
+        double y = (a1 * t2 - a2 * t1) / determinante;
+        if (x < 0) {
+            return new double[] { 0, Math.max(0, t2 / Math.max(1, b2)) };
+        }
+        if (y < 0) {
+            return new double[] { Math.max(0, t2 / Math.max(1, a2)), 0 };
+        }
+        return new double[] { x, y };
+    }
+
+    /**
+     * Devuelve el mejor tiempo (en nanosegundos) de varios recuentos.
+     */
+    private static double medir(ReconocedorImagen reconocedor, Muestra muestra) throws Exception {
+        long mejor = Long.MAX_VALUE;
+        for (int i = 0; i < REPETICIONES_CALIBRADO; i++) {
+            long inicio = System.nanoTime();
+            reconocedor.contarDetecciones(muestra);
+            mejor = Math.min(mejor, System.nanoTime() - inicio);
+        }
+        return mejor;
+    }
+
+    /**
+     * Crea una muestra cuadrada en la que cada píxel es negro con la
+     * probabilidad indicada y, si no, de un color aleatorio.
+     */
+    private static Muestra muestraAleatoria(int lado, long semilla, double probabilidadNegro)
+            throws Exception {
+        Random aleatorio = new Random(semilla);
+        int[][] pixeles = new int[lado][lado];
+        for (int[] fila : pixeles) {
+            for (int col = 0; col < lado; col++) {
+                fila[col] = aleatorio.nextDouble() < probabilidadNegro ? 0 : aleatorio.nextInt(COLORES);
+            }
+        }
+        return new Muestra("Calibrado", pixeles);
+    }
+
+    /**
+     * Crea un patrón cuadrado negro y completamente definido cuya primera
+     * celda es del color indicado.
+     */
+    private static Patogeno patronNegro(int lado, int primerColor) throws Exception {
+        int[][] patron = new int[lado][lado];
+        patron[0][0] = primerColor;
+        return new Patogeno("Calibrado", patron);
+    }
+}
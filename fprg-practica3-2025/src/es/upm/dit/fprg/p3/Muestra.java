@@ -1,5 +1,11 @@
 package es.upm.dit.fprg.p3;
 
+import java.awt.image.BufferedImage;
+import java.beans.Transient;
+import java.io.InputStream;
+
+import javax.imageio.ImageIO;
+
 /**
  * Encapsulación de datos para una imagen médica simplificada, representada como
  * una matriz rectangular de intensidades en escala de grises (rango 0-15).
@@ -97,6 +103,66 @@ public class Muestra {
         this.pixeles = pixeles;
     }
 
+    /**
+     * Constructor sin argumentos requerido por la persistencia JavaBeans
+     * ({@link java.beans.XMLEncoder}). La muestra así creada solo conserva su
+     * identificador; no debe analizarse.
+     */
+    public Muestra() {
+        // Constructor sin argumentos para JavaBeans
+        this.pixeles = null;
+    }
+
+    /**
+     * Construye una muestra leyendo una imagen desde un flujo de entrada.
+     * <p>
+     * La imagen se decodifica con {@link ImageIO#read(InputStream)} y sus
+     * intensidades se convierten al rango 0-15 mediante
+     * {@link #extraerPixeles(BufferedImage)}. Las validaciones se realizan en
+     * orden: identificador, lectura de la imagen y dimensiones.
+     * </p>
+     *
+     * @param in flujo del que leer la imagen (fichero, URL, etc.)
+     * @param id identificador único de la muestra
+     * @throws Exception si el identificador es nulo o vacío
+     * @throws Exception si el flujo no contiene una imagen legible
+     * @throws Exception si la imagen tiene dimensiones no válidas
+     */
+    public Muestra(InputStream in, String id) throws Exception {
+        if (id == null || id.equals("")) {
+            throw new Exception("El identificador de la muestra no puede ser nulo ni vacío.");
+        }
+        if (in == null) {
+            throw new Exception("El flujo de entrada no puede ser nulo.");
+        }
+
+        EventoDecodificacionMuestra evento = new EventoDecodificacionMuestra();
+        EventoDecodificacionMuestra.EntradaContada contada = null;
+        if (evento.isEnabled()) {
+            contada = new EventoDecodificacionMuestra.EntradaContada(in);
+            in = contada;
+        }
+        evento.begin();
+        BufferedImage img = ImageIO.read(in);
+        if (img == null) {
+            throw new Exception("No se ha podido leer la imagen de la muestra " + id + ".");
+        }
+        if (img.getWidth() <= 0 || img.getHeight() <= 0) {
+            throw new Exception("La imagen debe tener dimensiones mayores que 0.");
+        }
+
+        this.id = id;
+        this.pixeles = extraerPixeles(img);
+        evento.end();
+        if (contada != null && evento.shouldCommit()) {
+            evento.muestra = id;
+            evento.bytesLeidos = contada.getBytes();
+            evento.alto = img.getHeight();
+            evento.ancho = img.getWidth();
+            evento.commit();
+        }
+    }
+
     /**
      * Devuelve el identificador único asociado a esta muestra.
      *
@@ -106,6 +172,34 @@ public class Muestra {
         return this.id;
     }
 
+    /**
+     * Establece el identificador de la muestra (requerido por JavaBeans).
+     *
+     * @param id identificador de la muestra
+     */
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    /**
+     * Devuelve la matriz de píxeles de la muestra.
+     * <p>
+     * Está marcado como {@link Transient} para que la persistencia XML no
+     * serialice la matriz completa, que puede ser muy grande. La matriz devuelta
+     * es la interna: los llamantes no deben modificarla.
+     * </p>
+     * <p>
+     * {@link MuestraAlmacenada} redefine este método y los que leen los
+     * píxeles para obtenerlos bajo demanda.
+     * </p>
+     *
+     * @return matriz de píxeles en el rango 0-15 con orden fila→columna
+     */
+    @Transient
+    public int[][] getPixeles() {
+        return this.pixeles;
+    }
+
     /**
      * Devuelve la dimensión vertical (altura) de la imagen en píxeles.
      * <p>
@@ -228,7 +322,7 @@ public class Muestra {
     @Override
     public String toString() {
         String resultado = "<" + getId() + ">\n";
-        for (int[] fila : pixeles) {
+        for (int[] fila : getPixeles()) {
             for (int valor : fila) {
                 resultado += Integer.toHexString(valor).toUpperCase();
             }
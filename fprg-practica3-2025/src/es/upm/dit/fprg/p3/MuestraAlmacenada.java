@@ -0,0 +1,126 @@
+package es.upm.dit.fprg.p3;
+
+import java.beans.Transient;
+
+/**
+ * Muestra cuyos píxeles están guardados en un {@link AlmacenMuestras} y se
+ * identifican por su huella.
+ * <p>
+ * Los píxeles no se leen del almacén hasta la primera llamada a
+ * {@link #getPixeles()} (directa o a través de {@link #getAlto()},
+ * {@link #getPixel(int, int)}, etc.), de modo que cargar un estudio no lee
+ * las imágenes de sus muestras si no se van a analizar. Una vez leídos se
+ * conservan en el objeto.
+ * </p>
+ * <p>
+ * En la persistencia XML se guardan el identificador y la huella. Las
+ * muestras leídas con
+ * {@link EstudioDiagnostico#cargar(java.io.InputStream, AlmacenMuestras)}
+ * quedan asociadas al almacén; las creadas con el constructor sin argumentos
+ * no tienen almacén y no pueden leer sus píxeles.
+ * </p>
+ */
+public class MuestraAlmacenada extends Muestra {
+
+    private String hash;
+    private AlmacenMuestras almacen;
+
+    /** Píxeles leídos del almacén, o {@code null} si aún no se han leído. */
+    private volatile int[][] leidos;
+
+    /**
+     * Constructor sin argumentos requerido por la persistencia JavaBeans.
+     */
+    public MuestraAlmacenada() {
+        // Constructor sin argumentos para JavaBeans
+    }
+
+    /**
+     * Devuelve la huella del contenido de la muestra en el almacén.
+     *
+     * @return huella SHA-256 en hexadecimal
+     */
+    public String getHash() {
+        return hash;
+    }
+
+    /**
+     * Establece la huella de la muestra (requerido por JavaBeans).
+     *
+     * @param hash huella SHA-256 en hexadecimal
+     */
+    public void setHash(String hash) {
+        this.hash = hash;
+    }
+
+    AlmacenMuestras getAlmacen() {
+        return almacen;
+    }
+
+    void setAlmacen(AlmacenMuestras almacen) {
+        this.almacen = almacen;
+    }
+
+    /**
+     * Indica si los píxeles ya se han leído del almacén.
+     *
+     * @return {@code true} si los píxeles están en memoria
+     */
+    public boolean isCargada() {
+        return leidos != null;
+    }
+
+    /**
+     * Devuelve la matriz de píxeles, leyéndola del almacén la primera vez.
+     *
+     * @return matriz de píxeles en el rango 0-15 con orden fila→columna
+     * @throws IllegalStateException si la muestra no tiene almacén o no se
+     *                               pueden leer sus píxeles
+     */
+    @Override
+    @Transient
+    public int[][] getPixeles() {
+        int[][] pixeles = leidos;
+        if (pixeles == null) {
+            synchronized (this) {
+                pixeles = leidos;
+                if (pixeles == null) {
+                    if (almacen == null) {
+                        throw new IllegalStateException("La muestra " + getId()
+                                + " no está asociada a ningún almacén.");
+                    }
+                    try {
+                        pixeles = almacen.leerPixeles(hash);
+                    } catch (Exception e) {
+                        throw new IllegalStateException("No se han podido leer los píxeles de la muestra "
+                                + getId() + ": " + e.getMessage(), e);
+                    }
+                    leidos = pixeles;
+                }
+            }
+        }
+        return pixeles;
+    }
+
+    @Override
+    public int getAlto() {
+        return getPixeles().length;
+    }
+
+    @Override
+    public int getAncho() {
+        return getPixeles()[0].length;
+    }
+
+    @Override
+    public int getPixel(int fila, int columna) throws Exception {
+        int[][] pixeles = getPixeles();
+        if (fila < 0 || fila >= pixeles.length || columna < 0 || columna >= pixeles[0].length) {
+            throw new Exception("Acceso a índices fuera de los límites válidos. "
+                    + "Rango permitido: fila [0, " + (pixeles.length - 1) + "], "
+                    + "columna [0, " + (pixeles[0].length - 1) + "]. "
+                    + "Acceso solicitado: fila " + fila + ", columna " + columna + ".");
+        }
+        return pixeles[fila][columna];
+    }
+}
@@ -0,0 +1,28 @@
+package es.upm.dit.fprg.p3;
+
+/**
+ * Observador que recibe las medidas de cada detección realizada por un
+ * {@link AnalizadorDiagnostico}.
+ * <p>
+ * Los observadores se registran con
+ * {@link AnalizadorDiagnostico#addObservador(ObservadorDeteccion)}. Si no hay
+ * ninguno registrado, el analizador no toma ninguna medida. La implementación
+ * por defecto, {@link MetricasDeteccion}, acumula histogramas de latencia por
+ * elemento.
+ * </p>
+ * <p>
+ * El método puede llamarse desde varios hilos a la vez y se ejecuta en el
+ * hilo que realizó la detección, por lo que debe ser rápido y seguro frente a
+ * accesos concurrentes.
+ * </p>
+ */
+public interface ObservadorDeteccion {
+
+    /**
+     * Recibe las medidas de una detección terminada (o interrumpida por su
+     * plazo).
+     *
+     * @param medida medidas de la detección
+     */
+    void deteccionRealizada(MedidaDeteccion medida);
+}
@@ -23,7 +23,7 @@ package es.upm.dit.fprg.p3;
  * con patrones incoherentes o inválidos.
  * </p>
  */
-public class Patogeno {
+public class Patogeno implements ElementoMicroscopico {
 
     /** Valor especial que representa un píxel indefinido (comodín) en el patrón. */
     public static final int INDEFINIDO = -1;
@@ -118,6 +118,7 @@ public class Patogeno {
      *
      * @return etiqueta descriptiva del patrón (cadena no nula ni vacía)
      */
+    @Override
     public String getNombre() {
         return nombre;
     }
@@ -0,0 +1,383 @@
+package es.upm.dit.fprg.p3;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Planificador de lotes de estudios diagnósticos que reparte el análisis de
+ * muchos {@link EstudioDiagnostico} entre un número fijo de hilos trabajadores.
+ * <p>
+ * Los estudios se envían con {@link #enviar(EstudioDiagnostico)} a una cola de
+ * capacidad limitada: si la cola está llena, el envío espera a que haya hueco,
+ * de modo que el productor no puede adelantarse indefinidamente a los
+ * trabajadores. Los estudios se atienden por orden de prioridad, definido por
+ * un {@link Comparator}; por defecto se usa {@link #PRIORIDAD_CLINICA}
+ * (pacientes pediátricos primero y, dentro de cada grupo, la prescripción más
+ * antigua primero). A igual prioridad se respeta el orden de llegada.
+ * </p>
+ * <p>
+ * Cada trabajador analiza un estudio completo con el {@link AnalizadorDiagnostico}
+ * compartido. El planificador lleva la cuenta de estudios completados por
+ * segundo, la profundidad de la cola y los percentiles de latencia (desde el
+ * envío hasta la finalización) de los últimos estudios.
+ * </p>
+ * <p>
+ * Con {@link #setPresupuestoPorEstudio(long, TimeUnit)} se limita el tiempo de
+ * análisis de cada estudio: un estudio con muestras enormes se detiene al
+ * agotar su presupuesto y entrega un {@link ResultadoAnalisis} parcial, de
+ * modo que no retiene indefinidamente a su trabajador ni retrasa al resto
+ * del lote.
+ * </p>
+ */
+public class PlanificadorEstudios {
+
+    /**
+     * Orden de prioridad por defecto: primero los pacientes pediátricos y,
+     * a igualdad, los estudios con la prescripción más antigua.
+     */
+    public static final Comparator<EstudioDiagnostico> PRIORIDAD_CLINICA =
+            Comparator.comparing((EstudioDiagnostico e) -> !esPediatrico(e))
+                    .thenComparingInt(EstudioDiagnostico::getTimestampPrescripcion);
+
+    /** Número de latencias recientes que se conservan para los percentiles. */
+    private static final int MUESTRAS_LATENCIA = 10_000;
+
+    private final AnalizadorDiagnostico analizador;
+    private final int capacidadCola;
+    private final PriorityQueue<Trabajo> cola;
+    private final ReentrantLock cerrojo;
+    private final Condition hayTrabajo;
+    private final Condition hayHueco;
+    private final List<Thread> trabajadores;
+    private final AtomicLong secuencia;
+
+    private final AtomicLong completados;
+    private final AtomicLong fallidos;
+    private final AtomicLong incompletos;
+    private final long[] latencias;
+    private int numLatencias;
+    private volatile long instanteInicio;
+
+    /** Tiempo máximo de análisis por estudio en nanosegundos, o 0 si no hay límite. */
+    private volatile long presupuestoNanos;
+
+    private boolean cerrado;
+
+    /**
+     * Crea un planificador con tantos trabajadores como núcleos disponibles y la
+     * prioridad {@link #PRIORIDAD_CLINICA}.
+     *
+     * @param analizador analizador con los reconocedores ya registrados
+     * @param capacidadCola número máximo de estudios en espera
+     * @throws Exception si el analizador es nulo o la capacidad no es positiva
+     */
+    public PlanificadorEstudios(AnalizadorDiagnostico analizador, int capacidadCola) throws Exception {
+        this(analizador, Runtime.getRuntime().availableProcessors(), capacidadCola, PRIORIDAD_CLINICA);
+    }
+
+    /**
+     * Crea un planificador y arranca sus hilos trabajadores.
+     *
+     * @param analizador analizador con los reconocedores ya registrados
+     * @param numTrabajadores número de hilos que analizan estudios
+     * @param capacidadCola número máximo de estudios en espera
+     * @param prioridad orden en el que se atienden los estudios en espera
+     * @throws Exception si el analizador o la prioridad son nulos, o si el
+     *                   número de trabajadores o la capacidad no son positivos
+     */
+    public PlanificadorEstudios(AnalizadorDiagnostico analizador, int numTrabajadores,
+            int capacidadCola, Comparator<EstudioDiagnostico> prioridad) throws Exception {
+        if (analizador == null) {
+            throw new Exception("Analizador nulo");
+        }
+        if (prioridad == null) {
+            throw new Exception("Prioridad nula");
+        }
+        if (numTrabajadores < 1) {
+            throw new Exception("El número de trabajadores debe ser >= 1");
+        }
+        if (capacidadCola < 1) {
+            throw new Exception("La capacidad de la cola debe ser >= 1");
+        }
+        this.analizador = analizador;
+        this.capacidadCola = capacidadCola;
+        Comparator<Trabajo> orden = Comparator.comparing((Trabajo t) -> t.estudio, prioridad);
+        this.cola = new PriorityQueue<>(orden.thenComparingLong(t -> t.secuencia));
+        this.cerrojo = new ReentrantLock();
+        this.hayTrabajo = cerrojo.newCondition();
+        this.hayHueco = cerrojo.newCondition();
+        this.secuencia = new AtomicLong();
+        this.completados = new AtomicLong();
+        this.fallidos = new AtomicLong();
+        this.incompletos = new AtomicLong();
+        this.latencias = new long[MUESTRAS_LATENCIA];
+        this.numLatencias = 0;
+        this.instanteInicio = System.nanoTime();
+        this.presupuestoNanos = 0;
+        this.cerrado = false;
+
+        this.trabajadores = new ArrayList<>(numTrabajadores);
+        for (int i = 0; i < numTrabajadores; i++) {
+            Thread hilo = new Thread(this::trabajar, "planificador-estudios-" + i);
+            trabajadores.add(hilo);
+            hilo.start();
+        }
+    }
+
+    /**
+     * Envía un estudio para su análisis. Si la cola está llena, espera a que
+     * haya hueco.
+     *
+     * @param estudio estudio a analizar
+     * @return resultado futuro del análisis del estudio
+     * @throws Exception si el estudio es nulo, el planificador está cerrado o
+     *                   el hilo es interrumpido mientras espera
+     */
+    public CompletableFuture<ResultadoAnalisis> enviar(EstudioDiagnostico estudio) throws Exception {
+        if (estudio == null) {
+            throw new Exception("Estudio nulo");
+        }
+        Trabajo trabajo = new Trabajo(estudio, secuencia.getAndIncrement());
+        cerrojo.lockInterruptibly();
+        try {
+            while (!cerrado && cola.size() >= capacidadCola) {
+                hayHueco.await();
+            }
+            if (cerrado) {
+                throw new Exception("El planificador está cerrado");
+            }
+            cola.add(trabajo);
+            hayTrabajo.signal();
+        } finally {
+            cerrojo.unlock();
+        }
+        return trabajo.resultado;
+    }
+
+    /**
+     * Establece el tiempo máximo de análisis de cada estudio, contado desde que
+     * un trabajador lo toma de la cola. Se aplica a los estudios que empiecen a
+     * analizarse a partir de este momento.
+     *
+     * @param duracion tiempo máximo por estudio, o 0 para no limitarlo
+     * @param unidad unidad de {@code duracion}
+     * @throws Exception si la duración es negativa o la unidad es nula
+     */
+    public void setPresupuestoPorEstudio(long duracion, TimeUnit unidad) throws Exception {
+        if (unidad == null) {
+            throw new Exception("Unidad de tiempo nula");
+        }
+        if (duracion < 0) {
+            throw new Exception("El presupuesto por estudio no puede ser negativo");
+        }
+        this.presupuestoNanos = unidad.toNanos(duracion);
+    }
+
+    /**
+     * Deja de aceptar estudios nuevos. Los estudios ya encolados se siguen
+     * analizando.
+     */
+    public void cerrar() {
+        cerrojo.lock();
+        try {
+            cerrado = true;
+            hayTrabajo.signalAll();
+            hayHueco.signalAll();
+        } finally {
+            cerrojo.unlock();
+        }
+    }
+
+    /**
+     * Espera a que los trabajadores terminen todos los estudios encolados tras
+     * llamar a {@link #cerrar()}.
+     *
+     * @param tiempo tiempo máximo de espera
+     * @param unidad unidad del tiempo máximo
+     * @return {@code true} si todos los trabajadores han terminado
+     * @throws InterruptedException si el hilo es interrumpido mientras espera
+     */
+    public boolean esperarTerminacion(long tiempo, TimeUnit unidad) throws InterruptedException {
+        long limite = System.nanoTime() + unidad.toNanos(tiempo);
+        for (Thread hilo : trabajadores) {
+            long restante = limite - System.nanoTime();
+            if (restante <= 0) {
+                return false;
+            }
+            TimeUnit.NANOSECONDS.timedJoin(hilo, restante);
+            if (hilo.isAlive()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Devuelve el número de estudios en espera.
+     *
+     * @return profundidad actual de la cola
+     */
+    public int getProfundidadCola() {
+        cerrojo.lock();
+        try {
+            return cola.size();
+        } finally {
+            cerrojo.unlock();
+        }
+    }
+
+    /**
+     * Devuelve el número de estudios analizados correctamente.
+     *
+     * @return estudios completados
+     */
+    public long getEstudiosCompletados() {
+        return completados.get();
+    }
+
+    /**
+     * Devuelve el número de estudios cuyo análisis terminó con error.
+     *
+     * @return estudios fallidos
+     */
+    public long getEstudiosFallidos() {
+        return fallidos.get();
+    }
+
+    /**
+     * Devuelve el número de estudios completados cuyo análisis se detuvo al
+     * agotar el presupuesto, con resultados parciales.
+     *
+     * @return estudios con resultado incompleto
+     */
+    public long getEstudiosIncompletos() {
+        return incompletos.get();
+    }
+
+    /**
+     * Devuelve el ritmo medio de estudios completados por segundo desde la
+     * creación del planificador o la última llamada a {@link #reiniciarEstadisticas()}.
+     *
+     * @return estudios completados por segundo
+     */
+    public double getEstudiosPorSegundo() {
+        double segundos = (System.nanoTime() - instanteInicio) / 1e9;
+        return segundos > 0 ? completados.get() / segundos : 0;
+    }
+
+    /**
+     * Devuelve el percentil indicado de la latencia (desde el envío hasta el
+     * final del análisis) de los últimos estudios completados.
+     *
+     * @param percentil percentil entre 0 y 100 (por ejemplo, 50, 95 o 99)
+     * @return latencia en milisegundos, o 0 si aún no hay estudios completados
+     * @throws Exception si el percentil está fuera del rango [0, 100]
+     */
+    public double getLatenciaPercentil(double percentil) throws Exception {
+        if (percentil < 0 || percentil > 100) {
+            throw new Exception("El percentil debe estar entre 0 y 100");
+        }
+        long[] copia;
+        synchronized (latencias) {
+            copia = Arrays.copyOf(latencias, Math.min(numLatencias, latencias.length));
+        }
+        if (copia.length == 0) {
+            return 0;
+        }
+        Arrays.sort(copia);
+        int indice = (int) Math.ceil(percentil / 100 * copia.length) - 1;
+        return copia[Math.max(0, indice)] / 1e6;
+    }
+
+    /**
+     * Pone a cero los contadores de estudios y las latencias registradas.
+     */
+    public void reiniciarEstadisticas() {
+        synchronized (latencias) {
+            numLatencias = 0;
+        }
+        completados.set(0);
+        fallidos.set(0);
+        incompletos.set(0);
+        instanteInicio = System.nanoTime();
+    }
+
+    /**
+     * Bucle de cada hilo trabajador: toma el estudio más prioritario, lo
+     * analiza dentro de su presupuesto y completa su resultado. Cualquier
+     * fallo del análisis, también un {@link Error}, completa el resultado con
+     * él y el trabajador sigue con el siguiente estudio.
+     */
+    private void trabajar() {
+        Trabajo trabajo;
+        while ((trabajo = siguiente()) != null) {
+            try {
+                long presupuesto = presupuestoNanos;
+                Plazo plazo = presupuesto > 0 ? Plazo.dentroDe(presupuesto, TimeUnit.NANOSECONDS)
+                        : Plazo.sinLimite();
+                ResultadoAnalisis resultado = analizador.analizar(trabajo.estudio, plazo);
+                registrarLatencia(System.nanoTime() - trabajo.instanteEnvio);
+                completados.incrementAndGet();
+                if (!resultado.isCompleto()) {
+                    incompletos.incrementAndGet();
+                }
+                trabajo.resultado.complete(resultado);
+            } catch (Throwable e) {
+                fallidos.incrementAndGet();
+                trabajo.resultado.completeExceptionally(e);
+            }
+        }
+    }
+
+    private Trabajo siguiente() {
+        cerrojo.lock();
+        try {
+            while (cola.isEmpty() && !cerrado) {
+                hayTrabajo.awaitUninterruptibly();
+            }
+            Trabajo trabajo = cola.poll();
+            if (trabajo != null) {
+                hayHueco.signal();
+            }
+            return trabajo;
+        } finally {
+            cerrojo.unlock();
+        }
+    }
+
+    private void registrarLatencia(long nanos) {
+        synchronized (latencias) {
+            latencias[numLatencias % latencias.length] = nanos;
+            numLatencias++;
+        }
+    }
+
+    private static boolean esPediatrico(EstudioDiagnostico estudio) {
+        return estudio.getPaciente() != null && estudio.getPaciente().esPediatrico();
+    }
+
+    /**
+     * Estudio en espera junto con su orden de llegada y su resultado futuro.
+     */
+    private static final class Trabajo {
+        private final EstudioDiagnostico estudio;
+        private final long secuencia;
+        private final long instanteEnvio;
+        private final CompletableFuture<ResultadoAnalisis> resultado;
+
+        Trabajo(EstudioDiagnostico estudio, long secuencia) {
+            this.estudio = estudio;
+            this.secuencia = secuencia;
+            this.instanteEnvio = System.nanoTime();
+            this.resultado = new CompletableFuture<>();
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package es.upm.dit.fprg.p3;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Límite de tiempo y señal de cancelación cooperativa para un análisis.
+ * <p>
+ * Los reconocedores consultan {@link #estaAgotado()} a intervalos regulares
+ * (por fila o por banda de filas) y, si el plazo ha vencido o se ha llamado a
+ * {@link #cancelar()}, dejan de trabajar y devuelven lo calculado hasta ese
+ * momento mediante una {@link AnalisisInterrumpidoException}.
+ * </p>
+ * <p>
+ * Un mismo plazo puede compartirse entre varios hilos y cancelarse desde
+ * cualquiera de ellos.
+ * </p>
+ */
+public final class Plazo {
+
+    private final boolean conLimite;
+    private final long limiteNanos;
+    private volatile boolean cancelado;
+
+    private Plazo(boolean conLimite, long limiteNanos) {
+        this.conLimite = conLimite;
+        this.limiteNanos = limiteNanos;
+        this.cancelado = false;
+    }
+
+    /**
+     * Crea un plazo sin límite de tiempo, que solo se agota si se cancela.
+     *
+     * @return plazo sin límite
+     */
+    public static Plazo sinLimite() {
+        return new Plazo(false, 0);
+    }
+
+    /**
+     * Crea un plazo que vence cuando transcurra el tiempo indicado desde ahora.
+     *
+     * @param duracion tiempo disponible
+     * @param unidad unidad de {@code duracion}
+     * @return plazo con límite de tiempo
+     * @throws Exception si la duración es negativa o la unidad es nula
+     */
+    public static Plazo dentroDe(long duracion, TimeUnit unidad) throws Exception {
+        if (unidad == null) {
+            throw new Exception("Unidad de tiempo nula");
+        }
+        if (duracion < 0) {
+            throw new Exception("La duración del plazo no puede ser negativa");
+        }
+        return new Plazo(true, System.nanoTime() + unidad.toNanos(duracion));
+    }
+
+    /**
+     * Solicita que se detengan los análisis que usan este plazo.
+     */
+    public void cancelar() {
+        cancelado = true;
+    }
+
+    /**
+     * Indica si se ha solicitado la cancelación.
+     *
+     * @return {@code true} si se ha llamado a {@link #cancelar()}
+     */
+    public boolean estaCancelado() {
+        return cancelado;
+    }
+
+    /**
+     * Indica si el análisis debe detenerse, bien porque se ha cancelado, bien
+     * porque ha vencido el límite de tiempo.
+     *
+     * @return {@code true} si el plazo está agotado
+     */
+    public boolean estaAgotado() {
+        return cancelado || (conLimite && System.nanoTime() - limiteNanos >= 0);
+    }
+
+    /**
+     * Devuelve el tiempo que queda hasta el vencimiento.
+     *
+     * @param unidad unidad en la que se expresa el resultado
+     * @return tiempo restante (0 si está agotado), o {@link Long#MAX_VALUE} si
+     *         el plazo no tiene límite y no se ha cancelado
+     */
+    public long getTiempoRestante(TimeUnit unidad) {
+        if (cancelado) {
+            return 0;
+        }
+        if (!conLimite) {
+            return Long.MAX_VALUE;
+        }
+        return unidad.convert(Math.max(0, limiteNanos - System.nanoTime()), TimeUnit.NANOSECONDS);
+    }
+}
@@ -0,0 +1,2186 @@
+package es.upm.dit.fprg.p3;
+
+import java.beans.XMLDecoder;
+import java.beans.XMLEncoder;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PrimitiveIterator;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.stream.Stream;
+
+import es.upm.dit.fprg.p3.auxiliar.DatosPredefinidos;
+
+/**
+ * Clase de prueba que mide el rendimiento de los componentes de análisis sobre
+ * muestras sintéticas de gran tamaño y comprueba que los modos optimizados
+ * producen los mismos resultados que los secuenciales.
+ */
+public class PruebaRendimiento {
+
+    /** Número de repeticiones de cada medida (se toma la mejor). */
+    private static final int REPETICIONES = 5;
+
+    public static void main(String[] args) {
+        System.out.println("=== PRUEBA DE RENDIMIENTO ===");
+        System.out.println();
+
+        try {
+            medirReconocedorLineal();
+            medirAnalizador();
+            medirRecuentoSinMascara();
+            medirCache();
+            medirAnalisisEnStreaming();
+            medirPlanificador();
+            medirPlazos();
+            medirModeloCoste();
+            medirInstrumentacion();
+            medirMascara();
+            medirAnalisisAsincrono();
+            medirTuberia();
+            medirPersistenciaXml();
+            medirPersistenciaBinaria();
+            medirAlmacenMuestras();
+            medirDiario();
+            medirCargaParcial();
+            medirRepositorio();
+            medirIndiceTemporal();
+            medirExportacionColumnar();
+            medirIndiceResultados();
+            medirIngestaConcurrente();
+            medirResultadosParciales();
+            medirRegistroPersonas();
+
+            System.out.println();
+            System.out.println("=== PRUEBA DE RENDIMIENTO COMPLETADA ===");
+        } catch (Exception e) {
+            System.err.println();
+            System.err.println("✗ ERROR durante la prueba: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Compara el reconocedor lineal secuencial con el paralelo para un número
+     * creciente de hilos, hasta el número de núcleos disponibles.
+     */
+    private static void medirReconocedorLineal() throws Exception {
+        System.out.println("1. ReconocedorLineal secuencial frente a paralelo");
+        Muestra muestra = crearMuestraSintetica("Sintetica_2048", 2048, 2048, 42);
+        Fibrilla fibrilla = new Fibrilla("Fibrilla_Oscura", 5, 0, 4);
+
+        ReconocedorLineal secuencial = new ReconocedorLineal(fibrilla);
+        boolean[][] referencia = secuencial.detectar(muestra);
+        long tiempoSecuencial = medir(secuencial, muestra);
+        System.out.println("   Secuencial: " + tiempoSecuencial / 1_000_000 + " ms");
+
+        int nucleos = Runtime.getRuntime().availableProcessors();
+        for (int hilos = 1; hilos <= nucleos; hilos = siguientePaso(hilos, nucleos)) {
+            ForkJoinPool pool = new ForkJoinPool(hilos);
+            try {
+                ReconocedorLineal paralelo = new ReconocedorLineal(fibrilla, pool);
+                boolean iguales = Arrays.deepEquals(referencia, paralelo.detectar(muestra));
+                long tiempo = medir(paralelo, muestra);
+                System.out.printf("   Paralelo (%2d hilos): %5d ms  aceleración x%.2f  %s%n",
+                        hilos, tiempo / 1_000_000, (double) tiempoSecuencial / tiempo,
+                        iguales ? "✓ idéntico" : "✗ DIFERENTE");
+            } finally {
+                pool.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Compara el análisis secuencial de un estudio con el paralelo sobre un
+     * {@link ForkJoinPool} con tantos hilos como núcleos.
+     */
+    private static void medirAnalizador() throws Exception {
+        System.out.println();
+        System.out.println("2. AnalizadorDiagnostico secuencial frente a paralelo");
+        EstudioDiagnostico estudio = crearEstudioSintetico(24, 256);
+        AnalizadorDiagnostico analizador = crearAnalizador();
+
+        Map<String, Integer> referencia = analizador.analizar(estudio);
+        long tiempoSecuencial = medir(analizador, estudio);
+        System.out.println("   Secuencial: " + tiempoSecuencial / 1_000_000 + " ms");
+
+        int nucleos = Runtime.getRuntime().availableProcessors();
+        ForkJoinPool pool = new ForkJoinPool(nucleos);
+        try {
+            analizador.setEjecutor(pool);
+            for (int paresPorTarea = 1; paresPorTarea <= 8; paresPorTarea *= 2) {
+                analizador.setParesPorTarea(paresPorTarea);
+                boolean iguales = referencia.equals(analizador.analizar(estudio));
+                long tiempo = medir(analizador, estudio);
+                System.out.printf("   Paralelo (%2d hilos, %d pares/tarea): %5d ms  aceleración x%.2f  %s%n",
+                        nucleos, paresPorTarea, tiempo / 1_000_000,
+                        (double) tiempoSecuencial / tiempo, iguales ? "✓ idéntico" : "✗ DIFERENTE");
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Compara, para cada reconocedor predefinido, el recuento a partir de la
+     * máscara {@code boolean[][]} con el recuento directo, midiendo el tiempo
+     * y la memoria reservada por el hilo actual.
+     */
+    private static void medirRecuentoSinMascara() throws Exception {
+        System.out.println();
+        System.out.println("3. Recuento con máscara frente a recuento directo");
+        Muestra muestra = crearMuestraSintetica("Sintetica_1024", 1024, 1024, 7);
+        for (ReconocedorImagen reconocedor : DatosPredefinidos.getInstance().getReconocedores()) {
+            int conMascara = 0;
+            long bytesMascara = bytesReservados();
+            long inicio = System.nanoTime();
+            for (boolean[] fila : reconocedor.detectar(muestra)) {
+                for (boolean valor : fila) {
+                    if (valor) {
+                        conMascara++;
+                    }
+                }
+            }
+            long tiempoMascara = System.nanoTime() - inicio;
+            bytesMascara = bytesReservados() - bytesMascara;
+
+            long bytesDirecto = bytesReservados();
+            inicio = System.nanoTime();
+            int directo = reconocedor.contarDetecciones(muestra);
+            long tiempoDirecto = System.nanoTime() - inicio;
+            bytesDirecto = bytesReservados() - bytesDirecto;
+
+            System.out.printf("   %-28s máscara: %4d ms %6d KiB | directo: %4d ms %6d KiB  %s%n",
+                    reconocedor.getElemento().getNombre(),
+                    tiempoMascara / 1_000_000, bytesMascara / 1024,
+                    tiempoDirecto / 1_000_000, bytesDirecto / 1024,
+                    conMascara == directo ? "✓ idéntico" : "✗ DIFERENTE");
+        }
+    }
+
+    /**
+     * Mide el análisis de un estudio sin caché, con la caché vacía, con la caché
+     * llena y con una caché recuperada de su forma persistida.
+     */
+    private static void medirCache() throws Exception {
+        System.out.println();
+        System.out.println("4. Caché de resultados");
+        EstudioDiagnostico estudio = crearEstudioSintetico(8, 256);
+        AnalizadorDiagnostico analizador = crearAnalizador();
+
+        Map<String, Integer> referencia = analizador.analizar(estudio);
+        System.out.println("   Sin caché:       " + medir(analizador, estudio) / 1000 + " µs");
+
+        CacheResultados cache = new CacheResultados(1000);
+        analizador.setCache(cache);
+        long inicio = System.nanoTime();
+        analizador.analizar(estudio);
+        System.out.println("   Caché vacía:     " + (System.nanoTime() - inicio) / 1000 + " µs");
+
+        boolean iguales = referencia.equals(analizador.analizar(estudio));
+        System.out.println("   Caché llena:     " + medir(analizador, estudio) / 1000 + " µs  "
+                + (iguales ? "✓ idéntico" : "✗ DIFERENTE"));
+        System.out.println("   Aciertos: " + cache.getAciertos() + ", fallos: " + cache.getFallos()
+                + ", entradas: " + cache.getTamano());
+
+        ByteArrayOutputStream persistida = new ByteArrayOutputStream();
+        cache.guardar(persistida);
+        CacheResultados recuperada = new CacheResultados(1000);
+        recuperada.cargar(new ByteArrayInputStream(persistida.toByteArray()));
+        analizador.setCache(recuperada);
+        EstudioDiagnostico copia = crearEstudioSintetico(8, 256);
+        inicio = System.nanoTime();
+        iguales = referencia.equals(analizador.analizar(copia));
+        System.out.println("   Caché recuperada (" + persistida.size() + " bytes), muestras nuevas: "
+                + (System.nanoTime() - inicio) / 1000 + " µs  "
+                + (iguales ? "✓ idéntico" : "✗ DIFERENTE"));
+    }
+
+    /**
+     * Analiza un estudio cuyas muestras se generan bajo demanda, con un número
+     * acotado de muestras en memoria, y compara el resultado con el análisis
+     * del mismo estudio cargado por completo.
+     */
+    private static void medirAnalisisEnStreaming() throws Exception {
+        System.out.println();
+        System.out.println("5. Análisis en streaming con memoria acotada");
+        int numMuestras = 64;
+        int lado = 256;
+        AnalizadorDiagnostico analizador = crearAnalizador();
+        Map<String, Integer> referencia = analizador.analizar(crearEstudioSintetico(numMuestras, lado));
+
+        int nucleos = Runtime.getRuntime().availableProcessors();
+        ForkJoinPool pool = new ForkJoinPool(nucleos);
+        try {
+            analizador.setEjecutor(pool);
+            for (int enVuelo = 1; enVuelo <= 2 * nucleos; enVuelo *= 2) {
+                List<FuenteMuestra> fuentes = new ArrayList<>();
+                for (int i = 0; i < numMuestras; i++) {
+                    int semilla = i;
+                    fuentes.add(() -> crearMuestraSintetica("S" + semilla, lado, lado, semilla));
+                }
+                long inicio = System.nanoTime();
+                boolean iguales = referencia.equals(analizador.analizar(fuentes.iterator(), enVuelo));
+                System.out.printf("   %2d muestras en vuelo: %5d ms  %s%n", enVuelo,
+                        (System.nanoTime() - inicio) / 1_000_000, iguales ? "✓ idéntico" : "✗ DIFERENTE");
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Procesa un lote de estudios pequeños con el planificador para un número
+     * creciente de trabajadores y comprueba que los resultados coinciden con
+     * los del análisis secuencial.
+     */
+    private static void medirPlanificador() throws Exception {
+        System.out.println();
+        System.out.println("6. Planificador de lotes de estudios");
+        int numEstudios = 200;
+        AnalizadorDiagnostico analizador = crearAnalizador();
+        List<EstudioDiagnostico> estudios = new ArrayList<>();
+        List<Map<String, Integer>> referencias = new ArrayList<>();
+        for (int i = 0; i < numEstudios; i++) {
+            EstudioDiagnostico estudio = crearEstudioSintetico(2, 96);
+            if (i % 5 == 0) {
+                estudio.setPaciente(new Paciente("00000000T", "Sintético", "Prueba", "Pediátrica", 2020));
+            }
+            estudio.setTimestampPrescripcion(numEstudios - i);
+            estudios.add(estudio);
+            referencias.add(analizador.analizar(estudio));
+        }
+
+        int nucleos = Runtime.getRuntime().availableProcessors();
+        for (int trabajadores = 1; trabajadores <= nucleos; trabajadores = siguientePaso(trabajadores, nucleos)) {
+            PlanificadorEstudios planificador = new PlanificadorEstudios(analizador, trabajadores,
+                    2 * trabajadores, PlanificadorEstudios.PRIORIDAD_CLINICA);
+            List<CompletableFuture<ResultadoAnalisis>> futuros = new ArrayList<>();
+            int profundidadMaxima = 0;
+            for (EstudioDiagnostico estudio : estudios) {
+                futuros.add(planificador.enviar(estudio));
+                profundidadMaxima = Math.max(profundidadMaxima, planificador.getProfundidadCola());
+            }
+            planificador.cerrar();
+            planificador.esperarTerminacion(1, TimeUnit.MINUTES);
+            boolean iguales = true;
+            for (int i = 0; i < numEstudios; i++) {
+                iguales &= referencias.get(i).equals(futuros.get(i).get().getResultados());
+            }
+            System.out.printf("   %2d trabajadores: %7.1f estudios/s  cola máx %2d  "
+                    + "p50 %6.2f ms  p95 %6.2f ms  p99 %6.2f ms  %s%n",
+                    trabajadores, planificador.getEstudiosPorSegundo(), profundidadMaxima,
+                    planificador.getLatenciaPercentil(50), planificador.getLatenciaPercentil(95),
+                    planificador.getLatenciaPercentil(99), iguales ? "✓ idéntico" : "✗ DIFERENTE");
+        }
+    }
+
+    /**
+     * Mide el sobrecoste de comprobar el plazo en los reconocedores y el tiempo
+     * que tarda en detenerse el análisis de un estudio con una muestra muy
+     * grande cuando se agota su presupuesto.
+     */
+    private static void medirPlazos() throws Exception {
+        System.out.println();
+        System.out.println("7. Plazos y cancelación cooperativa");
+        Muestra muestra = crearMuestraSintetica("P", 1024, 1024, 7);
+        for (ReconocedorImagen reconocedor : DatosPredefinidos.getInstance().getReconocedores()) {
+            long sinPlazo = Long.MAX_VALUE;
+            long conPlazo = Long.MAX_VALUE;
+            boolean iguales = true;
+            for (int i = 0; i < REPETICIONES; i++) {
+                long inicio = System.nanoTime();
+                int esperado = reconocedor.contarDetecciones(muestra);
+                sinPlazo = Math.min(sinPlazo, System.nanoTime() - inicio);
+                inicio = System.nanoTime();
+                int obtenido = reconocedor.contarDetecciones(muestra, Plazo.dentroDe(1, TimeUnit.HOURS));
+                conPlazo = Math.min(conPlazo, System.nanoTime() - inicio);
+                iguales &= esperado == obtenido;
+            }
+            System.out.printf("   %-28s sin plazo %6.2f ms  con plazo %6.2f ms  (%+.1f%%)  %s%n",
+                    reconocedor.getElemento().getNombre(), sinPlazo / 1e6, conPlazo / 1e6,
+                    100.0 * (conPlazo - sinPlazo) / sinPlazo, iguales ? "✓ idéntico" : "✗ DIFERENTE");
+        }
+
+        AnalizadorDiagnostico analizador = crearAnalizador();
+        EstudioDiagnostico estudio = crearEstudioSintetico(0, 0);
+        estudio.addMuestra(crearMuestraSintetica("G", 3000, 3000, 11));
+        for (long presupuesto : new long[] { 10, 50, 200 }) {
+            long inicio = System.nanoTime();
+            ResultadoAnalisis resultado = analizador.analizar(estudio,
+                    Plazo.dentroDe(presupuesto, TimeUnit.MILLISECONDS));
+            long transcurrido = System.nanoTime() - inicio;
+            System.out.printf("   presupuesto %4d ms: detenido a los %7.2f ms, incompletos %s%n",
+                    presupuesto, transcurrido / 1e6, resultado.getElementosIncompletos());
+        }
+    }
+
+    /**
+     * Calibra el modelo de costes, compara sus estimaciones con los tiempos
+     * reales y mide el análisis de un estudio con muestras de tamaños muy
+     * distintos con y sin el modelo.
+     */
+    private static void medirModeloCoste() throws Exception {
+        System.out.println();
+        System.out.println("8. Modelo de costes: elección de motor y pares más costosos primero");
+        int nucleos = Runtime.getRuntime().availableProcessors();
+        ForkJoinPool pool = new ForkJoinPool(nucleos);
+        try {
+            long inicio = System.nanoTime();
+            ModeloCoste modelo = ModeloCoste.calibrar(pool);
+            System.out.printf("   Calibrado en %d ms: %s%n", (System.nanoTime() - inicio) / 1_000_000, modelo);
+
+            Muestra muestra = crearMuestraSintetica("C", 512, 512, 5);
+            for (ReconocedorImagen reconocedor : DatosPredefinidos.getInstance().getReconocedores()) {
+                long real = Long.MAX_VALUE;
+                for (int i = 0; i < REPETICIONES; i++) {
+                    long t = System.nanoTime();
+                    reconocedor.contarDetecciones(muestra);
+                    real = Math.min(real, System.nanoTime() - t);
+                }
+                System.out.printf("   %-28s estimado %7.2f ms  real %7.2f ms%n",
+                        reconocedor.getElemento().getNombre(),
+                        modelo.estimarCoste(reconocedor, muestra) / 1e6, real / 1e6);
+            }
+
+            EstudioDiagnostico estudio = crearEstudioSintetico(32, 128);
+            estudio.addMuestra(crearMuestraSintetica("G1", 1024, 1024, 101));
+            estudio.addMuestra(crearMuestraSintetica("G2", 1024, 1024, 102));
+            AnalizadorDiagnostico analizador = crearAnalizador();
+            Map<String, Integer> referencia = analizador.analizar(estudio);
+
+            for (boolean paralelo : new boolean[] { false, true }) {
+                analizador.setEjecutor(paralelo ? pool : null);
+                analizador.setModeloCoste(null);
+                long sinModelo = medir(analizador, estudio);
+                analizador.setModeloCoste(modelo);
+                long conModelo = medir(analizador, estudio);
+                boolean iguales = referencia.equals(analizador.analizar(estudio));
+                System.out.printf("   %-11s sin modelo %6d ms  con modelo %6d ms  %s%n",
+                        paralelo ? "paralelo:" : "secuencial:", sinModelo / 1_000_000,
+                        conModelo / 1_000_000, iguales ? "✓ idéntico" : "✗ DIFERENTE");
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Compara el análisis sin observadores con el análisis instrumentado y
+     * muestra las métricas recogidas por elemento.
+     */
+    private static void medirInstrumentacion() throws Exception {
+        System.out.println();
+        System.out.println("9. Instrumentación de detecciones");
+        EstudioDiagnostico estudio = crearEstudioSintetico(24, 256);
+        AnalizadorDiagnostico analizador = crearAnalizador();
+        Map<String, Integer> referencia = analizador.analizar(estudio);
+        long sinObservador = medir(analizador, estudio);
+
+        MetricasDeteccion metricas = new MetricasDeteccion();
+        analizador.addObservador(metricas);
+        long conObservador = medir(analizador, estudio);
+        boolean iguales = referencia.equals(analizador.analizar(estudio));
+        System.out.printf("   sin observador %6.2f ms  con MetricasDeteccion %6.2f ms (%+.1f%%)  %s%n",
+                sinObservador / 1e6, conObservador / 1e6,
+                100.0 * (conObservador - sinObservador) / sinObservador,
+                iguales ? "✓ idéntico" : "✗ DIFERENTE");
+
+        System.out.printf("   %-28s %6s %9s %9s %9s %11s %6s %9s%n", "Elemento", "n", "p50 µs", "p99 µs",
+                "máx µs", "ventanas", "prof.", "KiB/det");
+        for (String elemento : metricas.getElementos()) {
+            HistogramaLatencias.Instantanea latencias = metricas.getLatencias(elemento);
+            long detecciones = metricas.getDetecciones(elemento);
+            System.out.printf("   %-28s %6d %9.1f %9.1f %9.1f %11d %6.2f %9.1f%n", elemento, detecciones,
+                    latencias.getPercentil(50) / 1e3, latencias.getPercentil(99) / 1e3,
+                    latencias.getMaximo() / 1e3, metricas.getVentanasProbadas(elemento),
+                    metricas.getProfundidadMedia(elemento),
+                    metricas.getBytesReservados(elemento) / 1024.0 / detecciones);
+        }
+    }
+
+    /**
+     * Compara la máscara {@code boolean[][]} con la {@link Mascara}
+     * empaquetada: memoria reservada al detectar, tiempo de recuento y tiempo
+     * de las operaciones entre máscaras, comprobando que los resultados
+     * coinciden.
+     */
+    private static void medirMascara() throws Exception {
+        System.out.println();
+        System.out.println("10. Máscara empaquetada frente a boolean[][]");
+        Muestra muestra = crearMuestraSintetica("Sintetica_2048", 2048, 2048, 11);
+        List<ReconocedorImagen> reconocedores = DatosPredefinidos.getInstance().getReconocedores();
+        List<boolean[][]> matrices = new ArrayList<>();
+        List<Mascara> mascaras = new ArrayList<>();
+        for (ReconocedorImagen reconocedor : reconocedores) {
+            long bytesMatriz = bytesReservados();
+            boolean[][] matriz = reconocedor.detectar(muestra);
+            bytesMatriz = bytesReservados() - bytesMatriz;
+            long bytesMascara = bytesReservados();
+            Mascara mascara = reconocedor.detectarMascara(muestra);
+            bytesMascara = bytesReservados() - bytesMascara;
+            matrices.add(matriz);
+            mascaras.add(mascara);
+
+            long mejorMatriz = Long.MAX_VALUE;
+            long mejorMascara = Long.MAX_VALUE;
+            int enMatriz = 0;
+            int enMascara = 0;
+            for (int i = 0; i < REPETICIONES; i++) {
+                long inicio = System.nanoTime();
+                enMatriz = contar(matriz);
+                mejorMatriz = Math.min(mejorMatriz, System.nanoTime() - inicio);
+                inicio = System.nanoTime();
+                enMascara = mascara.contar();
+                mejorMascara = Math.min(mejorMascara, System.nanoTime() - inicio);
+            }
+            boolean iguales = enMatriz == enMascara && mascara.equals(Mascara.desdeMatriz(matriz));
+            System.out.printf("   %-28s detectar: %6d KiB → %5d KiB | contar: %7.2f ms → %5.2f ms  %s%n",
+                    reconocedor.getElemento().getNombre(), bytesMatriz / 1024, bytesMascara / 1024,
+                    mejorMatriz / 1e6, mejorMascara / 1e6, iguales ? "✓ idéntico" : "✗ DIFERENTE");
+        }
+
+        // Un patrón que no cabe en la muestra se rechaza igual con ambas máscaras
+        Muestra pequena = new Muestra("Pequena_2x2", new int[][] {{5, 10}, {15, 0}});
+        ReconocedorPatron grande = new ReconocedorPatron(new Patogeno("Grande", new int[][] {
+            {15, 15, 15}, {15, 15, 15}, {15, 15, 15}}));
+        String errorMatriz = null;
+        String errorMascara = null;
+        try {
+            grande.detectar(pequena);
+        } catch (Exception e) {
+            errorMatriz = e.getMessage();
+        }
+        try {
+            grande.detectarMascara(pequena);
+        } catch (Exception e) {
+            errorMascara = e.getMessage();
+        }
+        System.out.printf("   Patrón mayor que la muestra: %s  %s%n", errorMascara,
+                errorMascara != null && errorMascara.equals(errorMatriz) ? "✓ correcto" : "✗ INCORRECTO");
+
+        // Unión de todas las detecciones menos las de la primera, intersecada con la segunda
+        long inicio = System.nanoTime();
+        boolean[][] matriz = new boolean[muestra.getAlto()][muestra.getAncho()];
+        for (int fila = 0; fila < muestra.getAlto(); fila++) {
+            for (int col = 0; col < muestra.getAncho(); col++) {
+                boolean alguna = false;
+                for (boolean[][] otra : matrices) {
+                    alguna |= otra[fila][col];
+                }
+                matriz[fila][col] = alguna && !matrices.get(0)[fila][col] && matrices.get(1)[fila][col];
+            }
+        }
+        long tiempoMatriz = System.nanoTime() - inicio;
+        inicio = System.nanoTime();
+        Mascara combinada = Mascara.vacia(muestra.getAlto(), muestra.getAncho());
+        for (Mascara otra : mascaras) {
+            combinada.unir(otra);
+        }
+        combinada.restar(mascaras.get(0)).intersecar(mascaras.get(1));
+        long tiempoMascara = System.nanoTime() - inicio;
+        System.out.printf("   Unión, diferencia e intersección: %7.2f ms → %5.2f ms  %s%n",
+                tiempoMatriz / 1e6, tiempoMascara / 1e6,
+                combinada.equals(Mascara.desdeMatriz(matriz)) ? "✓ idéntico" : "✗ DIFERENTE");
+    }
+
+    /**
+     * Compara el rendimiento de varios clientes que llaman concurrentemente al
+     * análisis síncrono con el de un único hilo que lanza todos los análisis
+     * de forma asíncrona, y mide cuándo se completa el primer elemento de un
+     * estudio frente al estudio completo.
+     */
+    private static void medirAnalisisAsincrono() throws Exception {
+        System.out.println();
+        System.out.println("11. Análisis asíncrono frente a llamadas síncronas concurrentes");
+        int numEstudios = 32;
+        AnalizadorDiagnostico analizador = crearAnalizador();
+        List<EstudioDiagnostico> estudios = new ArrayList<>();
+        List<Map<String, Integer>> referencias = new ArrayList<>();
+        for (int i = 0; i < numEstudios; i++) {
+            estudios.add(crearEstudioSintetico(3, 128));
+            referencias.add(analizador.analizar(estudios.get(i)));
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        analizador.setEjecutor(pool);
+        try {
+            for (int clientes = 1; clientes <= 16; clientes *= 4) {
+                AtomicInteger siguiente = new AtomicInteger();
+                AtomicReferenceArray<Map<String, Integer>> resultados = new AtomicReferenceArray<>(numEstudios);
+                AtomicReference<Exception> error = new AtomicReference<>();
+                Thread[] hilos = new Thread[clientes];
+                long inicio = System.nanoTime();
+                for (int c = 0; c < clientes; c++) {
+                    hilos[c] = new Thread(() -> {
+                        try {
+                            int i;
+                            while ((i = siguiente.getAndIncrement()) < numEstudios) {
+                                resultados.set(i, analizador.analizar(estudios.get(i)));
+                            }
+                        } catch (Exception e) {
+                            error.compareAndSet(null, e);
+                        }
+                    });
+                    hilos[c].start();
+                }
+                for (Thread hilo : hilos) {
+                    hilo.join();
+                }
+                long tiempo = System.nanoTime() - inicio;
+                if (error.get() != null) {
+                    throw error.get();
+                }
+                boolean iguales = true;
+                for (int i = 0; i < numEstudios; i++) {
+                    iguales &= referencias.get(i).equals(resultados.get(i));
+                }
+                System.out.printf("   %2d clientes síncronos:          %7.1f estudios/s  %s%n", clientes,
+                        numEstudios * 1e9 / tiempo, iguales ? "✓ idéntico" : "✗ DIFERENTE");
+            }
+
+            long inicio = System.nanoTime();
+            List<AnalisisEnCurso> analisis = new ArrayList<>();
+            for (EstudioDiagnostico estudio : estudios) {
+                analisis.add(analizador.analizarAsincrono(estudio));
+            }
+            CompletableFuture.allOf(analisis.toArray(new CompletableFuture<?>[0])).join();
+            long tiempo = System.nanoTime() - inicio;
+            boolean iguales = true;
+            for (int i = 0; i < numEstudios; i++) {
+                iguales &= referencias.get(i).equals(analisis.get(i).join());
+            }
+            System.out.printf("    1 hilo con analizarAsincrono: %7.1f estudios/s  %s%n",
+                    numEstudios * 1e9 / tiempo, iguales ? "✓ idéntico" : "✗ DIFERENTE");
+
+            EstudioDiagnostico grande = crearEstudioSintetico(8, 512);
+            Map<String, Integer> referencia = analizador.analizar(grande);
+            inicio = System.nanoTime();
+            AnalisisEnCurso enCurso = analizador.analizarAsincrono(grande);
+            List<CompletableFuture<Integer>> porElemento = new ArrayList<>();
+            for (String elemento : enCurso.getElementos()) {
+                porElemento.add(enCurso.getResultado(elemento));
+            }
+            CompletableFuture.anyOf(porElemento.toArray(new CompletableFuture<?>[0])).join();
+            long primero = System.nanoTime() - inicio;
+            Map<String, Integer> resultado = enCurso.join();
+            long total = System.nanoTime() - inicio;
+            System.out.printf("   Estudio de 8 muestras 512x512: primer elemento a los %6.1f ms, "
+                    + "estudio completo a los %6.1f ms  %s%n", primero / 1e6, total / 1e6,
+                    referencia.equals(resultado) ? "✓ idéntico" : "✗ DIFERENTE");
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Compara el procesamiento de un lote de estudios etapa a etapa (cargar,
+     * analizar y guardar cada estudio antes de empezar el siguiente) con el de
+     * una {@link TuberiaEstudios}, simulando la latencia de lectura de cada
+     * imagen y de escritura de cada XML con esperas.
+     */
+    private static void medirTuberia() throws Exception {
+        System.out.println();
+        System.out.println("12. Cadena de decodificación, análisis y guardado");
+        int numEstudios = 24;
+        int muestrasPorEstudio = 2;
+        int lado = 128;
+        long latenciaLecturaMs = 8;
+        long latenciaEscrituraMs = 15;
+        AnalizadorDiagnostico analizador = crearAnalizador();
+        Medico informador = new Medico("00/00/00001", "Dra. Sintética", "Hospital de Pruebas",
+                EspecialidadMedica.RADIOLOGIA);
+        analizador.analizar(crearEstudioSintetico(muestrasPorEstudio, lado));
+
+        List<Map<String, Integer>> referencias = new ArrayList<>();
+        long inicio = System.nanoTime();
+        for (int i = 0; i < numEstudios; i++) {
+            EstudioDiagnostico estudio = crearEstudioSintetico(0, lado);
+            for (FuenteMuestra fuente : fuentesConLatencia(i, muestrasPorEstudio, lado, latenciaLecturaMs)) {
+                estudio.addMuestra(fuente.cargar());
+            }
+            estudio.informar(informador, analizador.analizar(estudio));
+            try (OutputStream out = salidaConLatencia(latenciaEscrituraMs)) {
+                estudio.guardar(out);
+            }
+            referencias.add(estudio.getResultados());
+        }
+        long tiempoSecuencial = System.nanoTime() - inicio;
+        System.out.printf("   Etapa a etapa:           %7.1f estudios/s%n", numEstudios * 1e9 / tiempoSecuencial);
+
+        for (int hilosEntradaSalida = 1; hilosEntradaSalida <= 4; hilosEntradaSalida *= 2) {
+            TuberiaEstudios tuberia = new TuberiaEstudios(analizador, informador, hilosEntradaSalida, 1,
+                    hilosEntradaSalida, 4);
+            List<CompletableFuture<EstudioDiagnostico>> futuros = new ArrayList<>();
+            inicio = System.nanoTime();
+            for (int i = 0; i < numEstudios; i++) {
+                futuros.add(tuberia.enviar(crearEstudioSintetico(0, lado),
+                        fuentesConLatencia(i, muestrasPorEstudio, lado, latenciaLecturaMs),
+                        estudio -> salidaConLatencia(latenciaEscrituraMs)));
+            }
+            tuberia.cerrar();
+            tuberia.esperarTerminacion(1, TimeUnit.MINUTES);
+            long tiempo = System.nanoTime() - inicio;
+            boolean iguales = true;
+            for (int i = 0; i < numEstudios; i++) {
+                iguales &= referencias.get(i).equals(futuros.get(i).get().getResultados());
+            }
+            System.out.printf("   Cadena %d-1-%d hilos:      %7.1f estudios/s  (x%.2f)  cuello: %-14s %s%n",
+                    hilosEntradaSalida, hilosEntradaSalida, numEstudios * 1e9 / tiempo,
+                    (double) tiempoSecuencial / tiempo, tuberia.getCuelloDeBotella(),
+                    iguales ? "✓ idéntico" : "✗ DIFERENTE");
+            for (TuberiaEstudios.Etapa etapa : TuberiaEstudios.Etapa.values()) {
+                System.out.printf("      %-14s ocupada %5.1f%%  esperando %5.1f%%  bloqueada %5.1f%%%n", etapa,
+                        100 * tuberia.getUtilizacion(etapa), 100 * tuberia.getFraccionEsperando(etapa),
+                        100 * tuberia.getFraccionBloqueada(etapa));
+            }
+        }
+    }
+
+    /**
+     * Compara la escritura y la lectura de un lote de estudios con
+     * {@link XMLEncoder} y {@link XMLDecoder} frente a
+     * {@link EscritorEstudiosXml} y {@link LectorEstudiosXml}, comprobando que
+     * los estudios leídos coinciden con los originales.
+     */
+    private static void medirPersistenciaXml() throws Exception {
+        System.out.println();
+        System.out.println("13. Persistencia XML en streaming frente a XMLEncoder/XMLDecoder");
+        int numEstudios = 10_000;
+
+        long memoria = memoriaUsada();
+        long bytes = bytesReservados();
+        long inicio = System.nanoTime();
+        long retenida;
+        try (XMLEncoder encoder = new XMLEncoder(OutputStream.nullOutputStream())) {
+            for (int i = 0; i < numEstudios; i++) {
+                encoder.writeObject(crearEstudioInformado(i));
+            }
+            retenida = Math.max(0, memoriaUsada() - memoria);
+        }
+        long tiempo = System.nanoTime() - inicio;
+        bytes = bytesReservados() - bytes;
+        System.out.printf("   Escritura XMLEncoder:          %6d ms  %6.1f KiB reservados/estudio  "
+                + "%7.1f MiB retenidos antes de cerrar%n", tiempo / 1_000_000, bytes / 1024.0 / numEstudios,
+                retenida / 1048576.0);
+
+        memoria = memoriaUsada();
+        bytes = bytesReservados();
+        inicio = System.nanoTime();
+        try (EscritorEstudiosXml escritor = new EscritorEstudiosXml(OutputStream.nullOutputStream())) {
+            for (int i = 0; i < numEstudios; i++) {
+                escritor.escribir(crearEstudioInformado(i));
+            }
+            retenida = Math.max(0, memoriaUsada() - memoria);
+        }
+        tiempo = System.nanoTime() - inicio;
+        bytes = bytesReservados() - bytes;
+        System.out.printf("   Escritura EscritorEstudiosXml: %6d ms  %6.1f KiB reservados/estudio  "
+                + "%7.1f MiB retenidos antes de cerrar%n", tiempo / 1_000_000, bytes / 1024.0 / numEstudios,
+                retenida / 1048576.0);
+
+        List<String> referencias = new ArrayList<>();
+        for (int i = 0; i < numEstudios; i++) {
+            referencias.add(describir(crearEstudioInformado(i)));
+        }
+        ByteArrayOutputStream documentoEncoder = new ByteArrayOutputStream();
+        try (XMLEncoder encoder = new XMLEncoder(documentoEncoder)) {
+            for (int i = 0; i < numEstudios; i++) {
+                encoder.writeObject(crearEstudioInformado(i));
+            }
+        }
+        ByteArrayOutputStream documentoStreaming = new ByteArrayOutputStream();
+        try (EscritorEstudiosXml escritor = new EscritorEstudiosXml(documentoStreaming)) {
+            for (int i = 0; i < numEstudios; i++) {
+                escritor.escribir(crearEstudioInformado(i));
+            }
+        }
+
+        bytes = bytesReservados();
+        inicio = System.nanoTime();
+        boolean iguales = true;
+        int leidos = 0;
+        try (XMLDecoder decoder = new XMLDecoder(new ByteArrayInputStream(documentoStreaming.toByteArray()))) {
+            for (; leidos < numEstudios; leidos++) {
+                iguales &= referencias.get(leidos).equals(describir((EstudioDiagnostico) decoder.readObject()));
+            }
+        }
+        tiempo = System.nanoTime() - inicio;
+        bytes = bytesReservados() - bytes;
+        System.out.printf("   Lectura XMLDecoder:            %6d ms  %6.1f KiB reservados/estudio  %s%n",
+                tiempo / 1_000_000, bytes / 1024.0 / numEstudios,
+                iguales && leidos == numEstudios ? "✓ idéntico" : "✗ DIFERENTE");
+
+        for (ByteArrayOutputStream documento : List.of(documentoStreaming, documentoEncoder)) {
+            bytes = bytesReservados();
+            inicio = System.nanoTime();
+            iguales = true;
+            leidos = 0;
+            try (LectorEstudiosXml lector = new LectorEstudiosXml(new ByteArrayInputStream(documento.toByteArray()))) {
+                EstudioDiagnostico estudio;
+                while ((estudio = lector.leer()) != null) {
+                    iguales &= referencias.get(leidos).equals(describir(estudio));
+                    leidos++;
+                }
+            }
+            tiempo = System.nanoTime() - inicio;
+            bytes = bytesReservados() - bytes;
+            System.out.printf("   Lectura LectorEstudiosXml:     %6d ms  %6.1f KiB reservados/estudio  %s (%s)%n",
+                    tiempo / 1_000_000, bytes / 1024.0 / numEstudios,
+                    iguales && leidos == numEstudios ? "✓ idéntico" : "✗ DIFERENTE",
+                    documento == documentoEncoder ? "documento de XMLEncoder" : "documento propio");
+        }
+        System.out.printf("   Tamaño del documento: %.1f MiB (XMLEncoder %.1f MiB)%n",
+                documentoStreaming.size() / 1048576.0, documentoEncoder.size() / 1048576.0);
+    }
+
+    /**
+     * Compara la codificación y la decodificación de un lote de estudios en
+     * el formato binario de {@link EscritorEstudiosBinario} frente al XML de
+     * {@link EscritorEstudiosXml}, comprobando que los estudios leídos
+     * coinciden con los originales.
+     */
+    private static void medirPersistenciaBinaria() throws Exception {
+        System.out.println();
+        System.out.println("14. Archivo binario de estudios frente a XML");
+        int numEstudios = 10_000;
+        List<EstudioDiagnostico> estudios = new ArrayList<>();
+        List<String> referencias = new ArrayList<>();
+        for (int i = 0; i < numEstudios; i++) {
+            EstudioDiagnostico estudio = crearEstudioInformado(i);
+            estudios.add(estudio);
+            referencias.add(describir(estudio));
+        }
+
+        for (boolean binario : new boolean[] { false, true }) {
+            long mejorEscritura = Long.MAX_VALUE;
+            ByteArrayOutputStream archivo = null;
+            for (int r = 0; r < REPETICIONES; r++) {
+                archivo = new ByteArrayOutputStream();
+                long inicio = System.nanoTime();
+                if (binario) {
+                    try (EscritorEstudiosBinario escritor = new EscritorEstudiosBinario(archivo)) {
+                        for (EstudioDiagnostico estudio : estudios) {
+                            escritor.escribir(estudio);
+                        }
+                    }
+                } else {
+                    try (EscritorEstudiosXml escritor = new EscritorEstudiosXml(archivo)) {
+                        for (EstudioDiagnostico estudio : estudios) {
+                            escritor.escribir(estudio);
+                        }
+                    }
+                }
+                mejorEscritura = Math.min(mejorEscritura, System.nanoTime() - inicio);
+            }
+
+            byte[] datos = archivo.toByteArray();
+            long mejorLectura = Long.MAX_VALUE;
+            boolean iguales = true;
+            for (int r = 0; r < REPETICIONES; r++) {
+                int leidos = 0;
+                long inicio = System.nanoTime();
+                if (binario) {
+                    try (LectorEstudiosBinario lector = new LectorEstudiosBinario(new ByteArrayInputStream(datos))) {
+                        EstudioDiagnostico estudio;
+                        while ((estudio = lector.leer()) != null) {
+                            iguales &= referencias.get(leidos++).equals(describir(estudio));
+                        }
+                    }
+                } else {
+                    try (LectorEstudiosXml lector = new LectorEstudiosXml(new ByteArrayInputStream(datos))) {
+                        EstudioDiagnostico estudio;
+                        while ((estudio = lector.leer()) != null) {
+                            iguales &= referencias.get(leidos++).equals(describir(estudio));
+                        }
+                    }
+                }
+                mejorLectura = Math.min(mejorLectura, System.nanoTime() - inicio);
+                iguales &= leidos == numEstudios;
+            }
+
+            System.out.printf("   %-7s escritura %5d ms (%7.0f estudios/s)  lectura %5d ms (%7.0f estudios/s)  "
+                    + "%6.1f bytes/estudio, %6.2f MiB  %s%n", binario ? "Binario" : "XML",
+                    mejorEscritura / 1_000_000, numEstudios * 1e9 / mejorEscritura,
+                    mejorLectura / 1_000_000, numEstudios * 1e9 / mejorLectura,
+                    (double) datos.length / numEstudios, datos.length / 1048576.0,
+                    iguales ? "✓ idéntico" : "✗ DIFERENTE");
+        }
+    }
+
+    /**
+     * Guarda y carga estudios con sus píxeles en un {@link AlmacenMuestras},
+     * con muestras repetidas entre estudios, midiendo la deduplicación, el
+     * espacio en disco y la carga bajo demanda de los píxeles.
+     */
+    private static void medirAlmacenMuestras() throws Exception {
+        System.out.println();
+        System.out.println("15. Almacén de muestras direccionado por contenido");
+        int numEstudios = 200;
+        int muestrasPorEstudio = 3;
+        int distintas = 100;
+        int lado = 256;
+        List<Muestra> imagenes = new ArrayList<>();
+        for (int i = 0; i < distintas; i++) {
+            imagenes.add(crearMuestraSintetica("I" + i, lado, lado, i));
+        }
+        List<EstudioDiagnostico> estudios = new ArrayList<>();
+        for (int i = 0; i < numEstudios; i++) {
+            EstudioDiagnostico estudio = crearEstudioInformado(i);
+            estudio.getMuestras().clear();
+            for (int m = 0; m < muestrasPorEstudio; m++) {
+                int[][] pixeles = imagenes.get((i * muestrasPorEstudio + m) * 7 % distintas).getPixeles();
+                estudio.addMuestra(new Muestra("E" + i + "-M" + m, pixeles));
+            }
+            estudios.add(estudio);
+        }
+
+        Path directorio = Files.createTempDirectory("almacen-muestras");
+        try {
+            AlmacenMuestras almacen = new AlmacenMuestras(directorio);
+            List<byte[]> documentos = new ArrayList<>();
+            long inicio = System.nanoTime();
+            for (EstudioDiagnostico estudio : estudios) {
+                ByteArrayOutputStream documento = new ByteArrayOutputStream();
+                estudio.guardar(documento, almacen);
+                documentos.add(documento.toByteArray());
+            }
+            long tiempo = System.nanoTime() - inicio;
+            long enDisco = 0;
+            try (Stream<Path> ficheros = Files.walk(directorio)) {
+                for (Path fichero : (Iterable<Path>) ficheros::iterator) {
+                    if (Files.isRegularFile(fichero)) {
+                        enDisco += Files.size(fichero);
+                    }
+                }
+            }
+            long enMemoria = (long) numEstudios * muestrasPorEstudio * lado * lado * Integer.BYTES;
+            System.out.printf("   Guardado: %6d ms  %d muestras escritas, %d deduplicadas  "
+                    + "%.1f MiB en disco (%.1f MiB de píxeles en memoria)%n", tiempo / 1_000_000,
+                    almacen.getMuestrasEscritas(), almacen.getMuestrasDeduplicadas(), enDisco / 1048576.0,
+                    enMemoria / 1048576.0);
+
+            inicio = System.nanoTime();
+            List<EstudioDiagnostico> leidos = new ArrayList<>();
+            for (byte[] documento : documentos) {
+                leidos.add(EstudioDiagnostico.cargar(new ByteArrayInputStream(documento), almacen));
+            }
+            tiempo = System.nanoTime() - inicio;
+            long cargadas = 0;
+            for (EstudioDiagnostico leido : leidos) {
+                for (Muestra muestra : leido.getMuestras()) {
+                    cargadas += ((MuestraAlmacenada) muestra).isCargada() ? 1 : 0;
+                }
+            }
+            System.out.printf("   Carga de los estudios: %6d ms  %d muestras con los píxeles en memoria%n",
+                    tiempo / 1_000_000, cargadas);
+
+            // Con la caché llena por los estudios originales, analizar los
+            // cargados no debe leer ningún píxel del almacén
+            int analizados = 20;
+            AnalizadorDiagnostico analizador = crearAnalizador();
+            analizador.setCache(new CacheResultados(1000));
+            List<Map<String, Integer>> referencias = new ArrayList<>();
+            for (int i = 0; i < analizados; i++) {
+                referencias.add(analizador.analizar(estudios.get(i)));
+            }
+            inicio = System.nanoTime();
+            boolean igualesCache = true;
+            for (int i = 0; i < analizados; i++) {
+                igualesCache &= referencias.get(i).equals(analizador.analizar(leidos.get(i)));
+            }
+            tiempo = System.nanoTime() - inicio;
+            System.out.printf("   Análisis con caché de %d estudios cargados: %6d ms  %d muestras leídas  %s%n",
+                    analizados, tiempo / 1_000_000, almacen.getMuestrasLeidas(),
+                    igualesCache && almacen.getMuestrasLeidas() == 0 ? "✓ idéntico" : "✗ DIFERENTE");
+
+            inicio = System.nanoTime();
+            boolean iguales = true;
+            for (int i = 0; i < numEstudios; i++) {
+                for (int m = 0; m < muestrasPorEstudio; m++) {
+                    iguales &= Arrays.deepEquals(estudios.get(i).getMuestras().get(m).getPixeles(),
+                            leidos.get(i).getMuestras().get(m).getPixeles());
+                }
+            }
+            tiempo = System.nanoTime() - inicio;
+            System.out.printf("   Lectura bajo demanda de los píxeles: %6d ms  %d muestras leídas  %s%n",
+                    tiempo / 1_000_000, almacen.getMuestrasLeidas(), iguales ? "✓ idéntico" : "✗ DIFERENTE");
+        } finally {
+            try (Stream<Path> ficheros = Files.walk(directorio)) {
+                for (Path fichero : (Iterable<Path>) ficheros.sorted(Comparator.reverseOrder())::iterator) {
+                    Files.delete(fichero);
+                }
+            }
+        }
+    }
+
+    /**
+     * Compara guardar cada estudio en su propio fichero XML sincronizado con
+     * el disco frente al {@link DiarioEstudios} con confirmación en grupo, y
+     * mide las lecturas por clave, la compactación tras volver a informar los
+     * estudios y la recuperación tras una escritura interrumpida.
+     */
+    private static void medirDiario() throws Exception {
+        System.out.println();
+        System.out.println("16. Diario de estudios con confirmación en grupo frente a un XML por estudio");
+        int numEstudios = 50_000;
+        int numFicheros = 500;
+        List<EstudioDiagnostico> estudios = new ArrayList<>();
+        List<String> referencias = new ArrayList<>();
+        for (int i = 0; i < numEstudios; i++) {
+            EstudioDiagnostico estudio = crearEstudioInformado(i);
+            estudios.add(estudio);
+            referencias.add(describir(estudio));
+        }
+
+        Path directorio = Files.createTempDirectory("diario-estudios");
+        try {
+            Path ficheros = Files.createDirectory(directorio.resolve("xml"));
+            long inicio = System.nanoTime();
+            for (int i = 0; i < numFicheros; i++) {
+                ByteArrayOutputStream documento = new ByteArrayOutputStream();
+                estudios.get(i).guardar(documento);
+                try (FileChannel canal = FileChannel.open(ficheros.resolve("estudio-" + i + ".xml"),
+                        StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                    canal.write(ByteBuffer.wrap(documento.toByteArray()));
+                    canal.force(false);
+                }
+            }
+            long tiempo = System.nanoTime() - inicio;
+            System.out.printf("   Un XML por estudio:   %8.0f estudios/s (%d estudios)%n",
+                    numFicheros * 1e9 / tiempo, numFicheros);
+
+            Path rutaDiario = directorio.resolve("diario");
+            long tamSegmento = 4L << 20;
+            DiarioEstudios diario = new DiarioEstudios(rutaDiario, tamSegmento, DiarioEstudios.FRACCION_OBSOLETA);
+            List<CompletableFuture<Void>> confirmados = new ArrayList<>();
+            inicio = System.nanoTime();
+            for (int i = 0; i < numEstudios; i++) {
+                confirmados.add(diario.escribir("estudio-" + i, estudios.get(i)));
+            }
+            CompletableFuture.allOf(confirmados.toArray(new CompletableFuture<?>[0])).join();
+            tiempo = System.nanoTime() - inicio;
+            System.out.printf("   Diario:               %8.0f estudios/s (%d estudios, %d confirmaciones, "
+                    + "%.0f estudios/confirmación)%n", numEstudios * 1e9 / tiempo, numEstudios,
+                    diario.getConfirmaciones(), (double) numEstudios / diario.getConfirmaciones());
+
+            Random aleatorio = new Random(42);
+            int numLecturas = 20_000;
+            boolean iguales = true;
+            inicio = System.nanoTime();
+            for (int l = 0; l < numLecturas; l++) {
+                int i = aleatorio.nextInt(numEstudios);
+                iguales &= referencias.get(i).equals(describir(diario.leer("estudio-" + i)));
+            }
+            tiempo = System.nanoTime() - inicio;
+            System.out.printf("   Lectura por clave:    %8.1f µs/estudio  %s%n", tiempo / 1e3 / numLecturas,
+                    iguales ? "✓ idéntico" : "✗ DIFERENTE");
+
+            // Se vuelven a informar todos los estudios: sus registros
+            // anteriores quedan obsoletos
+            long antes = diario.getBytesEnDisco();
+            Medico informador = new Medico("28/28/99999", "Dra. Revisora", "Hospital de Pruebas",
+                    EspecialidadMedica.RADIOLOGIA);
+            confirmados.clear();
+            for (int i = 0; i < numEstudios; i++) {
+                EstudioDiagnostico estudio = estudios.get(i);
+                Map<String, Integer> resultados = new HashMap<>(estudio.getResultados());
+                resultados.replaceAll((elemento, positivos) -> positivos + 1);
+                estudio.informar(informador, resultados);
+                estudio.setFechaInformeIso("2025-02-01T00:00:00." + String.format("%06d", i));
+                referencias.set(i, describir(estudio));
+                confirmados.add(diario.escribir("estudio-" + i, estudio));
+            }
+            CompletableFuture.allOf(confirmados.toArray(new CompletableFuture<?>[0])).join();
+            // El compactador trabaja en segundo plano mientras se escribe; lo
+            // que quede pendiente se compacta ahora
+            diario.compactar();
+            System.out.printf("   Compactación:         %6.1f MiB escritos en total, %.1f MiB en disco "
+                    + "(%.1f MiB vigentes) tras compactar %d segmentos%n",
+                    (antes + diario.getBytesVigentes()) / 1048576.0, diario.getBytesEnDisco() / 1048576.0,
+                    diario.getBytesVigentes() / 1048576.0, diario.getSegmentosCompactados());
+            diario.close();
+
+            // Escritura interrumpida: medio registro al final del segmento activo
+            Path ultimo;
+            try (Stream<Path> segmentos = Files.list(rutaDiario)) {
+                ultimo = segmentos.sorted(Comparator.reverseOrder()).findFirst().get();
+            }
+            try (FileChannel canal = FileChannel.open(ultimo, StandardOpenOption.APPEND)) {
+                canal.write(ByteBuffer.wrap(new byte[] { 0, 0, 1, 0, 1, 2, 3, 4, 5, 6, 7 }));
+            }
+            inicio = System.nanoTime();
+            diario = new DiarioEstudios(rutaDiario, tamSegmento, DiarioEstudios.FRACCION_OBSOLETA);
+            tiempo = System.nanoTime() - inicio;
+            iguales = diario.getNumEstudios() == numEstudios;
+            for (int i = 0; i < numEstudios; i += 97) {
+                iguales &= referencias.get(i).equals(describir(diario.leer("estudio-" + i)));
+            }
+            System.out.printf("   Recuperación:         %6d ms  %d estudios, %d bytes descartados  %s%n",
+                    tiempo / 1_000_000, diario.getNumEstudios(), diario.getBytesDescartados(),
+                    iguales ? "✓ idéntico" : "✗ DIFERENTE");
+            diario.close();
+        } finally {
+            try (Stream<Path> ficheros = Files.walk(directorio)) {
+                for (Path fichero : (Iterable<Path>) ficheros.sorted(Comparator.reverseOrder())::iterator) {
+                    Files.delete(fichero);
+                }
+            }
+        }
+    }
+
+    /**
+     * Recorre un archivo binario de estudios consultando solo datos de
+     * cabecera, con la lectura completa y con la lectura de cabeceras que
+     * difiere la decodificación de muestras y resultados.
+     */
+    private static void medirCargaParcial() throws Exception {
+        System.out.println();
+        System.out.println("17. Recorrido de estudios con carga parcial frente a carga completa");
+        int numEstudios = 100_000;
+        ByteArrayOutputStream archivo = new ByteArrayOutputStream();
+        try (EscritorEstudiosBinario escritor = new EscritorEstudiosBinario(archivo)) {
+            for (int i = 0; i < numEstudios; i++) {
+                escritor.escribir(crearEstudioInformado(i));
+            }
+        }
+        byte[] datos = archivo.toByteArray();
+
+        long[] seleccionados = new long[2];
+        for (boolean parcial : new boolean[] { false, true }) {
+            long mejor = Long.MAX_VALUE;
+            long bytes = 0;
+            for (int r = 0; r < REPETICIONES; r++) {
+                long coincidencias = 0;
+                bytes = bytesReservados();
+                long inicio = System.nanoTime();
+                try (LectorEstudiosBinario lector = new LectorEstudiosBinario(new ByteArrayInputStream(datos))) {
+                    EstudioDiagnostico estudio;
+                    while ((estudio = parcial ? lector.leerCabecera() : lector.leer()) != null) {
+                        // Filtro típico de un listado: paciente, informador y prescripción
+                        if (estudio.getPaciente().getAnioNacimiento() < 1960
+                                && estudio.getInformador().getColegiado().endsWith("7")
+                                && estudio.getTimestampPrescripcion() % 3 == 0
+                                && estudio.getTecnica() == TecnicaAdquisicion.MICROSCOPIA_COORDS) {
+                            coincidencias++;
+                        }
+                    }
+                }
+                mejor = Math.min(mejor, System.nanoTime() - inicio);
+                bytes = bytesReservados() - bytes;
+                seleccionados[parcial ? 1 : 0] = coincidencias;
+            }
+            System.out.printf("   %-9s %5d ms (%8.0f estudios/s)  %7.0f bytes reservados/estudio  %d seleccionados%n",
+                    parcial ? "Cabecera" : "Completa", mejor / 1_000_000, numEstudios * 1e9 / mejor,
+                    (double) bytes / numEstudios, seleccionados[parcial ? 1 : 0]);
+        }
+
+        // Al acceder a muestras y resultados se cargan y coinciden con la lectura completa
+        boolean iguales = seleccionados[0] == seleccionados[1];
+        try (LectorEstudiosBinario completo = new LectorEstudiosBinario(new ByteArrayInputStream(datos));
+                LectorEstudiosBinario parcial = new LectorEstudiosBinario(new ByteArrayInputStream(datos))) {
+            EstudioDiagnostico esperado;
+            while ((esperado = completo.leer()) != null) {
+                EstudioDiagnostico leido = parcial.leerCabecera();
+                iguales &= leido != null && describir(esperado).equals(describir(leido));
+            }
+            iguales &= parcial.leerCabecera() == null;
+        }
+        System.out.println("   Muestras y resultados cargados al acceder: " + (iguales ? "✓ idéntico" : "✗ DIFERENTE"));
+    }
+
+    /**
+     * Mide las consultas del {@link RepositorioEstudios} por paciente y por
+     * prescriptor a medida que crece hasta un millón de estudios, frente a
+     * recorrer todos los estudios, con un lector consultando mientras se
+     * añaden.
+     */
+    private static void medirRepositorio() throws Exception {
+        System.out.println();
+        System.out.println("18. Repositorio de estudios con índices secundarios frente a recorrido completo");
+        int[] tamanos = { 10_000, 100_000, 1_000_000 };
+        int estudiosPorPaciente = 4;
+        Medico[] prescriptores = new Medico[5000];
+        for (int i = 0; i < prescriptores.length; i++) {
+            prescriptores[i] = new Medico("28/28/" + (10000 + i), "Dr. Prescriptor " + i,
+                    "Hospital " + i % 50, EspecialidadMedica.MICROBIOLOGIA);
+        }
+        Medico[] informadores = new Medico[200];
+        for (int i = 0; i < informadores.length; i++) {
+            informadores[i] = new Medico("28/28/" + (20000 + i), "Dra. Informadora " + i,
+                    "Hospital " + i % 50, EspecialidadMedica.RADIOLOGIA);
+        }
+        TecnicaAdquisicion[] tecnicas = TecnicaAdquisicion.values();
+
+        RepositorioEstudios repositorio = new RepositorioEstudios();
+        List<EstudioDiagnostico> estudios = new ArrayList<>();
+        AtomicInteger consultasConcurrentes = new AtomicInteger();
+        AtomicInteger incoherentes = new AtomicInteger();
+        Paciente paciente = null;
+        for (int tamano : tamanos) {
+            // Desde el primer tamaño, un lector consulta mientras se añaden estudios
+            Thread lector = null;
+            if (!estudios.isEmpty()) {
+                lector = new Thread(() -> {
+                    Random aleatorio = new Random(7);
+                    while (!Thread.currentThread().isInterrupted()) {
+                        int visibles = repositorio.getNumEstudios();
+                        String dni = String.format("%08dR", aleatorio.nextInt(visibles / estudiosPorPaciente));
+                        for (EstudioDiagnostico encontrado : repositorio.buscarPorPaciente(dni)) {
+                            if (encontrado == null || !dni.equals(encontrado.getPaciente().getDni())) {
+                                incoherentes.incrementAndGet();
+                            }
+                        }
+                        consultasConcurrentes.incrementAndGet();
+                    }
+                }, "lector-repositorio");
+                lector.start();
+            }
+            for (int i = estudios.size(); i < tamano; i++) {
+                if (i % estudiosPorPaciente == 0) {
+                    paciente = new Paciente(String.format("%08dR", i / estudiosPorPaciente), "Paciente",
+                            "Prueba", "Repositorio", 1940 + i % 80);
+                }
+                EstudioDiagnostico estudio = new EstudioDiagnostico(tecnicas[i % tecnicas.length],
+                        prescriptores[i % prescriptores.length], paciente);
+                estudio.setInformador(informadores[i % informadores.length]);
+                estudios.add(estudio);
+                repositorio.agregar(estudio);
+            }
+            if (lector != null) {
+                lector.interrupt();
+                lector.join();
+            }
+
+            Random aleatorio = new Random(tamano);
+            int numConsultas = 20_000;
+            String[] dnis = new String[numConsultas];
+            String[] colegiados = new String[numConsultas];
+            for (int q = 0; q < numConsultas; q++) {
+                dnis[q] = String.format("%08dR", aleatorio.nextInt(tamano / estudiosPorPaciente));
+                colegiados[q] = prescriptores[aleatorio.nextInt(prescriptores.length)].getColegiado();
+            }
+            long mejorPaciente = Long.MAX_VALUE;
+            long mejorPrescriptor = Long.MAX_VALUE;
+            long encontradosPaciente = 0;
+            long encontradosPrescriptor = 0;
+            for (int r = 0; r < REPETICIONES; r++) {
+                encontradosPaciente = 0;
+                long inicio = System.nanoTime();
+                for (String dni : dnis) {
+                    encontradosPaciente += repositorio.buscarPorPaciente(dni).size();
+                }
+                mejorPaciente = Math.min(mejorPaciente, System.nanoTime() - inicio);
+                encontradosPrescriptor = 0;
+                inicio = System.nanoTime();
+                for (String colegiado : colegiados) {
+                    encontradosPrescriptor += repositorio.buscarPorPrescriptor(colegiado).size();
+                }
+                mejorPrescriptor = Math.min(mejorPrescriptor, System.nanoTime() - inicio);
+            }
+
+            // Recorrido completo: se mide con menos consultas
+            int consultasRecorrido = 20;
+            long mejorRecorrido = Long.MAX_VALUE;
+            boolean iguales = true;
+            for (int r = 0; r < REPETICIONES; r++) {
+                long inicio = System.nanoTime();
+                for (int q = 0; q < consultasRecorrido; q++) {
+                    int coincidencias = 0;
+                    for (EstudioDiagnostico estudio : estudios) {
+                        if (dnis[q].equals(estudio.getPaciente().getDni())) {
+                            coincidencias++;
+                        }
+                    }
+                    iguales &= coincidencias == repositorio.contarPorPaciente(dnis[q]);
+                }
+                mejorRecorrido = Math.min(mejorRecorrido, System.nanoTime() - inicio);
+            }
+            System.out.printf("   %,9d estudios  paciente %6.2f µs (%.1f estudios)  prescriptor %7.2f µs "
+                    + "(%.1f estudios)  recorrido %9.1f µs  %s%n", tamano,
+                    mejorPaciente / 1000.0 / numConsultas, (double) encontradosPaciente / numConsultas,
+                    mejorPrescriptor / 1000.0 / numConsultas, (double) encontradosPrescriptor / numConsultas,
+                    mejorRecorrido / 1000.0 / consultasRecorrido, iguales ? "✓ idéntico" : "✗ DIFERENTE");
+        }
+        boolean completos = repositorio.getNumEstudios() == tamanos[tamanos.length - 1];
+        for (TecnicaAdquisicion tecnica : tecnicas) {
+            completos &= repositorio.contarPorTecnica(tecnica) == repositorio.getNumEstudios() / tecnicas.length;
+        }
+        System.out.printf("   Lector concurrente: %d consultas mientras se añadían estudios  %s%n",
+                consultasConcurrentes.get(), incoherentes.get() == 0 && completos ? "✓ coherente" : "✗ INCOHERENTE");
+    }
+
+    /**
+     * Mide las consultas por intervalo de prescripción y de informe del
+     * {@link RepositorioEstudios} con un millón de estudios que llegan casi en
+     * orden, frente a recorrer todos los estudios (interpretando la fecha ISO
+     * del informe, como haría un cuadro de mando sin índice).
+     */
+    private static void medirIndiceTemporal() throws Exception {
+        System.out.println();
+        System.out.println("19. Consultas por intervalo de fechas con índice temporal frente a recorrido completo");
+        int numEstudios = 1_000_000;
+        long inicioSerie = 1_700_000_000L;
+        Medico prescriptor = new Medico("28/28/10000", "Dr. Prescriptor", "Hospital de Pruebas",
+                EspecialidadMedica.MICROBIOLOGIA);
+        Medico informador = new Medico("28/28/20000", "Dra. Informadora", "Hospital de Pruebas",
+                EspecialidadMedica.RADIOLOGIA);
+        Paciente paciente = new Paciente("00000000T", "Paciente", "Prueba", "Temporal", 1970);
+        Random aleatorio = new Random(19);
+        List<EstudioDiagnostico> estudios = new ArrayList<>(numEstudios);
+        for (int i = 0; i < numEstudios; i++) {
+            EstudioDiagnostico estudio = new EstudioDiagnostico(TecnicaAdquisicion.MICROSCOPIA_COORDS,
+                    prescriptor, paciente);
+            // Un estudio cada 30 s; uno de cada diez llega con hasta una hora de retraso
+            long prescripcion = inicioSerie + i * 30L - (i % 10 == 0 ? aleatorio.nextInt(3600) : 0);
+            estudio.setTimestampPrescripcion((int) prescripcion);
+            estudio.setInformador(informador);
+            estudio.setFechaInforme(LocalDateTime.ofEpochSecond(prescripcion + 3600 + aleatorio.nextInt(48 * 3600),
+                    aleatorio.nextInt(1_000_000_000), ZoneOffset.UTC));
+            estudios.add(estudio);
+        }
+
+        RepositorioEstudios repositorio = new RepositorioEstudios();
+        long inicio = System.nanoTime();
+        for (EstudioDiagnostico estudio : estudios) {
+            repositorio.agregar(estudio);
+        }
+        long tiempoAlta = System.nanoTime() - inicio;
+        System.out.printf("   Alta de %,d estudios en el repositorio: %d ms (%.2f µs/estudio)%n", numEstudios,
+                tiempoAlta / 1_000_000, tiempoAlta / 1000.0 / numEstudios);
+
+        long fin = inicioSerie + numEstudios * 30L;
+        for (long ventana : new long[] { 3600, 24 * 3600 }) {
+            int numConsultas = 1000;
+            long[] desdes = new long[numConsultas];
+            for (int q = 0; q < numConsultas; q++) {
+                desdes[q] = inicioSerie + (long) (aleatorio.nextDouble() * (fin - inicioSerie - ventana));
+            }
+            for (boolean informe : new boolean[] { false, true }) {
+                long mejorIndice = Long.MAX_VALUE;
+                long encontrados = 0;
+                for (int r = 0; r < REPETICIONES; r++) {
+                    encontrados = 0;
+                    inicio = System.nanoTime();
+                    for (long desde : desdes) {
+                        Iterator<EstudioDiagnostico> iterador = informe
+                                ? repositorio.buscarPorInforme(LocalDateTime.ofEpochSecond(desde, 0, ZoneOffset.UTC),
+                                        LocalDateTime.ofEpochSecond(desde + ventana, 0, ZoneOffset.UTC))
+                                : repositorio.buscarPorPrescripcion(desde, desde + ventana);
+                        while (iterador.hasNext()) {
+                            iterador.next();
+                            encontrados++;
+                        }
+                    }
+                    mejorIndice = Math.min(mejorIndice, System.nanoTime() - inicio);
+                }
+
+                // Recorrido completo: se mide con menos consultas
+                int consultasRecorrido = 3;
+                long mejorRecorrido = Long.MAX_VALUE;
+                boolean iguales = true;
+                for (int r = 0; r < REPETICIONES; r++) {
+                    inicio = System.nanoTime();
+                    for (int q = 0; q < consultasRecorrido; q++) {
+                        long desde = desdes[q];
+                        LocalDateTime desdeFecha = LocalDateTime.ofEpochSecond(desde, 0, ZoneOffset.UTC);
+                        LocalDateTime hastaFecha = LocalDateTime.ofEpochSecond(desde + ventana, 0, ZoneOffset.UTC);
+                        int coincidencias = 0;
+                        for (EstudioDiagnostico estudio : estudios) {
+                            if (informe) {
+                                LocalDateTime fecha = LocalDateTime.parse(estudio.getFechaInformeIso());
+                                if (!fecha.isBefore(desdeFecha) && fecha.isBefore(hastaFecha)) {
+                                    coincidencias++;
+                                }
+                            } else if (estudio.getTimestampPrescripcion() >= desde
+                                    && estudio.getTimestampPrescripcion() < desde + ventana) {
+                                coincidencias++;
+                            }
+                        }
+                        iguales &= coincidencias == (informe ? repositorio.contarPorInforme(desdeFecha, hastaFecha)
+                                : repositorio.contarPorPrescripcion(desde, desde + ventana));
+                    }
+                    mejorRecorrido = Math.min(mejorRecorrido, System.nanoTime() - inicio);
+                }
+                System.out.printf("   %-12s ventana %2d h  índice %8.1f µs (%6.1f estudios)  recorrido %8.1f ms  %s%n",
+                        informe ? "Informe" : "Prescripción", ventana / 3600,
+                        mejorIndice / 1000.0 / numConsultas, (double) encontrados / numConsultas,
+                        mejorRecorrido / 1e6 / consultasRecorrido, iguales ? "✓ idéntico" : "✗ DIFERENTE");
+            }
+        }
+    }
+
+    /**
+     * Exporta un millón de estudios en formato columnar y calcula la media de
+     * píxeles positivos de un elemento por centro prescriptor leyendo solo
+     * las dos columnas necesarias, frente a decodificar el archivo binario
+     * completo.
+     */
+    private static void medirExportacionColumnar() throws Exception {
+        System.out.println();
+        System.out.println("20. Exportación columnar y agregación por centro frente al archivo binario");
+        int numEstudios = 1_000_000;
+        String elemento = DatosPredefinidos.getInstance().getReconocedores().get(0).getElemento().getNombre();
+        Path directorio = Files.createTempDirectory("columnar");
+        Path columnar = directorio.resolve("estudios.fprc");
+        Path binario = directorio.resolve("estudios.fprb");
+        try {
+            long tiempoColumnar = 0;
+            long tiempoBinario = 0;
+            try (EscritorEstudiosColumnar escritorColumnar =
+                    new EscritorEstudiosColumnar(Files.newOutputStream(columnar));
+                    EscritorEstudiosBinario escritorBinario = new EscritorEstudiosBinario(Files.newOutputStream(binario))) {
+                for (int i = 0; i < numEstudios; i++) {
+                    EstudioDiagnostico estudio = crearEstudioInformado(i);
+                    estudio.getPrescriptor().setCentroSanitario("Hospital " + i % 20);
+                    long inicio = System.nanoTime();
+                    escritorColumnar.escribir(estudio);
+                    tiempoColumnar += System.nanoTime() - inicio;
+                    inicio = System.nanoTime();
+                    escritorBinario.escribir(estudio);
+                    tiempoBinario += System.nanoTime() - inicio;
+                }
+            }
+            System.out.printf("   Escritura: columnar %5d ms, %6.2f MiB   binario %5d ms, %6.2f MiB%n",
+                    tiempoColumnar / 1_000_000, Files.size(columnar) / 1048576.0,
+                    tiempoBinario / 1_000_000, Files.size(binario) / 1048576.0);
+
+            Map<String, Double> mediasColumnar = null;
+            long mejorColumnar = Long.MAX_VALUE;
+            long bytesLeidos = 0;
+            for (int r = 0; r < REPETICIONES; r++) {
+                long inicio = System.nanoTime();
+                Map<String, long[]> acumulados = new HashMap<>();
+                bytesLeidos = 0;
+                try (LectorEstudiosColumnar lector = new LectorEstudiosColumnar(columnar)) {
+                    while (lector.siguienteBloque()) {
+                        String columna = "resultado:" + elemento;
+                        if (!lector.contiene(columna)) {
+                            continue;
+                        }
+                        // Suma por código de centro del bloque y después por nombre
+                        int[] centros = lector.leerCodigos("prescriptor.centroSanitario");
+                        List<String> diccionario = lector.leerDiccionario("prescriptor.centroSanitario");
+                        int[] positivos = lector.leerEnteros(columna);
+                        long[] sumas = new long[diccionario.size()];
+                        long[] cuentas = new long[diccionario.size()];
+                        for (int fila = 0; fila < positivos.length; fila++) {
+                            int centro = centros[fila];
+                            if (centro >= 0 && positivos[fila] >= 0) {
+                                sumas[centro] += positivos[fila];
+                                cuentas[centro]++;
+                            }
+                        }
+                        for (int c = 0; c < sumas.length; c++) {
+                            long[] acumulado = acumulados.computeIfAbsent(diccionario.get(c), k -> new long[2]);
+                            acumulado[0] += sumas[c];
+                            acumulado[1] += cuentas[c];
+                        }
+                        bytesLeidos += 8L * positivos.length;
+                    }
+                }
+                mejorColumnar = Math.min(mejorColumnar, System.nanoTime() - inicio);
+                mediasColumnar = medias(acumulados);
+            }
+
+            Map<String, Double> mediasBinario = null;
+            long mejorBinario = Long.MAX_VALUE;
+            for (int r = 0; r < REPETICIONES; r++) {
+                long inicio = System.nanoTime();
+                Map<String, long[]> acumulados = new HashMap<>();
+                try (LectorEstudiosBinario lector = new LectorEstudiosBinario(Files.newInputStream(binario))) {
+                    EstudioDiagnostico estudio;
+                    while ((estudio = lector.leer()) != null) {
+                        Integer positivos = estudio.getResultados().get(elemento);
+                        if (positivos != null && estudio.getPrescriptor() != null
+                                && estudio.getPrescriptor().getCentroSanitario() != null) {
+                            long[] acumulado = acumulados.computeIfAbsent(
+                                    estudio.getPrescriptor().getCentroSanitario(), k -> new long[2]);
+                            acumulado[0] += positivos;
+                            acumulado[1]++;
+                        }
+                    }
+                }
+                mejorBinario = Math.min(mejorBinario, System.nanoTime() - inicio);
+                mediasBinario = medias(acumulados);
+            }
+
+            System.out.printf("   Media de %s por centro (%d centros):%n", elemento, mediasColumnar.size());
+            System.out.printf("   Columnar %6d ms (%9.0f estudios/s, %7.1f MiB/s de columnas)%n",
+                    mejorColumnar / 1_000_000, numEstudios * 1e9 / mejorColumnar,
+                    bytesLeidos / 1048576.0 * 1e9 / mejorColumnar);
+            System.out.printf("   Binario  %6d ms (%9.0f estudios/s)  %s%n", mejorBinario / 1_000_000,
+                    numEstudios * 1e9 / mejorBinario,
+                    mediasColumnar.equals(mediasBinario) ? "✓ idéntico" : "✗ DIFERENTE");
+        } finally {
+            Files.deleteIfExists(columnar);
+            Files.deleteIfExists(binario);
+            Files.deleteIfExists(directorio);
+        }
+    }
+
+    /**
+     * Consultas por umbral de píxeles positivos de un elemento y de los
+     * estudios con más píxeles positivos sobre un {@link RepositorioEstudios}
+     * con un millón de estudios informados, frente a recorrer los resultados
+     * de todos los estudios.
+     */
+    private static void medirIndiceResultados() throws Exception {
+        System.out.println();
+        System.out.println("21. Consultas por número de píxeles positivos con índice frente a recorrido completo");
+        int numEstudios = 1_000_000;
+        Medico prescriptor = new Medico("28/28/10000", "Dr. Prescriptor", "Hospital de Pruebas",
+                EspecialidadMedica.MICROBIOLOGIA);
+        Medico informador = new Medico("28/28/20000", "Dra. Informadora", "Hospital de Pruebas",
+                EspecialidadMedica.RADIOLOGIA);
+        Paciente paciente = new Paciente("00000000T", "Paciente", "Prueba", "Resultados", 1970);
+        List<String> elementos = new ArrayList<>();
+        for (ReconocedorImagen reconocedor : DatosPredefinidos.getInstance().getReconocedores()) {
+            elementos.add(reconocedor.getElemento().getNombre());
+        }
+        String elemento = elementos.get(0);
+        Random aleatorio = new Random(21);
+
+        // Los estudios se añaden sin informar y se informan después, como en
+        // la tubería: el índice de resultados se actualiza al informar
+        RepositorioEstudios repositorio = new RepositorioEstudios();
+        List<EstudioDiagnostico> estudios = new ArrayList<>(numEstudios);
+        long tiempoAlta = 0;
+        for (int i = 0; i < numEstudios; i++) {
+            EstudioDiagnostico estudio = new EstudioDiagnostico(TecnicaAdquisicion.MICROSCOPIA_COORDS,
+                    prescriptor, paciente);
+            Map<String, Integer> resultados = new HashMap<>();
+            for (String nombre : elementos) {
+                // Recuentos con distribución exponencial de media 300 píxeles
+                resultados.put(nombre, (int) (-300 * Math.log(1 - aleatorio.nextDouble())));
+            }
+            long inicio = System.nanoTime();
+            int ordinal = repositorio.agregar(estudio);
+            repositorio.informar(ordinal, informador, resultados);
+            tiempoAlta += System.nanoTime() - inicio;
+            estudios.add(estudio);
+        }
+        System.out.printf("   Alta e informe de %,d estudios con %d elementos: %d ms (%.2f µs/estudio)%n",
+                numEstudios, elementos.size(), tiempoAlta / 1_000_000, tiempoAlta / 1000.0 / numEstudios);
+
+        System.out.printf("   %s:%n", elemento);
+        for (int umbral : new int[] { 500, 2000, 4000 }) {
+            long mejorIndice = Long.MAX_VALUE;
+            int encontrados = 0;
+            for (int r = 0; r < REPETICIONES; r++) {
+                long inicio = System.nanoTime();
+                encontrados = 0;
+                Iterator<EstudioDiagnostico> iterador = repositorio.buscarPorResultado(elemento, umbral + 1,
+                        Integer.MAX_VALUE);
+                while (iterador.hasNext()) {
+                    iterador.next();
+                    encontrados++;
+                }
+                mejorIndice = Math.min(mejorIndice, System.nanoTime() - inicio);
+            }
+            long mejorRecorrido = Long.MAX_VALUE;
+            int coincidencias = 0;
+            for (int r = 0; r < REPETICIONES; r++) {
+                long inicio = System.nanoTime();
+                coincidencias = 0;
+                for (EstudioDiagnostico estudio : estudios) {
+                    Integer positivos = estudio.getResultados().get(elemento);
+                    if (positivos != null && positivos > umbral) {
+                        coincidencias++;
+                    }
+                }
+                mejorRecorrido = Math.min(mejorRecorrido, System.nanoTime() - inicio);
+            }
+            boolean iguales = encontrados == coincidencias
+                    && repositorio.contarPorResultado(elemento, umbral + 1, Integer.MAX_VALUE) == coincidencias;
+            System.out.printf("   > %4d píxeles  índice %9.1f µs (%,7d estudios)  recorrido %6.1f ms  %s%n",
+                    umbral, mejorIndice / 1000.0, encontrados, mejorRecorrido / 1e6,
+                    iguales ? "✓ idéntico" : "✗ DIFERENTE");
+        }
+
+        int k = 10;
+        List<EstudioDiagnostico> mayores = null;
+        long mejorIndice = Long.MAX_VALUE;
+        for (int r = 0; r < REPETICIONES; r++) {
+            long inicio = System.nanoTime();
+            mayores = repositorio.buscarMayoresResultados(elemento, k);
+            mejorIndice = Math.min(mejorIndice, System.nanoTime() - inicio);
+        }
+        // Recorrido completo: montículo de los k mayores
+        PriorityQueue<Integer> monticulo = null;
+        long mejorRecorrido = Long.MAX_VALUE;
+        for (int r = 0; r < REPETICIONES; r++) {
+            long inicio = System.nanoTime();
+            monticulo = new PriorityQueue<>(k + 1);
+            for (EstudioDiagnostico estudio : estudios) {
+                Integer positivos = estudio.getResultados().get(elemento);
+                if (positivos != null) {
+                    monticulo.add(positivos);
+                    if (monticulo.size() > k) {
+                        monticulo.poll();
+                    }
+                }
+            }
+            mejorRecorrido = Math.min(mejorRecorrido, System.nanoTime() - inicio);
+        }
+        List<Integer> esperados = new ArrayList<>(monticulo);
+        esperados.sort(Comparator.reverseOrder());
+        List<Integer> obtenidos = new ArrayList<>();
+        for (EstudioDiagnostico estudio : mayores) {
+            obtenidos.add(estudio.getResultados().get(elemento));
+        }
+        System.out.printf("   %d mayores       índice %9.1f µs                     recorrido %6.1f ms  %s%n", k,
+                mejorIndice / 1000.0, mejorRecorrido / 1e6,
+                obtenidos.equals(esperados) ? "✓ idéntico" : "✗ DIFERENTE");
+
+        // Empates: con las mismas claves, los pares salen en orden de llegada
+        // al recorrer en ascendente y en el inverso al recorrer en descendente
+        IndiceOrdenado pequeno = new IndiceOrdenado();
+        pequeno.agregar(10, 0);
+        pequeno.agregar(20, 1);
+        pequeno.agregar(10, 2);
+        StringBuilder orden = new StringBuilder();
+        for (PrimitiveIterator.OfInt it = pequeno.recorrerDescendente(Long.MIN_VALUE, Long.MAX_VALUE);
+                it.hasNext();) {
+            orden.append(orden.length() == 0 ? "" : " ").append(it.nextInt());
+        }
+        IndiceOrdenado empates = new IndiceOrdenado();
+        int numPares = 10 * IndiceOrdenado.TAM_CUBETA;
+        long[] claves = new long[numPares];
+        for (int i = 0; i < numPares; i++) {
+            claves[i] = aleatorio.nextInt(20);
+            empates.agregar(claves[i], i);
+        }
+        boolean ordenados = empates.getTam() == numPares;
+        int vistos = 0;
+        int anterior = -1;
+        for (PrimitiveIterator.OfInt it = empates.recorrer(Long.MIN_VALUE, Long.MAX_VALUE); it.hasNext(); vistos++) {
+            int actual = it.nextInt();
+            ordenados &= anterior < 0 || claves[anterior] < claves[actual]
+                    || (claves[anterior] == claves[actual] && anterior < actual);
+            anterior = actual;
+        }
+        ordenados &= vistos == numPares;
+        vistos = 0;
+        anterior = -1;
+        for (PrimitiveIterator.OfInt it = empates.recorrerDescendente(Long.MIN_VALUE, Long.MAX_VALUE);
+                it.hasNext(); vistos++) {
+            int actual = it.nextInt();
+            ordenados &= anterior < 0 || claves[anterior] > claves[actual]
+                    || (claves[anterior] == claves[actual] && anterior > actual);
+            anterior = actual;
+        }
+        ordenados &= vistos == numPares;
+        // En el repositorio, los mayores con el mismo recuento, del último indexado al primero
+        for (int i = 1; i < mayores.size(); i++) {
+            if (mayores.get(i - 1).getResultados().get(elemento).equals(mayores.get(i).getResultados().get(elemento))) {
+                ordenados &= estudios.indexOf(mayores.get(i - 1)) > estudios.indexOf(mayores.get(i));
+            }
+        }
+        System.out.printf("   Empates: descendente de (10,0) (20,1) (10,2) = %s; %,d pares con 20 claves  %s%n",
+                orden, numPares, orden.toString().equals("1 2 0") && ordenados ? "✓ correcto" : "✗ INCORRECTO");
+    }
+
+    /**
+     * Añade muestras a un mismo estudio desde varios hilos a la vez,
+     * comprobando que ninguna se pierde ni se repite y que las instantáneas
+     * que toma otro hilo mientras tanto no cambian, frente a una lista
+     * sincronizada. Después decodifica las muestras de un estudio con varios
+     * hilos que las añaden directamente, frente a hacerlo en un único hilo.
+     */
+    private static void medirIngestaConcurrente() throws Exception {
+        System.out.println();
+        System.out.println("22. Ingesta concurrente de muestras en un mismo estudio");
+        int nucleos = Runtime.getRuntime().availableProcessors();
+        int numMuestras = 1 << 20;
+        Muestra[] muestras = new Muestra[numMuestras];
+        int[][] pixeles = new int[1][1];
+        for (int i = 0; i < numMuestras; i++) {
+            muestras[i] = new Muestra("M" + i, pixeles);
+        }
+
+        System.out.printf("   %,d muestras en un estudio (%d núcleos):%n", numMuestras, nucleos);
+        for (int hilos = 1; hilos <= Math.max(8, nucleos); hilos *= 2) {
+            long[] mejores = { Long.MAX_VALUE, Long.MAX_VALUE };
+            boolean correcto = true;
+            int instantaneas = 0;
+            for (int r = 0; r < REPETICIONES; r++) {
+                // Variantes: sin cerrojos, lista sincronizada y, sin medir el
+                // tiempo, sin cerrojos con un lector que toma instantáneas
+                for (int variante = 0; variante < 3; variante++) {
+                    EstudioDiagnostico estudio = crearEstudioSintetico(0, 1);
+                    if (variante == 1) {
+                        estudio.setMuestras(Collections.synchronizedList(new ArrayList<>()));
+                    }
+                    // El lector comprueba que cada instantánea mantiene su
+                    // tamaño y coincide con la lista en sus posiciones
+                    AtomicInteger tomadas = new AtomicInteger();
+                    AtomicInteger incoherentes = new AtomicInteger();
+                    Thread lector = variante < 2 ? null : new Thread(() -> {
+                        while (!Thread.currentThread().isInterrupted()) {
+                            List<Muestra> instantanea = estudio.getInstantaneaMuestras();
+                            int tam = instantanea.size();
+                            int recorridas = 0;
+                            for (Muestra muestra : instantanea) {
+                                if (muestra == null || muestra != estudio.getMuestras().get(recorridas)) {
+                                    incoherentes.incrementAndGet();
+                                }
+                                recorridas++;
+                            }
+                            if (recorridas != tam || instantanea.size() != tam) {
+                                incoherentes.incrementAndGet();
+                            }
+                            tomadas.incrementAndGet();
+                        }
+                    });
+                    if (lector != null) {
+                        lector.start();
+                    }
+                    AtomicInteger siguiente = new AtomicInteger();
+                    AtomicReference<Exception> error = new AtomicReference<>();
+                    Thread[] escritores = new Thread[hilos];
+                    long inicio = System.nanoTime();
+                    for (int h = 0; h < hilos; h++) {
+                        escritores[h] = new Thread(() -> {
+                            try {
+                                // Cada hilo reserva tramos de 1024 muestras
+                                int desde;
+                                while ((desde = siguiente.getAndAdd(1024)) < numMuestras) {
+                                    for (int i = desde; i < Math.min(desde + 1024, numMuestras); i++) {
+                                        estudio.addMuestra(muestras[i]);
+                                    }
+                                }
+                            } catch (Exception e) {
+                                error.compareAndSet(null, e);
+                            }
+                        });
+                        escritores[h].start();
+                    }
+                    for (Thread escritor : escritores) {
+                        escritor.join();
+                    }
+                    long tiempo = System.nanoTime() - inicio;
+                    if (lector != null) {
+                        lector.interrupt();
+                        lector.join();
+                        instantaneas += tomadas.get();
+                    }
+                    if (error.get() != null) {
+                        throw error.get();
+                    }
+                    if (variante < 2) {
+                        mejores[variante] = Math.min(mejores[variante], tiempo);
+                    }
+
+                    // Cada muestra aparece exactamente una vez
+                    boolean[] vistas = new boolean[numMuestras];
+                    int distintas = 0;
+                    for (Muestra muestra : estudio.getMuestras()) {
+                        int i = Integer.parseInt(muestra.getId().substring(1));
+                        if (!vistas[i]) {
+                            vistas[i] = true;
+                            distintas++;
+                        }
+                    }
+                    correcto &= estudio.getMuestras().size() == numMuestras && distintas == numMuestras
+                            && incoherentes.get() == 0;
+                }
+            }
+            System.out.printf("   %2d hilos  sin cerrojos %6.1f M/s   lista sincronizada %6.1f M/s   "
+                    + "%,7d instantáneas  %s%n", hilos, numMuestras * 1e3 / mejores[0],
+                    numMuestras * 1e3 / mejores[1], instantaneas, correcto ? "✓ correcto" : "✗ INCORRECTO");
+        }
+
+        // Decodificación con latencia, como al leer las imágenes de disco:
+        // varios hilos decodifican y añaden al mismo estudio
+        int numFuentes = 64;
+        List<FuenteMuestra> fuentes = fuentesConLatencia(0, numFuentes, 128, 5);
+        AnalizadorDiagnostico analizador = crearAnalizador();
+        Map<String, Integer> referencia = null;
+        System.out.printf("   Decodificación de %d muestras de 128x128 con 5 ms de latencia:%n", numFuentes);
+        for (int hilos = 1; hilos <= 16; hilos *= 4) {
+            EstudioDiagnostico estudio = crearEstudioSintetico(0, 1);
+            AtomicInteger siguiente = new AtomicInteger();
+            AtomicReference<Exception> error = new AtomicReference<>();
+            Thread[] decodificadores = new Thread[hilos];
+            long inicio = System.nanoTime();
+            for (int h = 0; h < hilos; h++) {
+                decodificadores[h] = new Thread(() -> {
+                    try {
+                        int i;
+                        while ((i = siguiente.getAndIncrement()) < numFuentes) {
+                            estudio.addMuestra(fuentes.get(i).cargar());
+                        }
+                    } catch (Exception e) {
+                        error.compareAndSet(null, e);
+                    }
+                });
+                decodificadores[h].start();
+            }
+            for (Thread decodificador : decodificadores) {
+                decodificador.join();
+            }
+            long tiempo = System.nanoTime() - inicio;
+            if (error.get() != null) {
+                throw error.get();
+            }
+            // El orden de las muestras varía, pero no los recuentos
+            Map<String, Integer> resultados = analizador.analizar(estudio);
+            if (referencia == null) {
+                referencia = resultados;
+            }
+            System.out.printf("   %2d hilos  %5d ms  %d muestras  %s%n", hilos, tiempo / 1_000_000,
+                    estudio.getMuestras().size(), resultados.equals(referencia) ? "✓ idéntico" : "✗ DIFERENTE");
+        }
+    }
+
+    /**
+     * Analiza un estudio de muchas muestras mientras otro hilo consulta sus
+     * recuentos parciales: mide cuándo está disponible la primera muestra
+     * frente al resultado completo y comprueba que cada instantánea es la
+     * suma exacta de sus muestras y que la última coincide con el análisis
+     * por lotes.
+     */
+    private static void medirResultadosParciales() throws Exception {
+        System.out.println();
+        System.out.println("23. Resultados parciales durante el análisis frente a esperar al resultado completo");
+        int numMuestras = 200;
+        AnalizadorDiagnostico analizador = crearAnalizador();
+        // Todas las muestras tienen los mismos píxeles, así que una
+        // instantánea coherente de n muestras vale n veces los recuentos de una
+        Muestra modelo = crearMuestraSintetica("P", 128, 128, 23);
+        EstudioDiagnostico unaMuestra = crearEstudioSintetico(0, 1);
+        unaMuestra.addMuestra(modelo);
+        Map<String, Integer> porMuestra = analizador.analizar(unaMuestra);
+        EstudioDiagnostico estudio = crearEstudioSintetico(0, 1);
+        for (int i = 0; i < numMuestras; i++) {
+            estudio.addMuestra(new Muestra("P" + i, modelo.getPixeles()));
+        }
+        Map<String, Integer> referencia = analizador.analizar(estudio);
+
+        ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        try {
+            for (boolean paralelo : new boolean[] { false, true }) {
+                analizador.setEjecutor(paralelo ? pool : null);
+                ResultadosParciales previos = estudio.getResultadosParciales();
+                AtomicReference<Map<String, Integer>> resultado = new AtomicReference<>();
+                AtomicReference<Exception> error = new AtomicReference<>();
+                Thread analisis = new Thread(() -> {
+                    try {
+                        resultado.set(analizador.analizar(estudio));
+                    } catch (Exception e) {
+                        error.set(e);
+                    }
+                });
+                long inicio = System.nanoTime();
+                analisis.start();
+
+                // Consultas cada milisegundo, como una pantalla que se refresca
+                long primera = -1;
+                int instantaneas = 0;
+                int fusionadas = 0;
+                boolean coherentes = true;
+                while (analisis.isAlive()) {
+                    ResultadosParciales parciales = estudio.getResultadosParciales();
+                    if (parciales != previos) {
+                        ResultadosParciales.Instantanea instantanea = parciales.getInstantanea();
+                        instantaneas++;
+                        coherentes &= instantanea.getMuestrasFusionadas() >= fusionadas;
+                        fusionadas = instantanea.getMuestrasFusionadas();
+                        for (Map.Entry<String, Integer> elemento : porMuestra.entrySet()) {
+                            coherentes &= instantanea.getRecuentos().get(elemento.getKey())
+                                    == (long) fusionadas * elemento.getValue();
+                        }
+                        if (primera < 0 && fusionadas > 0) {
+                            primera = System.nanoTime() - inicio;
+                        }
+                    }
+                    Thread.sleep(1);
+                }
+                analisis.join();
+                long total = System.nanoTime() - inicio;
+                if (error.get() != null) {
+                    throw error.get();
+                }
+                ResultadosParciales.Instantanea ultima = estudio.getResultadosParciales().getInstantanea();
+                boolean iguales = ultima.isCompleta() && ultima.getRecuentos().equals(referencia)
+                        && resultado.get().equals(referencia);
+                System.out.printf("   %-10s primera muestra %7.1f ms  resultado completo %6d ms  %4d instantáneas  "
+                        + "%s  %s%n", paralelo ? "Paralelo" : "Secuencial", primera / 1e6, total / 1_000_000,
+                        instantaneas, coherentes ? "✓ coherentes" : "✗ INCOHERENTES",
+                        iguales ? "✓ idéntico" : "✗ DIFERENTE");
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Carga masiva de estudios en los que se repiten los médicos y los
+     * pacientes, desde el formato binario y desde XML, con y sin
+     * {@link RegistroPersonas}: memoria retenida por estudio cargado, tiempo
+     * de carga y número de objetos distintos.
+     */
+    private static void medirRegistroPersonas() throws Exception {
+        System.out.println();
+        System.out.println("24. Carga masiva con médicos y pacientes compartidos frente a objetos por estudio");
+        int numEstudios = 20_000;
+        int numPacientes = 2_000;
+        List<String> referencias = new ArrayList<>();
+        ByteArrayOutputStream binario = new ByteArrayOutputStream();
+        ByteArrayOutputStream documento = new ByteArrayOutputStream();
+        try (EscritorEstudiosBinario escritorBinario = new EscritorEstudiosBinario(binario);
+                EscritorEstudiosXml escritorXml = new EscritorEstudiosXml(documento)) {
+            for (int i = 0; i < numEstudios; i++) {
+                // Cada paciente tiene varios estudios, con objetos distintos
+                EstudioDiagnostico estudio = crearEstudioInformado(i);
+                int p = i % numPacientes;
+                estudio.setPaciente(new Paciente(String.format("%08dP", p), "Paciente " + p, "Prueba",
+                        "Persistencia", 1940 + p % 80));
+                referencias.add(describir(estudio));
+                escritorBinario.escribir(estudio);
+                escritorXml.escribir(estudio);
+            }
+        }
+
+        for (boolean xml : new boolean[] { false, true }) {
+            byte[] datos = xml ? documento.toByteArray() : binario.toByteArray();
+            long sinRegistro = medirCarga(datos, xml, false, referencias);
+            long conRegistro = medirCarga(datos, xml, true, referencias);
+            System.out.printf("   %-20s médicos y pacientes: x%.1f menos memoria%n", "",
+                    sinRegistro / (double) Math.max(1, conRegistro));
+        }
+    }
+
+    /**
+     * Carga todos los estudios, comprueba que coinciden con las referencias
+     * y escribe el tiempo y la memoria retenida. Cada carga se mide en su
+     * propia llamada para que no queden referencias de la anterior.
+     *
+     * @return bytes retenidos por los médicos y pacientes (y el registro)
+     */
+    private static long medirCarga(byte[] datos, boolean xml, boolean compartidos, List<String> referencias)
+            throws Exception {
+        int numEstudios = referencias.size();
+        RegistroPersonas personas = compartidos ? new RegistroPersonas() : null;
+        long memoria = memoriaUsada();
+        long inicio = System.nanoTime();
+        List<EstudioDiagnostico> estudios = cargarTodos(datos, xml, personas);
+        long tiempo = System.nanoTime() - inicio;
+
+        boolean iguales = estudios.size() == numEstudios;
+        Set<Object> medicos = Collections.newSetFromMap(new IdentityHashMap<>());
+        Set<Object> pacientes = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (int i = 0; iguales && i < numEstudios; i++) {
+            EstudioDiagnostico estudio = estudios.get(i);
+            iguales = referencias.get(i).equals(describir(estudio));
+            medicos.add(estudio.getPrescriptor());
+            medicos.add(estudio.getInformador());
+            pacientes.add(estudio.getPaciente());
+        }
+        int numMedicos = medicos.size();
+        int numPacientes = pacientes.size();
+        medicos = null;
+        pacientes = null;
+        long retenida = Math.max(0, memoriaUsada() - memoria);
+
+        // Lo que ocupan los médicos y pacientes (y el registro) es lo que
+        // sigue retenido al quedarse solo con ellos
+        Object[] soloPersonas = new Object[3 * numEstudios];
+        for (int i = 0; i < numEstudios; i++) {
+            EstudioDiagnostico estudio = estudios.get(i);
+            soloPersonas[3 * i] = estudio.getPrescriptor();
+            soloPersonas[3 * i + 1] = estudio.getInformador();
+            soloPersonas[3 * i + 2] = estudio.getPaciente();
+        }
+        estudios = null;
+        long enPersonas = Math.max(0, memoriaUsada() - memoria - (16 + 4L * soloPersonas.length));
+        System.out.printf("   %-7s %-12s %5d ms  %5.0f bytes/estudio, %4.0f en médicos y pacientes  "
+                + "%5d médicos  %5d pacientes  %s%n", xml ? "XML" : "Binario",
+                compartidos ? "con registro" : "sin registro", tiempo / 1_000_000,
+                retenida / (double) numEstudios, enPersonas / (double) numEstudios, numMedicos, numPacientes,
+                iguales ? "✓ idéntico" : "✗ DIFERENTE");
+        return enPersonas;
+    }
+
+    /**
+     * Lee todos los estudios de un archivo binario o XML. El lector queda
+     * fuera de alcance al volver, de modo que solo los estudios (y el
+     * registro) retienen memoria.
+     */
+    private static List<EstudioDiagnostico> cargarTodos(byte[] datos, boolean xml, RegistroPersonas personas)
+            throws Exception {
+        List<EstudioDiagnostico> estudios = new ArrayList<>();
+        if (xml) {
+            try (LectorEstudiosXml lector = new LectorEstudiosXml(new ByteArrayInputStream(datos), personas)) {
+                for (EstudioDiagnostico e = lector.leer(); e != null; e = lector.leer()) {
+                    estudios.add(e);
+                }
+            }
+        } else {
+            try (LectorEstudiosBinario lector = new LectorEstudiosBinario(new ByteArrayInputStream(datos), personas)) {
+                for (EstudioDiagnostico e = lector.leer(); e != null; e = lector.leer()) {
+                    estudios.add(e);
+                }
+            }
+        }
+        return estudios;
+    }
+
+    /**
+     * Calcula la media de cada acumulado {suma, cuenta}.
+     */
+    private static Map<String, Double> medias(Map<String, long[]> acumulados) {
+        Map<String, Double> medias = new TreeMap<>();
+        for (Map.Entry<String, long[]> acumulado : acumulados.entrySet()) {
+            if (acumulado.getValue()[1] > 0) {
+                medias.put(acumulado.getKey(), (double) acumulado.getValue()[0] / acumulado.getValue()[1]);
+            }
+        }
+        return medias;
+    }
+
+    /**
+     * Crea un estudio informado, siempre igual para el mismo índice, con
+     * objetos propios (sin compartir médicos ni pacientes entre estudios).
+     */
+    private static EstudioDiagnostico crearEstudioInformado(int i) throws Exception {
+        Paciente paciente = new Paciente(String.format("%08dT", i), "Paciente " + i, "Prueba", "Persistencia",
+                1940 + i % 80);
+        Medico prescriptor = new Medico("28/28/" + (10000 + i % 500), "Dr. Prescriptor " + i % 500,
+                "Hospital de Pruebas", EspecialidadMedica.MICROBIOLOGIA);
+        Medico informador = new Medico("28/28/" + (20000 + i % 50), "Dra. Informadora " + i % 50,
+                "Hospital de Pruebas", EspecialidadMedica.RADIOLOGIA);
+        EstudioDiagnostico estudio = new EstudioDiagnostico(TecnicaAdquisicion.MICROSCOPIA_COORDS,
+                prescriptor, paciente);
+        estudio.setTimestampPrescripcion(1_700_000_000 + i);
+        for (int m = 0; m < 3; m++) {
+            Muestra muestra = new Muestra();
+            muestra.setId("E" + i + "-M" + m);
+            estudio.addMuestra(muestra);
+        }
+        Map<String, Integer> resultados = new HashMap<>();
+        for (ReconocedorImagen reconocedor : DatosPredefinidos.getInstance().getReconocedores()) {
+            resultados.put(reconocedor.getElemento().getNombre(), (i * 31 + resultados.size() * 7) % 5000);
+        }
+        estudio.informar(informador, resultados);
+        estudio.setFechaInformeIso("2025-01-01T00:00:00." + String.format("%06d", i));
+        return estudio;
+    }
+
+    /**
+     * Describe todos los datos persistentes de un estudio para compararlos.
+     */
+    private static String describir(EstudioDiagnostico estudio) {
+        StringBuilder descripcion = new StringBuilder(estudio.toString());
+        descripcion.append(new TreeMap<>(estudio.getResultados()));
+        for (Muestra muestra : estudio.getMuestras()) {
+            descripcion.append(' ').append(muestra.getId());
+        }
+        return descripcion.toString();
+    }
+
+    /**
+     * Devuelve la memoria ocupada del montón: la menor tras varias
+     * recolecciones, porque una sola no siempre libera todos los objetos
+     * inalcanzables.
+     */
+    private static long memoriaUsada() {
+        Runtime runtime = Runtime.getRuntime();
+        long usada = Long.MAX_VALUE;
+        for (int i = 0; i < 4; i++) {
+            System.gc();
+            usada = Math.min(usada, runtime.totalMemory() - runtime.freeMemory());
+        }
+        return usada;
+    }
+
+    /**
+     * Crea las fuentes de las muestras de un estudio sintético; cada carga
+     * espera el tiempo indicado antes de generar la muestra.
+     */
+    private static List<FuenteMuestra> fuentesConLatencia(int estudio, int numMuestras, int lado, long latenciaMs) {
+        List<FuenteMuestra> fuentes = new ArrayList<>();
+        for (int i = 0; i < numMuestras; i++) {
+            int semilla = estudio * numMuestras + i;
+            fuentes.add(() -> {
+                Thread.sleep(latenciaMs);
+                return crearMuestraSintetica("S" + semilla, lado, lado, semilla);
+            });
+        }
+        return fuentes;
+    }
+
+    /**
+     * Crea un flujo en memoria cuyo primer cierre espera el tiempo indicado,
+     * como si se volcara a disco.
+     */
+    private static OutputStream salidaConLatencia(long latenciaMs) {
+        return new ByteArrayOutputStream() {
+            private boolean cerrado;
+
+            @Override
+            public void close() throws IOException {
+                if (cerrado) {
+                    return;
+                }
+                cerrado = true;
+                try {
+                    Thread.sleep(latenciaMs);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException(e);
+                }
+            }
+        };
+    }
+
+    /**
+     * Cuenta las posiciones {@code true} de una matriz booleana.
+     */
+    private static int contar(boolean[][] matriz) {
+        int contador = 0;
+        for (boolean[] fila : matriz) {
+            for (boolean valor : fila) {
+                if (valor) {
+                    contador++;
+                }
+            }
+        }
+        return contador;
+    }
+
+    /**
+     * Devuelve los bytes reservados hasta el momento por el hilo actual, o 0
+     * si la máquina virtual no ofrece esta medida.
+     */
+    private static long bytesReservados() {
+        if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean hilos =
+                    (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+            return hilos.getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+
+    /**
+     * Devuelve el mejor tiempo (en nanosegundos) de varios análisis del estudio.
+     */
+    private static long medir(AnalizadorDiagnostico analizador, EstudioDiagnostico estudio) throws Exception {
+        long mejor = Long.MAX_VALUE;
+        for (int i = 0; i < REPETICIONES; i++) {
+            long inicio = System.nanoTime();
+            analizador.analizar(estudio);
+            mejor = Math.min(mejor, System.nanoTime() - inicio);
+        }
+        return mejor;
+    }
+
+    /**
+     * Crea un analizador con los reconocedores predefinidos de la práctica.
+     */
+    static AnalizadorDiagnostico crearAnalizador() throws Exception {
+        AnalizadorDiagnostico analizador = new AnalizadorDiagnostico();
+        for (ReconocedorImagen reconocedor : DatosPredefinidos.getInstance().getReconocedores()) {
+            analizador.addReconocedor(reconocedor);
+        }
+        return analizador;
+    }
+
+    /**
+     * Crea un estudio con el número indicado de muestras sintéticas cuadradas.
+     */
+    static EstudioDiagnostico crearEstudioSintetico(int numMuestras, int lado) throws Exception {
+        Paciente paciente = new Paciente("00000000T", "Sintético", "Prueba", "Rendimiento", 1980);
+        Medico prescriptor = new Medico("00/00/00000", "Dr. Sintético", "Hospital de Pruebas",
+                EspecialidadMedica.MICROBIOLOGIA);
+        EstudioDiagnostico estudio = new EstudioDiagnostico(TecnicaAdquisicion.MICROSCOPIA_COORDS,
+                prescriptor, paciente);
+        for (int i = 0; i < numMuestras; i++) {
+            estudio.addMuestra(crearMuestraSintetica("S" + i, lado, lado, i));
+        }
+        return estudio;
+    }
+
+    /**
+     * Devuelve el mejor tiempo (en nanosegundos) de varias detecciones.
+     */
+    private static long medir(ReconocedorImagen reconocedor, Muestra muestra) throws Exception {
+        long mejor = Long.MAX_VALUE;
+        for (int i = 0; i < REPETICIONES; i++) {
+            long inicio = System.nanoTime();
+            reconocedor.detectar(muestra);
+            mejor = Math.min(mejor, System.nanoTime() - inicio);
+        }
+        return mejor;
+    }
+
+    /**
+     * Duplica el número de hilos, asegurando que el último paso sea exactamente
+     * el número de núcleos.
+     */
+    private static int siguientePaso(int hilos, int nucleos) {
+        if (hilos == nucleos) {
+            return nucleos + 1;
+        }
+        return Math.min(hilos * 2, nucleos);
+    }
+
+    /**
+     * Genera una muestra pseudoaleatoria con ruido y segmentos lineales oscuros
+     * en las tres direcciones.
+     */
+    static Muestra crearMuestraSintetica(String id, int alto, int ancho, long semilla) throws Exception {
+        Random aleatorio = new Random(semilla);
+        int[][] pixeles = new int[alto][ancho];
+        for (int fila = 0; fila < alto; fila++) {
+            for (int col = 0; col < ancho; col++) {
+                pixeles[fila][col] = aleatorio.nextInt(16);
+            }
+        }
+        int segmentos = alto * ancho / 256;
+        for (int s = 0; s < segmentos; s++) {
+            int fila = aleatorio.nextInt(alto);
+            int col = aleatorio.nextInt(ancho);
+            int longitud = 3 + aleatorio.nextInt(30);
+            int direccion = aleatorio.nextInt(3);
+            for (int i = 0; i < longitud && fila < alto && col < ancho; i++) {
+                pixeles[fila][col] = aleatorio.nextInt(5);
+                if (direccion != 1) {
+                    col++;
+                }
+                if (direccion != 0) {
+                    fila++;
+                }
+            }
+        }
+        return new Muestra(id, pixeles);
+    }
+}
@@ -2,12 +2,22 @@ package es.upm.dit.fprg.p3;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
 
 /**
  * Clase de prueba que demuestra el flujo completo del sistema de diagnóstico
@@ -172,11 +182,44 @@ public class PruebaSistemaCompleto {
             System.out.println("5. Guardando estudio en XML...");
             
             String rutaXML = "data/estudio_completo.xml";
-            guardarEstudio(estudio, rutaXML);
+            guardarEstudio(estudio, rutaXML, null);
             System.out.println("   ✓ Estudio guardado en: " + rutaXML);
 
+            // El almacén y su XML son temporales para no dejar ficheros en data/
+            Path directorio = Files.createTempDirectory("muestras");
+            try {
+                AlmacenMuestras almacen = new AlmacenMuestras(directorio);
+                File xmlAlmacen = File.createTempFile("estudio_almacen_", ".xml");
+                xmlAlmacen.deleteOnExit();
+                guardarEstudio(estudio, xmlAlmacen.getPath(), almacen);
+                System.out.println("   ✓ Píxeles de las muestras en: " + almacen.getRaiz() + " ("
+                        + almacen.getMuestrasEscritas() + " escritas, " + almacen.getMuestrasDeduplicadas()
+                        + " ya almacenadas)");
+
+                EstudioDiagnostico leido = cargarEstudio(xmlAlmacen.getPath(), almacen);
+                System.out.println("   ✓ Estudio leído de nuevo: " + leido.getMuestras().size() + " muestras, "
+                        + (resultados.equals(leido.getResultados()) ? "resultados idénticos"
+                                : "✗ resultados DIFERENTES"));
+                boolean mismosPixeles = true;
+                for (int i = 0; i < leido.getMuestras().size(); i++) {
+                    mismosPixeles &= Arrays.deepEquals(estudio.getMuestras().get(i).getPixeles(),
+                            leido.getMuestras().get(i).getPixeles());
+                }
+                System.out.println("   ✓ Píxeles leídos del almacén bajo demanda: "
+                        + (mismosPixeles ? "idénticos" : "✗ DIFERENTES"));
+            } finally {
+                borrarDirectorio(directorio);
+            }
+
+            // ========================================
+            // 6. PROCESAR VARIOS ESTUDIOS EN CADENA
+            // ========================================
+            System.out.println();
+            System.out.println("6. Procesando varios estudios en cadena...");
+            procesarEstudiosEnCadena(analizador, prescriptor, informador);
+
             // ========================================
-            // 6. CASOS DE PRUEBA ADICIONALES
+            // 7. CASOS DE PRUEBA ADICIONALES
             // ========================================
             System.out.println();
             System.out.println("7. Ejecutando casos de prueba adicionales...");
@@ -248,20 +291,27 @@ public class PruebaSistemaCompleto {
     }
 
     /**
-     * Guarda un estudio diagnóstico en formato XML.
+     * Guarda un estudio diagnóstico en formato XML, con los píxeles de sus
+     * muestras en un almacén si se indica.
      *
      * @param estudio estudio a guardar
      * @param ruta ruta del archivo XML
+     * @param almacen almacén de los píxeles de las muestras, o {@code null}
+     *                para guardar solo el identificador de cada muestra
      */
-    private static void guardarEstudio(EstudioDiagnostico estudio, String ruta) {
+    private static void guardarEstudio(EstudioDiagnostico estudio, String ruta, AlmacenMuestras almacen) {
         try {
             BufferedOutputStream out = new BufferedOutputStream(new FileOutputStream(ruta));
             try {
-                estudio.guardar(out);
+                if (almacen == null) {
+                    estudio.guardar(out);
+                } else {
+                    estudio.guardar(out, almacen);
+                }
             } finally {
                 out.close();
             }
-        } catch (IOException e) {
+        } catch (Exception e) {
             System.err.println("   ✗ Error al guardar XML: " + e.getMessage());
             e.printStackTrace();
         }
@@ -283,6 +333,75 @@ public class PruebaSistemaCompleto {
         return contador;
     }
 
+    /**
+     * Carga un estudio diagnóstico desde un archivo XML.
+     *
+     * @param ruta ruta del archivo XML
+     * @param almacen almacén de los píxeles de las muestras
+     * @return estudio leído
+     * @throws Exception si hay error en la lectura
+     */
+    private static EstudioDiagnostico cargarEstudio(String ruta, AlmacenMuestras almacen) throws Exception {
+        try (InputStream in = new BufferedInputStream(new FileInputStream(ruta))) {
+            return EstudioDiagnostico.cargar(in, almacen);
+        }
+    }
+
+    /**
+     * Borra un directorio temporal y todo su contenido.
+     *
+     * @param directorio directorio a borrar
+     * @throws IOException si algún fichero no puede borrarse
+     */
+    private static void borrarDirectorio(Path directorio) throws IOException {
+        try (Stream<Path> ficheros = Files.walk(directorio)) {
+            for (Path fichero : (Iterable<Path>) ficheros.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(fichero);
+            }
+        }
+    }
+
+    /**
+     * Procesa varios estudios con una {@link TuberiaEstudios}: mientras uno
+     * se analiza, el siguiente carga sus imágenes y el anterior se guarda.
+     *
+     * @param analizador analizador con los reconocedores registrados
+     * @param prescriptor médico que prescribe los estudios
+     * @param informador médico que los informa
+     * @throws Exception si falla la creación de la cadena o algún estudio
+     */
+    private static void procesarEstudiosEnCadena(AnalizadorDiagnostico analizador, Medico prescriptor,
+            Medico informador) throws Exception {
+        TuberiaEstudios tuberia = new TuberiaEstudios(analizador, informador, 2, 1, 1, 2);
+        List<CompletableFuture<EstudioDiagnostico>> pendientes = new ArrayList<>();
+        for (int i = 1; i <= 4; i++) {
+            Paciente paciente = new Paciente("0000000" + i + "C", "Paciente" + i, "Prueba", "Cadena", 1980 + i);
+            EstudioDiagnostico estudio = new EstudioDiagnostico(TecnicaAdquisicion.MICROSCOPIA_COORDS,
+                    prescriptor, paciente);
+            String sufijo = "-E" + i;
+            List<FuenteMuestra> fuentes = List.of(
+                    () -> cargarMuestraDesdeArchivo("data/ejemplo_coronavirus_ruido1.png", "M001" + sufijo),
+                    () -> cargarMuestraDesdeArchivo("data/ejemplo_cruces1.png", "M002" + sufijo));
+            File salida = File.createTempFile("estudio_cadena_" + i + "_", ".xml");
+            salida.deleteOnExit();
+            pendientes.add(tuberia.enviar(estudio, fuentes, DestinoEstudio.enArchivo(salida.getPath())));
+        }
+        tuberia.cerrar();
+        for (CompletableFuture<EstudioDiagnostico> pendiente : pendientes) {
+            EstudioDiagnostico estudio = pendiente.get();
+            System.out.println("   ✓ Estudio de " + estudio.getPaciente().getNombre() + ": "
+                    + estudio.getMuestras().size() + " muestras, " + estudio.getResultados().size()
+                    + " elementos informados");
+        }
+        tuberia.esperarTerminacion(10, TimeUnit.SECONDS);
+        for (TuberiaEstudios.Etapa etapa : TuberiaEstudios.Etapa.values()) {
+            System.out.printf("   %-15s utilización %5.1f%%, esperando %5.1f%%, bloqueada %5.1f%%%n",
+                    etapa, 100 * tuberia.getUtilizacion(etapa), 100 * tuberia.getFraccionEsperando(etapa),
+                    100 * tuberia.getFraccionBloqueada(etapa));
+        }
+        System.out.println("   ✓ Cuello de botella: " + tuberia.getCuelloDeBotella());
+    }
+
     /**
      * Ejecuta casos de prueba adicionales para validar el sistema.
      */
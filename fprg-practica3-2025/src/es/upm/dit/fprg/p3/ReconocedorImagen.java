@@ -0,0 +1,126 @@
+package es.upm.dit.fprg.p3;
+
+/**
+ * Contrato común de los reconocedores que analizan una {@link Muestra} en busca
+ * de un {@link ElementoMicroscopico}.
+ * <p>
+ * Permite que {@link ReconocedorPatron} y {@link ReconocedorLineal} se utilicen
+ * de forma intercambiable desde el {@link AnalizadorDiagnostico}.
+ * </p>
+ */
+public interface ReconocedorImagen {
+
+    /**
+     * Analiza una muestra y devuelve la máscara de detecciones.
+     *
+     * @param m muestra a analizar
+     * @return máscara booleana con las mismas dimensiones que la muestra,
+     *         {@code true} en los píxeles donde se ha detectado el elemento
+     * @throws Exception si la muestra no puede analizarse
+     */
+    boolean[][] detectar(Muestra m) throws Exception;
+
+    /**
+     * Analiza una muestra y devuelve las detecciones en una {@link Mascara}
+     * empaquetada, con un bit por píxel.
+     * <p>
+     * La implementación por defecto adapta la matriz que devuelve
+     * {@link #detectar(Muestra)}. Los reconocedores que construyen la máscara
+     * directamente deben sobrescribir este método y obtener la matriz
+     * booleana a partir de él con {@link Mascara#aMatriz()}.
+     * </p>
+     *
+     * @param m muestra a analizar
+     * @return máscara con las mismas dimensiones que la muestra, con marca en
+     *         los píxeles donde se ha detectado el elemento
+     * @throws Exception si la muestra no puede analizarse
+     */
+    default Mascara detectarMascara(Muestra m) throws Exception {
+        return Mascara.desdeMatriz(detectar(m));
+    }
+
+    /**
+     * Cuenta los píxeles en los que se detecta el elemento, es decir, el número
+     * de posiciones {@code true} de la máscara que devolvería
+     * {@link #detectar(Muestra)}.
+     * <p>
+     * La implementación por defecto construye la máscara y la recorre. Los
+     * reconocedores que pueden contar sin reservar una matriz
+     * {@code boolean[][]} deben sobrescribir este método.
+     * </p>
+     *
+     * @param m muestra a analizar
+     * @return número de píxeles positivos
+     * @throws Exception si la muestra no puede analizarse
+     */
+    default int contarDetecciones(Muestra m) throws Exception {
+        int contador = 0;
+        for (boolean[] fila : detectar(m)) {
+            for (boolean valor : fila) {
+                if (valor) {
+                    contador++;
+                }
+            }
+        }
+        return contador;
+    }
+
+    /**
+     * Cuenta los píxeles en los que se detecta el elemento, deteniéndose si el
+     * plazo se agota.
+     * <p>
+     * La implementación por defecto solo comprueba el plazo antes de empezar.
+     * Los reconocedores que pueden tardar mucho en una muestra grande deben
+     * sobrescribir este método y comprobar el plazo periódicamente (por
+     * ejemplo, en cada fila).
+     * </p>
+     *
+     * @param m muestra a analizar
+     * @param plazo plazo del análisis
+     * @return número de píxeles positivos
+     * @throws AnalisisInterrumpidoException si el plazo se agota antes de
+     *                                       terminar, con el recuento parcial
+     * @throws Exception si la muestra no puede analizarse o el plazo es nulo
+     */
+    default int contarDetecciones(Muestra m, Plazo plazo) throws Exception {
+        if (plazo == null) {
+            throw new Exception("Plazo nulo");
+        }
+        if (plazo.estaAgotado()) {
+            throw new AnalisisInterrumpidoException(0);
+        }
+        return contarDetecciones(m);
+    }
+
+    /**
+     * Cuenta los píxeles en los que se detecta el elemento y anota en
+     * {@code medida} el trabajo realizado. Lo utiliza el
+     * {@link AnalizadorDiagnostico} cuando tiene algún
+     * {@link ObservadorDeteccion} registrado.
+     * <p>
+     * La implementación por defecto delega en el recuento con o sin plazo y
+     * anota como examinados todos los píxeles de la muestra. Los
+     * reconocedores que puedan aportar más detalle (ventanas probadas,
+     * profundidad de salida temprana) deben sobrescribir este método.
+     * </p>
+     *
+     * @param m muestra a analizar
+     * @param plazo plazo del análisis, o {@code null} si no hay
+     * @param medida medida en la que se anota el trabajo realizado
+     * @return número de píxeles positivos
+     * @throws AnalisisInterrumpidoException si el plazo se agota
+     * @throws Exception si la muestra no puede analizarse
+     */
+    default int contarDetecciones(Muestra m, Plazo plazo, MedidaDeteccion medida) throws Exception {
+        int positivos = plazo == null ? contarDetecciones(m) : contarDetecciones(m, plazo);
+        medida.sumarTrabajo((long) m.getAlto() * m.getAncho(), 0, 0);
+        return positivos;
+    }
+
+    /**
+     * Devuelve el elemento microscópico que este reconocedor es capaz de detectar.
+     *
+     * @return elemento microscópico asociado al reconocedor
+     */
+    ElementoMicroscopico getElemento();
+}
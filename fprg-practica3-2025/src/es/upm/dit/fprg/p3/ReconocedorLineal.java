@@ -1,5 +1,7 @@
 package es.upm.dit.fprg.p3;
 
+import java.util.concurrent.ForkJoinPool;
+
 /**
  * Reconocedor especializado en detectar estructuras lineales (fibrillas) en muestras
  * microscópicas.
@@ -13,11 +15,23 @@ package es.upm.dit.fprg.p3;
  * y diagonal) buscando segmentos continuos de píxeles cuyos valores estén dentro del
  * rango de color especificado y que alcancen la longitud mínima requerida.
  * </p>
+ * <p>
+ * Si se construye con un {@link ForkJoinPool}, la detección se realiza en modo
+ * paralelo: las tres direcciones se procesan simultáneamente y cada una se
+ * reparte en bandas de filas (ver {@link DeteccionLinealParalela}). El
+ * resultado es idéntico al del algoritmo secuencial.
+ * </p>
  */
-public class ReconocedorLineal {
+public class ReconocedorLineal implements ReconocedorImagen {
+
+    /** Valor de {@code filasPorBanda} que indica que se calcule automáticamente. */
+    public static final int FILAS_POR_BANDA_AUTOMATICO = 0;
 
     private final Fibrilla fibrilla;
 
+    /** Motor paralelo, o {@code null} si la detección es secuencial. */
+    private final DeteccionLinealParalela motorParalelo;
+
     /**
      * Construye un reconocedor configurado para detectar fibrillas con características
      * específicas.
@@ -31,6 +45,158 @@ public class ReconocedorLineal {
             throw new Exception("La fibrilla no puede ser nula.");
         }
         this.fibrilla = fibrilla;
+        this.motorParalelo = null;
+    }
+
+    /**
+     * Construye un reconocedor que realiza la detección en paralelo sobre el
+     * pool indicado, con un tamaño de banda calculado automáticamente.
+     *
+     * @param fibrilla especificación de la fibrilla a detectar
+     * @param pool pool de hilos en el que se ejecuta la detección
+     * @throws Exception si la fibrilla o el pool son nulos
+     */
+    public ReconocedorLineal(Fibrilla fibrilla, ForkJoinPool pool) throws Exception {
+        this(fibrilla, pool, FILAS_POR_BANDA_AUTOMATICO);
+    }
+
+    /**
+     * Construye un reconocedor que realiza la detección en paralelo sobre el
+     * pool indicado, dividiendo la imagen en bandas del número de filas dado.
+     *
+     * @param fibrilla especificación de la fibrilla a detectar
+     * @param pool pool de hilos en el que se ejecuta la detección
+     * @param filasPorBanda filas de cada banda, o {@link #FILAS_POR_BANDA_AUTOMATICO}
+     *                      para ajustarlo al paralelismo del pool
+     * @throws Exception si la fibrilla o el pool son nulos, o si
+     *                   {@code filasPorBanda} es negativo
+     */
+    public ReconocedorLineal(Fibrilla fibrilla, ForkJoinPool pool, int filasPorBanda) throws Exception {
+        if (fibrilla == null) {
+            throw new Exception("La fibrilla no puede ser nula.");
+        }
+        if (pool == null) {
+            throw new Exception("El pool de ejecución no puede ser nulo.");
+        }
+        if (filasPorBanda < 0) {
+            throw new Exception("El número de filas por banda no puede ser negativo.");
+        }
+        this.fibrilla = fibrilla;
+        this.motorParalelo = new DeteccionLinealParalela(fibrilla, pool, filasPorBanda);
+    }
+
+    /**
+     * Detecta los segmentos lineales de la fibrilla en la muestra.
+     * <p>
+     * Obtiene la máscara empaquetada con {@link #detectarMascara(Muestra)} y
+     * la convierte a matriz booleana.
+     * </p>
+     *
+     * @param m muestra a analizar
+     * @return máscara con los segmentos detectados
+     * @throws Exception si la muestra es nula
+     */
+    @Override
+    public boolean[][] detectar(Muestra m) throws Exception {
+        return detectarMascara(m).aMatriz();
+    }
+
+    /**
+     * Detecta los segmentos lineales de la fibrilla en la muestra y los
+     * devuelve en una máscara empaquetada.
+     * <p>
+     * Delega en {@link #segmentosDetectados(Muestra)} o, si el reconocedor se
+     * construyó con un pool de hilos, en el motor paralelo.
+     * </p>
+     *
+     * @param m muestra a analizar
+     * @return máscara con los segmentos detectados
+     * @throws Exception si la muestra es nula
+     */
+    @Override
+    public Mascara detectarMascara(Muestra m) throws Exception {
+        if (m == null) {
+            throw new Exception("La muestra no puede ser nula.");
+        }
+        EventoDeteccion evento = new EventoDeteccion();
+        evento.begin();
+        Mascara mascara = motorParalelo != null ? motorParalelo.detectar(m) : segmentosDetectados(m);
+        evento.end();
+        if (evento.shouldCommit()) {
+            evento.operacion = "detectar";
+            evento.elemento = fibrilla.getNombre();
+            evento.motor = EventoDeteccion.motor(this);
+            evento.muestra = m.getId();
+            evento.positivos = mascara.contar();
+            evento.completa = true;
+            evento.commit();
+        }
+        return mascara;
+    }
+
+    /**
+     * Indica si la detección se realiza en paralelo.
+     *
+     * @return {@code true} si el reconocedor se construyó con un pool de hilos
+     */
+    boolean esParalelo() {
+        return motorParalelo != null;
+    }
+
+    /**
+     * Cuenta los píxeles que pertenecen a algún segmento detectado sin
+     * construir la máscara booleana: los segmentos se registran en una
+     * {@link Mascara} empaquetada y se cuentan al final.
+     *
+     * @param m muestra a analizar
+     * @return número de píxeles positivos
+     * @throws Exception si la muestra es nula
+     */
+    @Override
+    public int contarDetecciones(Muestra m) throws Exception {
+        if (m == null) {
+            throw new Exception("La muestra no puede ser nula.");
+        }
+        if (motorParalelo != null) {
+            return motorParalelo.contar(m, null);
+        }
+        return marcarSegmentos(m, null).contar();
+    }
+
+    /**
+     * Cuenta los píxeles positivos como {@link #contarDetecciones(Muestra)},
+     * comprobando el plazo en cada fila, columna o diagonal recorrida (en modo
+     * paralelo, al empezar cada banda).
+     *
+     * @param m muestra a analizar
+     * @param plazo plazo del análisis
+     * @return número de píxeles positivos
+     * @throws AnalisisInterrumpidoException si el plazo se agota, con los
+     *                                       píxeles marcados hasta ese momento
+     * @throws Exception si la muestra o el plazo son nulos
+     */
+    @Override
+    public int contarDetecciones(Muestra m, Plazo plazo) throws Exception {
+        if (m == null) {
+            throw new Exception("La muestra no puede ser nula.");
+        }
+        if (plazo == null) {
+            throw new Exception("Plazo nulo");
+        }
+        if (motorParalelo != null) {
+            return motorParalelo.contar(m, plazo);
+        }
+        return marcarSegmentos(m, plazo).contar();
+    }
+
+    /**
+     * Devuelve la fibrilla que detecta este reconocedor.
+     *
+     * @return fibrilla asociada
+     */
+    @Override
+    public ElementoMicroscopico getElemento() {
+        return fibrilla;
     }
 
 
@@ -61,9 +227,24 @@ public class ReconocedorLineal {
      *
      * @param m muestra a analizar
      * @return máscara con los segmentos detectados
+     * @throws AnalisisInterrumpidoException no se produce, ya que no hay plazo
+     */
+    private Mascara segmentosDetectados(Muestra m) throws AnalisisInterrumpidoException {
+        return marcarSegmentos(m, null);
+    }
+
+    /**
+     * Ejecuta el algoritmo descrito en {@link #segmentosDetectados(Muestra)}
+     * registrando los segmentos en una máscara empaquetada.
+     *
+     * @param m muestra a analizar
+     * @param plazo plazo que se comprueba en cada fila, columna o diagonal, o
+     *              {@code null} para no comprobar ninguno
+     * @return máscara con los segmentos detectados
+     * @throws AnalisisInterrumpidoException si el plazo se agota
      */
-    private boolean[][] segmentosDetectados(Muestra m) {
-        boolean[][] mascara = new boolean[m.getAlto()][m.getAncho()];
+    private Mascara marcarSegmentos(Muestra m, Plazo plazo) throws AnalisisInterrumpidoException {
+        Mascara mascara = new Mascara(m.getAlto(), m.getAncho());
         
         int longitudMin = fibrilla.getLongitudMin();
         int colorMin = fibrilla.getColorMin();
@@ -71,6 +252,7 @@ public class ReconocedorLineal {
 
         // Búsqueda horizontal
         for (int fila = 0; fila < m.getAlto(); fila++) {
+            comprobarPlazo(plazo, mascara);
             for (int col = 0; col < m.getAncho(); col++) {
                 int longitud = 0;
                 int colInicio = col;
@@ -93,7 +275,7 @@ public class ReconocedorLineal {
                 // Si cumple longitud mínima, marcar segmento
                 if (longitud >= longitudMin) {
                     for (int c = colInicio; c < colInicio + longitud; c++) {
-                        mascara[fila][c] = true;
+                        mascara.marcar(fila, c);
                     }
                 }
                 
@@ -106,6 +288,7 @@ public class ReconocedorLineal {
 
         // Búsqueda vertical
         for (int col = 0; col < m.getAncho(); col++) {
+            comprobarPlazo(plazo, mascara);
             for (int fila = 0; fila < m.getAlto(); fila++) {
                 int longitud = 0;
                 int filaInicio = fila;
@@ -128,7 +311,7 @@ public class ReconocedorLineal {
                 // Si cumple longitud mínima, marcar segmento
                 if (longitud >= longitudMin) {
                     for (int f = filaInicio; f < filaInicio + longitud; f++) {
-                        mascara[f][col] = true;
+                        mascara.marcar(f, col);
                     }
                 }
                 
@@ -142,17 +325,32 @@ public class ReconocedorLineal {
         // Búsqueda diagonal (dirección sureste ↘)
         // Diagonales que comienzan en la primera fila
         for (int colInicio = 0; colInicio < m.getAncho(); colInicio++) {
+            comprobarPlazo(plazo, mascara);
             detectarDiagonal(m, 0, colInicio, mascara, longitudMin, colorMin, colorMax);
         }
         
         // Diagonales que comienzan en la primera columna (excepto esquina ya procesada)
         for (int filaInicio = 1; filaInicio < m.getAlto(); filaInicio++) {
+            comprobarPlazo(plazo, mascara);
             detectarDiagonal(m, filaInicio, 0, mascara, longitudMin, colorMin, colorMax);
         }
 
         return mascara;
     }
 
+    /**
+     * Interrumpe la detección si el plazo se ha agotado.
+     *
+     * @param plazo plazo del análisis, o {@code null} si no hay
+     * @param mascara segmentos marcados hasta el momento
+     * @throws AnalisisInterrumpidoException si el plazo está agotado
+     */
+    private static void comprobarPlazo(Plazo plazo, Mascara mascara) throws AnalisisInterrumpidoException {
+        if (plazo != null && plazo.estaAgotado()) {
+            throw new AnalisisInterrumpidoException(mascara.contar());
+        }
+    }
+
     /**
      * Detecta segmentos lineales en una diagonal específica.
      *
@@ -165,7 +363,7 @@ public class ReconocedorLineal {
      * @param colorMax color máximo del rango
      */
     private void detectarDiagonal(Muestra m, int filaInicio, int colInicio, 
-                                   boolean[][] mascara, int longitudMin, 
+                                   Mascara mascara, int longitudMin, 
                                    int colorMin, int colorMax) {
         int fila = filaInicio;
         int col = colInicio;
@@ -194,7 +392,7 @@ public class ReconocedorLineal {
             // Si cumple longitud mínima, marcar segmento
             if (longitud >= longitudMin) {
                 for (int i = 0; i < longitud; i++) {
-                    mascara[filaSegmento + i][colSegmento + i] = true;
+                    mascara.marcar(filaSegmento + i, colSegmento + i);
                 }
             }
             
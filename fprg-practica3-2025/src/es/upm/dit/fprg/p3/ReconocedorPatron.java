@@ -16,7 +16,7 @@ package es.upm.dit.fprg.p3;
  * resultados en una máscara de salida.
  * </p>
  */
-public class ReconocedorPatron {
+public class ReconocedorPatron implements ReconocedorImagen {
 
     private final Patogeno patogeno;
 
@@ -52,7 +52,7 @@ public class ReconocedorPatron {
      *       {@link #coincideEn(Muestra, int, int)}</li>
      *   <li>Si se encuentra coincidencia, registra todos los píxeles definidos en
      *       la máscara de resultados llamando a
-     *       {@link #marcarCoincidencia(boolean[][], int, int)}</li>
+     *       {@link #marcarCoincidencia(Mascara, int, int)}</li>
      *   <li>Continúa iterando hasta haber evaluado todas las posiciones posibles</li>
      * </ol>
      * <p>
@@ -71,30 +71,181 @@ public class ReconocedorPatron {
      * @throws Exception si el patrón es más grande que la muestra en cualquiera
      *                   de las dimensiones
      */
+    @Override
     public boolean[][] detectar(Muestra muestra) throws Exception {
-        if (muestra == null) {
-            throw new Exception("La muestra no puede ser nula.");
+        return detectarMascara(muestra).aMatriz();
+    }
+
+    /**
+     * Analiza la muestra como {@link #detectar(Muestra)}, pero devuelve las
+     * detecciones en una máscara empaquetada, sin construir la matriz
+     * booleana.
+     *
+     * @param muestra imagen sobre la que realizar la búsqueda del patrón
+     * @return máscara con las mismas dimensiones que la muestra, con marca en
+     *         las posiciones donde se encontraron píxeles definidos del patrón
+     * @throws Exception si la muestra es nula o más pequeña que el patrón
+     */
+    @Override
+    public Mascara detectarMascara(Muestra muestra) throws Exception {
+        EventoDeteccion evento = new EventoDeteccion();
+        evento.begin();
+        Mascara mascara = buscar(muestra, null, null);
+        evento.end();
+        if (evento.shouldCommit()) {
+            evento.operacion = "detectar";
+            evento.elemento = patogeno.getNombre();
+            evento.motor = EventoDeteccion.motor(this);
+            evento.muestra = muestra.getId();
+            evento.ventanas = (long) (muestra.getAlto() - patogeno.getAlto() + 1)
+                    * (muestra.getAncho() - patogeno.getAncho() + 1);
+            evento.positivos = mascara.contar();
+            evento.completa = true;
+            evento.commit();
         }
-        if (patogeno.getAlto() > muestra.getAlto() || patogeno.getAncho() > muestra.getAncho()) {
-            throw new Exception("El patrón no puede ser más grande que la muestra.");
+        return mascara;
+    }
+
+    /**
+     * Cuenta los píxeles definidos del patrón que forman parte de alguna
+     * coincidencia, sin construir la máscara booleana.
+     * <p>
+     * Sigue la misma estrategia de ventana deslizante que
+     * {@link #detectar(Muestra)}, pero registra las coincidencias en una
+     * {@link Mascara} empaquetada (un bit por píxel) y devuelve su recuento.
+     * </p>
+     *
+     * @param muestra imagen sobre la que realizar la búsqueda del patrón
+     * @return número de píxeles positivos
+     * @throws Exception si la muestra es nula o más pequeña que el patrón
+     */
+    @Override
+    public int contarDetecciones(Muestra muestra) throws Exception {
+        return buscar(muestra, null, null).contar();
+    }
+
+    /**
+     * Cuenta los píxeles positivos como {@link #contarDetecciones(Muestra)},
+     * comprobando el plazo antes de desplazar la ventana a cada nueva fila.
+     *
+     * @param muestra imagen sobre la que realizar la búsqueda del patrón
+     * @param plazo plazo del análisis
+     * @return número de píxeles positivos
+     * @throws AnalisisInterrumpidoException si el plazo se agota, con los
+     *                                       píxeles encontrados en las filas ya
+     *                                       exploradas
+     * @throws Exception si la muestra es nula o más pequeña que el patrón, o si
+     *                   el plazo es nulo
+     */
+    @Override
+    public int contarDetecciones(Muestra muestra, Plazo plazo) throws Exception {
+        if (plazo == null) {
+            throw new Exception("Plazo nulo");
         }
+        return buscar(muestra, plazo, null).contar();
+    }
 
-        boolean[][] mascara = new boolean[muestra.getAlto()][muestra.getAncho()];
+    /**
+     * Cuenta los píxeles positivos anotando en la medida las filas de la
+     * muestra recorridas, las ventanas probadas y las celdas definidas del
+     * patrón comparadas antes de descartar o aceptar cada ventana.
+     *
+     * @param muestra imagen sobre la que realizar la búsqueda del patrón
+     * @param plazo plazo del análisis, o {@code null} si no hay
+     * @param medida medida en la que se anota el trabajo realizado
+     * @return número de píxeles positivos
+     * @throws AnalisisInterrumpidoException si el plazo se agota
+     * @throws Exception si la muestra es nula o más pequeña que el patrón
+     */
+    @Override
+    public int contarDetecciones(Muestra muestra, Plazo plazo, MedidaDeteccion medida) throws Exception {
+        if (medida == null) {
+            throw new Exception("Medida nula");
+        }
+        return buscar(muestra, plazo, medida).contar();
+    }
+
+    /**
+     * Recorrido de ventana deslizante común a la detección y a los recuentos
+     * con y sin plazo.
+     * Si hay medida, cada ventana se evalúa con
+     * {@link #compararEn(Muestra, int, int)} para contar las celdas comparadas;
+     * si no, con {@link #coincideEn(Muestra, int, int)}, sin coste adicional.
+     *
+     * @param muestra imagen sobre la que realizar la búsqueda del patrón
+     * @param plazo plazo que se comprueba en cada fila, o {@code null} para no
+     *              comprobar ninguno
+     * @param medida medida en la que se anota el trabajo, o {@code null}
+     * @return máscara con los píxeles positivos
+     * @throws Exception si la muestra no es válida o el plazo se agota
+     */
+    private Mascara buscar(Muestra muestra, Plazo plazo, MedidaDeteccion medida) throws Exception {
+        validarMuestra(muestra);
+
+        Mascara mascara = new Mascara(muestra.getAlto(), muestra.getAncho());
 
         int maxFila = muestra.getAlto() - patogeno.getAlto();
         int maxColumna = muestra.getAncho() - patogeno.getAncho();
 
+        long celdas = 0;
         for (int fila = 0; fila <= maxFila; fila++) {
+            if (plazo != null && plazo.estaAgotado()) {
+                if (medida != null) {
+                    medida.sumarTrabajo((long) fila * muestra.getAncho(), (long) fila * (maxColumna + 1), celdas);
+                }
+                throw new AnalisisInterrumpidoException(mascara.contar());
+            }
             for (int columna = 0; columna <= maxColumna; columna++) {
-                if (coincideEn(muestra, fila, columna)) {
-                    marcarCoincidencia(mascara, fila, columna);
+                if (medida == null) {
+                    if (coincideEn(muestra, fila, columna)) {
+                        marcarCoincidencia(mascara, fila, columna);
+                    }
+                } else {
+                    int comparadas = compararEn(muestra, fila, columna);
+                    if (comparadas >= 0) {
+                        marcarCoincidencia(mascara, fila, columna);
+                        celdas += comparadas;
+                    } else {
+                        celdas -= comparadas;
+                    }
                 }
             }
         }
 
+        if (medida != null) {
+            medida.sumarTrabajo((long) muestra.getAlto() * muestra.getAncho(),
+                    (long) (maxFila + 1) * (maxColumna + 1), celdas);
+        }
         return mascara;
     }
 
+    /**
+     * Comprueba que la muestra puede analizarse con el patrón del reconocedor.
+     *
+     * @param muestra muestra a comprobar
+     * @throws Exception si la muestra es nula
+     * @throws Exception si el patrón es más grande que la muestra en cualquiera
+     *                   de las dimensiones
+     */
+    private void validarMuestra(Muestra muestra) throws Exception {
+        if (muestra == null) {
+            throw new Exception("La muestra no puede ser nula.");
+        }
+        if (patogeno.getAlto() > muestra.getAlto() || patogeno.getAncho() > muestra.getAncho()) {
+            throw new Exception("El patrón no puede ser más grande que la muestra.");
+        }
+    }
+
+    /**
+     * Devuelve el patógeno que busca este reconocedor.
+     *
+     * @return patógeno asociado al reconocedor
+     */
+    @Override
+    public ElementoMicroscopico getElemento() {
+        return patogeno;
+    }
+
     /**
      * Evalúa si el patrón coincide completamente en una posición específica de
      * la muestra.
@@ -113,10 +264,10 @@ public class ReconocedorPatron {
      *       (short-circuit evaluation)</li>
      * </ul>
      * <p>
-     * <strong>Manejo de excepciones:</strong> Aunque en este punto del algoritmo
-     * los índices ya han sido validados en {@link #detectar(Muestra)}, este método
-     * captura excepciones como defensa en profundidad. Si ocurre una excepción,
-     * generalmente indica un error de programación en lugar de datos inválidos.
+     * <strong>Manejo de excepciones:</strong> los índices ya se han validado
+     * en {@link #detectar(Muestra)}, así que un acceso fuera de la muestra
+     * indica un error de programación y se propaga en lugar de darse la
+     * ventana por no coincidente.
      * </p>
      *
      * @param muestra imagen donde se busca el patrón
@@ -127,25 +278,37 @@ public class ReconocedorPatron {
      * @return {@code true} si todos los píxeles definidos del patrón coinciden
      *         exactamente con los valores correspondientes en la muestra;
      *         {@code false} si existe alguna discrepancia
+     * @throws Exception si la ventana se sale de la muestra
+     */
+    private boolean coincideEn(Muestra muestra, int filaInicio, int columnaInicio) throws Exception {
+        return compararEn(muestra, filaInicio, columnaInicio) >= 0;
+    }
+
+    /**
+     * Evalúa la ventana como {@link #coincideEn(Muestra, int, int)} y devuelve
+     * cuántas celdas definidas del patrón se compararon.
+     *
+     * @param muestra imagen donde se busca el patrón
+     * @param filaInicio fila de la esquina superior-izquierda del patrón
+     * @param columnaInicio columna de la esquina superior-izquierda del patrón
+     * @return número de celdas comparadas si el patrón coincide, o ese número
+     *         cambiado de signo si alguna celda no coincide
+     * @throws Exception si la ventana se sale de la muestra
      */
-    private boolean coincideEn(Muestra muestra, int filaInicio, int columnaInicio) {
+    private int compararEn(Muestra muestra, int filaInicio, int columnaInicio) throws Exception {
+        int comparadas = 0;
         for (int filaPatron = 0; filaPatron < patogeno.getAlto(); filaPatron++) {
             for (int colPatron = 0; colPatron < patogeno.getAncho(); colPatron++) {
-                try {
-                    if (!patogeno.esIndefinido(filaPatron, colPatron)) {
-                        int valorMuestra = muestra.getPixel(filaInicio + filaPatron, columnaInicio + colPatron);
-                        int valorPatron = patogeno.getPixel(filaPatron, colPatron);
-                        if (valorMuestra != valorPatron) {
-                            return false;
-                        }
+                if (!patogeno.esIndefinido(filaPatron, colPatron)) {
+                    comparadas++;
+                    int valorMuestra = muestra.getPixel(filaInicio + filaPatron, columnaInicio + colPatron);
+                    if (valorMuestra != patogeno.getPixel(filaPatron, colPatron)) {
+                        return -comparadas;
                     }
-                } catch (Exception e) {
-                    e.printStackTrace();
-                    return false;
                 }
             }
         }
-        return true;
+        return comparadas;
     }
 
     /**
@@ -154,7 +317,7 @@ public class ReconocedorPatron {
      * <p>
      * Cuando se identifica una coincidencia del patrón en una posición determinada,
      * este método actualiza la máscara para reflejar dicho hallazgo. Únicamente se
-     * marcan como {@code true} los píxeles que corresponden a posiciones definidas
+     * marcan los píxeles que corresponden a posiciones definidas
      * del patrón; los comodines (valores {@link Patogeno#INDEFINIDO}) no se registran
      * en la máscara.
      * </p>
@@ -167,22 +330,18 @@ public class ReconocedorPatron {
      * coincidencias completas.
      * </p>
      *
-     * @param mascara matriz booleana donde se registran los resultados (modificada
-     *                in situ)
+     * @param mascara máscara donde se registran los resultados (modificada in
+     *                situ)
      * @param filaInicio fila donde se posiciona la esquina superior-izquierda
      *                   del patrón (índice 0-based)
      * @param columnaInicio columna donde se posiciona la esquina superior-izquierda
      *                      del patrón (índice 0-based)
      */
-    private void marcarCoincidencia(boolean[][] mascara, int filaInicio, int columnaInicio) {
+    private void marcarCoincidencia(Mascara mascara, int filaInicio, int columnaInicio) {
         for (int fila = 0; fila < patogeno.getAlto(); fila++) {
             for (int columna = 0; columna < patogeno.getAncho(); columna++) {
-                try {
-                    if (!patogeno.esIndefinido(fila, columna)) {
-                        mascara[filaInicio + fila][columnaInicio + columna] = true;
-                    }
-                } catch (Exception e) {
-                    e.printStackTrace();
+                if (!patogeno.esIndefinido(fila, columna)) {
+                    mascara.marcar(filaInicio + fila, columnaInicio + columna);
                 }
             }
         }
@@ -0,0 +1,129 @@
+package es.upm.dit.fprg.p3;
+
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registro de médicos y pacientes compartidos por los estudios que se cargan
+ * con {@link LectorEstudiosBinario} o {@link LectorEstudiosXml}.
+ * <p>
+ * Los archivos de estudios repiten los datos de los mismos médicos y
+ * pacientes en cada estudio, y cada lectura crea objetos y cadenas nuevos
+ * para ellos. Con un registro, los lectores sustituyen cada médico leído por
+ * el primero registrado con el mismo número de colegiado, y cada paciente por
+ * el primero con el mismo DNI, siempre que todos sus datos coincidan; si no
+ * coinciden (por ejemplo, un médico que cambió de centro entre dos estudios),
+ * se conserva el objeto leído. Los números de colegiado, los nombres y los
+ * centros de los médicos se guardan además una sola vez. Así, la memoria que
+ * ocupan los médicos y pacientes de una carga masiva depende del número de
+ * personas distintas y no del de estudios.
+ * </p>
+ * <p>
+ * Un mismo registro puede compartirse entre varios lectores, también desde
+ * varios hilos, y conserva sus objetos mientras se siga usando. Como en los
+ * estudios que comparten médicos en memoria, modificar un médico o paciente
+ * compartido lo modifica en todos sus estudios: para cambiar el de uno solo
+ * hay que asignarle un objeto nuevo.
+ * </p>
+ */
+public final class RegistroPersonas {
+
+    private final ConcurrentHashMap<String, String> cadenas = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Medico> medicos = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Paciente> pacientes = new ConcurrentHashMap<>();
+
+    /**
+     * Devuelve el médico registrado con los mismos datos que el leído,
+     * registrando el leído si no hay ninguno con su número de colegiado.
+     *
+     * @param leido médico recién leído, que el registro puede modificar
+     * @return médico compartido, o el leído con sus cadenas compartidas si
+     *         no tiene número de colegiado o no coincide con el registrado
+     */
+    public Medico medico(Medico leido) {
+        if (leido == null) {
+            return null;
+        }
+        Medico registrado = leido.getColegiado() == null ? null : medicos.get(leido.getColegiado());
+        if (registrado != null && iguales(registrado, leido)) {
+            return registrado;
+        }
+        leido.setColegiado(cadena(leido.getColegiado()));
+        leido.setNombreCompleto(cadena(leido.getNombreCompleto()));
+        leido.setCentroSanitario(cadena(leido.getCentroSanitario()));
+        if (registrado == null && leido.getColegiado() != null) {
+            registrado = medicos.putIfAbsent(leido.getColegiado(), leido);
+            if (registrado != null && iguales(registrado, leido)) {
+                return registrado;
+            }
+        }
+        return leido;
+    }
+
+    /**
+     * Devuelve el paciente registrado con los mismos datos que el leído,
+     * registrando el leído si no hay ninguno con su DNI.
+     *
+     * @param leido paciente recién leído
+     * @return paciente compartido, o el leído si no tiene DNI o no coincide
+     *         con el registrado
+     */
+    public Paciente paciente(Paciente leido) {
+        if (leido == null || leido.getDni() == null) {
+            return leido;
+        }
+        Paciente registrado = pacientes.putIfAbsent(leido.getDni(), leido);
+        if (registrado != null && iguales(registrado, leido)) {
+            return registrado;
+        }
+        return leido;
+    }
+
+    /**
+     * Devuelve la cadena registrada igual a la indicada, registrándola si no
+     * hay ninguna.
+     *
+     * @param cadena cadena que compartir
+     * @return cadena compartida, o {@code null} si la cadena es nula
+     */
+    public String cadena(String cadena) {
+        if (cadena == null) {
+            return null;
+        }
+        String registrada = cadenas.putIfAbsent(cadena, cadena);
+        return registrada == null ? cadena : registrada;
+    }
+
+    /**
+     * Devuelve el número de médicos registrados.
+     *
+     * @return número de médicos distintos
+     */
+    public int getNumMedicos() {
+        return medicos.size();
+    }
+
+    /**
+     * Devuelve el número de pacientes registrados.
+     *
+     * @return número de pacientes distintos
+     */
+    public int getNumPacientes() {
+        return pacientes.size();
+    }
+
+    private static boolean iguales(Medico a, Medico b) {
+        return Objects.equals(a.getColegiado(), b.getColegiado())
+                && Objects.equals(a.getNombreCompleto(), b.getNombreCompleto())
+                && Objects.equals(a.getCentroSanitario(), b.getCentroSanitario())
+                && a.getEspecialidad() == b.getEspecialidad();
+    }
+
+    private static boolean iguales(Paciente a, Paciente b) {
+        return Objects.equals(a.getDni(), b.getDni())
+                && Objects.equals(a.getNombre(), b.getNombre())
+                && Objects.equals(a.getPrimerApellido(), b.getPrimerApellido())
+                && Objects.equals(a.getSegundoApellido(), b.getSegundoApellido())
+                && a.getAnioNacimiento() == b.getAnioNacimiento();
+    }
+}
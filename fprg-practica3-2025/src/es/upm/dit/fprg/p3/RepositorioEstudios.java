@@ -0,0 +1,487 @@
+package es.upm.dit.fprg.p3;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PrimitiveIterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Repositorio en memoria de estudios con índices secundarios por paciente,
+ * médico prescriptor, médico informador, centro sanitario y técnica de
+ * adquisición.
+ * <p>
+ * Cada estudio recibe al añadirse un ordinal consecutivo. Cada índice asocia
+ * a cada valor del campo la lista de ordinales de sus estudios, de modo que
+ * una consulta solo recorre los estudios que devuelve y su coste no depende
+ * del tamaño del repositorio. El índice de técnica es un array indexado por
+ * el ordinal de la técnica; los demás, mapas por el DNI del paciente, el
+ * número de colegiado del médico o el nombre del centro. El índice de centro
+ * contiene los estudios en los que prescribe o informa un médico del centro.
+ * </p>
+ * <p>
+ * Además, dos {@link IndiceOrdenado} ordenan los estudios por instante de
+ * prescripción y de informe para las consultas por intervalo. La fecha del
+ * informe se convierte a nanosegundos desde la época (UTC, como en
+ * {@link FormatoBinarioEstudios}) al indexar el estudio; las consultas no
+ * convierten ni interpretan fechas de los estudios.
+ * </p>
+ * <p>
+ * Por cada elemento microscópico con algún resultado hay otro
+ * {@link IndiceOrdenado} que ordena los estudios por píxeles positivos, para
+ * las consultas por umbral ({@link #buscarPorResultado(String, int, int)}) y
+ * los estudios con más píxeles positivos
+ * ({@link #buscarMayoresResultados(String, int)}). Localizar el principio
+ * del intervalo cuesta un tiempo logarítmico en el número de estudios; a
+ * partir de ahí solo se recorren los estudios que se devuelven.
+ * </p>
+ * <p>
+ * Admite un escritor y cualquier número de lectores a la vez: los métodos que
+ * añaden o informan estudios se ejecutan de uno en uno, y las consultas no
+ * esperan a ningún cerrojo salvo, en los índices ordenados, si coinciden con
+ * el desplazamiento de una cubeta (véase {@link IndiceOrdenado}). Las listas
+ * de ordinales solo crecen por el final y publican su tamaño después de
+ * escribir el ordinal, y los estudios se guardan antes de indexarse: un
+ * lector puede encontrar un estudio recién añadido en unos índices y todavía
+ * no en otros, pero nunca un ordinal sin su estudio.
+ * </p>
+ * <p>
+ * Los índices reflejan los campos de los estudios al añadirlos y al
+ * informarlos mediante {@link #informar(int, Medico, Map)}. Los estudios no
+ * deben modificarse en los campos indexados por otros medios mientras estén
+ * en el repositorio.
+ * </p>
+ */
+public final class RepositorioEstudios {
+
+    /** Número de estudios por bloque de almacenamiento (potencia de 2). */
+    private static final int BITS_BLOQUE = 12;
+    private static final int TAM_BLOQUE = 1 << BITS_BLOQUE;
+
+    /** Cerrojo del único escritor. */
+    private final ReentrantLock escritura = new ReentrantLock();
+
+    /**
+     * Estudios por bloques de tamaño fijo: crecer solo copia el array de
+     * bloques, no los estudios ya guardados.
+     */
+    private volatile EstudioDiagnostico[][] bloques = new EstudioDiagnostico[16][];
+    private volatile int numEstudios;
+
+    private final Map<String, Ordinales> porPaciente = new ConcurrentHashMap<>();
+    private final Map<String, Ordinales> porPrescriptor = new ConcurrentHashMap<>();
+    private final Map<String, Ordinales> porInformador = new ConcurrentHashMap<>();
+    private final Map<String, Ordinales> porCentro = new ConcurrentHashMap<>();
+    private final Ordinales[] porTecnica;
+    private final IndiceOrdenado porPrescripcion = new IndiceOrdenado();
+    private final IndiceOrdenado porInforme = new IndiceOrdenado();
+    private final Map<String, IndiceOrdenado> porResultado = new ConcurrentHashMap<>();
+
+    /**
+     * Crea un repositorio vacío.
+     */
+    public RepositorioEstudios() {
+        porTecnica = new Ordinales[TecnicaAdquisicion.values().length];
+        for (int i = 0; i < porTecnica.length; i++) {
+            porTecnica[i] = new Ordinales();
+        }
+    }
+
+    /**
+     * Añade un estudio al repositorio e indexa sus campos. Si ya está
+     * informado, se indexan también el informador, la fecha del informe y
+     * los resultados.
+     *
+     * @param estudio estudio que añadir
+     * @return ordinal asignado al estudio
+     * @throws Exception si el estudio es nulo
+     */
+    public int agregar(EstudioDiagnostico estudio) throws Exception {
+        if (estudio == null) {
+            throw new Exception("El estudio no puede ser nulo.");
+        }
+        escritura.lock();
+        try {
+            int ordinal = numEstudios;
+            int bloque = ordinal >>> BITS_BLOQUE;
+            EstudioDiagnostico[][] actuales = bloques;
+            if (bloque == actuales.length) {
+                actuales = Arrays.copyOf(actuales, actuales.length * 2);
+            }
+            if (actuales[bloque] == null) {
+                actuales[bloque] = new EstudioDiagnostico[TAM_BLOQUE];
+            }
+            // El estudio se guarda antes de aparecer en ningún índice
+            actuales[bloque][ordinal & (TAM_BLOQUE - 1)] = estudio;
+            bloques = actuales;
+
+            if (estudio.getPaciente() != null) {
+                indexar(porPaciente, estudio.getPaciente().getDni(), ordinal);
+            }
+            Medico prescriptor = estudio.getPrescriptor();
+            if (prescriptor != null) {
+                indexar(porPrescriptor, prescriptor.getColegiado(), ordinal);
+                indexar(porCentro, prescriptor.getCentroSanitario(), ordinal);
+            }
+            indexarInforme(estudio, ordinal);
+            if (estudio.getTecnica() != null) {
+                porTecnica[estudio.getTecnica().ordinal()].agregar(ordinal);
+            }
+            porPrescripcion.agregar(estudio.getTimestampPrescripcion(), ordinal);
+            numEstudios = ordinal + 1;
+            return ordinal;
+        } finally {
+            escritura.unlock();
+        }
+    }
+
+    /**
+     * Informa un estudio del repositorio con
+     * {@link EstudioDiagnostico#informar(Medico, Map)} e indexa el informador,
+     * la fecha del informe y los resultados.
+     *
+     * @param ordinal ordinal del estudio
+     * @param informador médico que firma el informe
+     * @param resultados píxeles positivos detectados por elemento microscópico
+     * @throws Exception si el ordinal no corresponde a ningún estudio, el
+     *                   informador es nulo o el estudio ya está informado
+     */
+    public void informar(int ordinal, Medico informador, Map<String, Integer> resultados) throws Exception {
+        if (informador == null) {
+            throw new Exception("El médico informador no puede ser nulo.");
+        }
+        escritura.lock();
+        try {
+            EstudioDiagnostico estudio = get(ordinal);
+            if (estudio.getInformador() != null) {
+                throw new Exception("El estudio " + ordinal + " ya está informado.");
+            }
+            estudio.informar(informador, resultados);
+            indexarInforme(estudio, ordinal);
+        } finally {
+            escritura.unlock();
+        }
+    }
+
+    /**
+     * Devuelve el estudio con el ordinal indicado.
+     *
+     * @param ordinal ordinal asignado al añadir el estudio
+     * @return estudio
+     * @throws Exception si el ordinal no corresponde a ningún estudio
+     */
+    public EstudioDiagnostico get(int ordinal) throws Exception {
+        if (ordinal < 0 || ordinal >= numEstudios) {
+            throw new Exception("No hay ningún estudio con el ordinal " + ordinal + ".");
+        }
+        return estudio(ordinal);
+    }
+
+    /**
+     * Devuelve el número de estudios del repositorio.
+     *
+     * @return número de estudios
+     */
+    public int getNumEstudios() {
+        return numEstudios;
+    }
+
+    /**
+     * Devuelve los estudios de un paciente, en el orden en que se añadieron.
+     *
+     * @param dni DNI del paciente
+     * @return estudios del paciente (lista nueva, posiblemente vacía)
+     */
+    public List<EstudioDiagnostico> buscarPorPaciente(String dni) {
+        return estudios(porPaciente.get(dni));
+    }
+
+    /**
+     * Devuelve los estudios prescritos por un médico, en el orden en que se
+     * añadieron.
+     *
+     * @param colegiado número de colegiado del médico
+     * @return estudios prescritos (lista nueva, posiblemente vacía)
+     */
+    public List<EstudioDiagnostico> buscarPorPrescriptor(String colegiado) {
+        return estudios(porPrescriptor.get(colegiado));
+    }
+
+    /**
+     * Devuelve los estudios informados por un médico, en el orden en que se
+     * informaron (o se añadieron, si ya estaban informados).
+     *
+     * @param colegiado número de colegiado del médico
+     * @return estudios informados (lista nueva, posiblemente vacía)
+     */
+    public List<EstudioDiagnostico> buscarPorInformador(String colegiado) {
+        return estudios(porInformador.get(colegiado));
+    }
+
+    /**
+     * Devuelve los estudios en los que prescribe o informa algún médico de un
+     * centro sanitario.
+     *
+     * @param centro nombre del centro sanitario
+     * @return estudios del centro (lista nueva, posiblemente vacía)
+     */
+    public List<EstudioDiagnostico> buscarPorCentro(String centro) {
+        return estudios(porCentro.get(centro));
+    }
+
+    /**
+     * Devuelve los estudios adquiridos con una técnica, en el orden en que se
+     * añadieron.
+     *
+     * @param tecnica técnica de adquisición
+     * @return estudios de la técnica (lista nueva, posiblemente vacía)
+     */
+    public List<EstudioDiagnostico> buscarPorTecnica(TecnicaAdquisicion tecnica) {
+        return tecnica == null ? new ArrayList<>() : estudios(porTecnica[tecnica.ordinal()]);
+    }
+
+    /**
+     * Devuelve cuántos estudios tiene un paciente sin construir la lista.
+     *
+     * @param dni DNI del paciente
+     * @return número de estudios del paciente
+     */
+    public int contarPorPaciente(String dni) {
+        Ordinales ordinales = porPaciente.get(dni);
+        return ordinales == null ? 0 : ordinales.tam;
+    }
+
+    /**
+     * Devuelve cuántos estudios se han adquirido con una técnica sin
+     * construir la lista.
+     *
+     * @param tecnica técnica de adquisición
+     * @return número de estudios de la técnica
+     */
+    public int contarPorTecnica(TecnicaAdquisicion tecnica) {
+        return tecnica == null ? 0 : porTecnica[tecnica.ordinal()].tam;
+    }
+
+    /**
+     * Devuelve los estudios prescritos en el intervalo [desde, hasta), en
+     * orden de prescripción. El iterador recorre el índice a medida que se
+     * avanza, sin construir la lista de resultados.
+     *
+     * @param desde instante inicial en segundos desde la época, incluido
+     * @param hasta instante final en segundos desde la época, excluido
+     * @return iterador de los estudios del intervalo
+     */
+    public Iterator<EstudioDiagnostico> buscarPorPrescripcion(long desde, long hasta) {
+        return estudios(porPrescripcion.recorrer(desde, hasta));
+    }
+
+    /**
+     * Devuelve cuántos estudios se prescribieron en el intervalo
+     * [desde, hasta).
+     *
+     * @param desde instante inicial en segundos desde la época, incluido
+     * @param hasta instante final en segundos desde la época, excluido
+     * @return número de estudios del intervalo
+     */
+    public int contarPorPrescripcion(long desde, long hasta) {
+        return porPrescripcion.contar(desde, hasta);
+    }
+
+    /**
+     * Devuelve los estudios informados en el intervalo [desde, hasta), en
+     * orden de informe. El iterador recorre el índice a medida que se avanza,
+     * sin construir la lista de resultados.
+     *
+     * @param desde fecha inicial, incluida
+     * @param hasta fecha final, excluida
+     * @return iterador de los estudios del intervalo
+     * @throws Exception si alguna de las fechas es nula
+     */
+    public Iterator<EstudioDiagnostico> buscarPorInforme(LocalDateTime desde, LocalDateTime hasta)
+            throws Exception {
+        if (desde == null || hasta == null) {
+            throw new Exception("Las fechas del intervalo no pueden ser nulas.");
+        }
+        return estudios(porInforme.recorrer(IndiceOrdenado.instante(desde), IndiceOrdenado.instante(hasta)));
+    }
+
+    /**
+     * Devuelve cuántos estudios se informaron en el intervalo [desde, hasta).
+     *
+     * @param desde fecha inicial, incluida
+     * @param hasta fecha final, excluida
+     * @return número de estudios del intervalo
+     * @throws Exception si alguna de las fechas es nula
+     */
+    public int contarPorInforme(LocalDateTime desde, LocalDateTime hasta) throws Exception {
+        if (desde == null || hasta == null) {
+            throw new Exception("Las fechas del intervalo no pueden ser nulas.");
+        }
+        return porInforme.contar(IndiceOrdenado.instante(desde), IndiceOrdenado.instante(hasta));
+    }
+
+    /**
+     * Devuelve los estudios con un número de píxeles positivos de un elemento
+     * en el intervalo [desde, hasta), de menos a más píxeles. Los estudios sin
+     * resultado para el elemento no se devuelven. El iterador recorre el
+     * índice a medida que se avanza, sin construir la lista de resultados.
+     *
+     * @param elemento nombre del elemento microscópico
+     * @param desde número de píxeles inicial, incluido
+     * @param hasta número de píxeles final, excluido
+     * @return iterador de los estudios del intervalo
+     */
+    public Iterator<EstudioDiagnostico> buscarPorResultado(String elemento, int desde, int hasta) {
+        IndiceOrdenado indice = porResultado.get(elemento);
+        if (indice == null) {
+            return Collections.emptyIterator();
+        }
+        return estudios(indice.recorrer(desde, hasta));
+    }
+
+    /**
+     * Devuelve cuántos estudios tienen un número de píxeles positivos de un
+     * elemento en el intervalo [desde, hasta).
+     *
+     * @param elemento nombre del elemento microscópico
+     * @param desde número de píxeles inicial, incluido
+     * @param hasta número de píxeles final, excluido
+     * @return número de estudios del intervalo
+     */
+    public int contarPorResultado(String elemento, int desde, int hasta) {
+        IndiceOrdenado indice = porResultado.get(elemento);
+        return indice == null ? 0 : indice.contar(desde, hasta);
+    }
+
+    /**
+     * Devuelve los {@code k} estudios con más píxeles positivos de un
+     * elemento, de más a menos. Entre estudios con el mismo número de
+     * píxeles, primero los últimos en indexarse.
+     *
+     * @param elemento nombre del elemento microscópico
+     * @param k número máximo de estudios
+     * @return estudios con más píxeles positivos (lista nueva, posiblemente
+     *         vacía)
+     * @throws Exception si {@code k} es negativo
+     */
+    public List<EstudioDiagnostico> buscarMayoresResultados(String elemento, int k) throws Exception {
+        if (k < 0) {
+            throw new Exception("El número de estudios no puede ser negativo.");
+        }
+        List<EstudioDiagnostico> resultado = new ArrayList<>();
+        IndiceOrdenado indice = porResultado.get(elemento);
+        if (indice == null) {
+            return resultado;
+        }
+        PrimitiveIterator.OfInt ordinales = indice.recorrerDescendente(Long.MIN_VALUE, Long.MAX_VALUE);
+        while (resultado.size() < k && ordinales.hasNext()) {
+            resultado.add(estudio(ordinales.nextInt()));
+        }
+        return resultado;
+    }
+
+    /**
+     * Indexa la fecha del informe, los resultados, el informador del estudio
+     * y su centro, si es distinto del del prescriptor. Solo lo llama el
+     * escritor.
+     */
+    private void indexarInforme(EstudioDiagnostico estudio, int ordinal) {
+        if (estudio.getFechaInforme() != null) {
+            porInforme.agregar(IndiceOrdenado.instante(estudio.getFechaInforme()), ordinal);
+        }
+        Medico informador = estudio.getInformador();
+        if (informador == null) {
+            return;
+        }
+        if (estudio.getResultados() != null) {
+            for (Map.Entry<String, Integer> resultado : estudio.getResultados().entrySet()) {
+                if (resultado.getKey() == null || resultado.getValue() == null) {
+                    continue;
+                }
+                IndiceOrdenado indice = porResultado.get(resultado.getKey());
+                if (indice == null) {
+                    indice = new IndiceOrdenado();
+                    porResultado.put(resultado.getKey(), indice);
+                }
+                indice.agregar(resultado.getValue(), ordinal);
+            }
+        }
+        indexar(porInformador, informador.getColegiado(), ordinal);
+        String centro = informador.getCentroSanitario();
+        Medico prescriptor = estudio.getPrescriptor();
+        if (centro != null && (prescriptor == null || !centro.equals(prescriptor.getCentroSanitario()))) {
+            indexar(porCentro, centro, ordinal);
+        }
+    }
+
+    private static void indexar(Map<String, Ordinales> indice, String clave, int ordinal) {
+        if (clave == null) {
+            return;
+        }
+        Ordinales ordinales = indice.get(clave);
+        if (ordinales == null) {
+            ordinales = new Ordinales();
+            indice.put(clave, ordinales);
+        }
+        ordinales.agregar(ordinal);
+    }
+
+    private EstudioDiagnostico estudio(int ordinal) {
+        return bloques[ordinal >>> BITS_BLOQUE][ordinal & (TAM_BLOQUE - 1)];
+    }
+
+    private List<EstudioDiagnostico> estudios(Ordinales ordinales) {
+        if (ordinales == null) {
+            return new ArrayList<>();
+        }
+        // El tamaño se lee antes que el array: el array leído contiene al
+        // menos esos ordinales
+        int tam = ordinales.tam;
+        int[] datos = ordinales.datos;
+        List<EstudioDiagnostico> resultado = new ArrayList<>(tam);
+        for (int i = 0; i < tam; i++) {
+            resultado.add(estudio(datos[i]));
+        }
+        return resultado;
+    }
+
+    private Iterator<EstudioDiagnostico> estudios(PrimitiveIterator.OfInt ordinales) {
+        return new Iterator<EstudioDiagnostico>() {
+            @Override
+            public boolean hasNext() {
+                return ordinales.hasNext();
+            }
+
+            @Override
+            public EstudioDiagnostico next() {
+                return estudio(ordinales.nextInt());
+            }
+        };
+    }
+
+    /**
+     * Lista de ordinales que solo crece por el final. La modifica un único
+     * escritor; los lectores leen {@link #tam} y después {@link #datos}.
+     */
+    private static final class Ordinales {
+        private volatile int[] datos = new int[2];
+        private volatile int tam;
+
+        void agregar(int ordinal) {
+            int n = tam;
+            int[] actual = datos;
+            if (n == actual.length) {
+                // Los lectores siguen usando el array anterior, que no cambia
+                actual = Arrays.copyOf(actual, n + (n >> 1) + 2);
+            }
+            actual[n] = ordinal;
+            datos = actual;
+            tam = n + 1;
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package es.upm.dit.fprg.p3;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Resultado de un análisis con plazo: recuento de píxeles positivos por
+ * elemento microscópico y marca de completitud de cada elemento.
+ * <p>
+ * Un elemento está completo si todas las muestras del estudio se analizaron
+ * enteras con su reconocedor. Si el plazo se agotó antes, su recuento es
+ * parcial (una cota inferior del recuento completo).
+ * </p>
+ */
+public class ResultadoAnalisis {
+
+    private final Map<String, Integer> resultados;
+    private final Set<String> incompletos;
+
+    /**
+     * Crea un resultado a partir de los recuentos y los elementos incompletos.
+     *
+     * @param resultados recuentos por nombre de elemento
+     * @param incompletos nombres de los elementos con recuento parcial
+     */
+    ResultadoAnalisis(Map<String, Integer> resultados, Set<String> incompletos) {
+        this.resultados = Collections.unmodifiableMap(new HashMap<>(resultados));
+        this.incompletos = Collections.unmodifiableSet(new HashSet<>(incompletos));
+    }
+
+    /**
+     * Devuelve los recuentos por elemento, completos o parciales.
+     *
+     * @return mapa no modificable de nombre de elemento a píxeles positivos
+     */
+    public Map<String, Integer> getResultados() {
+        return resultados;
+    }
+
+    /**
+     * Indica si todos los elementos se analizaron por completo.
+     *
+     * @return {@code true} si ningún recuento es parcial
+     */
+    public boolean isCompleto() {
+        return incompletos.isEmpty();
+    }
+
+    /**
+     * Indica si el recuento de un elemento es completo.
+     *
+     * @param nombre nombre del elemento
+     * @return {@code true} si todas las muestras se analizaron enteras para
+     *         ese elemento
+     */
+    public boolean isCompleto(String nombre) {
+        return !incompletos.contains(nombre);
+    }
+
+    /**
+     * Devuelve los nombres de los elementos cuyo recuento es parcial.
+     *
+     * @return conjunto no modificable de nombres
+     */
+    public Set<String> getElementosIncompletos() {
+        return incompletos;
+    }
+
+    @Override
+    public String toString() {
+        return "ResultadoAnalisis [resultados=" + resultados + ", incompletos=" + incompletos + "]";
+    }
+}
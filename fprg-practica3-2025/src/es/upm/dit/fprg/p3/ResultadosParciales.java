@@ -0,0 +1,212 @@
+package es.upm.dit.fprg.p3;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Recuentos de un análisis en curso que crecen muestra a muestra.
+ * <p>
+ * {@link AnalizadorDiagnostico} asocia uno al estudio al empezar a
+ * analizarlo ({@link EstudioDiagnostico#getResultadosParciales()}). Cada par
+ * (muestra, reconocedor) terminado suma su recuento al de su muestra, y
+ * cuando la muestra tiene todos sus pares se suma a los recuentos del
+ * estudio, con un {@link LongAdder} por elemento. Así los médicos pueden
+ * consultar los resultados de las muestras ya analizadas sin esperar a las
+ * demás.
+ * </p>
+ * <p>
+ * {@link #getInstantanea()} es coherente: contiene la suma completa de las
+ * muestras fusionadas que indica, ni más ni menos. Las fusiones comparten el
+ * {@link StampedLock} y la instantánea lo toma en exclusiva, solo lo que
+ * tarda en sumar los contadores. Cuando se han fusionado todas las muestras,
+ * los recuentos coinciden con el resultado de
+ * {@link AnalizadorDiagnostico#analizar(EstudioDiagnostico)}.
+ * </p>
+ * <p>
+ * Las muestras se fusionan en el orden en que terminan sus pares: una tras
+ * otra en el análisis secuencial o en paralelo sin modelo de costes, y más
+ * tarde si los pares se ordenan por coste o por elemento. Una muestra con
+ * algún par que no llega a ejecutarse, porque el análisis falla, se cancela
+ * o agota su plazo, no se fusiona.
+ * </p>
+ */
+public final class ResultadosParciales {
+
+    private final String[] elementos;
+    private final int[] elementoDeReconocedor;
+    private final int numMuestras;
+    private final AtomicLongArray porMuestra;
+    private final AtomicIntegerArray paresPendientes;
+    private final LongAdder[] positivos;
+    private final LongAdder fusionadas = new LongAdder();
+    private final StampedLock cerrojo = new StampedLock();
+
+    /**
+     * Crea los recuentos vacíos de un análisis.
+     *
+     * @param elementosReconocedores nombre del elemento de cada reconocedor,
+     *                               en el orden de los reconocedores
+     * @param numMuestras número de muestras analizadas
+     */
+    ResultadosParciales(List<String> elementosReconocedores, int numMuestras) {
+        Map<String, Integer> indices = new LinkedHashMap<>();
+        this.elementoDeReconocedor = new int[elementosReconocedores.size()];
+        for (int r = 0; r < elementoDeReconocedor.length; r++) {
+            Integer indice = indices.get(elementosReconocedores.get(r));
+            if (indice == null) {
+                indice = indices.size();
+                indices.put(elementosReconocedores.get(r), indice);
+            }
+            elementoDeReconocedor[r] = indice;
+        }
+        this.elementos = indices.keySet().toArray(new String[0]);
+        this.numMuestras = numMuestras;
+        this.porMuestra = new AtomicLongArray(numMuestras * elementos.length);
+        this.paresPendientes = new AtomicIntegerArray(numMuestras);
+        for (int m = 0; m < numMuestras; m++) {
+            paresPendientes.set(m, elementoDeReconocedor.length);
+        }
+        this.positivos = new LongAdder[elementos.length];
+        for (int e = 0; e < elementos.length; e++) {
+            positivos[e] = new LongAdder();
+        }
+        if (elementoDeReconocedor.length == 0) {
+            // Sin reconocedores no hay pares que esperar
+            fusionadas.add(numMuestras);
+        }
+    }
+
+    /**
+     * Suma el recuento de un par (muestra, reconocedor) terminado y, si era
+     * el último de la muestra, fusiona la muestra. Puede llamarse desde
+     * varios hilos a la vez; cada par se registra una sola vez.
+     *
+     * @param muestra índice de la muestra
+     * @param reconocedor índice del reconocedor
+     * @param recuento píxeles positivos del par
+     */
+    void registrar(int muestra, int reconocedor, int recuento) {
+        int base = muestra * elementos.length;
+        porMuestra.addAndGet(base + elementoDeReconocedor[reconocedor], recuento);
+        if (paresPendientes.decrementAndGet(muestra) != 0) {
+            return;
+        }
+        long sello = cerrojo.readLock();
+        try {
+            for (int e = 0; e < elementos.length; e++) {
+                positivos[e].add(porMuestra.get(base + e));
+            }
+            fusionadas.increment();
+        } finally {
+            cerrojo.unlockRead(sello);
+        }
+    }
+
+    /**
+     * Devuelve el número de muestras del análisis.
+     *
+     * @return número de muestras
+     */
+    public int getNumMuestras() {
+        return numMuestras;
+    }
+
+    /**
+     * Devuelve cuántas muestras se han fusionado ya, sin tomar una
+     * instantánea.
+     *
+     * @return número de muestras fusionadas
+     */
+    public int getMuestrasFusionadas() {
+        return fusionadas.intValue();
+    }
+
+    /**
+     * Indica si ya se han fusionado todas las muestras.
+     *
+     * @return {@code true} si los recuentos son los definitivos
+     */
+    public boolean isCompleto() {
+        return getMuestrasFusionadas() == numMuestras;
+    }
+
+    /**
+     * Devuelve los recuentos de las muestras fusionadas hasta ahora.
+     *
+     * @return instantánea coherente de los recuentos
+     */
+    public Instantanea getInstantanea() {
+        Map<String, Integer> recuentos = new HashMap<>();
+        int muestras;
+        long sello = cerrojo.writeLock();
+        try {
+            // Sin muestras, el análisis devuelve un mapa vacío
+            if (numMuestras > 0) {
+                for (int e = 0; e < elementos.length; e++) {
+                    recuentos.put(elementos[e], positivos[e].intValue());
+                }
+            }
+            muestras = fusionadas.intValue();
+        } finally {
+            cerrojo.unlockWrite(sello);
+        }
+        return new Instantanea(recuentos, muestras, numMuestras);
+    }
+
+    /**
+     * Recuentos de las muestras fusionadas en un momento dado.
+     */
+    public static final class Instantanea {
+        private final Map<String, Integer> recuentos;
+        private final int muestrasFusionadas;
+        private final int numMuestras;
+
+        Instantanea(Map<String, Integer> recuentos, int muestrasFusionadas, int numMuestras) {
+            this.recuentos = Collections.unmodifiableMap(recuentos);
+            this.muestrasFusionadas = muestrasFusionadas;
+            this.numMuestras = numMuestras;
+        }
+
+        /**
+         * Devuelve los píxeles positivos por elemento de las muestras
+         * fusionadas.
+         *
+         * @return mapa no modificable de nombre de elemento a píxeles
+         *         positivos
+         */
+        public Map<String, Integer> getRecuentos() {
+            return recuentos;
+        }
+
+        /**
+         * Devuelve cuántas muestras incluyen los recuentos.
+         *
+         * @return número de muestras fusionadas
+         */
+        public int getMuestrasFusionadas() {
+            return muestrasFusionadas;
+        }
+
+        /**
+         * Indica si los recuentos incluyen todas las muestras del análisis.
+         *
+         * @return {@code true} si son los recuentos definitivos
+         */
+        public boolean isCompleta() {
+            return muestrasFusionadas == numMuestras;
+        }
+
+        @Override
+        public String toString() {
+            return "Instantanea [recuentos=" + recuentos + ", muestras=" + muestrasFusionadas + "/" + numMuestras
+                    + "]";
+        }
+    }
+}
@@ -0,0 +1,429 @@
+package es.upm.dit.fprg.p3;
+
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Procesamiento en cadena de estudios diagnósticos: decodificación de las
+ * muestras, análisis e informe, y guardado en XML.
+ * <p>
+ * Cada {@link Etapa} tiene sus propios hilos y toma los estudios de una cola
+ * de capacidad limitada que alimenta la etapa anterior. Así, mientras un
+ * estudio se analiza, el siguiente puede estar leyendo sus imágenes y el
+ * anterior escribiéndose en disco: la entrada/salida y el cálculo se solapan
+ * entre estudios. Si una etapa se retrasa, su cola se llena y la etapa
+ * anterior espera, de modo que el número de estudios en memoria está acotado.
+ * </p>
+ * <p>
+ * Por cada etapa se mide el tiempo que sus hilos pasan trabajando, esperando
+ * estudios de la etapa anterior y bloqueados porque la cola de la siguiente
+ * está llena. La etapa con mayor {@link #getUtilizacion(Etapa) utilización}
+ * es el cuello de botella: es la que conviene reforzar con más hilos.
+ * </p>
+ */
+public class TuberiaEstudios {
+
+    /** Etapas del procesamiento, en orden. */
+    public enum Etapa {
+        /** Lectura y decodificación de las imágenes de las muestras. */
+        DECODIFICACION,
+        /** Análisis con el {@link AnalizadorDiagnostico} e informe. */
+        ANALISIS,
+        /** Guardado del estudio informado en su {@link DestinoEstudio}. */
+        GUARDADO
+    }
+
+    /** Tiempo máximo que un hilo espera un estudio antes de comprobar si debe terminar. */
+    private static final long ESPERA_MAXIMA_MS = 10;
+
+    private final AnalizadorDiagnostico analizador;
+    private final Medico informador;
+    private final Map<Etapa, EstadoEtapa> etapas;
+    private final AtomicLong completados;
+    private final AtomicLong fallidos;
+    private final AtomicInteger enviosEnCurso;
+    private volatile boolean cerrada;
+    private volatile long instanteInicio;
+
+    /**
+     * Crea la cadena y arranca los hilos de todas las etapas.
+     *
+     * @param analizador analizador con los reconocedores ya registrados
+     * @param informador médico que firma los informes de los estudios
+     * @param hilosDecodificacion hilos que leen y decodifican muestras
+     * @param hilosAnalisis hilos que analizan estudios
+     * @param hilosGuardado hilos que guardan estudios
+     * @param capacidadColas número máximo de estudios en espera ante cada etapa
+     * @throws Exception si el analizador o el informador son nulos, o si algún
+     *                   número de hilos o la capacidad no son positivos
+     */
+    public TuberiaEstudios(AnalizadorDiagnostico analizador, Medico informador, int hilosDecodificacion,
+            int hilosAnalisis, int hilosGuardado, int capacidadColas) throws Exception {
+        if (analizador == null) {
+            throw new Exception("Analizador nulo");
+        }
+        if (informador == null) {
+            throw new Exception("Informador nulo");
+        }
+        if (hilosDecodificacion < 1 || hilosAnalisis < 1 || hilosGuardado < 1) {
+            throw new Exception("El número de hilos de cada etapa debe ser >= 1");
+        }
+        if (capacidadColas < 1) {
+            throw new Exception("La capacidad de las colas debe ser >= 1");
+        }
+        this.analizador = analizador;
+        this.informador = informador;
+        this.completados = new AtomicLong();
+        this.fallidos = new AtomicLong();
+        this.enviosEnCurso = new AtomicInteger();
+        this.cerrada = false;
+        this.instanteInicio = System.nanoTime();
+
+        this.etapas = new EnumMap<>(Etapa.class);
+        etapas.put(Etapa.DECODIFICACION, new EstadoEtapa(hilosDecodificacion, capacidadColas));
+        etapas.put(Etapa.ANALISIS, new EstadoEtapa(hilosAnalisis, capacidadColas));
+        etapas.put(Etapa.GUARDADO, new EstadoEtapa(hilosGuardado, capacidadColas));
+        for (Etapa etapa : Etapa.values()) {
+            EstadoEtapa estado = etapas.get(etapa);
+            for (int i = 0; i < estado.numHilos; i++) {
+                Thread hilo = new Thread(() -> trabajar(etapa),
+                        "tuberia-" + etapa.name().toLowerCase() + "-" + i);
+                estado.hilos.add(hilo);
+                hilo.start();
+            }
+        }
+    }
+
+    /**
+     * Envía un estudio para su procesamiento. Las muestras de {@code fuentes}
+     * se añaden al estudio en la etapa de decodificación. Si la cola de esa
+     * etapa está llena, espera a que haya hueco.
+     *
+     * @param estudio estudio con sus datos clínicos
+     * @param fuentes fuentes de las muestras que se añadirán al estudio
+     * @param destino destino en el que se guardará el estudio informado
+     * @return futuro que se completa con el estudio cuando se ha guardado
+     * @throws Exception si algún parámetro es nulo, la cadena está cerrada o
+     *                   el hilo es interrumpido mientras espera
+     */
+    public CompletableFuture<EstudioDiagnostico> enviar(EstudioDiagnostico estudio, List<FuenteMuestra> fuentes,
+            DestinoEstudio destino) throws Exception {
+        if (estudio == null) {
+            throw new Exception("Estudio nulo");
+        }
+        if (fuentes == null) {
+            throw new Exception("Lista de fuentes nula");
+        }
+        if (destino == null) {
+            throw new Exception("Destino nulo");
+        }
+        Trabajo trabajo = new Trabajo(estudio, new ArrayList<>(fuentes), destino);
+        enviosEnCurso.incrementAndGet();
+        try {
+            if (cerrada) {
+                throw new Exception("La cadena de procesamiento está cerrada");
+            }
+            etapas.get(Etapa.DECODIFICACION).cola.put(trabajo);
+        } finally {
+            enviosEnCurso.decrementAndGet();
+        }
+        return trabajo.resultado;
+    }
+
+    /**
+     * Deja de aceptar estudios nuevos. Los estudios ya enviados se siguen
+     * procesando y, cuando cada etapa termina, sus hilos finalizan.
+     */
+    public void cerrar() {
+        cerrada = true;
+    }
+
+    /**
+     * Espera a que todas las etapas terminen los estudios enviados tras llamar
+     * a {@link #cerrar()}.
+     *
+     * @param tiempo tiempo máximo de espera
+     * @param unidad unidad del tiempo máximo
+     * @return {@code true} si todos los hilos han terminado
+     * @throws InterruptedException si el hilo es interrumpido mientras espera
+     */
+    public boolean esperarTerminacion(long tiempo, TimeUnit unidad) throws InterruptedException {
+        long limite = System.nanoTime() + unidad.toNanos(tiempo);
+        for (EstadoEtapa estado : etapas.values()) {
+            for (Thread hilo : estado.hilos) {
+                long restante = limite - System.nanoTime();
+                if (restante <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedJoin(hilo, restante);
+                if (hilo.isAlive()) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Devuelve el número de estudios guardados correctamente.
+     *
+     * @return estudios completados
+     */
+    public long getEstudiosCompletados() {
+        return completados.get();
+    }
+
+    /**
+     * Devuelve el número de estudios que fallaron en alguna etapa.
+     *
+     * @return estudios fallidos
+     */
+    public long getEstudiosFallidos() {
+        return fallidos.get();
+    }
+
+    /**
+     * Devuelve el número de estudios que esperan ante una etapa.
+     *
+     * @param etapa etapa cuya cola se consulta
+     * @return profundidad actual de la cola de la etapa
+     */
+    public int getProfundidadCola(Etapa etapa) {
+        return etapas.get(etapa).cola.size();
+    }
+
+    /**
+     * Devuelve el número de estudios que ha procesado una etapa, con éxito o
+     * con error.
+     *
+     * @param etapa etapa consultada
+     * @return estudios procesados por la etapa
+     */
+    public long getProcesados(Etapa etapa) {
+        return etapas.get(etapa).procesados.sum();
+    }
+
+    /**
+     * Devuelve la fracción del tiempo disponible de los hilos de una etapa que
+     * han pasado trabajando, desde la creación de la cadena o la última
+     * llamada a {@link #reiniciarEstadisticas()}.
+     *
+     * @param etapa etapa consultada
+     * @return utilización entre 0 y 1
+     */
+    public double getUtilizacion(Etapa etapa) {
+        return etapas.get(etapa).ocupado.sum() / tiempoDisponible(etapa);
+    }
+
+    /**
+     * Devuelve la fracción del tiempo disponible de los hilos de una etapa que
+     * han pasado esperando a que la etapa anterior les entregue estudios.
+     *
+     * @param etapa etapa consultada
+     * @return fracción de espera entre 0 y 1
+     */
+    public double getFraccionEsperando(Etapa etapa) {
+        return etapas.get(etapa).esperando.sum() / tiempoDisponible(etapa);
+    }
+
+    /**
+     * Devuelve la fracción del tiempo disponible de los hilos de una etapa que
+     * han pasado bloqueados porque la cola de la etapa siguiente estaba llena.
+     *
+     * @param etapa etapa consultada
+     * @return fracción de bloqueo entre 0 y 1 (siempre 0 en el guardado)
+     */
+    public double getFraccionBloqueada(Etapa etapa) {
+        return etapas.get(etapa).bloqueado.sum() / tiempoDisponible(etapa);
+    }
+
+    /**
+     * Devuelve la etapa con mayor utilización, que es la que limita el ritmo
+     * de la cadena.
+     *
+     * @return etapa cuello de botella
+     */
+    public Etapa getCuelloDeBotella() {
+        Etapa cuello = Etapa.DECODIFICACION;
+        for (Etapa etapa : Etapa.values()) {
+            if (getUtilizacion(etapa) > getUtilizacion(cuello)) {
+                cuello = etapa;
+            }
+        }
+        return cuello;
+    }
+
+    /**
+     * Devuelve el ritmo medio de estudios guardados por segundo desde la
+     * creación de la cadena o la última llamada a
+     * {@link #reiniciarEstadisticas()}.
+     *
+     * @return estudios completados por segundo
+     */
+    public double getEstudiosPorSegundo() {
+        double segundos = (System.nanoTime() - instanteInicio) / 1e9;
+        return segundos > 0 ? completados.get() / segundos : 0;
+    }
+
+    /**
+     * Pone a cero los contadores de estudios y los tiempos de las etapas.
+     */
+    public void reiniciarEstadisticas() {
+        for (EstadoEtapa estado : etapas.values()) {
+            estado.procesados.reset();
+            estado.ocupado.reset();
+            estado.esperando.reset();
+            estado.bloqueado.reset();
+        }
+        completados.set(0);
+        fallidos.set(0);
+        instanteInicio = System.nanoTime();
+    }
+
+    private double tiempoDisponible(Etapa etapa) {
+        return Math.max(1, (double) (System.nanoTime() - instanteInicio) * etapas.get(etapa).numHilos);
+    }
+
+    /**
+     * Bucle de cada hilo de una etapa: toma un estudio de su cola, realiza el
+     * trabajo de la etapa y lo entrega a la siguiente. Termina cuando la
+     * etapa anterior ha terminado (o, en la primera, la cadena está cerrada)
+     * y su cola está vacía.
+     */
+    private void trabajar(Etapa etapa) {
+        EstadoEtapa estado = etapas.get(etapa);
+        EstadoEtapa siguiente = etapa.ordinal() + 1 < Etapa.values().length
+                ? etapas.get(Etapa.values()[etapa.ordinal() + 1]) : null;
+        try {
+            while (true) {
+                long inicio = System.nanoTime();
+                Trabajo trabajo;
+                try {
+                    trabajo = estado.cola.poll(ESPERA_MAXIMA_MS, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                estado.esperando.add(System.nanoTime() - inicio);
+                if (trabajo == null) {
+                    if (haTerminadoEntrada(etapa) && estado.cola.isEmpty()) {
+                        return;
+                    }
+                    continue;
+                }
+
+                inicio = System.nanoTime();
+                boolean correcto = procesar(etapa, trabajo);
+                estado.ocupado.add(System.nanoTime() - inicio);
+                estado.procesados.increment();
+
+                if (correcto && siguiente != null) {
+                    inicio = System.nanoTime();
+                    try {
+                        siguiente.cola.put(trabajo);
+                    } catch (InterruptedException e) {
+                        fallar(trabajo, e);
+                        return;
+                    }
+                    estado.bloqueado.add(System.nanoTime() - inicio);
+                }
+            }
+        } finally {
+            estado.activos.decrementAndGet();
+        }
+    }
+
+    /**
+     * Indica si ya no pueden llegar estudios nuevos a la cola de una etapa.
+     */
+    private boolean haTerminadoEntrada(Etapa etapa) {
+        if (etapa.ordinal() == 0) {
+            return cerrada && enviosEnCurso.get() == 0;
+        }
+        return etapas.get(Etapa.values()[etapa.ordinal() - 1]).activos.get() == 0;
+    }
+
+    /**
+     * Realiza el trabajo de una etapa sobre un estudio. Si falla, también con
+     * un {@link Error}, completa el resultado del estudio con el fallo y
+     * devuelve {@code false}.
+     */
+    private boolean procesar(Etapa etapa, Trabajo trabajo) {
+        try {
+            switch (etapa) {
+            case DECODIFICACION:
+                for (FuenteMuestra fuente : trabajo.fuentes) {
+                    trabajo.estudio.addMuestra(fuente.cargar());
+                }
+                break;
+            case ANALISIS:
+                trabajo.estudio.informar(informador, analizador.analizar(trabajo.estudio));
+                break;
+            case GUARDADO:
+                try (OutputStream out = trabajo.destino.abrir(trabajo.estudio)) {
+                    trabajo.estudio.guardar(out);
+                }
+                completados.incrementAndGet();
+                trabajo.resultado.complete(trabajo.estudio);
+                break;
+            }
+            return true;
+        } catch (Throwable e) {
+            fallar(trabajo, e);
+            return false;
+        }
+    }
+
+    private void fallar(Trabajo trabajo, Throwable e) {
+        fallidos.incrementAndGet();
+        trabajo.resultado.completeExceptionally(e);
+    }
+
+    /**
+     * Cola, hilos y tiempos acumulados de una etapa.
+     */
+    private static final class EstadoEtapa {
+        private final int numHilos;
+        private final BlockingQueue<Trabajo> cola;
+        private final List<Thread> hilos;
+        private final AtomicInteger activos;
+        private final LongAdder procesados = new LongAdder();
+        private final LongAdder ocupado = new LongAdder();
+        private final LongAdder esperando = new LongAdder();
+        private final LongAdder bloqueado = new LongAdder();
+
+        EstadoEtapa(int numHilos, int capacidadCola) {
+            this.numHilos = numHilos;
+            this.cola = new ArrayBlockingQueue<>(capacidadCola);
+            this.hilos = new ArrayList<>(numHilos);
+            this.activos = new AtomicInteger(numHilos);
+        }
+    }
+
+    /**
+     * Estudio en proceso junto con las fuentes de sus muestras, su destino y
+     * su resultado futuro.
+     */
+    private static final class Trabajo {
+        private final EstudioDiagnostico estudio;
+        private final List<FuenteMuestra> fuentes;
+        private final DestinoEstudio destino;
+        private final CompletableFuture<EstudioDiagnostico> resultado;
+
+        Trabajo(EstudioDiagnostico estudio, List<FuenteMuestra> fuentes, DestinoEstudio destino) {
+            this.estudio = estudio;
+            this.fuentes = fuentes;
+            this.destino = destino;
+            this.resultado = new CompletableFuture<>();
+        }
+    }
+}